@@ -17,15 +17,14 @@
  */
 package com.jeanchampemont.wtfdyum;
 
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
-import org.springframework.scheduling.annotation.EnableScheduling;
 
 import java.time.Clock;
 
 @SpringBootApplication
-@EnableScheduling
 public class WTFDYUMApplication {
 
     @Bean
@@ -34,6 +33,8 @@ public class WTFDYUMApplication {
     }
 
     public static void main(final String[] args) {
-        SpringApplication.run(WTFDYUMApplication.class, args);
+        final SpringApplication application = new SpringApplication(WTFDYUMApplication.class);
+        application.addListeners(new DeploymentRole());
+        application.run(args);
     }
 }
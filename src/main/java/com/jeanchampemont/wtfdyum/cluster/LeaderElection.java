@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.cluster;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
+import com.jeanchampemont.wtfdyum.utils.RedisScripts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lease based leader election on Redis.
+ *
+ * A node is the leader of a lease as long as it holds the LEADER_<name>
+ * key. Held leases are renewed in the background every third of the lease
+ * time, so a leader keeps its leadership between two runs of its jobs. If
+ * it dies, the lease expires and another node takes over within the lease
+ * time.
+ *
+ * Every acquisition gets a new, increasing fencing token, part of the lease
+ * value: a node that lost its lease can neither renew nor release the lease
+ * of the new leader.
+ *
+ * A leader only job checks with holdsLease() between its batches that it
+ * still holds the very lease it started with, and stops otherwise: once the
+ * lease expired or was taken over, another node may be running the job.
+ */
+@Component
+@Profile("!" + DeploymentRole.WEB)
+public class LeaderElection {
+
+    private static final String LEASE_KEY_PREFIX = "LEADER_";
+
+    private static final String FENCING_KEY_PREFIX = "LEADER_FENCING_";
+
+    private static final RedisScript<Long> ACQUIRE_SCRIPT = RedisScripts.load("lease-acquire.lua", Long.class);
+
+    private static final RedisScript<Long> RENEW_SCRIPT = RedisScripts.load("lease-renew.lua", Long.class);
+
+    private static final RedisScript<Long> RELEASE_SCRIPT = RedisScripts.load("lease-release.lua", Long.class);
+
+    /**
+     * The lease the leader only job running on this thread started with.
+     */
+    private static final ThreadLocal<Lease> GUARDED = new ThreadLocal<>();
+
+    @Autowired
+    public LeaderElection(final StringRedisTemplate stringRedisTemplate,
+            final Clock clock,
+            @Value("${wtfdyum.leader.lease-time}") final long leaseTime) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.clock = clock;
+        this.leaseTime = leaseTime;
+        this.renewalExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("leader-renewal-%d").setDaemon(true).build());
+        this.renewalExecutor.scheduleWithFixedDelay(this::renewAll, leaseTime / 3, leaseTime / 3,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Clock clock;
+
+    private final long leaseTime;
+
+    private final ScheduledExecutorService renewalExecutor;
+
+    /**
+     * @return false if a leader only job runs on this thread and the lease it
+     *         started with is no longer held by this node, true otherwise
+     */
+    public static boolean holdsLease() {
+        final Lease lease = GUARDED.get();
+        return lease == null || lease.owner.getLease(lease.name) == lease;
+    }
+
+    /**
+     * Mark the lease as guarding the leader only job about to run on this
+     * thread.
+     *
+     * @return the lease guarding this thread so far, to be restored with
+     *         leave
+     */
+    static Lease enter(final Lease lease) {
+        final Lease previous = GUARDED.get();
+        GUARDED.set(lease);
+        return previous;
+    }
+
+    static void leave(final Lease previous) {
+        if (previous == null) {
+            GUARDED.remove();
+        } else {
+            GUARDED.set(previous);
+        }
+    }
+
+    /**
+     * Get the lease held by this node.
+     *
+     * @param name
+     *            the lease name
+     * @return the lease, or null if this node is not the leader
+     */
+    public Lease getLease(final String name) {
+        final Lease lease = leases.get(name);
+        if (lease == null || lease.expiresAt <= clock.millis()) {
+            return null;
+        }
+        return lease;
+    }
+
+    /**
+     * Whether this node is the leader, trying to become it if nobody is.
+     *
+     * @param name
+     *            the lease name
+     * @return true if this node holds the lease
+     */
+    public boolean isLeader(final String name) {
+        return lead(name) != null;
+    }
+
+    /**
+     * Get the lease held by this node, trying to acquire it if nobody holds
+     * it.
+     *
+     * @param name
+     *            the lease name
+     * @return the lease, or null if another node is the leader
+     */
+    public Lease lead(final String name) {
+        final Lease lease = getLease(name);
+        return lease != null ? lease : acquire(name);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        renewalExecutor.shutdownNow();
+        // let another node take over right away
+        for (final Lease lease : leases.values()) {
+            try {
+                stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(leaseKey(lease.name)),
+                        lease.value);
+            } catch (final RuntimeException e) {
+                log.warn("Could not release lease " + lease.name, e);
+            }
+        }
+        leases.clear();
+    }
+
+    private Lease acquire(final String name) {
+        final long now = clock.millis();
+        final Long token = stringRedisTemplate.execute(ACQUIRE_SCRIPT,
+                Arrays.asList(leaseKey(name), fencingKey(name)), nodeId, Long.toString(leaseTime));
+        if (token == null || token == 0) {
+            return null;
+        }
+        final Lease lease = new Lease(this, name, token, new StringBuilder(nodeId).append(':').append(token).toString(),
+                now + leaseTime);
+        leases.put(name, lease);
+        log.info("Now the leader of {} with fencing token {}", name, token);
+        return lease;
+    }
+
+    private String fencingKey(final String name) {
+        return new StringBuilder(FENCING_KEY_PREFIX).append(name).toString();
+    }
+
+    private String leaseKey(final String name) {
+        return new StringBuilder(LEASE_KEY_PREFIX).append(name).toString();
+    }
+
+    private void renewAll() {
+        for (final Lease lease : leases.values()) {
+            try {
+                final long now = clock.millis();
+                final Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                        Collections.singletonList(leaseKey(lease.name)), lease.value, Long.toString(leaseTime));
+                if (renewed != null && renewed == 1) {
+                    lease.expiresAt = now + leaseTime;
+                } else {
+                    leases.remove(lease.name, lease);
+                    log.warn("Lost the leadership of {} (fencing token {})", lease.name, lease.fencingToken);
+                }
+            } catch (final RuntimeException e) {
+                // the lease stays valid locally until it expires
+                log.warn("Could not renew lease " + lease.name, e);
+            }
+        }
+    }
+
+    /**
+     * A lease held by this node.
+     */
+    public static final class Lease {
+
+        Lease(final LeaderElection owner, final String name, final long fencingToken, final String value,
+                final long expiresAt) {
+            this.owner = owner;
+            this.name = name;
+            this.fencingToken = fencingToken;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private final LeaderElection owner;
+
+        private final String name;
+
+        private final long fencingToken;
+
+        private final String value;
+
+        private volatile long expiresAt;
+
+        /**
+         * @return the fencing token, greater than the one of any previous
+         *         leader of this lease
+         */
+        public long getFencingToken() {
+            return fencingToken;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+}
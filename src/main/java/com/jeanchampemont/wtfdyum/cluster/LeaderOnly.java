@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.cluster;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Target({ ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+/**
+ * Mark a (scheduled) method as running on a single node of the cluster,
+ * the current leader of the named lease. It is skipped on every other node.
+ * A long running method stops between its batches once the lease is lost,
+ * see LeaderElection.holdsLease().
+ */
+public @interface LeaderOnly {
+
+    /**
+     * @return the lease name
+     */
+    String value();
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.cluster;
+
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+@Aspect
+@Component
+@Profile("!" + DeploymentRole.WEB)
+public class LeaderOnlyAspect {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private LeaderElection leaderElection;
+
+    /**
+     * Around method annotated with @LeaderOnly. The method runs guarded by
+     * the lease, see LeaderElection.holdsLease().
+     *
+     */
+    @Around("execution(public * *(..)) && @annotation(leaderOnly)")
+    public Object aroundLeaderOnlyMethod(final ProceedingJoinPoint pjp, final LeaderOnly leaderOnly)
+            throws Throwable {
+        final LeaderElection.Lease lease = leaderElection.lead(leaderOnly.value());
+        if (lease == null) {
+            log.trace("Not the leader of {}, skipping {}", leaderOnly.value(), pjp.getSignature());
+            return null;
+        }
+        final LeaderElection.Lease previous = LeaderElection.enter(lease);
+        try {
+            return pjp.proceed();
+        } finally {
+            LeaderElection.leave(previous);
+        }
+    }
+}
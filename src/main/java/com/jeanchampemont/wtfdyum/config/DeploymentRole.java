@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.ConfigurableEnvironment;
+
+/**
+ * Deployment roles of an instance, selected through the active Spring profiles.
+ *
+ * With no role profile active, an instance is both a web and a worker
+ * instance (combined). The {@value #WEB} profile only serves web requests,
+ * the {@value #WORKER} profile only runs the scheduled jobs and starts
+ * without a servlet container.
+ */
+public class DeploymentRole implements ApplicationListener<ApplicationEnvironmentPreparedEvent>, Ordered {
+
+    public static final String WEB = "web";
+
+    public static final String WORKER = "worker";
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Override
+    public int getOrder() {
+        // after the configuration files have been read, they may activate profiles too
+        return Ordered.LOWEST_PRECEDENCE;
+    }
+
+    @Override
+    public void onApplicationEvent(final ApplicationEnvironmentPreparedEvent event) {
+        final ConfigurableEnvironment environment = event.getEnvironment();
+        final boolean web = environment.acceptsProfiles(WEB);
+        final boolean worker = environment.acceptsProfiles(WORKER);
+        if (web && worker) {
+            throw new IllegalStateException("Profiles '" + WEB + "' and '" + WORKER
+                    + "' are exclusive, activate neither of them for a combined instance");
+        }
+        if (worker) {
+            event.getSpringApplication().setWebEnvironment(false);
+        }
+        log.info("Starting as a {} instance", web ? WEB : worker ? WORKER : "combined");
+    }
+}
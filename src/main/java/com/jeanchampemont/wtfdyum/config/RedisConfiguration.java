@@ -22,7 +22,9 @@ import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.Principal;
 import com.jeanchampemont.wtfdyum.utils.EnumRedisSerializer;
+import com.jeanchampemont.wtfdyum.utils.EventRedisSerializer;
 import com.jeanchampemont.wtfdyum.utils.LongRedisSerializer;
+import com.jeanchampemont.wtfdyum.utils.PrincipalRedisSerializer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -30,7 +32,10 @@ import org.springframework.core.env.Environment;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 @Configuration
@@ -43,8 +48,11 @@ public class RedisConfiguration {
         final RedisTemplate<String, Event> template = new RedisTemplate<>();
         template.setConnectionFactory(redisConnectionFactory());
         template.setKeySerializer(new StringRedisSerializer());
-        template.setHashKeySerializer(jsonSerializer(Event.class, objectMapper()));
-        template.setValueSerializer(jsonSerializer(Event.class, objectMapper()));
+        final RedisSerializer<Event> serializer = binaryCodec()
+                ? new EventRedisSerializer(jsonSerializer(Event.class, objectMapper()))
+                : jsonSerializer(Event.class, objectMapper());
+        template.setHashKeySerializer(serializer);
+        template.setValueSerializer(serializer);
         return template;
     }
 
@@ -80,8 +88,11 @@ public class RedisConfiguration {
         final RedisTemplate<String, Principal> template = new RedisTemplate<>();
         template.setConnectionFactory(redisConnectionFactory());
         template.setKeySerializer(new StringRedisSerializer());
-        template.setHashKeySerializer(jsonSerializer(Principal.class, objectMapper()));
-        template.setValueSerializer(jsonSerializer(Principal.class, objectMapper()));
+        final RedisSerializer<Principal> serializer = binaryCodec()
+                ? new PrincipalRedisSerializer(jsonSerializer(Principal.class, objectMapper()))
+                : jsonSerializer(Principal.class, objectMapper());
+        template.setHashKeySerializer(serializer);
+        template.setValueSerializer(serializer);
         return template;
     }
 
@@ -94,6 +105,26 @@ public class RedisConfiguration {
         return jedisConnectionFactory;
     }
 
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer() {
+        final RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory());
+        return container;
+    }
+
+    @Bean
+    public StringRedisTemplate stringRedisTemplate() {
+        return new StringRedisTemplate(redisConnectionFactory());
+    }
+
+    /**
+     * Events and principals are stored in a compact binary form instead of
+     * JSON, legacy JSON values are still read.
+     */
+    private boolean binaryCodec() {
+        return "binary".equalsIgnoreCase(env.getProperty("wtfdyum.redis.codec"));
+    }
+
     private <T> Jackson2JsonRedisSerializer<T> jsonSerializer(final Class<T> clazz, final ObjectMapper mapper) {
         final Jackson2JsonRedisSerializer<T> result = new Jackson2JsonRedisSerializer<>(clazz);
         result.setObjectMapper(mapper);
@@ -19,12 +19,14 @@ package com.jeanchampemont.wtfdyum.config;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 import org.thymeleaf.extras.java8time.dialect.Java8TimeDialect;
 
 /**
  * Spring configuration for Thymeleaf
  */
 @Configuration
+@Profile("!" + DeploymentRole.WORKER)
 public class ThymeleafConfiguration {
 
     @Bean
@@ -20,6 +20,7 @@ package com.jeanchampemont.wtfdyum.config;
 import com.jeanchampemont.wtfdyum.utils.AuthenticationInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
@@ -27,6 +28,7 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter
  * Configuration for Spring MVC
  */
 @Configuration
+@Profile("!" + DeploymentRole.WORKER)
 public class WebMvcConfiguration extends WebMvcConfigurerAdapter {
 
     @Autowired
@@ -34,7 +36,8 @@ public class WebMvcConfiguration extends WebMvcConfigurerAdapter {
 
     @Override
     public void addInterceptors(final InterceptorRegistry registry) {
-        registry.addInterceptor(authenticationInterceptor);
+        // static resources need no authentication context
+        registry.addInterceptor(authenticationInterceptor).excludePathPatterns("/css/**", "/fonts/**", "/js/**");
     }
 
 }
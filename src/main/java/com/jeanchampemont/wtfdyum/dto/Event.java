@@ -40,6 +40,16 @@ public class Event {
 
     private LocalDateTime creationDateTime;
 
+    /**
+     * Number of consecutive occurrences merged in this event.
+     */
+    private int count = 1;
+
+    /**
+     * Creation date of the first occurrence, null when it happened once.
+     */
+    private LocalDateTime firstCreationDateTime;
+
     @Override
     public boolean equals(final Object obj) {
         if (this == obj) {
@@ -59,6 +69,9 @@ public class Event {
         } else if (!additionalData.equals(other.additionalData)) {
             return false;
         }
+        if (count != other.count) {
+            return false;
+        }
         if (creationDateTime == null) {
             if (other.creationDateTime != null) {
                 return false;
@@ -66,6 +79,13 @@ public class Event {
         } else if (!creationDateTime.equals(other.creationDateTime)) {
             return false;
         }
+        if (firstCreationDateTime == null) {
+            if (other.firstCreationDateTime != null) {
+                return false;
+            }
+        } else if (!firstCreationDateTime.equals(other.firstCreationDateTime)) {
+            return false;
+        }
         if (type != other.type) {
             return false;
         }
@@ -76,10 +96,18 @@ public class Event {
         return additionalData;
     }
 
+    public int getCount() {
+        return count;
+    }
+
     public LocalDateTime getCreationDateTime() {
         return creationDateTime;
     }
 
+    public LocalDateTime getFirstCreationDateTime() {
+        return firstCreationDateTime;
+    }
+
     @JsonIgnore
     public String getMessage() {
         return String.format(type.getMessage(), additionalData);
@@ -91,17 +119,26 @@ public class Event {
 
     @Override
     public int hashCode() {
-        return Objects.hash(this.type, this.creationDateTime, this.additionalData);
+        return Objects.hash(this.type, this.creationDateTime, this.additionalData, this.count,
+                this.firstCreationDateTime);
     }
 
     public void setAdditionalData(final String additionalData) {
         this.additionalData = additionalData;
     }
 
+    public void setCount(final int count) {
+        this.count = count;
+    }
+
     public void setCreationDateTime(final LocalDateTime creationDateTime) {
         this.creationDateTime = creationDateTime;
     }
 
+    public void setFirstCreationDateTime(final LocalDateTime firstCreationDateTime) {
+        this.firstCreationDateTime = firstCreationDateTime;
+    }
+
     public void setType(final EventType type) {
         this.type = type;
     }
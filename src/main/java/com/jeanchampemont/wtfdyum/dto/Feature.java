@@ -17,6 +17,12 @@
  */
 package com.jeanchampemont.wtfdyum.dto;
 
+/**
+ * Features a member can enable.
+ *
+ * Enabled features are stored as a bitmap indexed by {@link #getBitOffset()}:
+ * new features must be added at the end of this enum.
+ */
 public enum Feature {
 
     NOTIFY_UNFOLLOW("Send me a direct message when someone stops following me", "unfollow notifications"),
@@ -32,6 +38,10 @@ public enum Feature {
 
     private String shortName;
 
+    public long getBitOffset() {
+        return ordinal();
+    }
+
     public String getMessage() {
         return message;
     }
@@ -30,6 +30,7 @@ public enum EventType {
     CREDENTIALS_INVALID_LIMIT_REACHED(
             "All settings where disabled due to several errors while accessing your twitter account",
             EventSeverityType.ERROR),
+    CRON_TIMEOUT("Checking your followers took too long, it will be tried again shortly.", EventSeverityType.WARNING),
     UNKNOWN_ERROR("An unknown error occured", EventSeverityType.ERROR);
 
     private EventType(final String message, final EventSeverityType severity) {
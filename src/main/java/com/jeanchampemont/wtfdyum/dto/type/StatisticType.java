@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.dto.type;
+
+public enum StatisticType {
+    UNFOLLOWS_DETECTED("Unfollows detected"),
+    NOTIFICATIONS_SENT("Notifications sent"),
+    TWITTER_CONCURRENCY_INCREASES("Twitter concurrency limit increases"),
+    TWITTER_CONCURRENCY_DECREASES("Twitter concurrency limit decreases");
+
+    private StatisticType(final String message) {
+        this.message = message;
+    }
+
+    private String message;
+
+    public String getMessage() {
+        return message;
+    }
+}
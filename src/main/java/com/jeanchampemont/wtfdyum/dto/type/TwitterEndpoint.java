@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.dto.type;
+
+/**
+ * Rate limited twitter endpoints, with the number of calls allowed per token
+ * for each window, and whether they write anything.
+ */
+public enum TwitterEndpoint {
+    FOLLOWERS_IDS(15, 900000L, false),
+    USERS_SHOW(900, 900000L, false),
+    USERS_LOOKUP(900, 900000L, false),
+    DIRECT_MESSAGES_NEW(1000, 86400000L, true),
+    STATUSES_UPDATE(300, 10800000L, true),
+    VERIFY_CREDENTIALS(75, 900000L, false);
+
+    private TwitterEndpoint(final int capacity, final long window, final boolean write) {
+        this.capacity = capacity;
+        this.window = window;
+        this.write = write;
+    }
+
+    private int capacity;
+
+    private long window;
+
+    private boolean write;
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the rate limit window, in ms
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    public boolean isWrite() {
+        return write;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.security;
+
+import com.jeanchampemont.wtfdyum.dto.Principal;
+
+/**
+ * Authentication state of the current request, resolved once by the
+ * AuthenticationInterceptor.
+ */
+public final class AuthenticationContext {
+
+    private static final AuthenticationContext ANONYMOUS = new AuthenticationContext(null, null, false);
+
+    public AuthenticationContext(final Long userId, final Principal principal, final boolean admin) {
+        this.userId = userId;
+        this.principal = principal;
+        this.admin = admin;
+    }
+
+    private final Long userId;
+
+    private final Principal principal;
+
+    private final boolean admin;
+
+    public static AuthenticationContext anonymous() {
+        return ANONYMOUS;
+    }
+
+    public Principal getPrincipal() {
+        return principal;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public boolean isAdmin() {
+        return admin;
+    }
+
+    public boolean isAuthenticated() {
+        return userId != null;
+    }
+}
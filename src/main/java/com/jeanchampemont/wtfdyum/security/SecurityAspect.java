@@ -17,6 +17,7 @@
  */
 package com.jeanchampemont.wtfdyum.security;
 
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
 import com.jeanchampemont.wtfdyum.service.AuthenticationService;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
@@ -24,10 +25,12 @@ import org.aspectj.lang.annotation.Aspect;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
 @Aspect
 @Component
+@Profile("!" + DeploymentRole.WORKER)
 public class SecurityAspect {
 
     private final Logger log = LoggerFactory.getLogger(this.getClass());
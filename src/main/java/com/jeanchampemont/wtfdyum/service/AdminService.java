@@ -20,8 +20,7 @@ package com.jeanchampemont.wtfdyum.service;
 import com.jeanchampemont.wtfdyum.dto.Feature;
 
 import java.util.Map;
-import java.util.Set;
 
 public interface AdminService {
-    Map<Feature, Integer> countEnabledFeature(Set<Long> members);
+    Map<Feature, Integer> countEnabledFeature();
 }
@@ -18,6 +18,7 @@
 package com.jeanchampemont.wtfdyum.service;
 
 import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.security.AuthenticationContext;
 
 public interface AuthenticationService {
 
@@ -50,7 +51,35 @@ public interface AuthenticationService {
     Boolean isAdmin();
 
     /**
-     * Log out.
+     * Bind a sign in attempt to the current browser, so that its callback
+     * cannot be replayed in another one.
+     *
+     * @param requestToken
+     *            the oauth_token of the sign in attempt
+     */
+    void beginSignin(String requestToken);
+
+    /**
+     * Check that a sign in callback comes from the browser that started the
+     * attempt, and forget the attempt.
+     *
+     * @param requestToken
+     *            the oauth_token sent back by twitter
+     * @return true if the attempt was started by the current browser
+     */
+    boolean completeSignin(String requestToken);
+
+    /**
+     * Log out, revoking every authentication cookie of the current user.
      */
     void logOut();
+
+    /**
+     * Resolve the authentication context of the current request from the
+     * session. Other methods of this service answer from the resolved context
+     * once it has been set in the SessionManager.
+     *
+     * @return the authentication context
+     */
+    AuthenticationContext resolveContext();
 }
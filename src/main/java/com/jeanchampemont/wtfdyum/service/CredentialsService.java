@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Keeps track of the last time each member's twitter credentials were
+ * successfully used, so that they are only verified when stale.
+ */
+public interface CredentialsService {
+
+    /**
+     * Get the last time the credentials of several members were verified, in
+     * a single round trip.
+     *
+     * @param userIds
+     *            the members ids
+     * @return the epoch milliseconds, by member id. Members never verified are
+     *         left out
+     */
+    Map<Long, Long> getLastVerified(Collection<Long> userIds);
+
+    /**
+     * Record that the credentials of a member were just used successfully.
+     *
+     * @param userId
+     *            the member id
+     */
+    void markVerified(Long userId);
+}
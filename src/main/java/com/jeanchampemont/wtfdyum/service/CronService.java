@@ -21,5 +21,7 @@ public interface CronService {
 
     void checkCredentials();
 
+    void consumeJobs();
+
     void cron();
 }
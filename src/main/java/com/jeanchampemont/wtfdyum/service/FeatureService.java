@@ -19,8 +19,11 @@ package com.jeanchampemont.wtfdyum.service;
 
 import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Feature;
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.dto.User;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 
+import java.util.List;
 import java.util.Set;
 
 public interface FeatureService {
@@ -30,27 +33,30 @@ public interface FeatureService {
      *
      * This method is called after all cron for this user have been executed
      *
-     * @param userId
-     *            the user id
+     * @param principal
+     *            the user's principal
      * @param feature
      *            the feature
+     * @param followersGeneration
+     *            the generation of the followers snapshot when the crons
+     *            started, only replaced if still current
      * @throws WTFDYUMException
      *             the WTFDYUM exception
      */
-    void completeCron(Long userId, Feature feature) throws WTFDYUMException;
+    void completeCron(Principal principal, Feature feature, long followersGeneration) throws WTFDYUMException;
 
     /**
      * Method that should be executed periodically for this feature.
      *
-     * @param userId
-     *            the user id
+     * @param principal
+     *            the user's principal
      * @param feature
      *            the feature
      * @return the resulting events set
      * @throws WTFDYUMException
      *             the WTFDYUM exception
      */
-    Set<Event> cron(Long userId, Feature feature) throws WTFDYUMException;
+    Set<Event> cron(Principal principal, Feature feature) throws WTFDYUMException;
 
     /**
      * Disable the feature for this userId.
@@ -76,6 +82,16 @@ public interface FeatureService {
      */
     boolean enableFeature(Long userId, Feature feature);
 
+    /**
+     * Checks for cron.
+     *
+     * @param feature
+     *            the feature
+     * @return whether or not this feature has a cron that should be executed
+     *         periodically
+     */
+    boolean hasCron(Feature feature);
+
     /**
      * Checks if is enabled.
      *
@@ -86,4 +102,20 @@ public interface FeatureService {
      * @return whether or not this feature is enabled
      */
     boolean isEnabled(Long userId, Feature feature);
+
+    /**
+     * Act on the unfollowers found by the cron, for this feature.
+     *
+     * @param principal
+     *            the user's principal
+     * @param feature
+     *            the feature
+     * @param unfollowers
+     *            the users who stopped following this user
+     * @return the resulting events set
+     * @throws WTFDYUMException
+     *             the WTFDYUM exception
+     */
+    Set<Event> notifyUnfollowers(Principal principal, Feature feature, List<User> unfollowers)
+            throws WTFDYUMException;
 }
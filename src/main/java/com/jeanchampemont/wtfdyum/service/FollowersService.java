@@ -20,7 +20,69 @@ package com.jeanchampemont.wtfdyum.service;
 import java.util.Set;
 
 public interface FollowersService {
-    Set<Long> getUnfollowers(Long userId, Set<Long> currentFollowersId);
 
-    void saveFollowers(Long userId, Set<Long> followersId);
+    /**
+     * Diff the current followers of a member against its snapshot.
+     *
+     * @param userId
+     *            the member id
+     * @param currentFollowersId
+     *            the current followers
+     * @return the unfollowers, and the generation of the snapshot they were
+     *         computed against
+     */
+    Diff getUnfollowers(Long userId, Set<Long> currentFollowersId);
+
+    /**
+     * @param userId
+     *            the member id
+     * @return the generation of the followers snapshot of a member, bumped
+     *         each time it is replaced
+     */
+    long getGeneration(Long userId);
+
+    /**
+     * Replace the followers snapshot of a member.
+     *
+     * The snapshot is only replaced if it is still of the given generation:
+     * a newer snapshot saved concurrently by another worker is never
+     * overwritten.
+     *
+     * @param userId
+     *            the member id
+     * @param followersId
+     *            the current followers
+     * @param generation
+     *            the generation of the snapshot to replace, usually the one
+     *            of the diff
+     * @return true if the snapshot was replaced, false if a newer one was kept
+     */
+    boolean saveFollowers(Long userId, Set<Long> followersId, long generation);
+
+    /**
+     * The unfollowers found by a diff.
+     */
+    final class Diff {
+
+        public Diff(final Set<Long> unfollowers, final long generation) {
+            this.unfollowers = unfollowers;
+            this.generation = generation;
+        }
+
+        private final Set<Long> unfollowers;
+
+        private final long generation;
+
+        /**
+         * @return the generation of the snapshot the diff was computed
+         *         against
+         */
+        public long getGeneration() {
+            return generation;
+        }
+
+        public Set<Long> getUnfollowers() {
+            return unfollowers;
+        }
+    }
 }
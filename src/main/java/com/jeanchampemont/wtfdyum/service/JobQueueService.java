@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import com.jeanchampemont.wtfdyum.dto.type.JobType;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reliable queues of per member jobs, shared by every worker instance.
+ *
+ * A job taken from a queue must be acknowledged once processed. Its worker
+ * extends its deadline while processing it. Jobs that are not acknowledged
+ * nor extended before the visibility timeout, because their worker died, are
+ * requeued.
+ */
+public interface JobQueueService {
+
+    /**
+     * Acknowledge processed jobs.
+     *
+     * @param type
+     *            the job type
+     * @param userIds
+     *            the member ids
+     * @return the ids of the jobs acknowledged too late, that were already
+     *         requeued and may be processed again
+     */
+    List<Long> acknowledge(JobType type, Collection<Long> userIds);
+
+    /**
+     * Enqueue jobs. Members whose previous job is still queued or being
+     * processed are left out.
+     *
+     * @param type
+     *            the job type
+     * @param userIds
+     *            the member ids
+     * @return the number of jobs enqueued
+     */
+    int enqueue(JobType type, Collection<Long> userIds);
+
+    /**
+     * Push back the deadline of jobs still being processed by one visibility
+     * timeout.
+     *
+     * @param type
+     *            the job type
+     * @param userIds
+     *            the member ids
+     * @return the number of jobs extended, jobs already acknowledged or
+     *         requeued are left out
+     */
+    int extend(JobType type, Collection<Long> userIds);
+
+    /**
+     * @return how long a taken job stays invisible to other workers without
+     *         being extended, in ms
+     */
+    long getVisibilityTimeout();
+
+    /**
+     * Requeue the jobs that were not acknowledged in time.
+     *
+     * @param type
+     *            the job type
+     * @return the number of jobs requeued
+     */
+    int requeueExpired(JobType type);
+
+    /**
+     * Take jobs from the queue.
+     *
+     * @param type
+     *            the job type
+     * @param count
+     *            the maximum number of jobs to take
+     * @return the member ids, empty if the queue is empty
+     */
+    List<Long> take(JobType type, int count);
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+/**
+ * Background jobs keeping redundant data (indexes...) consistent.
+ */
+public interface MaintenanceService {
+
+    /**
+     * Make sure every member is indexed under each feature it has enabled,
+     * and only under those. The index is what admin statistics are counted
+     * from.
+     *
+     * Members whose features are still stored in the legacy set are migrated
+     * to the features bitmap beforehand.
+     */
+    void rebuildFeatureIndex();
+}
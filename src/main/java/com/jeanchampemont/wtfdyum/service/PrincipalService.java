@@ -17,17 +17,73 @@
  */
 package com.jeanchampemont.wtfdyum.service;
 
+import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.Principal;
+import org.springframework.data.redis.core.Cursor;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 public interface PrincipalService {
 
     int countMembers();
 
+    /**
+     * Count the members having this feature enabled.
+     *
+     * @param feature
+     *            the feature
+     * @return the members count
+     */
+    int countMembers(Feature feature);
+
     Principal get(Long id);
 
+    /**
+     * Get several principals in a single round trip.
+     *
+     * Ids without a stored principal are absent from the result.
+     *
+     * @param ids
+     *            the users ids
+     * @return the principals, by user id
+     */
+    Map<Long, Principal> getAll(Collection<Long> ids);
+
     Set<Long> getMembers();
 
+    /**
+     * Iterate over the members incrementally, without loading the whole
+     * members set at once.
+     *
+     * The returned cursor must be closed once iteration is over.
+     *
+     * @return a cursor over the members ids
+     */
+    Cursor<Long> scanMembers();
+
+    /**
+     * Iterate over the members having at least one of the given features
+     * enabled, without loading them all at once.
+     *
+     * The returned cursor must be closed once iteration is over.
+     *
+     * @param features
+     *            the features, must not be empty
+     * @return a cursor over the members ids
+     */
+    Cursor<Long> scanMembers(Set<Feature> features);
+
+    /**
+     * Move the member's state from its separate keys into its consolidated
+     * hash. Does nothing unless wtfdyum.redis.user-hash is enabled.
+     *
+     * @param id
+     *            the user id
+     * @return true if something has been moved
+     */
+    boolean migrateToUserHash(Long id);
+
     void saveUpdate(Principal user);
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import com.jeanchampemont.wtfdyum.dto.type.TwitterEndpoint;
+import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
+
+/**
+ * Throttles the calls to twitter, across every instance, so that each
+ * endpoint is called at most at the rate twitter allows for each token.
+ */
+public interface RateLimitService {
+
+    /**
+     * Wait until a call to this endpoint is allowed.
+     *
+     * @param endpoint
+     *            the called endpoint
+     * @param userId
+     *            the id of the member whose token is used, or null for the
+     *            application token
+     * @throws WTFDYUMException
+     *             if no call was allowed within the configured timeout
+     */
+    void acquire(TwitterEndpoint endpoint, Long userId) throws WTFDYUMException;
+
+    /**
+     * Prevent any call to this endpoint for a while, because twitter answered
+     * that the rate limit was exceeded anyway.
+     *
+     * @param endpoint
+     *            the called endpoint
+     * @param userId
+     *            the id of the member whose token is used, or null for the
+     *            application token
+     * @param delay
+     *            the time before the next call is allowed, in ms
+     */
+    void exhaust(TwitterEndpoint endpoint, Long userId, long delay);
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import twitter4j.auth.RequestToken;
+
+/**
+ * Keeps the OAuth request tokens between the sign in redirection and the
+ * twitter callback, so that any web node can complete the sign in.
+ */
+public interface RequestTokenService {
+
+    /**
+     * Get and forget a request token.
+     *
+     * @param token
+     *            the oauth_token sent back by twitter
+     * @return the request token, or null if unknown or expired
+     */
+    RequestToken consume(String token);
+
+    /**
+     * Keep a request token for a limited time.
+     *
+     * @param requestToken
+     *            the request token
+     */
+    void save(RequestToken requestToken);
+}
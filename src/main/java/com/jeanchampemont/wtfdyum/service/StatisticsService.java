@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import com.jeanchampemont.wtfdyum.dto.type.StatisticType;
+
+import java.util.Map;
+
+/**
+ * Instance wide counters, incremented where the counted action happens.
+ */
+public interface StatisticsService {
+
+    /**
+     * Gets the current value of every statistic.
+     *
+     * @return the statistics
+     */
+    Map<StatisticType, Long> getStatistics();
+
+    /**
+     * Increment a statistic.
+     *
+     * @param type
+     *            the statistic
+     * @param delta
+     *            the value to add
+     */
+    void increment(StatisticType type, long delta);
+}
@@ -26,6 +26,7 @@ import twitter4j.auth.RequestToken;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The Interface TwitterService. This is used to interact with twitter.
@@ -62,6 +63,19 @@ public interface TwitterService {
      */
     Set<Long> getFollowers(Long userId, Optional<Principal> principal) throws WTFDYUMException;
 
+    /**
+     * Gets the followers of the specified userId, without blocking.
+     *
+     * @param userId
+     *            the user id
+     * @param principal
+     *            the principal
+     * @return the followers, completed exceptionally with a WTFDYUMException
+     *         on error
+     * @see #getFollowers(Long, Optional)
+     */
+    CompletableFuture<Set<Long>> getFollowersAsync(Long userId, Optional<Principal> principal);
+
     /**
      * Gets the user.
      *
@@ -75,6 +89,18 @@ public interface TwitterService {
      */
     User getUser(Principal principal, Long id) throws WTFDYUMException;
 
+    /**
+     * Gets the user, without blocking.
+     *
+     * @param principal
+     *            the principal
+     * @param id
+     *            the id
+     * @return the user, completed exceptionally with a WTFDYUMException on
+     *         error
+     */
+    CompletableFuture<User> getUserAsync(Principal principal, Long id);
+
     /**
      * Gets the users.
      *
@@ -87,6 +113,18 @@ public interface TwitterService {
      */
     List<User> getUsers(Principal principal, long... ids) throws WTFDYUMException;
 
+    /**
+     * Gets the users, without blocking.
+     *
+     * @param principal
+     *            the principal
+     * @param ids
+     *            the ids
+     * @return the users, completed exceptionally with a WTFDYUMException on
+     *         error
+     */
+    CompletableFuture<List<User>> getUsersAsync(Principal principal, long... ids);
+
     /**
      * Send direct message.
      *
@@ -101,6 +139,20 @@ public interface TwitterService {
      */
     void sendDirectMessage(Principal principal, Long toUserId, String text) throws WTFDYUMException;
 
+    /**
+     * Send direct message, without blocking.
+     *
+     * @param principal
+     *            the principal
+     * @param toUserId
+     *            the to user id
+     * @param text
+     *            the text
+     * @return completed once sent, exceptionally with a WTFDYUMException on
+     *         error
+     */
+    CompletableFuture<Void> sendDirectMessageAsync(Principal principal, Long toUserId, String text);
+
     /**
      * Signin with Twitter.
      *
@@ -122,12 +174,32 @@ public interface TwitterService {
      */
     void tweet(Principal principal, String text) throws WTFDYUMException;
 
+    /**
+     * Tweet, without blocking.
+     *
+     * @param principal the principal
+     * @param text the text
+     * @return completed once tweeted, exceptionally with a WTFDYUMException on error
+     */
+    CompletableFuture<Void> tweetAsync(Principal principal, String text);
+
     /**
      * Verify credentials.
      *
      * @param principal
      *            the principal
      * @return true, if successful
+     * @throws WTFDYUMException if the rate limit prevented the verification
+     */
+    boolean verifyCredentials(Principal principal) throws WTFDYUMException;
+
+    /**
+     * Verify credentials, without blocking.
+     *
+     * @param principal
+     *            the principal
+     * @return true, if successful. Completed exceptionally with a
+     *         WTFDYUMException if the rate limit prevented the verification
      */
-    boolean verifyCredentials(Principal principal);
+    CompletableFuture<Boolean> verifyCredentialsAsync(Principal principal);
 }
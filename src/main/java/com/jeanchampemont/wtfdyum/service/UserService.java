@@ -21,20 +21,82 @@ import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.type.UserLimitType;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public interface UserService {
 
     void addEvent(Long userId, Event event);
 
+    /**
+     * Add several events of a user in a single round trip, the last one
+     * being the most recent.
+     *
+     * @param userId
+     *            the user id
+     * @param events
+     *            the events
+     */
+    void addEvents(Long userId, Collection<Event> events);
+
+    /**
+     * Add the events of several users in a single round trip.
+     *
+     * @param events
+     *            the events of each user, the last one being the most recent
+     */
+    void addEvents(Map<Long, ? extends Collection<Event>> events);
+
     boolean applyLimit(Long userId, UserLimitType type);
 
+    /**
+     * Apply a limit to several users in a single round trip.
+     *
+     * @param userIds
+     *            the users ids
+     * @param type
+     *            the limit
+     * @return the users who reached the limit
+     */
+    Set<Long> applyLimit(Collection<Long> userIds, UserLimitType type);
+
     Set<Feature> getEnabledFeatures(Long userId);
 
+    /**
+     * Get the enabled features of several users in a single round trip.
+     *
+     * @param userIds
+     *            the users ids
+     * @return the enabled features, by user id
+     */
+    Map<Long, Set<Feature>> getEnabledFeatures(Collection<Long> userIds);
+
     List<Event> getRecentEvents(Long userId, int count);
 
     List<Event> getRecentEvents(Long userId, int count, int start);
 
+    /**
+     * Convert the legacy features set of a user into its features bitmap.
+     * Features are read and written with the conversion, this only needs to
+     * be called to convert members proactively.
+     *
+     * @param userId
+     *            the user id
+     * @return true if a legacy set has been converted
+     */
+    boolean migrateLegacyFeatures(Long userId);
+
     void resetLimit(Long userId, UserLimitType type);
+
+    /**
+     * Reset a limit of several users in a single round trip.
+     *
+     * @param userIds
+     *            the users ids
+     * @param type
+     *            the limit
+     */
+    void resetLimit(Collection<Long> userIds, UserLimitType type);
 }
@@ -19,8 +19,11 @@ package com.jeanchampemont.wtfdyum.service.feature;
 
 import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Feature;
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.dto.User;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -33,22 +36,25 @@ public interface FeatureStrategy {
      *
      * This method is called after all cron for this user have been executed
      *
-     * @param userId
-     *            the user id
+     * @param principal
+     *            the user's principal
+     * @param followersGeneration
+     *            the generation of the followers snapshot when the crons
+     *            started, only replaced if still current
      * @throws WTFDYUMException
      */
-    void completeCron(Long userId) throws WTFDYUMException;
+    void completeCron(Principal principal, long followersGeneration) throws WTFDYUMException;
 
     /**
      * Method that should be executed periodically for this feature.
      *
-     * @param userId
-     *            the user id
+     * @param principal
+     *            the user's principal
      * @return the resulting events set
      * @throws WTFDYUMException
      *             the WTFDYUM exception
      */
-    Set<Event> cron(Long userId) throws WTFDYUMException;
+    Set<Event> cron(Principal principal) throws WTFDYUMException;
 
     /**
      * Disable the feature for this userId.
@@ -93,4 +99,21 @@ public interface FeatureStrategy {
      * @return whether or not this feature is enabled
      */
     boolean isEnabled(Long userId);
+
+    /**
+     * Act on the unfollowers found by the cron of this user.
+     *
+     * This is the part of the cron that is specific to this feature, called
+     * by the cron pipeline once the followers are fetched, diffed and the
+     * unfollowers resolved.
+     *
+     * @param principal
+     *            the user's principal
+     * @param unfollowers
+     *            the users who stopped following this user
+     * @return the resulting events set
+     * @throws WTFDYUMException
+     *             the WTFDYUM exception
+     */
+    Set<Event> notifyUnfollowers(Principal principal, List<User> unfollowers) throws WTFDYUMException;
 }
@@ -19,17 +19,44 @@ package com.jeanchampemont.wtfdyum.service.feature.impl;
 
 import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Feature;
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.dto.User;
 import com.jeanchampemont.wtfdyum.service.feature.FeatureStrategy;
+import com.jeanchampemont.wtfdyum.utils.RedisScripts;
+import com.jeanchampemont.wtfdyum.utils.UserHash;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 public abstract class AbstractFeatureStrategy implements FeatureStrategy {
 
-    private static final String FEATURES_KEY_PREFIX = "FEATURES_";
+    private static final String LEGACY_FEATURES_KEY_PREFIX = "FEATURES_";
+
+    private static final String FEATURES_KEY_PREFIX = "FEATURE_BITS_";
+
+    private static final String FEATURE_MEMBERS_KEY_PREFIX = "FEATURE_MEMBERS_";
+
+    private static final RedisScript<Long> ENABLE_SCRIPT = RedisScripts.load("feature-enable.lua", Long.class);
+
+    private static final RedisScript<Long> DISABLE_SCRIPT = RedisScripts.load("feature-disable.lua", Long.class);
+
+    private static final RedisScript<Long> USER_HASH_ENABLE_SCRIPT = RedisScripts.load("user-feature-enable.lua",
+            Long.class);
+
+    private static final RedisScript<Long> USER_HASH_DISABLE_SCRIPT = RedisScripts.load("user-feature-disable.lua",
+            Long.class);
+
+    private static final StringRedisSerializer STRING_SERIALIZER = new StringRedisSerializer();
 
     public AbstractFeatureStrategy(final Feature feature) {
         this.feature = feature;
@@ -38,27 +65,33 @@ public abstract class AbstractFeatureStrategy implements FeatureStrategy {
     @Autowired
     private RedisTemplate<String, Feature> featureRedisTemplate;
 
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${wtfdyum.redis.user-hash}")
+    private boolean userHash;
+
     private final Feature feature;
 
     @Override
-    public void completeCron(final Long userId) throws WTFDYUMException {
+    public void completeCron(final Principal principal, final long followersGeneration) throws WTFDYUMException {
         // Explicitly doing nothing
     }
 
     @Override
-    public Set<Event> cron(final Long userId) throws WTFDYUMException {
+    public Set<Event> cron(final Principal principal) throws WTFDYUMException {
         // Explicitly doing nothing
         return Collections.emptySet();
     }
 
     @Override
     public boolean disableFeature(final Long userId) {
-        return featureRedisTemplate.opsForSet().remove(featuresKey(userId), feature) == 1;
+        return execute(userHash ? USER_HASH_DISABLE_SCRIPT : DISABLE_SCRIPT, userId) == 1;
     }
 
     @Override
     public boolean enableFeature(final Long userId) {
-        return featureRedisTemplate.opsForSet().add(featuresKey(userId), feature) == 1;
+        return execute(userHash ? USER_HASH_ENABLE_SCRIPT : ENABLE_SCRIPT, userId) == 1;
     }
 
     @Override
@@ -68,10 +101,47 @@ public abstract class AbstractFeatureStrategy implements FeatureStrategy {
 
     @Override
     public boolean isEnabled(final Long userId) {
-        return featureRedisTemplate.opsForSet().isMember(featuresKey(userId), feature);
+        if (userHash) {
+            return UserHash.features(stringRedisTemplate.<String, String> opsForHash().get(UserHash.key(userId),
+                    UserHash.FEATURES_FIELD)).contains(feature);
+        }
+        // members not migrated yet still have their features in a legacy set
+        return featureRedisTemplate.opsForValue().getBit(featuresKey(userId), feature.getBitOffset())
+                || featureRedisTemplate.opsForSet().isMember(legacyFeaturesKey(userId), feature);
+    }
+
+    @Override
+    public Set<Event> notifyUnfollowers(final Principal principal, final List<User> unfollowers)
+            throws WTFDYUMException {
+        // Explicitly doing nothing
+        return Collections.emptySet();
+    }
+
+    private Long execute(final RedisScript<Long> script, final Long userId) {
+        // features left in a legacy layout are merged by the script before the bit is changed
+        final List<String> keys = userHash
+                ? Arrays.asList(UserHash.key(userId), featureMembersKey(), featuresKey(userId),
+                        legacyFeaturesKey(userId))
+                : Arrays.asList(featuresKey(userId), featureMembersKey(), legacyFeaturesKey(userId));
+        final List<String> args = new ArrayList<>();
+        args.add(String.valueOf(feature.getBitOffset()));
+        args.add(userId.toString());
+        for (final Feature f : Feature.values()) {
+            args.add(f.name());
+            args.add(String.valueOf(f.getBitOffset()));
+        }
+        return featureRedisTemplate.execute(script, STRING_SERIALIZER, null, keys, args.toArray());
+    }
+
+    private String featureMembersKey() {
+        return new StringBuilder(FEATURE_MEMBERS_KEY_PREFIX).append(feature.name()).toString();
     }
 
     private String featuresKey(final Long userId) {
         return new StringBuilder(FEATURES_KEY_PREFIX).append(userId.toString()).toString();
     }
+
+    private String legacyFeaturesKey(final Long userId) {
+        return new StringBuilder(LEGACY_FEATURES_KEY_PREFIX).append(userId.toString()).toString();
+    }
 }
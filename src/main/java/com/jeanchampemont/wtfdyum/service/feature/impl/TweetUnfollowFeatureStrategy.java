@@ -23,8 +23,9 @@ import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.Principal;
 import com.jeanchampemont.wtfdyum.dto.User;
 import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import com.jeanchampemont.wtfdyum.dto.type.StatisticType;
 import com.jeanchampemont.wtfdyum.service.FollowersService;
-import com.jeanchampemont.wtfdyum.service.PrincipalService;
+import com.jeanchampemont.wtfdyum.service.StatisticsService;
 import com.jeanchampemont.wtfdyum.service.TwitterService;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -40,51 +41,63 @@ import java.util.Set;
 public class TweetUnfollowFeatureStrategy extends AbstractFeatureStrategy {
 
     @Autowired
-    public TweetUnfollowFeatureStrategy(final PrincipalService principalService,
-                                        final FollowersService followersService,
+    public TweetUnfollowFeatureStrategy(final FollowersService followersService,
                                         final TwitterService twitterService,
+                                        final StatisticsService statisticsService,
                                         @Value("${wtfdyum.unfollow.tweet-text}") final String unfollowTweetText) {
         super(Feature.TWEET_UNFOLLOW);
-        this.principalService = principalService;
         this.followersService = followersService;
         this.twitterService = twitterService;
+        this.statisticsService = statisticsService;
         this.unfollowTweetText = unfollowTweetText;
     }
 
-    private final PrincipalService principalService;
-
     private final FollowersService followersService;
 
     private final TwitterService twitterService;
 
+    private final StatisticsService statisticsService;
+
     private final String unfollowTweetText;
 
     @Override
-    public void completeCron(final Long userId) throws WTFDYUMException {
-        final Principal principal = principalService.get(userId);
-        final Set<Long> followers = twitterService.getFollowers(userId, Optional.ofNullable(principal));
-        followersService.saveFollowers(userId, followers);
+    public void completeCron(final Principal principal, final long followersGeneration) throws WTFDYUMException {
+        final Long userId = principal.getUserId();
+        final Set<Long> followers = twitterService.getFollowers(userId, Optional.of(principal));
+        followersService.saveFollowers(userId, followers, followersGeneration);
     }
 
     @Override
-    public Set<Event> cron(final Long userId) throws WTFDYUMException {
-        final Set<Event> result = new HashSet<>();
-        final Principal principal = principalService.get(userId);
-        final Set<Long> followers = twitterService.getFollowers(userId, Optional.ofNullable(principal));
+    public Set<Event> cron(final Principal principal) throws WTFDYUMException {
+        final Long userId = principal.getUserId();
+        final Set<Long> followers = twitterService.getFollowers(userId, Optional.of(principal));
 
-        final Set<Long> unfollowersId = followersService.getUnfollowers(userId, followers);
+        final Set<Long> unfollowersId = followersService.getUnfollowers(userId, followers).getUnfollowers();
 
         final List<User> unfollowers = twitterService.getUsers(principal, Longs.toArray(unfollowersId));
-        for (final User unfollower : unfollowers) {
-            result.add(new Event(EventType.UNFOLLOW, unfollower.getScreenName()));
-            twitterService.tweet(principal,
-                    String.format(unfollowTweetText, unfollower.getScreenName()));
-        }
-        return result;
+        return notifyUnfollowers(principal, unfollowers);
     }
 
     @Override
     public boolean hasCron() {
         return true;
     }
+
+    @Override
+    public Set<Event> notifyUnfollowers(final Principal principal, final List<User> unfollowers)
+            throws WTFDYUMException {
+        final Set<Event> result = new HashSet<>();
+        int sent = 0;
+        try {
+            for (final User unfollower : unfollowers) {
+                result.add(new Event(EventType.UNFOLLOW, unfollower.getScreenName()));
+                twitterService.tweet(principal,
+                        String.format(unfollowTweetText, unfollower.getScreenName()));
+                sent++;
+            }
+        } finally {
+            statisticsService.increment(StatisticType.NOTIFICATIONS_SENT, sent);
+        }
+        return result;
+    }
 }
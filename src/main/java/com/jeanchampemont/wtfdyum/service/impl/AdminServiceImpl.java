@@ -17,37 +17,34 @@
  */
 package com.jeanchampemont.wtfdyum.service.impl;
 
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
 import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.service.AdminService;
-import com.jeanchampemont.wtfdyum.service.FeatureService;
+import com.jeanchampemont.wtfdyum.service.PrincipalService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Service;
 
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.Map;
-import java.util.Set;
 
 @Service
+@Profile("!" + DeploymentRole.WORKER)
 public class AdminServiceImpl implements AdminService {
 
     @Autowired
-    public AdminServiceImpl(FeatureService featureService) {
-        this.featureService = featureService;
+    public AdminServiceImpl(PrincipalService principalService) {
+        this.principalService = principalService;
     }
 
-    private final FeatureService featureService;
+    private final PrincipalService principalService;
 
     @Override
-    public Map<Feature, Integer> countEnabledFeature(Set<Long> members) {
-        Map<Feature, Integer> result = new HashMap<>();
+    public Map<Feature, Integer> countEnabledFeature() {
+        Map<Feature, Integer> result = new EnumMap<>(Feature.class);
         for (Feature f : Feature.values()) {
-            int count = 0;
-            for (Long member : members) {
-                if (featureService.isEnabled(member, f)) {
-                    count++;
-                }
-            }
-            result.put(f, count);
+            // the feature index is maintained along with the features bitmaps
+            result.put(f, principalService.countMembers(f));
         }
         return result;
     }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015, 2016, 2018 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service.impl;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.security.AuthenticationContext;
+import com.jeanchampemont.wtfdyum.service.AuthenticationService;
+import com.jeanchampemont.wtfdyum.service.PrincipalService;
+import com.jeanchampemont.wtfdyum.utils.RequestProvider;
+import com.jeanchampemont.wtfdyum.utils.SessionManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.util.Objects;
+
+/**
+ * Authentication stored in a signed cookie rather than in the servlet
+ * session, so that any web node can authenticate any request.
+ *
+ * The cookie value is userId.generation.expiry.signature, where the
+ * signature is an HMAC-SHA256 of userId.generation.expiry. The generation is
+ * kept per user in Redis and bumped on log out, which revokes every cookie
+ * issued before.
+ */
+@Service
+@Profile("!" + DeploymentRole.WORKER)
+public class CookieAuthenticationServiceImpl implements AuthenticationService {
+
+    static final String COOKIE_NAME = "WTFDYUM_AUTH";
+
+    static final String SIGNIN_COOKIE_NAME = "WTFDYUM_SIGNIN";
+
+    private static final String SIGNIN_COOKIE_PATH = "/signin";
+
+    private static final String SESSION_GENERATION_KEY_PREFIX = "SESSION_GENERATION_";
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final BaseEncoding SIGNATURE_ENCODING = BaseEncoding.base64Url().omitPadding();
+
+    @Autowired
+    public CookieAuthenticationServiceImpl(final RequestProvider requestProvider,
+            final PrincipalService principalService,
+            final StringRedisTemplate stringRedisTemplate,
+            final Clock clock,
+            @Value("${wtfdyum.admin.twitterId}") final Long adminTwitterId,
+            @Value("${wtfdyum.auth.cookie-secret}") final String cookieSecret,
+            @Value("${wtfdyum.auth.cookie-max-age}") final int cookieMaxAge,
+            @Value("${wtfdyum.request-token-ttl}") final long requestTokenTtl,
+            @Value("${wtfdyum.server-base-url}") final String baseUrl) {
+        Preconditions.checkState(!Strings.isNullOrEmpty(cookieSecret),
+                "wtfdyum.auth.cookie-secret must be set to sign authentication cookies");
+        this.requestProvider = requestProvider;
+        this.principalService = principalService;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.clock = clock;
+        this.adminTwitterId = adminTwitterId;
+        this.signingKey = new SecretKeySpec(cookieSecret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        this.cookieMaxAge = cookieMaxAge;
+        this.signinCookieMaxAge = (int) (requestTokenTtl / 1000);
+        this.secureCookie = baseUrl.startsWith("https");
+    }
+
+    private final RequestProvider requestProvider;
+    private final PrincipalService principalService;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final Clock clock;
+    private final Long adminTwitterId;
+    private final SecretKeySpec signingKey;
+    private final int cookieMaxAge;
+    private final int signinCookieMaxAge;
+    private final boolean secureCookie;
+
+    @Override
+    public Long authenticate(final Principal user) {
+        Preconditions.checkNotNull(user);
+        Preconditions.checkNotNull(user.getUserId());
+
+        final long expiry = clock.millis() + cookieMaxAge * 1000L;
+        final String payload = new StringBuilder(user.getUserId().toString()).append('.')
+                .append(sessionGeneration(user.getUserId())).append('.').append(expiry).toString();
+        writeCookie(COOKIE_NAME, new StringBuilder(payload).append('.').append(sign(payload)).toString(), "/",
+                cookieMaxAge);
+
+        if (SessionManager.getContext() != null) {
+            SessionManager.setContext(new AuthenticationContext(user.getUserId(), user, isAdmin(user.getUserId())));
+        }
+        return user.getUserId();
+    }
+
+    @Override
+    public Long getCurrentUserId() {
+        final AuthenticationContext context = SessionManager.getContext();
+        if (context != null) {
+            return context.getUserId();
+        }
+        return currentUserIdFromCookie();
+    }
+
+    @Override
+    public Boolean isAuthenticated() {
+        return getCurrentUserId() != null;
+    }
+
+    @Override
+    public Boolean isAdmin() {
+        final AuthenticationContext context = SessionManager.getContext();
+        if (context != null) {
+            return context.isAdmin();
+        }
+        return isAdmin(currentUserIdFromCookie());
+    }
+
+    @Override
+    public void beginSignin(final String requestToken) {
+        writeCookie(SIGNIN_COOKIE_NAME, sign(signinPayload(requestToken)), SIGNIN_COOKIE_PATH, signinCookieMaxAge);
+    }
+
+    @Override
+    public boolean completeSignin(final String requestToken) {
+        final String value = cookieValue(SIGNIN_COOKIE_NAME);
+        writeCookie(SIGNIN_COOKIE_NAME, "", SIGNIN_COOKIE_PATH, 0);
+        if (value == null) {
+            return false;
+        }
+        final byte[] expected = sign(signinPayload(requestToken)).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void logOut() {
+        final Long userId = getCurrentUserId();
+        if (userId != null) {
+            // every cookie issued so far to this user stops being accepted
+            stringRedisTemplate.opsForValue().increment(sessionGenerationKey(userId), 1);
+        }
+        writeCookie(COOKIE_NAME, "", "/", 0);
+        if (SessionManager.getContext() != null) {
+            SessionManager.setContext(AuthenticationContext.anonymous());
+        }
+    }
+
+    @Override
+    public AuthenticationContext resolveContext() {
+        final Long userId = currentUserIdFromCookie();
+        if (userId == null) {
+            return new AuthenticationContext(null, null, isAdmin(null));
+        }
+        return new AuthenticationContext(userId, principalService.get(userId), isAdmin(userId));
+    }
+
+    private String cookieValue(final String name) {
+        final Cookie[] cookies = requestProvider.getRequest().getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (final Cookie cookie : cookies) {
+            if (name.equals(cookie.getName())) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+
+    private Long currentUserIdFromCookie() {
+        final String value = cookieValue(COOKIE_NAME);
+        return value == null ? null : verify(value);
+    }
+
+    private boolean isAdmin(final Long userId) {
+        return Objects.equals(userId, adminTwitterId);
+    }
+
+    private long sessionGeneration(final Long userId) {
+        final String generation = stringRedisTemplate.opsForValue().get(sessionGenerationKey(userId));
+        return generation == null ? 0 : Long.parseLong(generation);
+    }
+
+    private String sessionGenerationKey(final Long userId) {
+        return new StringBuilder(SESSION_GENERATION_KEY_PREFIX).append(userId.toString()).toString();
+    }
+
+    private String sign(final String payload) {
+        try {
+            final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(signingKey);
+            return SIGNATURE_ENCODING.encode(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the user id of a cookie value with a valid signature that has
+     *         not expired nor been revoked, null otherwise
+     */
+    private Long verify(final String value) {
+        final int signatureStart = value == null ? -1 : value.lastIndexOf('.');
+        if (signatureStart < 0) {
+            return null;
+        }
+        final String payload = value.substring(0, signatureStart);
+        final byte[] expected = sign(payload).getBytes(StandardCharsets.UTF_8);
+        final byte[] actual = value.substring(signatureStart + 1).getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            return null;
+        }
+
+        final String[] parts = payload.split("\\.");
+        try {
+            if (parts.length != 3 || Long.parseLong(parts[2]) < clock.millis()) {
+                return null;
+            }
+            final Long userId = Long.valueOf(parts[0]);
+            if (Long.parseLong(parts[1]) != sessionGeneration(userId)) {
+                return null;
+            }
+            return userId;
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private String signinPayload(final String requestToken) {
+        return new StringBuilder("signin.").append(requestToken).toString();
+    }
+
+    private void writeCookie(final String name, final String value, final String path, final int maxAge) {
+        final Cookie cookie = new Cookie(name, value);
+        cookie.setPath(path);
+        cookie.setHttpOnly(true);
+        cookie.setSecure(secureCookie);
+        cookie.setMaxAge(maxAge);
+        requestProvider.getResponse().addCookie(cookie);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service.impl;
+
+import com.jeanchampemont.wtfdyum.service.CredentialsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+@Service
+public class CredentialsServiceImpl implements CredentialsService {
+
+    private static final String CREDENTIALS_VERIFIED_KEY = "CREDENTIALS_VERIFIED";
+
+    @Autowired
+    public CredentialsServiceImpl(final StringRedisTemplate stringRedisTemplate, final Clock clock) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.clock = clock;
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Clock clock;
+
+    @Override
+    public Map<Long, Long> getLastVerified(final Collection<Long> userIds) {
+        final Map<Long, Long> result = new HashMap<>();
+        if (userIds.isEmpty()) {
+            return result;
+        }
+
+        final List<Long> ids = new ArrayList<>(userIds);
+        final List<Object> timestamps = stringRedisTemplate.opsForHash().multiGet(CREDENTIALS_VERIFIED_KEY,
+                ids.stream().map(Object::toString).collect(Collectors.toList()));
+        for (int i = 0; i < ids.size(); i++) {
+            if (timestamps.get(i) != null) {
+                result.put(ids.get(i), Long.valueOf((String) timestamps.get(i)));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void markVerified(final Long userId) {
+        stringRedisTemplate.opsForHash().put(CREDENTIALS_VERIFIED_KEY, userId.toString(),
+                Long.toString(clock.millis()));
+    }
+}
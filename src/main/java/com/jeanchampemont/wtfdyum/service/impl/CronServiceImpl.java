@@ -17,36 +17,110 @@
  */
 package com.jeanchampemont.wtfdyum.service.impl;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jeanchampemont.wtfdyum.cluster.LeaderElection;
+import com.jeanchampemont.wtfdyum.cluster.LeaderOnly;
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
 import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.Principal;
 import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import com.jeanchampemont.wtfdyum.dto.type.JobType;
+import com.jeanchampemont.wtfdyum.dto.type.StatisticType;
 import com.jeanchampemont.wtfdyum.dto.type.UserLimitType;
 import com.jeanchampemont.wtfdyum.service.*;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMExceptionType;
+import com.jeanchampemont.wtfdyum.utils.WorkerThreads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.Cursor;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StopWatch;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Service
+@Profile("!" + DeploymentRole.WEB)
 public class CronServiceImpl implements CronService {
 
     @Autowired
     public CronServiceImpl(final PrincipalService principalService,
             final UserService userService,
             final TwitterService twitterService,
-            final FeatureService featureService) {
+            final FeatureService featureService,
+            final FollowersService followersService,
+            final StatisticsService statisticsService,
+            final JobQueueService jobQueueService,
+            final CredentialsService credentialsService,
+            final UnfollowPipeline unfollowPipeline,
+            final EventWriteBuffer eventWriteBuffer,
+            final Clock clock,
+            @Value("${wtfdyum.cron.prefetch-size}") final int prefetchSize,
+            @Value("${wtfdyum.queue.enabled}") final boolean queueEnabled,
+            @Value("${wtfdyum.credentials-check.max-age}") final long credentialsMaxAge,
+            @Value("${wtfdyum.twitter.concurrency.max}") final int workers,
+            @Value("${wtfdyum.cron.member-timeout}") final long memberTimeout,
+            @Value("${wtfdyum.cron.pipeline.enabled}") final boolean pipelineEnabled,
+            @Value("${wtfdyum.virtual-threads.enabled}") final boolean virtualThreads,
+            @Value("${wtfdyum.virtual-threads.cron-members}") final int virtualMembers) {
         this.principalService = principalService;
         this.userService = userService;
         this.twitterService = twitterService;
         this.featureService = featureService;
+        this.followersService = followersService;
+        this.statisticsService = statisticsService;
+        this.jobQueueService = jobQueueService;
+        this.credentialsService = credentialsService;
+        this.unfollowPipeline = unfollowPipeline;
+        this.eventWriteBuffer = eventWriteBuffer;
+        this.clock = clock;
+        this.prefetchSize = prefetchSize;
+        this.queueEnabled = queueEnabled;
+        this.credentialsMaxAge = credentialsMaxAge;
+        this.memberTimeout = memberTimeout;
+        this.pipelineEnabled = pipelineEnabled;
+        this.prefetchExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("cron-prefetch-%d").setDaemon(true).build());
+        // the twitter calls in flight are limited by the TwitterConcurrencyLimiter. A batch of prefetchSize members
+        // runs at a time, the extra virtual threads are only taken by timed out crons that are not over yet
+        final boolean virtual = WorkerThreads.useVirtual("cron-worker-", virtualThreads);
+        this.workerExecutor = WorkerThreads.newFixedExecutor("cron-worker-", virtual ? virtualMembers : workers,
+                virtual);
+        this.watchdogExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("cron-watchdog-%d").setDaemon(true).build());
     }
 
     private final Logger log = LoggerFactory.getLogger(this.getClass());
@@ -59,23 +133,54 @@ public class CronServiceImpl implements CronService {
 
     private final FeatureService featureService;
 
+    private final FollowersService followersService;
+
+    private final StatisticsService statisticsService;
+
+    private final JobQueueService jobQueueService;
+
+    private final CredentialsService credentialsService;
+
+    private final UnfollowPipeline unfollowPipeline;
+
+    private final EventWriteBuffer eventWriteBuffer;
+
+    private final Clock clock;
+
+    private final int prefetchSize;
+
+    private final boolean queueEnabled;
+
+    private final long credentialsMaxAge;
+
+    private final long memberTimeout;
+
+    private final boolean pipelineEnabled;
+
+    private final ExecutorService prefetchExecutor;
+
+    private final ExecutorService workerExecutor;
+
+    private final ScheduledExecutorService watchdogExecutor;
+
+    /**
+     * Ids of the members whose cron is running on the worker pool, including
+     * the crons that timed out but are not over yet.
+     */
+    private final Set<Long> running = ConcurrentHashMap.newKeySet();
+
     @Override
     @Scheduled(fixedDelayString = "${wtfdyum.credentials-check-delay}", initialDelay = 120000L)
+    @LeaderOnly("CREDENTIALS_CHECK")
     public void checkCredentials() {
         log.debug("Checking credentials...");
         final StopWatch watch = new StopWatch();
         watch.start();
-        final Set<Long> members = principalService.getMembers();
-
-        for (final Long userId : members) {
-            final Principal principal = principalService.get(userId);
 
-            if (!twitterService.verifyCredentials(principal)) {
-                userService.applyLimit(userId, UserLimitType.CREDENTIALS_INVALID);
-                userService.addEvent(userId, new Event(EventType.INVALID_TWITTER_CREDENTIALS, ""));
-            } else {
-                userService.resetLimit(userId, UserLimitType.CREDENTIALS_INVALID);
-            }
+        if (queueEnabled) {
+            enqueue(JobType.CREDENTIALS_CHECK, principalService.scanMembers());
+        } else {
+            forEachBatch(principalService.scanMembers(), false, this::checkCredentials);
         }
         watch.stop();
         log.debug("Finished checking credentials in {} ms", watch.getTotalTimeMillis());
@@ -83,43 +188,431 @@ public class CronServiceImpl implements CronService {
 
     @Override
     @Scheduled(fixedDelayString = "${wtfdyum.unfollow-check-delay}", initialDelay = 120000L)
+    @LeaderOnly("CRON")
     public void cron() {
         log.debug("Starting cron method...");
         final StopWatch watch = new StopWatch();
         watch.start();
-        final Set<Long> members = principalService.getMembers();
 
-        for (final Long userId : members) {
+        final Set<Feature> cronFeatures = EnumSet.noneOf(Feature.class);
+        for (final Feature feature : Feature.values()) {
+            if (featureService.hasCron(feature)) {
+                cronFeatures.add(feature);
+            }
+        }
+        if (cronFeatures.isEmpty()) {
+            log.debug("No feature with a cron, nothing to do");
+            return;
+        }
+
+        // only members with at least one cron feature enabled are visited
+        if (queueEnabled) {
+            enqueue(JobType.CRON, principalService.scanMembers(cronFeatures));
+        } else {
+            final List<Long> timedOut = new ArrayList<>();
+            forEachBatch(principalService.scanMembers(cronFeatures), true, batch -> timedOut.addAll(cron(batch)));
+            if (!timedOut.isEmpty() && LeaderElection.holdsLease()) {
+                // a second chance for those whose abandoned cron is over, the next cron will catch up with the others
+                log.debug("Retrying the cron of {} members that timed out", timedOut.size());
+                final List<Long> timedOutAgain = cron(load(timedOut, true));
+                if (!timedOutAgain.isEmpty()) {
+                    log.warn("Cron of {} members timed out or was still running twice, left to the next cron",
+                            timedOutAgain.size());
+                }
+            }
+            if (pipelineEnabled) {
+                unfollowPipeline.logMetrics();
+            }
+        }
+        watch.stop();
+        log.debug("Finished cron in {} ms", watch.getTotalTimeMillis());
+    }
+
+    @Override
+    @Scheduled(fixedDelayString = "${wtfdyum.queue.poll-delay}", initialDelay = 120000L)
+    public void consumeJobs() {
+        if (!queueEnabled) {
+            return;
+        }
+        consume(JobType.CREDENTIALS_CHECK, false, batch -> {
+            checkCredentials(batch);
+            return Collections.emptyList();
+        });
+        consume(JobType.CRON, true, this::cron);
+        if (pipelineEnabled) {
+            unfollowPipeline.logMetrics();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+        workerExecutor.shutdownNow();
+        watchdogExecutor.shutdownNow();
+    }
+
+    /**
+     * Verify the credentials of a batch of members. Only the credentials that
+     * were not successfully used for credentialsMaxAge are verified,
+     * concurrently and without holding a worker each. The limits are then
+     * applied in a single round trip.
+     */
+    private void checkCredentials(final List<Member> batch) {
+        final List<Long> userIds = batch.stream().map(member -> member.userId).collect(Collectors.toList());
+        final Map<Long, Long> lastVerified = credentialsService.getLastVerified(userIds);
+        final long staleBefore = clock.millis() - credentialsMaxAge;
+
+        final List<Long> valid = new ArrayList<>();
+        final Map<Long, Future<Boolean>> verifications = new LinkedHashMap<>();
+        for (final Member member : batch) {
+            final Long verified = lastVerified.get(member.userId);
+            if (verified != null && verified >= staleBefore) {
+                valid.add(member.userId);
+            } else {
+                verifications.put(member.userId, verifyCredentials(member.principal));
+            }
+        }
+
+        final List<Long> invalid = new ArrayList<>();
+        for (final Map.Entry<Long, Future<Boolean>> verification : verifications.entrySet()) {
+            final Boolean result = await(verification.getValue());
+            if (Boolean.TRUE.equals(result)) {
+                valid.add(verification.getKey());
+            } else if (Boolean.FALSE.equals(result)) {
+                invalid.add(verification.getKey());
+            }
+        }
+        log.trace("Credentials: {} recently used, {} verified, {} invalid", batch.size() - verifications.size(),
+                verifications.size(), invalid.size());
+
+        userService.resetLimit(valid, UserLimitType.CREDENTIALS_INVALID);
+        userService.applyLimit(invalid, UserLimitType.CREDENTIALS_INVALID);
+        for (final Long userId : invalid) {
+            eventWriteBuffer.add(userId, new Event(EventType.INVALID_TWITTER_CREDENTIALS, ""));
+        }
+    }
+
+    /**
+     * Take jobs of this type from the queue until it is empty, and process
+     * them. Jobs are acknowledged batch by batch once processed, so a dying
+     * worker only leaves its current batch to be requeued. Their deadline is
+     * extended while the batch runs, however long it takes. Jobs the action
+     * did not complete are not acknowledged either, and are requeued after
+     * the visibility timeout.
+     */
+    private void consume(final JobType type, final boolean withFeatures,
+            final Function<List<Member>, Collection<Long>> action) {
+        final int requeued = jobQueueService.requeueExpired(type);
+        if (requeued > 0) {
+            log.warn("Requeued {} {} jobs not acknowledged in time", requeued, type);
+        }
+
+        final long heartbeatPeriod = jobQueueService.getVisibilityTimeout() / 3;
+        List<Long> userIds = jobQueueService.take(type, prefetchSize);
+        while (!userIds.isEmpty()) {
+            final List<Long> taken = userIds;
+            final ScheduledFuture<?> heartbeat = watchdogExecutor.scheduleAtFixedRate(() -> extend(type, taken),
+                    heartbeatPeriod, heartbeatPeriod, TimeUnit.MILLISECONDS);
+            final Collection<Long> incomplete;
+            try {
+                incomplete = action.apply(load(userIds, withFeatures));
+            } finally {
+                heartbeat.cancel(false);
+            }
+            final List<Long> processed = new ArrayList<>(userIds);
+            processed.removeAll(incomplete);
+            final List<Long> late = jobQueueService.acknowledge(type, processed);
+            if (!late.isEmpty()) {
+                log.warn("{} jobs of user ids {} were acknowledged after their visibility timeout and may run again",
+                        type, late);
+            }
+            userIds = jobQueueService.take(type, prefetchSize);
+        }
+    }
+
+    private void extend(final JobType type, final List<Long> userIds) {
+        try {
+            jobQueueService.extend(type, userIds);
+        } catch (final Exception e) {
+            // the next beat tries again, an exception would cancel them all
+            log.warn("Could not extend the deadline of {} jobs", type, e);
+        }
+    }
+
+    /**
+     * Run the cron of a batch of members in parallel, through the unfollow
+     * pipeline or on the worker pool. A member whose previous cron timed out
+     * but is still running is skipped, so that two crons of a member never
+     * run at the same time.
+     *
+     * @return the ids of the members whose cron timed out or was skipped
+     */
+    private List<Long> cron(final List<Member> batch) {
+        final List<Long> timedOut = new ArrayList<>();
+        final Map<Long, Future<Boolean>> crons = new LinkedHashMap<>();
+        for (final Member member : batch) {
+            if (pipelineEnabled ? unfollowPipeline.isRunning(member.userId) : !running.add(member.userId)) {
+                log.debug("Previous cron of user id {} is still running, skipped", member.userId);
+                timedOut.add(member.userId);
+                continue;
+            }
+            crons.put(member.userId, pipelineEnabled ? unfollowPipeline.submit(member.principal, member.features)
+                    : watched(member));
+        }
+
+        for (final Map.Entry<Long, Future<Boolean>> cron : crons.entrySet()) {
+            final Boolean done;
             try {
-                final Set<Feature> enabledFeatures = userService.getEnabledFeatures(userId);
-                final Set<Event> events = new HashSet<>();
-                for (final Feature enabledFeature : enabledFeatures) {
-                    final Set<Event> es = featureService.cron(userId, enabledFeature);
-                    events.addAll(es);
+                done = cron.getValue().get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            } catch (final ExecutionException e) {
+                // only the pipeline reports errors through the future
+                cronFailed(cron.getKey(), e.getCause());
+                continue;
+            }
+            if (!done) {
+                log.warn("Cron of user id {} took more than {} ms, cancelled", cron.getKey(), memberTimeout);
+                eventWriteBuffer.add(cron.getKey(), new Event(EventType.CRON_TIMEOUT, null));
+                timedOut.add(cron.getKey());
+            }
+        }
+        return timedOut;
+    }
+
+    /**
+     * Run the cron of a member on the worker pool, under a watchdog that
+     * interrupts it once memberTimeout elapsed since its submission, waiting
+     * for a worker included. The member must have been added to running, it
+     * is removed once the cron is over.
+     *
+     * @return a future completed with true once the cron is over, or with
+     *         false as soon as it timed out. A cron stuck in a non
+     *         interruptible call is left behind, without holding the sweep.
+     */
+    private Future<Boolean> watched(final Member member) {
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        // the thread running the cron, guarded by result
+        final AtomicReference<Thread> worker = new AtomicReference<>();
+        final ScheduledFuture<?> watchdog = watchdogExecutor.schedule(() -> {
+            synchronized (result) {
+                if (result.complete(false) && worker.get() != null) {
+                    worker.get().interrupt();
                 }
+            }
+        }, memberTimeout, TimeUnit.MILLISECONDS);
+        try {
+            workerExecutor.execute(() -> {
+                try {
+                    synchronized (result) {
+                        if (result.isDone()) {
+                            // timed out while waiting for a worker
+                            return;
+                        }
+                        worker.set(Thread.currentThread());
+                    }
+                    try {
+                        cron(member, result::isDone);
+                    } finally {
+                        watchdog.cancel(false);
+                        synchronized (result) {
+                            worker.set(null);
+                            if (!result.complete(true)) {
+                                // the interruption must not leak to the next cron of this worker
+                                Thread.interrupted();
+                            }
+                        }
+                    }
+                } finally {
+                    running.remove(member.userId);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            watchdog.cancel(false);
+            running.remove(member.userId);
+            throw e;
+        }
+        return result;
+    }
+
+    private void cron(final Member member, final BooleanSupplier timedOut) {
+        final Long userId = member.userId;
+        try {
+            // the snapshot the crons diff against, replaced on completion only if no other run saved one since
+            final long followersGeneration = followersService.getGeneration(userId);
+            final Set<Feature> enabledFeatures = member.features;
+            final Set<Event> events = new HashSet<>();
+            for (final Feature enabledFeature : enabledFeatures) {
+                final Set<Event> es = featureService.cron(member.principal, enabledFeature);
+                events.addAll(es);
+            }
+
+            eventWriteBuffer.addAll(userId, events);
+            statisticsService.increment(StatisticType.UNFOLLOWS_DETECTED,
+                    events.stream().filter(e -> EventType.UNFOLLOW.equals(e.getType())).count());
+
+            for (final Feature enabledFeature : enabledFeatures) {
+                featureService.completeCron(member.principal, enabledFeature, followersGeneration);
+            }
+        } catch (final Throwable t) {
+            if (timedOut.getAsBoolean()) {
+                // already reported
+                log.debug("Cron of user id {} interrupted", userId);
+            } else {
+                cronFailed(userId, t);
+            }
+        }
+    }
+
+    private void cronFailed(final Long userId, final Throwable t) {
+        if (t instanceof WTFDYUMException) {
+            final WTFDYUMException e = (WTFDYUMException) t;
+            if (WTFDYUMExceptionType.GET_FOLLOWERS_RATE_LIMIT_EXCEEDED.equals(e.getType())) {
+                eventWriteBuffer.add(userId, new Event(EventType.RATE_LIMIT_EXCEEDED, null));
+                log.warn("GET_FOLLOWERS_RATE_LIMIT_EXCEEDED for user id {}", userId);
+            } else if (WTFDYUMExceptionType.TWITTER_RATE_LIMITED.equals(e.getType())
+                    || WTFDYUMExceptionType.TWITTER_UNAVAILABLE.equals(e.getType())) {
+                // nothing wrong with the member, the next cron will catch up
+                log.warn("{}, cron skipped for user id {}", e.getType(), userId);
+            } else {
+                eventWriteBuffer.add(userId, new Event(EventType.TWITTER_ERROR, null));
+                log.error("Twitter error for userId " + userId, e.getCause());
+            }
+        } else {
+            eventWriteBuffer.add(userId, new Event(EventType.UNKNOWN_ERROR, null));
+            log.error("Unknown error for user id " + userId, t);
+        }
+    }
 
-                for (final Event e : events) {
-                    userService.addEvent(userId, e);
+    private void enqueue(final JobType type, final Cursor<Long> cursor) {
+        int enqueued = 0;
+        try (Cursor<Long> members = cursor) {
+            List<Long> batch = nextBatch(members);
+            while (!batch.isEmpty()) {
+                if (!LeaderElection.holdsLease()) {
+                    log.warn("Lost the leadership, stopped enqueuing {} jobs", type);
+                    break;
                 }
+                enqueued += jobQueueService.enqueue(type, batch);
+                batch = nextBatch(members);
+            }
+        } catch (final IOException e) {
+            log.warn("Error while closing members cursor", e);
+        }
+        log.debug("Enqueued {} {} jobs", enqueued, type);
+    }
 
-                for (final Feature enabledFeature : enabledFeatures) {
-                    featureService.completeCron(userId, enabledFeature);
+    /**
+     * Process the members of the cursor in batches of prefetchSize.
+     *
+     * The state of the next batch is loaded in the background while the
+     * current one is processed, so the loop does not wait on a Redis round
+     * trip per member. Members without a stored principal are skipped, as
+     * are the batches whose state could not be loaded. The loop stops once
+     * this node lost the leadership it started with.
+     */
+    private void forEachBatch(final Cursor<Long> cursor, final boolean withFeatures,
+            final Consumer<List<Member>> action) {
+        try (Cursor<Long> members = cursor) {
+            Future<List<Member>> current = prefetch(nextBatch(members), withFeatures);
+            while (current != null) {
+                if (!LeaderElection.holdsLease()) {
+                    log.warn("Lost the leadership, stopped before the next batch of members");
+                    current.cancel(true);
+                    return;
                 }
-            } catch (final WTFDYUMException e) {
-                if (WTFDYUMExceptionType.GET_FOLLOWERS_RATE_LIMIT_EXCEEDED.equals(e.getType())) {
-                    userService.addEvent(userId, new Event(EventType.RATE_LIMIT_EXCEEDED, null));
-                    log.warn("GET_FOLLOWERS_RATE_LIMIT_EXCEEDED for user id {}", userId);
-                } else {
-                    userService.addEvent(userId, new Event(EventType.TWITTER_ERROR, null));
-                    log.error("Twitter error for userId " + userId, e.getCause());
+                final Future<List<Member>> next = prefetch(nextBatch(members), withFeatures);
+                try {
+                    action.accept(current.get());
+                } catch (final ExecutionException e) {
+                    log.error("Could not load a batch of members, skipping it", e.getCause());
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (next != null) {
+                        next.cancel(true);
+                    }
+                    return;
                 }
-            } catch (final Throwable t) {
-                userService.addEvent(userId, new Event(EventType.UNKNOWN_ERROR, null));
-                log.error("Unknown error for user id " + userId, t);
+                current = next;
             }
+        } catch (final IOException e) {
+            log.warn("Error while closing members cursor", e);
         }
-        watch.stop();
-        log.debug("Finished cron in {} ms", watch.getTotalTimeMillis());
+    }
+
+    private List<Member> load(final List<Long> userIds, final boolean withFeatures) {
+        final Map<Long, Principal> principals = principalService.getAll(userIds);
+        final Map<Long, Set<Feature>> features = withFeatures ? userService.getEnabledFeatures(userIds)
+                : Collections.emptyMap();
+
+        final List<Member> result = new ArrayList<>(userIds.size());
+        for (final Long userId : userIds) {
+            final Principal principal = principals.get(userId);
+            if (principal == null) {
+                log.warn("No principal found for member {}, skipping", userId);
+                continue;
+            }
+            result.add(new Member(userId, principal, features.getOrDefault(userId, Collections.emptySet())));
+        }
+        return result;
+    }
+
+    private List<Long> nextBatch(final Cursor<Long> members) {
+        final List<Long> batch = new ArrayList<>(prefetchSize);
+        while (batch.size() < prefetchSize && members.hasNext()) {
+            batch.add(members.next());
+        }
+        return batch;
+    }
+
+    private Future<List<Member>> prefetch(final List<Long> userIds, final boolean withFeatures) {
+        if (userIds.isEmpty()) {
+            return null;
+        }
+        return prefetchExecutor.submit(() -> load(userIds, withFeatures));
+    }
+
+    /**
+     * @return whether the credentials are valid, or null if they could not be
+     *         verified (rate limit, twitter unavailable...)
+     */
+    private Future<Boolean> verifyCredentials(final Principal principal) {
+        return twitterService.verifyCredentialsAsync(principal).exceptionally(t -> {
+            final Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+            log.warn("Could not verify credentials of user id {}: {}", principal.getUserId(),
+                    cause instanceof WTFDYUMException ? ((WTFDYUMException) cause).getType() : cause);
+            return null;
+        });
+    }
+
+    private <T> T await(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } catch (final ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Member state loaded ahead of processing.
+     */
+    private static class Member {
+
+        Member(final Long userId, final Principal principal, final Set<Feature> features) {
+            this.userId = userId;
+            this.principal = principal;
+            this.features = features;
+        }
+
+        private final Long userId;
+
+        private final Principal principal;
+
+        private final Set<Feature> features;
     }
 
 }
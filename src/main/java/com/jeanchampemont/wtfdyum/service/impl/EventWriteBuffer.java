@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service.impl;
+
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
+import com.jeanchampemont.wtfdyum.dto.Event;
+import com.jeanchampemont.wtfdyum.service.UserService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind buffer for the events added by the scheduled jobs.
+ *
+ * Events of every user are kept in memory and written together, in a single
+ * pipelined round trip, once size events are buffered or every flush-delay.
+ * The buffer is flushed on shutdown: only a crashing worker loses its last
+ * events.
+ */
+@Component
+@Profile("!" + DeploymentRole.WEB)
+public class EventWriteBuffer {
+
+    @Autowired
+    public EventWriteBuffer(final UserService userService,
+            final Clock clock,
+            @Value("${wtfdyum.events.buffer.size}") final int size) {
+        this.userService = userService;
+        this.clock = clock;
+        this.size = size;
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final UserService userService;
+
+    private final Clock clock;
+
+    private final int size;
+
+    /**
+     * Buffered events of each user, guarded by this buffer.
+     */
+    private Map<Long, List<Event>> pending = new LinkedHashMap<>();
+
+    private int pendingCount;
+
+    /**
+     * Serializes the flushes, so the events of a user are written in order.
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * Buffer an event of a user.
+     *
+     * @param userId
+     *            the user id
+     * @param event
+     *            the event
+     */
+    public void add(final Long userId, final Event event) {
+        addAll(userId, Collections.singletonList(event));
+    }
+
+    /**
+     * Buffer several events of a user, the last one being the most recent.
+     *
+     * @param userId
+     *            the user id
+     * @param events
+     *            the events
+     */
+    public void addAll(final Long userId, final Collection<Event> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        final LocalDateTime now = LocalDateTime.now(clock);
+        final boolean full;
+        synchronized (this) {
+            final List<Event> userEvents = pending.computeIfAbsent(userId, id -> new ArrayList<>());
+            for (final Event event : events) {
+                if (event.getCreationDateTime() == null) {
+                    event.setCreationDateTime(now);
+                }
+                userEvents.add(event);
+            }
+            pendingCount += events.size();
+            full = pendingCount >= size;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the buffered events.
+     */
+    @Scheduled(fixedDelayString = "${wtfdyum.events.buffer.flush-delay}")
+    public void flush() {
+        synchronized (flushLock) {
+            final Map<Long, List<Event>> events;
+            final int count;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                events = pending;
+                count = pendingCount;
+                pending = new LinkedHashMap<>();
+                pendingCount = 0;
+            }
+            try {
+                userService.addEvents(events);
+                log.trace("Wrote {} events of {} users", count, events.size());
+            } catch (final RuntimeException e) {
+                log.error("Could not write " + count + " events of " + events.size() + " users, they are lost", e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+}
@@ -19,12 +19,15 @@ package com.jeanchampemont.wtfdyum.service.impl;
 
 import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Feature;
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.dto.User;
 import com.jeanchampemont.wtfdyum.service.FeatureService;
 import com.jeanchampemont.wtfdyum.service.feature.FeatureStrategy;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -43,13 +46,14 @@ public class FeatureServiceImpl implements FeatureService {
     private Map<Feature, FeatureStrategy> featureStrategies;
 
     @Override
-    public void completeCron(final Long userId, final Feature feature) throws WTFDYUMException {
-        featureStrategies.get(feature).completeCron(userId);
+    public void completeCron(final Principal principal, final Feature feature, final long followersGeneration)
+            throws WTFDYUMException {
+        featureStrategies.get(feature).completeCron(principal, followersGeneration);
     }
 
     @Override
-    public Set<Event> cron(final Long userId, final Feature feature) throws WTFDYUMException {
-        return featureStrategies.get(feature).cron(userId);
+    public Set<Event> cron(final Principal principal, final Feature feature) throws WTFDYUMException {
+        return featureStrategies.get(feature).cron(principal);
     }
 
     @Override
@@ -62,8 +66,19 @@ public class FeatureServiceImpl implements FeatureService {
         return featureStrategies.get(feature).enableFeature(userId);
     }
 
+    @Override
+    public boolean hasCron(final Feature feature) {
+        return featureStrategies.get(feature).hasCron();
+    }
+
     @Override
     public boolean isEnabled(final Long userId, final Feature feature) {
         return featureStrategies.get(feature).isEnabled(userId);
     }
+
+    @Override
+    public Set<Event> notifyUnfollowers(final Principal principal, final Feature feature,
+            final List<User> unfollowers) throws WTFDYUMException {
+        return featureStrategies.get(feature).notifyUnfollowers(principal, unfollowers);
+    }
 }
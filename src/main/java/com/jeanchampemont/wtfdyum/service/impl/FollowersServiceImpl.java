@@ -18,48 +18,127 @@
 package com.jeanchampemont.wtfdyum.service.impl;
 
 import com.jeanchampemont.wtfdyum.service.FollowersService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.stereotype.Service;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 @Service
 public class FollowersServiceImpl implements FollowersService {
 
     private static final String FOLLOWERS_KEY_PREFIX = "FOLLOWERS_";
 
+    private static final String FOLLOWERS_GENERATION_KEY_PREFIX = "FOLLOWERS_GENERATION_";
+
     private static final String TEMP_FOLLOWERS_KEY_PREFIX = "TEMP_FOLLOWERS_";
 
+    private static final int MAX_SAVE_ATTEMPTS = 3;
+
     @Autowired
     public FollowersServiceImpl(final RedisTemplate<String, Long> longRedisTemplate) {
         this.longRedisTemplate = longRedisTemplate;
     }
 
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
     private final RedisTemplate<String, Long> longRedisTemplate;
 
     @Override
-    public Set<Long> getUnfollowers(final Long userId, final Set<Long> currentFollowersId) {
-        longRedisTemplate.opsForSet().add(tempFollowersKey(userId),
+    public long getGeneration(final Long userId) {
+        return generation(longRedisTemplate, userId);
+    }
+
+    @Override
+    public Diff getUnfollowers(final Long userId, final Set<Long> currentFollowersId) {
+        // read first: a snapshot saved during the diff makes the save of this one fail, never the reverse
+        final long generation = generation(longRedisTemplate, userId);
+
+        // one temporary key per call, the same member may be processed concurrently
+        final String tempFollowersKey = tempFollowersKey(userId);
+        longRedisTemplate.opsForSet().add(tempFollowersKey,
                 currentFollowersId.toArray(new Long[currentFollowersId.size()]));
 
         final Set<Long> unfollowers = longRedisTemplate.opsForSet().difference(followersKey(userId),
-                tempFollowersKey(userId));
-        longRedisTemplate.delete(tempFollowersKey(userId));
-        return unfollowers;
+                tempFollowersKey);
+        longRedisTemplate.delete(tempFollowersKey);
+        return new Diff(unfollowers, generation);
     }
 
     @Override
-    public void saveFollowers(final Long userId, final Set<Long> followersId) {
-        longRedisTemplate.delete(followersKey(userId));
-        longRedisTemplate.opsForSet().add(followersKey(userId), followersId.toArray(new Long[followersId.size()]));
+    public boolean saveFollowers(final Long userId, final Set<Long> followersId, final long generation) {
+        for (int attempt = 0; attempt < MAX_SAVE_ATTEMPTS; attempt++) {
+            final SaveResult result = longRedisTemplate.execute(new SessionCallback<SaveResult>() {
+                @Override
+                @SuppressWarnings({ "unchecked", "rawtypes" })
+                public SaveResult execute(final RedisOperations operations) throws DataAccessException {
+                    return save(operations, userId, followersId, generation);
+                }
+            });
+            if (result != SaveResult.ABORTED) {
+                if (result == SaveResult.CONFLICT) {
+                    log.debug("Followers of user id {} saved concurrently, keeping the newer snapshot", userId);
+                }
+                return result == SaveResult.SAVED;
+            }
+        }
+        log.warn("Could not save followers of user id {} after {} attempts", userId, MAX_SAVE_ATTEMPTS);
+        return false;
+    }
+
+    private String followersGenerationKey(final Long userId) {
+        return new StringBuilder(FOLLOWERS_GENERATION_KEY_PREFIX).append(userId.toString()).toString();
     }
 
     private String followersKey(final Long userId) {
         return new StringBuilder(FOLLOWERS_KEY_PREFIX).append(userId.toString()).toString();
     }
 
+    private long generation(final RedisOperations<String, Long> operations, final Long userId) {
+        final Long generation = operations.opsForValue().get(followersGenerationKey(userId));
+        return generation == null ? 0L : generation;
+    }
+
+    /**
+     * Replace the snapshot if its generation is the expected one, bumping it.
+     * The transaction is aborted if the snapshot or its generation is
+     * modified meanwhile.
+     */
+    private SaveResult save(final RedisOperations<String, Long> operations, final Long userId,
+            final Set<Long> followersId, final long expectedGeneration) {
+        final String followersKey = followersKey(userId);
+        final String generationKey = followersGenerationKey(userId);
+
+        operations.watch(Arrays.asList(followersKey, generationKey));
+        if (generation(operations, userId) != expectedGeneration) {
+            operations.unwatch();
+            return SaveResult.CONFLICT;
+        }
+
+        operations.multi();
+        operations.delete(followersKey);
+        if (!followersId.isEmpty()) {
+            operations.opsForSet().add(followersKey, followersId.toArray(new Long[followersId.size()]));
+        }
+        operations.opsForValue().increment(generationKey, 1L);
+        final List<Object> results = operations.exec();
+        return results == null || results.isEmpty() ? SaveResult.ABORTED : SaveResult.SAVED;
+    }
+
     private String tempFollowersKey(final Long userId) {
-        return new StringBuilder(TEMP_FOLLOWERS_KEY_PREFIX).append(userId.toString()).toString();
+        return new StringBuilder(TEMP_FOLLOWERS_KEY_PREFIX).append(userId.toString()).append('_')
+                .append(UUID.randomUUID().toString()).toString();
+    }
+
+    private enum SaveResult {
+        SAVED, CONFLICT, ABORTED
     }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service.impl;
+
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
+import com.jeanchampemont.wtfdyum.dto.type.JobType;
+import com.jeanchampemont.wtfdyum.service.JobQueueService;
+import com.jeanchampemont.wtfdyum.utils.RedisScripts;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+@Service
+@Profile("!" + DeploymentRole.WEB)
+public class JobQueueServiceImpl implements JobQueueService {
+
+    private static final String QUEUE_KEY_PREFIX = "JOB_QUEUE_";
+
+    private static final String PROCESSING_KEY_PREFIX = "JOB_PROCESSING_";
+
+    private static final String PENDING_KEY_PREFIX = "JOB_PENDING_";
+
+    private static final RedisScript<Long> PUSH_SCRIPT = RedisScripts.load("job-push.lua", Long.class);
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> TAKE_SCRIPT = RedisScripts.load("job-take.lua", List.class);
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ACK_SCRIPT = RedisScripts.load("job-ack.lua", List.class);
+
+    private static final RedisScript<Long> EXTEND_SCRIPT = RedisScripts.load("job-extend.lua", Long.class);
+
+    private static final RedisScript<Long> REQUEUE_SCRIPT = RedisScripts.load("job-requeue.lua", Long.class);
+
+    @Autowired
+    public JobQueueServiceImpl(final StringRedisTemplate stringRedisTemplate,
+            final Clock clock,
+            @Value("${wtfdyum.queue.visibility-timeout}") final long visibilityTimeout) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.clock = clock;
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Clock clock;
+
+    private final long visibilityTimeout;
+
+    @Override
+    public List<Long> acknowledge(final JobType type, final Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return userIds(stringRedisTemplate.execute(ACK_SCRIPT, Arrays.asList(processingKey(type), pendingKey(type)),
+                userIds.stream().map(Object::toString).toArray()));
+    }
+
+    @Override
+    public int enqueue(final JobType type, final Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return 0;
+        }
+        final Object[] args = userIds.stream().map(Object::toString).toArray();
+        final Long pushed = stringRedisTemplate.execute(PUSH_SCRIPT, Arrays.asList(queueKey(type), pendingKey(type)),
+                args);
+        return pushed == null ? 0 : pushed.intValue();
+    }
+
+    @Override
+    public int extend(final JobType type, final Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return 0;
+        }
+        final List<String> args = new ArrayList<>(userIds.size() + 1);
+        args.add(Long.toString(clock.millis() + visibilityTimeout));
+        for (final Long userId : userIds) {
+            args.add(userId.toString());
+        }
+        final Long extended = stringRedisTemplate.execute(EXTEND_SCRIPT, Collections.singletonList(processingKey(type)),
+                args.toArray());
+        return extended == null ? 0 : extended.intValue();
+    }
+
+    @Override
+    public long getVisibilityTimeout() {
+        return visibilityTimeout;
+    }
+
+    @Override
+    public int requeueExpired(final JobType type) {
+        final Long requeued = stringRedisTemplate.execute(REQUEUE_SCRIPT,
+                Arrays.asList(queueKey(type), processingKey(type), pendingKey(type)), Long.toString(clock.millis()));
+        return requeued == null ? 0 : requeued.intValue();
+    }
+
+    @Override
+    public List<Long> take(final JobType type, final int count) {
+        return userIds(stringRedisTemplate.execute(TAKE_SCRIPT, Arrays.asList(queueKey(type), processingKey(type)),
+                Integer.toString(count), Long.toString(clock.millis() + visibilityTimeout)));
+    }
+
+    private List<Long> userIds(final List<?> jobs) {
+        if (jobs == null) {
+            return Collections.emptyList();
+        }
+        final List<Long> result = new ArrayList<>(jobs.size());
+        for (final Object job : jobs) {
+            result.add(Long.valueOf(job.toString()));
+        }
+        return result;
+    }
+
+    private String pendingKey(final JobType type) {
+        return new StringBuilder(PENDING_KEY_PREFIX).append(type.name()).toString();
+    }
+
+    private String processingKey(final JobType type) {
+        return new StringBuilder(PROCESSING_KEY_PREFIX).append(type.name()).toString();
+    }
+
+    private String queueKey(final JobType type) {
+        return new StringBuilder(QUEUE_KEY_PREFIX).append(type.name()).toString();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service.impl;
+
+import com.jeanchampemont.wtfdyum.cluster.LeaderElection;
+import com.jeanchampemont.wtfdyum.cluster.LeaderOnly;
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
+import com.jeanchampemont.wtfdyum.dto.Feature;
+import com.jeanchampemont.wtfdyum.service.FeatureService;
+import com.jeanchampemont.wtfdyum.service.MaintenanceService;
+import com.jeanchampemont.wtfdyum.service.PrincipalService;
+import com.jeanchampemont.wtfdyum.service.UserService;
+import com.jeanchampemont.wtfdyum.utils.RedisScripts;
+import com.jeanchampemont.wtfdyum.utils.UserHash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StopWatch;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+@Service
+@Profile("!" + DeploymentRole.WEB)
+public class MaintenanceServiceImpl implements MaintenanceService {
+
+    private static final String FEATURES_KEY_PREFIX = "FEATURE_BITS_";
+
+    private static final String FEATURE_MEMBERS_KEY_PREFIX = "FEATURE_MEMBERS_";
+
+    private static final RedisScript<Long> UNINDEX_DISABLED_SCRIPT = RedisScripts
+            .load("feature-unindex-disabled.lua", Long.class);
+
+    private static final RedisScript<Long> USER_HASH_UNINDEX_DISABLED_SCRIPT = RedisScripts
+            .load("user-feature-unindex-disabled.lua", Long.class);
+
+    private static final StringRedisSerializer STRING_SERIALIZER = new StringRedisSerializer();
+
+    @Autowired
+    public MaintenanceServiceImpl(final PrincipalService principalService,
+            final UserService userService,
+            final FeatureService featureService,
+            final RedisTemplate<String, Feature> featureRedisTemplate,
+            @Value("${wtfdyum.redis.user-hash}") final boolean userHash) {
+        this.principalService = principalService;
+        this.userService = userService;
+        this.featureService = featureService;
+        this.featureRedisTemplate = featureRedisTemplate;
+        this.userHash = userHash;
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final PrincipalService principalService;
+
+    private final UserService userService;
+
+    private final FeatureService featureService;
+
+    private final RedisTemplate<String, Feature> featureRedisTemplate;
+
+    private final boolean userHash;
+
+    @Override
+    @Scheduled(fixedDelayString = "${wtfdyum.maintenance-delay}", initialDelay = 60000L)
+    @LeaderOnly("MAINTENANCE")
+    public void rebuildFeatureIndex() {
+        log.debug("Rebuilding feature index...");
+        final StopWatch watch = new StopWatch();
+        watch.start();
+
+        try (Cursor<Long> members = principalService.scanMembers()) {
+            while (members.hasNext()) {
+                if (!LeaderElection.holdsLease()) {
+                    log.warn("Lost the leadership, stopped rebuilding feature index");
+                    return;
+                }
+                final Long userId = members.next();
+                if (userService.migrateLegacyFeatures(userId)) {
+                    log.debug("Migrated legacy features set of user id {}", userId);
+                }
+                principalService.migrateToUserHash(userId);
+                // enabling is idempotent and indexes the member under the feature
+                for (final Feature feature : userService.getEnabledFeatures(userId)) {
+                    featureService.enableFeature(userId, feature);
+                }
+            }
+        } catch (final IOException e) {
+            log.warn("Error while closing members cursor", e);
+        }
+
+        for (final Feature feature : Feature.values()) {
+            removeStaleIndexEntries(feature);
+        }
+        watch.stop();
+        log.debug("Finished rebuilding feature index in {} ms", watch.getTotalTimeMillis());
+    }
+
+    private void removeStaleIndexEntries(final Feature feature) {
+        long removed = 0;
+        try (Cursor<Long> members = principalService.scanMembers(EnumSet.of(feature))) {
+            while (members.hasNext() && LeaderElection.holdsLease()) {
+                final Long userId = members.next();
+                removed += featureRedisTemplate.execute(
+                        userHash ? USER_HASH_UNINDEX_DISABLED_SCRIPT : UNINDEX_DISABLED_SCRIPT, STRING_SERIALIZER,
+                        null, Arrays.asList(userHash ? UserHash.key(userId) : featuresKey(userId),
+                                featureMembersKey(feature)),
+                        String.valueOf(feature.getBitOffset()), userId.toString());
+            }
+        } catch (final IOException e) {
+            log.warn("Error while closing members cursor", e);
+        }
+        if (removed > 0) {
+            log.info("Removed {} stale entries from {} index", removed, feature);
+        }
+    }
+
+    private String featureMembersKey(final Feature feature) {
+        return new StringBuilder(FEATURE_MEMBERS_KEY_PREFIX).append(feature.name()).toString();
+    }
+
+    private String featuresKey(final Long userId) {
+        return new StringBuilder(FEATURES_KEY_PREFIX).append(userId.toString()).toString();
+    }
+}
@@ -18,39 +18,109 @@
 package com.jeanchampemont.wtfdyum.service.impl;
 
 import com.google.common.base.Preconditions;
+import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.dto.type.UserLimitType;
 import com.jeanchampemont.wtfdyum.service.PrincipalService;
+import com.jeanchampemont.wtfdyum.utils.PrincipalCache;
+import com.jeanchampemont.wtfdyum.utils.RedisScripts;
+import com.jeanchampemont.wtfdyum.utils.UserHash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 @Service
 public class PrincipalServiceImpl implements PrincipalService {
 
     private static final String MEMBERS_KEY = "MEMBERS";
 
+    private static final String FEATURE_MEMBERS_KEY_PREFIX = "FEATURE_MEMBERS_";
+
+    private static final String FEATURES_KEY_PREFIX = "FEATURE_BITS_";
+
+    private static final RedisScript<Long> MIGRATE_SCRIPT = RedisScripts.load("user-migrate.lua", Long.class);
+
+    private static final StringRedisSerializer STRING_SERIALIZER = new StringRedisSerializer();
+
     @Autowired
     public PrincipalServiceImpl(final RedisTemplate<String, Principal> principalRedisTemplate,
-            final RedisTemplate<String, Long> longRedisTemplate) {
+            final RedisTemplate<String, Long> longRedisTemplate,
+            final StringRedisTemplate stringRedisTemplate,
+            final PrincipalCache principalCache,
+            @Value("${wtfdyum.redis.scan-count}") final int scanCount,
+            @Value("${wtfdyum.redis.user-hash}") final boolean userHash) {
         this.principalRedisTemplate = principalRedisTemplate;
         this.longRedisTemplate = longRedisTemplate;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.principalCache = principalCache;
+        this.scanCount = scanCount;
+        this.userHash = userHash;
     }
 
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
     private final RedisTemplate<String, Principal> principalRedisTemplate;
 
     private final RedisTemplate<String, Long> longRedisTemplate;
 
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final PrincipalCache principalCache;
+
+    private final int scanCount;
+
+    private final boolean userHash;
+
     @Override
     public int countMembers() {
         return longRedisTemplate.opsForSet().size(MEMBERS_KEY).intValue();
     }
 
+    @Override
+    public int countMembers(final Feature feature) {
+        return longRedisTemplate.opsForSet().size(featureMembersKey(feature)).intValue();
+    }
+
     @Override
     public Principal get(final Long id) {
         Preconditions.checkNotNull(id);
-        return principalRedisTemplate.opsForValue().get(id.toString());
+        return principalCache.get(id, this::load);
+    }
+
+    @Override
+    public Map<Long, Principal> getAll(final Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return new HashMap<>();
+        }
+        return principalCache.getAll(ids, this::loadAll);
     }
 
     @Override
@@ -58,13 +128,263 @@ public class PrincipalServiceImpl implements PrincipalService {
         return longRedisTemplate.opsForSet().members(MEMBERS_KEY);
     }
 
+    @Override
+    public boolean migrateToUserHash(final Long id) {
+        if (!userHash) {
+            return false;
+        }
+
+        // the legacy principal is read here so the script does not depend on its encoding. The script only
+        // moves it if it is still the value read. It is not written anymore once the user hash is enabled
+        final byte[] rawPrincipalKey = STRING_SERIALIZER.serialize(id.toString());
+        final byte[] raw = principalRedisTemplate
+                .execute((RedisCallback<byte[]>) connection -> connection.get(rawPrincipalKey));
+        final Principal legacy = raw == null ? null : principalSerializer().deserialize(raw);
+        final List<String> keys = new ArrayList<>();
+        final List<byte[]> args = new ArrayList<>();
+        args.add(raw == null ? new byte[0] : raw);
+        args.add(STRING_SERIALIZER.serialize(legacy == null || legacy.getToken() == null ? "" : legacy.getToken()));
+        args.add(STRING_SERIALIZER
+                .serialize(legacy == null || legacy.getTokenSecret() == null ? "" : legacy.getTokenSecret()));
+        keys.add(UserHash.key(id));
+        keys.add(id.toString());
+        keys.add(new StringBuilder(FEATURES_KEY_PREFIX).append(id.toString()).toString());
+        for (final UserLimitType type : UserLimitType.values()) {
+            keys.add(new StringBuilder(type.name()).append("_").append(id.toString()).toString());
+            args.add(STRING_SERIALIZER.serialize(UserHash.limitField(type)));
+        }
+
+        final List<byte[]> keysAndArgs = keys.stream().map(STRING_SERIALIZER::serialize).collect(Collectors.toList());
+        keysAndArgs.addAll(args);
+        final Long result = stringRedisTemplate.execute((RedisCallback<Long>) connection -> RedisScripts.evalSha(
+                connection, MIGRATE_SCRIPT, ReturnType.INTEGER, keys.size(),
+                keysAndArgs.toArray(new byte[keysAndArgs.size()][])));
+        final boolean migrated = result != null && result == 1;
+        if (migrated) {
+            log.debug("Migrated user id {} to its consolidated hash", id);
+        }
+        return migrated;
+    }
+
+    @Override
+    public Cursor<Long> scanMembers() {
+        return scan(MEMBERS_KEY);
+    }
+
+    @Override
+    public Cursor<Long> scanMembers(final Set<Feature> features) {
+        Preconditions.checkArgument(!features.isEmpty());
+
+        final List<String> keys = features.stream().map(this::featureMembersKey).collect(Collectors.toList());
+        if (keys.size() == 1) {
+            return scan(keys.get(0));
+        }
+        return new FeatureMembersCursor(keys);
+    }
+
     @Override
     public void saveUpdate(final Principal user) {
         Preconditions.checkNotNull(user);
         Preconditions.checkNotNull(user.getUserId());
 
-        principalRedisTemplate.opsForValue().set(user.getUserId().toString(), user);
+        if (userHash) {
+            hashOperations().putAll(UserHash.key(user.getUserId()), UserHash.fields(user));
+        } else {
+            principalRedisTemplate.opsForValue().set(user.getUserId().toString(), user);
+        }
         longRedisTemplate.opsForSet().add(MEMBERS_KEY, user.getUserId());
+        principalCache.invalidate(user.getUserId());
+    }
+
+    private Principal load(final Long id) {
+        if (!userHash) {
+            return principalRedisTemplate.opsForValue().get(id.toString());
+        }
+
+        Principal result = UserHash.principal(id, hashOperations().entries(UserHash.key(id)));
+        // members not yet migrated are moved to their hash on first read
+        if (result == null && migrateToUserHash(id)) {
+            result = UserHash.principal(id, hashOperations().entries(UserHash.key(id)));
+        }
+        return result;
+    }
+
+    private Map<Long, Principal> loadAll(final Collection<Long> ids) {
+        if (userHash) {
+            return loadAllFromUserHash(ids);
+        }
+
+        final Map<Long, Principal> result = new HashMap<>();
+        final List<Principal> principals = principalRedisTemplate.opsForValue()
+                .multiGet(ids.stream().map(Object::toString).collect(Collectors.toList()));
+        for (final Principal principal : principals) {
+            if (principal != null) {
+                result.put(principal.getUserId(), principal);
+            }
+        }
+        return result;
+    }
+
+    private Map<Long, Principal> loadAllFromUserHash(final Collection<Long> ids) {
+        final List<Long> idList = new ArrayList<>(ids);
+        final List<Object> hashes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            final StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (final Long id : idList) {
+                stringConnection.hGetAll(UserHash.key(id));
+            }
+            return null;
+        });
+
+        final Map<Long, Principal> result = new HashMap<>();
+        for (int i = 0; i < idList.size(); i++) {
+            final Long id = idList.get(i);
+            @SuppressWarnings("unchecked")
+            Principal principal = UserHash.principal(id, (Map<String, String>) hashes.get(i));
+            if (principal == null) {
+                principal = load(id);
+            }
+            if (principal != null) {
+                result.put(id, principal);
+            }
+        }
+        return result;
+    }
+
+    private HashOperations<String, String, String> hashOperations() {
+        return stringRedisTemplate.opsForHash();
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisSerializer<Principal> principalSerializer() {
+        return (RedisSerializer<Principal>) principalRedisTemplate.getValueSerializer();
+    }
+
+    private String featureMembersKey(final Feature feature) {
+        return new StringBuilder(FEATURE_MEMBERS_KEY_PREFIX).append(feature.name()).toString();
+    }
+
+    private Cursor<Long> scan(final String key) {
+        return longRedisTemplate.opsForSet().scan(key, ScanOptions.scanOptions().count(scanCount).build());
+    }
+
+    /**
+     * Cursor over the union of several feature members sets, scanning them
+     * one after the other. A member of several sets is only returned from
+     * the first one: the ids scanned from the next sets are checked against
+     * the previous ones, a page at a time in a single pipeline.
+     */
+    private class FeatureMembersCursor implements Cursor<Long> {
+
+        FeatureMembersCursor(final List<String> keys) {
+            this.keys = keys;
+        }
+
+        private final List<String> keys;
+
+        private final Deque<Long> page = new ArrayDeque<>();
+
+        private int index = -1;
+
+        private Cursor<Long> current;
+
+        private long position;
+
+        private boolean closed;
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (current != null) {
+                current.close();
+            }
+        }
+
+        @Override
+        public long getCursorId() {
+            return current == null ? 0 : current.getCursorId();
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return !page.isEmpty();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public Long next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            position++;
+            return page.poll();
+        }
+
+        @Override
+        public Cursor<Long> open() {
+            return this;
+        }
+
+        private void fill() {
+            while (page.isEmpty() && !closed) {
+                if (current == null || !current.hasNext()) {
+                    if (index + 1 == keys.size()) {
+                        return;
+                    }
+                    if (current != null) {
+                        try {
+                            current.close();
+                        } catch (final IOException e) {
+                            log.warn("Error while closing members cursor", e);
+                        }
+                    }
+                    current = scan(keys.get(++index));
+                    continue;
+                }
+                final List<Long> ids = new ArrayList<>(scanCount);
+                while (ids.size() < scanCount && current.hasNext()) {
+                    ids.add(current.next());
+                }
+                page.addAll(index == 0 ? ids : notInPreviousSets(ids));
+            }
+        }
+
+        private List<Long> notInPreviousSets(final List<Long> ids) {
+            final List<String> previous = keys.subList(0, index);
+            final List<Object> members = longRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings({ "unchecked", "rawtypes" })
+                public Object execute(final RedisOperations operations) throws DataAccessException {
+                    for (final Long id : ids) {
+                        for (final String key : previous) {
+                            operations.opsForSet().isMember(key, id);
+                        }
+                    }
+                    return null;
+                }
+            });
+
+            final List<Long> result = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                boolean seen = false;
+                for (int j = 0; j < previous.size(); j++) {
+                    seen |= Boolean.TRUE.equals(members.get(i * previous.size() + j));
+                }
+                if (!seen) {
+                    result.add(ids.get(i));
+                }
+            }
+            return result;
+        }
     }
 
 }
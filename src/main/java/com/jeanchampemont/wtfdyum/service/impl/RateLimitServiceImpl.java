@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service.impl;
+
+import com.jeanchampemont.wtfdyum.dto.type.TwitterEndpoint;
+import com.jeanchampemont.wtfdyum.service.RateLimitService;
+import com.jeanchampemont.wtfdyum.utils.RedisScripts;
+import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
+import com.jeanchampemont.wtfdyum.utils.WTFDYUMExceptionType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.util.Collections;
+
+/**
+ * Token buckets stored in Redis, one per endpoint and token, so that every
+ * instance draws from the same buckets. They are refilled according to the
+ * clock of the Redis server, the instances' clocks only bound how long a
+ * caller waits.
+ *
+ * The server time is read with TIME before running the scripts: before
+ * Redis 3.2 a script cannot write once it called TIME itself.
+ */
+@Service
+public class RateLimitServiceImpl implements RateLimitService {
+
+    private static final String RATE_LIMIT_KEY_PREFIX = "RATE_LIMIT_";
+
+    private static final String APPLICATION_TOKEN = "APP";
+
+    private static final RedisScript<Long> TAKE_SCRIPT = RedisScripts.load("token-bucket-take.lua", Long.class);
+
+    private static final RedisScript<Long> DRAIN_SCRIPT = RedisScripts.load("token-bucket-drain.lua", Long.class);
+
+    @Autowired
+    public RateLimitServiceImpl(final StringRedisTemplate stringRedisTemplate,
+            final Clock clock,
+            @Value("${wtfdyum.rate-limit.enabled}") final boolean enabled,
+            @Value("${wtfdyum.rate-limit.timeout}") final long timeout) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.clock = clock;
+        this.enabled = enabled;
+        this.timeout = timeout;
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Clock clock;
+
+    private final boolean enabled;
+
+    private final long timeout;
+
+    @Override
+    public void acquire(final TwitterEndpoint endpoint, final Long userId) throws WTFDYUMException {
+        if (!enabled) {
+            return;
+        }
+        final long deadline = clock.millis() + timeout;
+        while (true) {
+            final Long wait = stringRedisTemplate.execute(TAKE_SCRIPT,
+                    Collections.singletonList(bucketKey(endpoint, userId)),
+                    Integer.toString(endpoint.getCapacity()), Long.toString(endpoint.getWindow()),
+                    Long.toString(serverTime()));
+            if (wait == null || wait == 0) {
+                return;
+            }
+            if (clock.millis() + wait > deadline) {
+                throw new WTFDYUMException(WTFDYUMExceptionType.TWITTER_RATE_LIMITED);
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_RATE_LIMITED);
+            }
+        }
+    }
+
+    @Override
+    public void exhaust(final TwitterEndpoint endpoint, final Long userId, final long delay) {
+        if (!enabled) {
+            return;
+        }
+        final long now = serverTime();
+        stringRedisTemplate.execute(DRAIN_SCRIPT, Collections.singletonList(bucketKey(endpoint, userId)),
+                Long.toString(endpoint.getWindow()), Long.toString(now), Long.toString(now + delay));
+    }
+
+    private long serverTime() {
+        return stringRedisTemplate.execute((RedisCallback<Long>) RedisConnection::time);
+    }
+
+    private String bucketKey(final TwitterEndpoint endpoint, final Long userId) {
+        return new StringBuilder(RATE_LIMIT_KEY_PREFIX).append(endpoint.name()).append('_')
+                .append(userId == null ? APPLICATION_TOKEN : userId.toString()).toString();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service.impl;
+
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
+import com.jeanchampemont.wtfdyum.service.RequestTokenService;
+import com.jeanchampemont.wtfdyum.utils.RedisScripts;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import twitter4j.auth.RequestToken;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+@Service
+@Profile("!" + DeploymentRole.WORKER)
+public class RequestTokenServiceImpl implements RequestTokenService {
+
+    private static final String REQUEST_TOKEN_KEY_PREFIX = "REQUEST_TOKEN_";
+
+    private static final RedisScript<String> CONSUME_SCRIPT = RedisScripts.load("request-token-consume.lua",
+            String.class);
+
+    @Autowired
+    public RequestTokenServiceImpl(final StringRedisTemplate stringRedisTemplate,
+            @Value("${wtfdyum.request-token-ttl}") final long requestTokenTtl) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.requestTokenTtl = requestTokenTtl;
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final long requestTokenTtl;
+
+    @Override
+    public RequestToken consume(final String token) {
+        // read and deleted in a single step, so two callbacks cannot both get the token
+        final String tokenSecret = stringRedisTemplate.execute(CONSUME_SCRIPT,
+                Collections.singletonList(requestTokenKey(token)));
+        if (tokenSecret == null) {
+            return null;
+        }
+        return new RequestToken(token, tokenSecret);
+    }
+
+    @Override
+    public void save(final RequestToken requestToken) {
+        stringRedisTemplate.opsForValue().set(requestTokenKey(requestToken.getToken()), requestToken.getTokenSecret(),
+                requestTokenTtl, TimeUnit.MILLISECONDS);
+    }
+
+    private String requestTokenKey(final String token) {
+        return new StringBuilder(REQUEST_TOKEN_KEY_PREFIX).append(token).toString();
+    }
+}
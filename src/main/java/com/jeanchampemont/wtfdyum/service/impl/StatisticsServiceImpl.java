@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service.impl;
+
+import com.jeanchampemont.wtfdyum.dto.type.StatisticType;
+import com.jeanchampemont.wtfdyum.service.StatisticsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+@Service
+public class StatisticsServiceImpl implements StatisticsService {
+
+    private static final String STATISTICS_KEY_PREFIX = "STATISTICS_";
+
+    @Autowired
+    public StatisticsServiceImpl(final RedisTemplate<String, Long> longRedisTemplate) {
+        this.longRedisTemplate = longRedisTemplate;
+    }
+
+    private final RedisTemplate<String, Long> longRedisTemplate;
+
+    @Override
+    public Map<StatisticType, Long> getStatistics() {
+        final List<String> keys = new ArrayList<>();
+        for (final StatisticType type : StatisticType.values()) {
+            keys.add(statisticKey(type));
+        }
+        final List<Long> values = longRedisTemplate.opsForValue().multiGet(keys);
+
+        final Map<StatisticType, Long> result = new EnumMap<>(StatisticType.class);
+        for (final StatisticType type : StatisticType.values()) {
+            final Long value = values.get(type.ordinal());
+            result.put(type, value == null ? 0L : value);
+        }
+        return result;
+    }
+
+    @Override
+    public void increment(final StatisticType type, final long delta) {
+        if (delta != 0) {
+            longRedisTemplate.opsForValue().increment(statisticKey(type), delta);
+        }
+    }
+
+    private String statisticKey(final StatisticType type) {
+        return new StringBuilder(STATISTICS_KEY_PREFIX).append(type.name()).toString();
+    }
+}
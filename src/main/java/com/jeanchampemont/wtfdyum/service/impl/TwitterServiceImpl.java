@@ -18,23 +18,42 @@
 package com.jeanchampemont.wtfdyum.service.impl;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.jeanchampemont.wtfdyum.dto.Principal;
 import com.jeanchampemont.wtfdyum.dto.User;
+import com.jeanchampemont.wtfdyum.dto.type.TwitterEndpoint;
+import com.jeanchampemont.wtfdyum.service.CredentialsService;
+import com.jeanchampemont.wtfdyum.service.RateLimitService;
 import com.jeanchampemont.wtfdyum.service.TwitterService;
+import com.jeanchampemont.wtfdyum.utils.TwitterBulkheads;
+import com.jeanchampemont.wtfdyum.utils.TwitterCircuitBreaker;
+import com.jeanchampemont.wtfdyum.utils.TwitterCircuitBreaker.Result;
+import com.jeanchampemont.wtfdyum.utils.TwitterConcurrencyLimiter;
+import com.jeanchampemont.wtfdyum.utils.TwitterConcurrencyLimiter.Outcome;
+import com.jeanchampemont.wtfdyum.utils.TwitterConcurrencyLimiter.Permit;
 import com.jeanchampemont.wtfdyum.utils.TwitterFactoryHolder;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMExceptionType;
+import com.jeanchampemont.wtfdyum.utils.WorkerThreads;
 import org.dozer.Mapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestContextHolder;
 import twitter4j.*;
 import twitter4j.auth.AccessToken;
 import twitter4j.auth.RequestToken;
 
+import javax.annotation.PreDestroy;
+import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 @Service
@@ -42,14 +61,28 @@ public class TwitterServiceImpl implements TwitterService {
 
     @Autowired
     public TwitterServiceImpl(final TwitterFactoryHolder twitterFactory, final Mapper mapper,
+            final CredentialsService credentialsService,
+            final RateLimitService rateLimitService,
+            final TwitterConcurrencyLimiter concurrencyLimiter,
+            final TwitterCircuitBreaker circuitBreaker,
+            final TwitterBulkheads bulkheads,
             @Value("${wtfdyum.server-base-url}") final String baseUrl,
             @Value("${wtfdyum.twitter.appId}") final String appId,
-            @Value("${wtfdyum.twitter.appSecret}") final String appSecret) {
+            @Value("${wtfdyum.twitter.appSecret}") final String appSecret,
+            @Value("${wtfdyum.twitter.io-threads}") final int ioThreads,
+            @Value("${wtfdyum.virtual-threads.enabled}") final boolean virtualThreads) {
         this.twitterFactory = twitterFactory;
         this.mapper = mapper;
+        this.credentialsService = credentialsService;
+        this.rateLimitService = rateLimitService;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.circuitBreaker = circuitBreaker;
+        this.bulkheads = bulkheads;
         this.baseUrl = baseUrl;
         this.appId = appId;
         this.appSecret = appSecret;
+        this.ioExecutor = WorkerThreads.newFixedExecutor("twitter-io-", ioThreads,
+                WorkerThreads.useVirtual("twitter-io-", virtualThreads));
     }
 
     private final Logger log = LoggerFactory.getLogger(this.getClass());
@@ -60,10 +93,27 @@ public class TwitterServiceImpl implements TwitterService {
 
     private final Mapper mapper;
 
+    private final CredentialsService credentialsService;
+
+    private final RateLimitService rateLimitService;
+
+    private final TwitterConcurrencyLimiter concurrencyLimiter;
+
+    private final TwitterCircuitBreaker circuitBreaker;
+
+    private final TwitterBulkheads bulkheads;
+
     private final String appId;
 
     private final String appSecret;
 
+    private final ExecutorService ioExecutor;
+
+    /**
+     * The operation run by the current I/O thread.
+     */
+    private final ThreadLocal<CompletableFuture<?>> currentOperation = new ThreadLocal<>();
+
     @Override
     public AccessToken completeSignin(final RequestToken requestToken, final String verifier) throws WTFDYUMException {
         AccessToken token = null;
@@ -79,15 +129,191 @@ public class TwitterServiceImpl implements TwitterService {
     @Override
     public Set<Long> getFollowers(final Long userId, final Optional<Principal> principal) throws WTFDYUMException {
         Preconditions.checkNotNull(userId);
+        return blocking(() -> fetchFollowers(userId, principal));
+    }
+
+    @Override
+    public CompletableFuture<Set<Long>> getFollowersAsync(final Long userId, final Optional<Principal> principal) {
+        Preconditions.checkNotNull(userId);
+        return async(() -> fetchFollowers(userId, principal));
+    }
+
+    @Override
+    public User getUser(final Principal principal, final Long id) throws WTFDYUMException {
+        return blocking(() -> fetchUser(principal, id));
+    }
+
+    @Override
+    public CompletableFuture<User> getUserAsync(final Principal principal, final Long id) {
+        return async(() -> fetchUser(principal, id));
+    }
+
+    @Override
+    public List<User> getUsers(final Principal principal, final long... ids) throws WTFDYUMException {
+        if (ids.length == 0) {
+            return new ArrayList<>();
+        }
+        return blocking(() -> fetchUsers(principal, ids));
+    }
+
+    @Override
+    public CompletableFuture<List<User>> getUsersAsync(final Principal principal, final long... ids) {
+        if (ids.length == 0) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        return async(() -> fetchUsers(principal, ids));
+    }
+
+    @Override
+    public void sendDirectMessage(final Principal principal, final Long toUserId, final String text)
+            throws WTFDYUMException {
+        blocking(() -> {
+            postDirectMessage(principal, toUserId, text);
+            return null;
+        });
+    }
 
+    @Override
+    public CompletableFuture<Void> sendDirectMessageAsync(final Principal principal, final Long toUserId,
+            final String text) {
+        return async(() -> {
+            postDirectMessage(principal, toUserId, text);
+            return null;
+        });
+    }
+
+    @Override
+    public RequestToken signin(final String path) throws WTFDYUMException {
+        RequestToken token = null;
+        try {
+            token = twitter().getOAuthRequestToken(new StringBuilder(baseUrl).append(path).toString());
+        } catch (final TwitterException e) {
+            log.debug("Error while signin", e);
+            throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_ERROR);
+        }
+        return token;
+    }
+
+    @Override
+    public void tweet(final Principal principal, final String text) throws WTFDYUMException {
+        blocking(() -> {
+            postTweet(principal, text);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> tweetAsync(final Principal principal, final String text) {
+        return async(() -> {
+            postTweet(principal, text);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean verifyCredentials(final Principal principal) throws WTFDYUMException {
+        return blocking(() -> checkCredentials(principal));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> verifyCredentialsAsync(final Principal principal) {
+        return async(() -> checkCredentials(principal));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ioExecutor.shutdownNow();
+    }
+
+    /**
+     * Run a blocking twitter operation on the I/O executor.
+     */
+    private <T> CompletableFuture<T> async(final TwitterOperation<T> operation) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            ioExecutor.execute(() -> {
+                currentOperation.set(result);
+                try {
+                    result.complete(operation.run());
+                } catch (final WTFDYUMException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    currentOperation.remove();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Run a twitter operation for the blocking API. A web request runs it on
+     * its own thread, so that it never queues behind the scheduled jobs on
+     * the I/O executor. Other callers wait for the I/O executor.
+     */
+    private <T> T blocking(final TwitterOperation<T> operation) throws WTFDYUMException {
+        if (RequestContextHolder.getRequestAttributes() != null) {
+            return operation.run();
+        }
+        return await(async(operation));
+    }
+
+    /**
+     * Wait for an operation run by the I/O executor, for the blocking API.
+     * An interrupted caller stops waiting right away, and cancels the
+     * operation.
+     */
+    private <T> T await(final CompletableFuture<T> future) throws WTFDYUMException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_ERROR);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof WTFDYUMException) {
+                throw (WTFDYUMException) e.getCause();
+            }
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private boolean checkCredentials(final Principal principal) throws WTFDYUMException {
+        boolean result = true;
+        try {
+            call(TwitterEndpoint.VERIFY_CREDENTIALS, principal.getUserId(),
+                    () -> twitter(principal).verifyCredentials());
+            verified(principal);
+        } catch (final TwitterException e) {
+            if (e.exceededRateLimitation()) {
+                // says nothing about the credentials
+                rateLimitExceeded(TwitterEndpoint.VERIFY_CREDENTIALS, principal.getUserId(), e);
+                throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_RATE_LIMITED);
+            }
+            if (isFailure(e)) {
+                // the credentials may well be valid
+                log.debug("Error while verifyCredentials", e);
+                throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_ERROR);
+            }
+            result = false;
+        }
+        return result;
+    }
+
+    private Set<Long> fetchFollowers(final Long userId, final Optional<Principal> principal)
+            throws WTFDYUMException {
         final Twitter twitter = principal.isPresent() ? twitter(principal.get()) : twitter();
+        final Long tokenUserId = principal.isPresent() ? principal.get().getUserId() : null;
 
         final Set<Long> result = new HashSet<>();
         try {
             IDs followersIDs = null;
             long cursor = -1;
             do {
-                followersIDs = twitter.getFollowersIDs(userId, cursor);
+                final long pageCursor = cursor;
+                followersIDs = call(TwitterEndpoint.FOLLOWERS_IDS, tokenUserId,
+                        () -> twitter.getFollowersIDs(userId, pageCursor));
                 if(followersIDs.hasNext()) {
                     cursor = followersIDs.getNextCursor();
                     checkRateLimitStatus(followersIDs.getRateLimitStatus(),
@@ -100,37 +326,40 @@ public class TwitterServiceImpl implements TwitterService {
                 result.addAll(currentFollowers);
             } while (followersIDs.hasNext());
 
+            if (principal.isPresent()) {
+                verified(principal.get());
+            }
         } catch (final TwitterException e) {
+            rateLimitExceeded(TwitterEndpoint.FOLLOWERS_IDS, tokenUserId, e);
             log.debug("Error while getFollowers", e);
             throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_ERROR);
         }
         return result;
     }
 
-    @Override
-    public User getUser(final Principal principal, final Long id) throws WTFDYUMException {
+    private User fetchUser(final Principal principal, final Long id) throws WTFDYUMException {
         User result = null;
         try {
-            final twitter4j.User user = twitter(principal).users().showUser(id);
+            final twitter4j.User user = call(TwitterEndpoint.USERS_SHOW, principal.getUserId(),
+                    () -> twitter(principal).users().showUser(id));
             result = mapper.map(user, User.class);
+            verified(principal);
         } catch (final TwitterException e) {
+            rateLimitExceeded(TwitterEndpoint.USERS_SHOW, principal.getUserId(), e);
             log.debug("Error while getUser", e);
             throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_ERROR);
         }
         return result;
     }
 
-    @Override
-    public List<User> getUsers(final Principal principal, final long... ids) throws WTFDYUMException {
+    private List<User> fetchUsers(final Principal principal, final long... ids) throws WTFDYUMException {
         final List<User> result = new ArrayList<>();
-        if (ids.length == 0) {
-            return result;
-        }
         try {
             final List<twitter4j.User> users = new ArrayList<>();
             for (int i = 0; i <= (ids.length - 1) / 100; i++) {
-                final ResponseList<twitter4j.User> lookupUsers = twitter(principal).users()
-                    .lookupUsers(Arrays.copyOfRange(ids, i * 100, Math.min((i + 1) * 100, ids.length)));
+                final long[] page = Arrays.copyOfRange(ids, i * 100, Math.min((i + 1) * 100, ids.length));
+                final ResponseList<twitter4j.User> lookupUsers = call(TwitterEndpoint.USERS_LOOKUP,
+                        principal.getUserId(), () -> twitter(principal).users().lookupUsers(page));
 
                 users.addAll(lookupUsers);
             }
@@ -138,8 +367,10 @@ public class TwitterServiceImpl implements TwitterService {
             for (final twitter4j.User u : users) {
                 result.add(mapper.map(u, User.class));
             }
+            verified(principal);
 
         } catch (final TwitterException e) {
+            rateLimitExceeded(TwitterEndpoint.USERS_LOOKUP, principal.getUserId(), e);
             if (e.getErrorCode() == 17) {
                 log.debug("Error while getUsers for ids: " + Arrays.toString(ids) + ". Seems like those users are not on twitter anymore.");
             } else {
@@ -150,48 +381,91 @@ public class TwitterServiceImpl implements TwitterService {
         return result;
     }
 
-    @Override
-    public void sendDirectMessage(final Principal principal, final Long toUserId, final String text)
+    private void postDirectMessage(final Principal principal, final Long toUserId, final String text)
             throws WTFDYUMException {
         try {
-            twitter(principal).sendDirectMessage(toUserId, text);
+            call(TwitterEndpoint.DIRECT_MESSAGES_NEW, principal.getUserId(),
+                    () -> twitter(principal).sendDirectMessage(toUserId, text));
+            verified(principal);
         } catch (final TwitterException e) {
+            rateLimitExceeded(TwitterEndpoint.DIRECT_MESSAGES_NEW, principal.getUserId(), e);
             log.debug("Error while sendDirectMessage", e);
             throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_ERROR);
         }
     }
 
-    @Override
-    public RequestToken signin(final String path) throws WTFDYUMException {
-        RequestToken token = null;
+    private void postTweet(final Principal principal, final String text) throws WTFDYUMException {
         try {
-            token = twitter().getOAuthRequestToken(new StringBuilder(baseUrl).append(path).toString());
+            call(TwitterEndpoint.STATUSES_UPDATE, principal.getUserId(),
+                    () -> twitter(principal).updateStatus(text));
+            verified(principal);
         } catch (final TwitterException e) {
-            log.debug("Error while signin", e);
+            rateLimitExceeded(TwitterEndpoint.STATUSES_UPDATE, principal.getUserId(), e);
+            log.debug("Error while tweet", e);
             throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_ERROR);
         }
-        return token;
     }
 
-    @Override
-    public void tweet(final Principal principal, final String text) throws WTFDYUMException {
+    /**
+     * Make a call to a rate limited endpoint. The call fails fast if the
+     * circuit of the endpoint is open, then waits for the rate limit, for its
+     * place in the endpoint bulkhead and for the concurrency limit, so that the
+     * bulkhead only holds calls ready to go.
+     * No call is made once the operation was cancelled (cancelled cron...):
+     * cancelling does not interrupt the I/O thread, so the operation is
+     * checked again after each wait.
+     */
+    private <T> T call(final TwitterEndpoint endpoint, final Long userId, final TwitterCall<T> call)
+            throws TwitterException, WTFDYUMException {
+        checkCancelled();
+        final long generation = circuitBreaker.acquire(endpoint);
+        Result result = Result.NOT_CALLED;
         try {
-            twitter(principal).updateStatus(text);
-        } catch (final TwitterException e) {
-            log.debug("Error while tweet", e);
-            throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_ERROR);
+            rateLimitService.acquire(endpoint, userId);
+            checkCancelled();
+
+            bulkheads.acquire(endpoint);
+            try {
+                checkCancelled();
+                final Permit permit;
+                try {
+                    permit = concurrencyLimiter.acquire();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_ERROR);
+                }
+                Outcome outcome = Outcome.NOT_CALLED;
+                try {
+                    checkCancelled();
+                    outcome = Outcome.ERROR;
+                    final T response = call.call();
+                    outcome = Outcome.SUCCESS;
+                    result = Result.SUCCESS;
+                    return response;
+                } catch (final TwitterException e) {
+                    if (e.exceededRateLimitation()) {
+                        outcome = Outcome.THROTTLED;
+                    } else if (e.getCause() instanceof SocketTimeoutException) {
+                        outcome = Outcome.TIMEOUT;
+                    }
+                    result = isFailure(e) ? Result.FAILURE : Result.SUCCESS;
+                    throw e;
+                } finally {
+                    concurrencyLimiter.release(permit, outcome);
+                }
+            } finally {
+                bulkheads.release(endpoint);
+            }
+        } finally {
+            circuitBreaker.release(endpoint, generation, result);
         }
     }
 
-    @Override
-    public boolean verifyCredentials(final Principal principal) {
-        boolean result = true;
-        try {
-            twitter(principal).verifyCredentials();
-        } catch (final TwitterException e) {
-            result = false;
+    private void checkCancelled() throws WTFDYUMException {
+        final CompletableFuture<?> operation = currentOperation.get();
+        if (operation != null && operation.isCancelled()) {
+            throw new WTFDYUMException(new CancellationException(), WTFDYUMExceptionType.TWITTER_ERROR);
         }
-        return result;
     }
 
     private void checkRateLimitStatus(final RateLimitStatus status, final WTFDYUMExceptionType exceptionType)
@@ -201,6 +475,30 @@ public class TwitterServiceImpl implements TwitterService {
         }
     }
 
+    /**
+     * Twitter may still answer that the rate limit is exceeded (limits shared
+     * with other applications, changed by twitter...). No other call to this
+     * endpoint is then made with this token before the limit is reset.
+     */
+    private void rateLimitExceeded(final TwitterEndpoint endpoint, final Long userId, final TwitterException e) {
+        if (!e.exceededRateLimitation()) {
+            return;
+        }
+        final RateLimitStatus status = e.getRateLimitStatus();
+        final long delay = status != null && status.getSecondsUntilReset() > 0
+                ? status.getSecondsUntilReset() * 1000L : endpoint.getWindow();
+        log.warn("Twitter rate limit exceeded on {}, no call for {} ms", endpoint, delay);
+        rateLimitService.exhaust(endpoint, userId, delay);
+    }
+
+    /**
+     * Whether twitter could not be reached or failed to answer, rather than
+     * refusing the call.
+     */
+    private boolean isFailure(final TwitterException e) {
+        return e.isCausedByNetworkIssue() || e.getStatusCode() >= 500;
+    }
+
     private Twitter twitter() {
         final Twitter instance = twitterFactory.getInstance();
         instance.setOAuthConsumer(appId, appSecret);
@@ -212,4 +510,30 @@ public class TwitterServiceImpl implements TwitterService {
         instance.setOAuthAccessToken(new AccessToken(principal.getToken(), principal.getTokenSecret()));
         return instance;
     }
+
+    /**
+     * Any successful call made with a member's credentials proves them valid,
+     * sparing an explicit verification.
+     */
+    private void verified(final Principal principal) {
+        if (principal.getUserId() == null) {
+            return;
+        }
+        try {
+            credentialsService.markVerified(principal.getUserId());
+        } catch (final RuntimeException e) {
+            // the call itself succeeded
+            log.warn("Could not record verified credentials of user id " + principal.getUserId(), e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface TwitterCall<T> {
+        T call() throws TwitterException;
+    }
+
+    @FunctionalInterface
+    private interface TwitterOperation<T> {
+        T run() throws WTFDYUMException;
+    }
 }
@@ -0,0 +1,633 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service.impl;
+
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
+import com.jeanchampemont.wtfdyum.dto.Event;
+import com.jeanchampemont.wtfdyum.dto.Feature;
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.dto.User;
+import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import com.jeanchampemont.wtfdyum.dto.type.StatisticType;
+import com.jeanchampemont.wtfdyum.service.FeatureService;
+import com.jeanchampemont.wtfdyum.service.FollowersService;
+import com.jeanchampemont.wtfdyum.service.StatisticsService;
+import com.jeanchampemont.wtfdyum.service.TwitterService;
+import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
+import com.jeanchampemont.wtfdyum.utils.WorkerThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The unfollow cron, as a pipeline of stages each bounded by its own
+ * resource: fetching the followers (twitter read quota), diffing them against
+ * the snapshot (Redis), resolving the unfollowers (twitter users/lookup),
+ * notifying them (twitter write quota) and persisting the new snapshot
+ * (Redis).
+ *
+ * Each stage has its own threads and bounded queue: a stage waits for room in
+ * the queue of the next one, so a slow stage holds back the previous ones
+ * instead of piling up members in memory. The unfollowers of several members
+ * are packed together into full users/lookup requests.
+ *
+ * The followers are fetched asynchronously: the fetch threads only start the
+ * requests, which are bounded by the twitter client like any other call, and
+ * the fetched runs are handed over to the diff stage by a single thread.
+ */
+@Component
+@Profile("!" + DeploymentRole.WEB)
+public class UnfollowPipeline {
+
+    /**
+     * Maximum number of ids of a users/lookup request.
+     */
+    private static final int LOOKUP_SIZE = 100;
+
+    /**
+     * Maximum number of members whose credentials are tried for a
+     * users/lookup request.
+     */
+    private static final int LOOKUP_ATTEMPTS = 3;
+
+    @Autowired
+    public UnfollowPipeline(final TwitterService twitterService,
+            final FollowersService followersService,
+            final FeatureService featureService,
+            final EventWriteBuffer eventWriteBuffer,
+            final StatisticsService statisticsService,
+            @Value("${wtfdyum.cron.pipeline.fetch-threads}") final int fetchThreads,
+            @Value("${wtfdyum.cron.pipeline.diff-threads}") final int diffThreads,
+            @Value("${wtfdyum.cron.pipeline.lookup-threads}") final int lookupThreads,
+            @Value("${wtfdyum.cron.pipeline.notify-threads}") final int notifyThreads,
+            @Value("${wtfdyum.cron.pipeline.persist-threads}") final int persistThreads,
+            @Value("${wtfdyum.cron.pipeline.queue-size}") final int queueSize,
+            @Value("${wtfdyum.cron.pipeline.lookup-linger}") final long lookupLinger,
+            @Value("${wtfdyum.cron.member-timeout}") final long memberTimeout,
+            @Value("${wtfdyum.virtual-threads.enabled}") final boolean virtualThreads) {
+        this.twitterService = twitterService;
+        this.followersService = followersService;
+        this.featureService = featureService;
+        this.eventWriteBuffer = eventWriteBuffer;
+        this.statisticsService = statisticsService;
+        this.lookupLinger = lookupLinger;
+        this.memberTimeout = memberTimeout;
+        final boolean virtual = WorkerThreads.useVirtual("cron-pipeline-", virtualThreads);
+        this.fetchStage = new Stage("fetch", fetchThreads, queueSize, virtual);
+        this.diffStage = new Stage("diff", diffThreads, queueSize, virtual);
+        this.lookupStage = new Stage("lookup", lookupThreads, queueSize, virtual);
+        this.notifyStage = new Stage("notify", notifyThreads, queueSize, virtual);
+        this.persistStage = new Stage("persist", persistThreads, queueSize, virtual);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("cron-pipeline-scheduler-%d").setDaemon(true).build());
+        this.lookupFlusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("cron-pipeline-flush-%d").setDaemon(true).build());
+        this.handoff = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("cron-pipeline-handoff-%d").setDaemon(true).build());
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final TwitterService twitterService;
+
+    private final FollowersService followersService;
+
+    private final FeatureService featureService;
+
+    private final EventWriteBuffer eventWriteBuffer;
+
+    private final StatisticsService statisticsService;
+
+    private final long lookupLinger;
+
+    private final long memberTimeout;
+
+    private final Stage fetchStage;
+
+    private final Stage diffStage;
+
+    private final Stage lookupStage;
+
+    private final Stage notifyStage;
+
+    private final Stage persistStage;
+
+    /**
+     * Runs the watchdogs of the runs.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Sends the lookups waiting for more unfollowers, on its own thread: it
+     * may wait for room in the lookup stage, which must not hold back the
+     * watchdogs.
+     */
+    private final ScheduledExecutorService lookupFlusher;
+
+    /**
+     * Hands the fetched runs over to the diff stage, on its own thread: it
+     * may wait for room in the diff stage, which must not hold back the
+     * twitter client's threads.
+     */
+    private final ExecutorService handoff;
+
+    /**
+     * Unfollower ids waiting to be looked up, with the run they belong to.
+     */
+    private final List<SimpleImmutableEntry<Long, Run>> pendingLookups = new ArrayList<>();
+
+    private ScheduledFuture<?> lookupFlush;
+
+    /**
+     * The runs in the pipeline by user id, until no stage runs them any more,
+     * even once they timed out.
+     */
+    private final Map<Long, Run> runs = new ConcurrentHashMap<>();
+
+    private final AtomicLong lookupRequests = new AtomicLong();
+
+    private final AtomicLong lookupIds = new AtomicLong();
+
+    private final AtomicLong unsavedSnapshots = new AtomicLong();
+
+    /**
+     * Log the metrics of each stage since the last call, and reset them.
+     */
+    public void logMetrics() {
+        for (final Stage stage : new Stage[] { fetchStage, diffStage, lookupStage, notifyStage, persistStage }) {
+            log.debug("Cron pipeline stage {}: {} done, {} failed, {} ms busy, {} queued (max {})", stage.name,
+                    stage.done.getAndSet(0), stage.failed.getAndSet(0),
+                    TimeUnit.NANOSECONDS.toMillis(stage.busyTime.getAndSet(0)), stage.queued.get(),
+                    stage.maxQueued.getAndSet(0));
+        }
+        log.debug("Cron pipeline looked up {} unfollowers in {} requests", lookupIds.getAndSet(0),
+                lookupRequests.getAndSet(0));
+        final long unsaved = unsavedSnapshots.getAndSet(0);
+        if (unsaved > 0) {
+            log.warn("Cron pipeline could not save the followers snapshot of {} members", unsaved);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (final Stage stage : new Stage[] { fetchStage, diffStage, lookupStage, notifyStage, persistStage }) {
+            stage.executor.shutdownNow();
+        }
+        scheduler.shutdownNow();
+        lookupFlusher.shutdownNow();
+        handoff.shutdownNow();
+    }
+
+    /**
+     * @param userId
+     *            the member's id
+     * @return true if a cron of this member is still in the pipeline, even
+     *         if it timed out: a stage may not have noticed it yet
+     */
+    public boolean isRunning(final Long userId) {
+        return runs.containsKey(userId);
+    }
+
+    /**
+     * Run the cron of a member through the pipeline, cancelling it once it
+     * took more than memberTimeout. Waits for room in the first stage.
+     *
+     * @param principal
+     *            the member's principal
+     * @param features
+     *            the enabled features of the member
+     * @return a future completed with true once the cron is over, or with
+     *         false as soon as it timed out. It completes exceptionally with
+     *         the error that stopped the cron.
+     */
+    public CompletableFuture<Boolean> submit(final Principal principal, final Set<Feature> features) {
+        final Run run = new Run(principal, features);
+        final ScheduledFuture<?> watchdog = scheduler.schedule(() -> {
+            synchronized (run.result) {
+                if (run.result.complete(false)) {
+                    if (run.thread != null) {
+                        run.thread.interrupt();
+                    }
+                    if (run.fetch != null) {
+                        run.fetch.cancel(true);
+                    }
+                }
+            }
+        }, memberTimeout, TimeUnit.MILLISECONDS);
+        runs.put(principal.getUserId(), run);
+        run.result.whenComplete((done, t) -> {
+            watchdog.cancel(false);
+            over(run);
+        });
+
+        execute(fetchStage, run, this::fetch);
+        return run.result;
+    }
+
+    private void diff(final Run run) {
+        final FollowersService.Diff diff = followersService.getUnfollowers(run.principal.getUserId(), run.followers);
+        run.unfollowersId = diff.getUnfollowers();
+        run.followersGeneration = diff.getGeneration();
+        if (run.unfollowersId.isEmpty()) {
+            execute(persistStage, run, this::persist);
+        } else {
+            run.remainingLookups.set(run.unfollowersId.size());
+            lookup(run);
+        }
+    }
+
+    private void execute(final Stage stage, final Run run, final Step step) {
+        try {
+            stage.execute(() -> {
+                stage.run(run, step);
+                over(run);
+            });
+        } catch (final RejectedExecutionException e) {
+            run.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Start fetching the followers of a run, without holding the thread of
+     * the stage while twitter answers.
+     */
+    private void fetch(final Run run) {
+        final CompletableFuture<Set<Long>> followers = twitterService.getFollowersAsync(run.principal.getUserId(),
+                Optional.of(run.principal));
+        synchronized (run.result) {
+            if (run.result.isDone()) {
+                followers.cancel(true);
+                return;
+            }
+            // a cancelled fetch only reads: the run can be forgotten without waiting for the request to stop
+            run.fetch = followers;
+        }
+        followers.whenCompleteAsync((f, t) -> fetched(run, f, t), handoff);
+    }
+
+    private void fetched(final Run run, final Set<Long> followers, final Throwable t) {
+        if (t != null) {
+            if (!run.result.isDone()) {
+                fetchStage.failed.incrementAndGet();
+            }
+            run.result.completeExceptionally(t instanceof CompletionException ? t.getCause() : t);
+            return;
+        }
+        run.followers = followers;
+        execute(diffStage, run, this::diff);
+    }
+
+    /**
+     * Look up the unfollowers of a run, along with those of the other runs:
+     * full requests are sent right away, the remaining ids wait for more
+     * unfollowers up to lookupLinger.
+     */
+    private void lookup(final Run run) {
+        final List<List<SimpleImmutableEntry<Long, Run>>> requests = new ArrayList<>();
+        synchronized (pendingLookups) {
+            for (final Long id : run.unfollowersId) {
+                pendingLookups.add(new SimpleImmutableEntry<>(id, run));
+            }
+            while (pendingLookups.size() >= LOOKUP_SIZE) {
+                final List<SimpleImmutableEntry<Long, Run>> request = pendingLookups.subList(0, LOOKUP_SIZE);
+                requests.add(new ArrayList<>(request));
+                request.clear();
+            }
+            if (!pendingLookups.isEmpty() && lookupFlush == null) {
+                lookupFlush = lookupFlusher.schedule(this::lookupPending, lookupLinger, TimeUnit.MILLISECONDS);
+            }
+        }
+        requests.forEach(this::lookup);
+    }
+
+    private void lookup(final List<SimpleImmutableEntry<Long, Run>> request) {
+        try {
+            lookupStage.execute(() -> {
+                try {
+                    lookupStage.run(() -> resolve(request));
+                } catch (final Exception e) {
+                    // the runs of the request already failed with it
+                    log.debug("Lookup of {} unfollowers failed", request.size(), e);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            request.forEach(entry -> entry.getValue().result.completeExceptionally(e));
+        }
+    }
+
+    private void lookupPending() {
+        final List<SimpleImmutableEntry<Long, Run>> request;
+        synchronized (pendingLookups) {
+            request = new ArrayList<>(pendingLookups);
+            pendingLookups.clear();
+            lookupFlush = null;
+        }
+        if (!request.isEmpty()) {
+            lookup(request);
+        }
+    }
+
+    private void notifyUnfollowers(final Run run) throws WTFDYUMException {
+        final List<User> unfollowers = new ArrayList<>(run.unfollowers);
+        final Set<Event> events = new HashSet<>();
+        for (final Feature feature : run.features) {
+            events.addAll(featureService.notifyUnfollowers(run.principal, feature, unfollowers));
+        }
+        run.events = events;
+        execute(persistStage, run, this::persist);
+    }
+
+    /**
+     * Forget a run once it is complete and no stage is running it.
+     */
+    private void over(final Run run) {
+        synchronized (run.result) {
+            if (run.result.isDone() && run.thread == null) {
+                runs.remove(run.principal.getUserId(), run);
+            }
+        }
+    }
+
+    private void persist(final Run run) {
+        final Long userId = run.principal.getUserId();
+        eventWriteBuffer.addAll(userId, run.events);
+        statisticsService.increment(StatisticType.UNFOLLOWS_DETECTED,
+                run.events.stream().filter(e -> EventType.UNFOLLOW.equals(e.getType())).count());
+
+        if (!followersService.saveFollowers(userId, run.followers, run.followersGeneration)) {
+            // the events are written and the unfollowers notified: the cron is over, but the next one diffs
+            // against the snapshot another cron saved, or against the previous one
+            log.warn("Followers snapshot of user id {} not saved, a newer one was saved or the save kept failing",
+                    userId);
+            unsavedSnapshots.incrementAndGet();
+        }
+        run.result.complete(true);
+    }
+
+    /**
+     * Resolve the unfollowers of a users/lookup request, with the credentials
+     * of one of the members it is made for. If twitter refuses them, the
+     * credentials of the next members are tried, up to LOOKUP_ATTEMPTS. Each
+     * run goes on to the notify stage once all its unfollowers are resolved.
+     */
+    private void resolve(final List<SimpleImmutableEntry<Long, Run>> request) throws WTFDYUMException {
+        final Set<Long> ids = new LinkedHashSet<>();
+        final Set<Run> runs = new LinkedHashSet<>();
+        for (final SimpleImmutableEntry<Long, Run> entry : request) {
+            if (!entry.getValue().result.isDone()) {
+                ids.add(entry.getKey());
+                runs.add(entry.getValue());
+            }
+        }
+        if (runs.isEmpty()) {
+            return;
+        }
+
+        final List<User> users = lookup(runs, Longs.toArray(ids));
+        lookupRequests.incrementAndGet();
+        lookupIds.addAndGet(ids.size());
+
+        final Map<Long, User> usersById = new HashMap<>();
+        for (final User user : users) {
+            usersById.put(user.getId(), user);
+        }
+        for (final SimpleImmutableEntry<Long, Run> entry : request) {
+            final Run run = entry.getValue();
+            final User user = usersById.get(entry.getKey());
+            if (user != null) {
+                run.unfollowers.add(user);
+            }
+            if (run.remainingLookups.decrementAndGet() == 0) {
+                execute(notifyStage, run, this::notifyUnfollowers);
+            }
+        }
+    }
+
+    private List<User> lookup(final Set<Run> runs, final long[] ids) throws WTFDYUMException {
+        final Set<Principal> tried = new HashSet<>();
+        Exception failure = null;
+        for (final Run run : runs) {
+            if (tried.size() == LOOKUP_ATTEMPTS) {
+                break;
+            }
+            if (!tried.add(run.principal)) {
+                continue;
+            }
+            try {
+                return twitterService.getUsers(run.principal, ids);
+            } catch (final WTFDYUMException | RuntimeException e) {
+                log.debug("Lookup of {} unfollowers with the credentials of user id {} failed", ids.length,
+                        run.principal.getUserId(), e);
+                failure = e;
+            }
+        }
+        final Exception e = failure;
+        runs.forEach(run -> run.result.completeExceptionally(e));
+        if (e instanceof WTFDYUMException) {
+            throw (WTFDYUMException) e;
+        }
+        throw (RuntimeException) e;
+    }
+
+    /**
+     * The state of the cron of a member, handed over from stage to stage.
+     */
+    private static class Run {
+
+        Run(final Principal principal, final Set<Feature> features) {
+            this.principal = principal;
+            this.features = features;
+        }
+
+        private final Principal principal;
+
+        private final Set<Feature> features;
+
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        /**
+         * The thread running a stage of this cron, guarded by result.
+         */
+        private Thread thread;
+
+        /**
+         * The fetch of the followers of this cron, guarded by result.
+         */
+        private CompletableFuture<Set<Long>> fetch;
+
+        private Set<Long> followers;
+
+        private Set<Long> unfollowersId;
+
+        /**
+         * The generation of the followers snapshot the diff was computed
+         * against.
+         */
+        private long followersGeneration;
+
+        private final AtomicInteger remainingLookups = new AtomicInteger();
+
+        private final ConcurrentLinkedQueue<User> unfollowers = new ConcurrentLinkedQueue<>();
+
+        private Set<Event> events = new HashSet<>();
+    }
+
+    /**
+     * A stage of the pipeline: its threads, its bounded queue and its
+     * metrics. On virtual threads, the queue is made of the virtual threads
+     * waiting for their turn.
+     */
+    private static class Stage {
+
+        Stage(final String name, final int threads, final int queueSize, final boolean virtual) {
+            this.name = name;
+            this.executor = virtual
+                    ? WorkerThreads.newVirtualExecutor("cron-" + name + "-", threads, threads + queueSize)
+                    : newThreadPool(name, threads, queueSize);
+        }
+
+        private final String name;
+
+        private final ExecutorService executor;
+
+        private final AtomicLong done = new AtomicLong();
+
+        private final AtomicLong failed = new AtomicLong();
+
+        private final AtomicLong busyTime = new AtomicLong();
+
+        private final AtomicInteger queued = new AtomicInteger();
+
+        private final AtomicInteger maxQueued = new AtomicInteger();
+
+        private static ExecutorService newThreadPool(final String name, final int threads, final int queueSize) {
+            return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize),
+                    new ThreadFactoryBuilder().setNameFormat("cron-" + name + "-%d").setDaemon(true).build(),
+                    (task, executor) -> {
+                        // wait for room in the queue rather than running the task in the previous stage
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Cron pipeline is shut down");
+                        }
+                        try {
+                            executor.getQueue().put(task);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("Interrupted while waiting for the " + name
+                                    + " stage", e);
+                        }
+                    });
+        }
+
+        private void execute(final Runnable task) {
+            maxQueued.accumulateAndGet(queued.incrementAndGet(), Math::max);
+            try {
+                executor.execute(() -> {
+                    queued.decrementAndGet();
+                    task.run();
+                });
+            } catch (final RejectedExecutionException e) {
+                queued.decrementAndGet();
+                throw e;
+            }
+        }
+
+        /**
+         * Run a step of a member's cron in this stage, unless the cron is
+         * already over (timed out or failed). The watchdog of the cron can
+         * interrupt the step meanwhile.
+         */
+        private void run(final Run run, final Step step) {
+            synchronized (run.result) {
+                if (run.result.isDone()) {
+                    return;
+                }
+                run.thread = Thread.currentThread();
+            }
+            try {
+                run(() -> step.apply(run));
+            } catch (final Throwable t) {
+                run.result.completeExceptionally(t);
+            } finally {
+                synchronized (run.result) {
+                    if (run.thread == Thread.currentThread()) {
+                        // the next stage may already be running the cron
+                        run.thread = null;
+                    }
+                    if (run.result.isDone()) {
+                        // the interruption must not leak to the next task of this thread
+                        Thread.interrupted();
+                    }
+                }
+            }
+        }
+
+        private void run(final Task task) throws Exception {
+            final long start = System.nanoTime();
+            try {
+                task.run();
+                done.incrementAndGet();
+            } catch (final Exception e) {
+                failed.incrementAndGet();
+                throw e;
+            } finally {
+                busyTime.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Step {
+        void apply(Run run) throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws Exception;
+    }
+}
@@ -22,34 +22,91 @@ import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.type.EventType;
 import com.jeanchampemont.wtfdyum.dto.type.UserLimitType;
 import com.jeanchampemont.wtfdyum.service.FeatureService;
+import com.jeanchampemont.wtfdyum.service.PrincipalService;
 import com.jeanchampemont.wtfdyum.service.UserService;
+import com.jeanchampemont.wtfdyum.utils.EventArchive;
+import com.jeanchampemont.wtfdyum.utils.EventCompaction;
+import com.jeanchampemont.wtfdyum.utils.RedisScripts;
+import com.jeanchampemont.wtfdyum.utils.UserHash;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 
 import java.time.Clock;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 @Service
 public class UserServiceImpl implements UserService {
 
     private static final String EVENTS_KEY_PREFIX = "EVENTS_";
 
-    private static final String FEATURES_KEY_PREFIX = "FEATURES_";
+    private static final String EVENTS_ARCHIVE_KEY_PREFIX = "EVENTS_ARCHIVE_";
+
+    private static final String FEATURES_KEY_PREFIX = "FEATURE_BITS_";
+
+    private static final String LEGACY_FEATURES_KEY_PREFIX = "FEATURES_";
+
+    private static final StringRedisSerializer STRING_SERIALIZER = new StringRedisSerializer();
+
+    private static final RedisScript<Long> MIGRATE_FEATURES_SCRIPT = RedisScripts.load("feature-migrate.lua",
+            Long.class);
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> PUSH_EVENTS_SCRIPT = RedisScripts.load("events-push.lua", List.class);
+
+    private static final RedisScript<Long> ARCHIVE_EVENTS_SCRIPT = RedisScripts.load("events-archive.lua", Long.class);
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> RANGE_EVENTS_SCRIPT = RedisScripts.load("events-range.lua", List.class);
 
     @Autowired
     public UserServiceImpl(final RedisTemplate<String, Event> eventRedisTemplate,
             final RedisTemplate<String, Feature> featureRedisTemplate,
             final RedisTemplate<String, Long> longRedisTemplate,
+            final StringRedisTemplate stringRedisTemplate,
             final FeatureService featureService,
-            final Clock clock) {
+            final PrincipalService principalService,
+            final Clock clock,
+            @Value("${wtfdyum.redis.user-hash}") final boolean userHash,
+            @Value("${wtfdyum.events.max-live}") final int maxLiveEvents,
+            @Value("${wtfdyum.events.archive.chunk-size}") final int archiveChunkSize,
+            @Value("${wtfdyum.events.archive.max-chunks}") final int maxArchiveChunks,
+            @Value("${wtfdyum.events.compact}") final boolean compactEvents) {
         this.eventRedisTemplate = eventRedisTemplate;
         this.featureRedisTemplate = featureRedisTemplate;
         this.longRedisTemplate = longRedisTemplate;
+        this.stringRedisTemplate = stringRedisTemplate;
         this.featureService = featureService;
+        this.principalService = principalService;
         this.clock = clock;
+        this.userHash = userHash;
+        this.maxLiveEvents = maxLiveEvents;
+        this.archiveChunkSize = archiveChunkSize;
+        this.maxArchiveChunks = maxArchiveChunks;
+        this.compactEvents = compactEvents;
     }
 
     private final RedisTemplate<String, Event> eventRedisTemplate;
@@ -58,32 +115,179 @@ public class UserServiceImpl implements UserService {
 
     private final RedisTemplate<String, Long> longRedisTemplate;
 
+    private final StringRedisTemplate stringRedisTemplate;
+
     private final FeatureService featureService;
 
+    private final PrincipalService principalService;
+
     private final Clock clock;
 
+    private final boolean userHash;
+
+    /**
+     * Events kept in the live list, 0 to keep them all. The list holds up to
+     * archiveChunkSize more before the oldest ones are moved out.
+     */
+    private final int maxLiveEvents;
+
+    private final int archiveChunkSize;
+
+    /**
+     * Archived chunks kept per user, 0 to drop the events moved out of the live
+     * list.
+     */
+    private final int maxArchiveChunks;
+
+    /**
+     * Merge an event in the most recent one when it is another occurrence of
+     * it.
+     */
+    private final boolean compactEvents;
+
     @Override
     public void addEvent(final Long userId, final Event event) {
-        event.setCreationDateTime(LocalDateTime.now(clock));
-        eventRedisTemplate.opsForList().leftPush(eventsKey(userId), event);
+        stamp(event);
+        if (compactEvents || maxLiveEvents > 0) {
+            push(Collections.singletonMap(userId, Collections.singletonList(event)));
+        } else {
+            eventRedisTemplate.opsForList().leftPush(eventsKey(userId), event);
+        }
+    }
+
+    @Override
+    public void addEvents(final Long userId, final Collection<Event> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        events.forEach(this::stamp);
+        if (compactEvents || maxLiveEvents > 0) {
+            push(Collections.singletonMap(userId, events));
+        } else {
+            eventRedisTemplate.opsForList().leftPushAll(eventsKey(userId), events);
+        }
+    }
+
+    @Override
+    public void addEvents(final Map<Long, ? extends Collection<Event>> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        events.values().forEach(userEvents -> userEvents.forEach(this::stamp));
+        if (compactEvents || maxLiveEvents > 0) {
+            push(events);
+            return;
+        }
+        eventRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings({ "unchecked", "rawtypes" })
+            public Object execute(final RedisOperations operations) throws DataAccessException {
+                for (final Map.Entry<Long, ? extends Collection<Event>> userEvents : events.entrySet()) {
+                    if (!userEvents.getValue().isEmpty()) {
+                        operations.opsForList().leftPushAll(eventsKey(userEvents.getKey()), userEvents.getValue());
+                    }
+                }
+                return null;
+            }
+        });
     }
 
     @Override
     public boolean applyLimit(final Long userId, final UserLimitType type) {
-        final boolean reached = longRedisTemplate.opsForValue().increment(limitKey(userId, type), 1L) >= type
-                .getLimitValue();
+        final long count = userHash
+                ? stringRedisTemplate.opsForHash().increment(UserHash.key(userId), UserHash.limitField(type), 1L)
+                : longRedisTemplate.opsForValue().increment(limitKey(userId, type), 1L);
+        final boolean reached = count >= type.getLimitValue();
         if (reached) {
-            for (final Feature f : Feature.values()) {
-                featureService.disableFeature(userId, f);
-            }
-            addEvent(userId, new Event(EventType.CREDENTIALS_INVALID_LIMIT_REACHED, ""));
+            limitReached(userId);
         }
         return reached;
     }
 
+    @Override
+    public Set<Long> applyLimit(final Collection<Long> userIds, final UserLimitType type) {
+        final Set<Long> result = new HashSet<>();
+        if (userIds.isEmpty()) {
+            return result;
+        }
+
+        final List<Long> ids = new ArrayList<>(userIds);
+        final List<Object> counts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            final StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (final Long userId : ids) {
+                if (userHash) {
+                    stringConnection.hIncrBy(UserHash.key(userId), UserHash.limitField(type), 1L);
+                } else {
+                    stringConnection.incr(limitKey(userId, type));
+                }
+            }
+            return null;
+        });
+        for (int i = 0; i < ids.size(); i++) {
+            if ((Long) counts.get(i) >= type.getLimitValue()) {
+                limitReached(ids.get(i));
+                result.add(ids.get(i));
+            }
+        }
+        return result;
+    }
+
     @Override
     public Set<Feature> getEnabledFeatures(final Long userId) {
-        return featureRedisTemplate.opsForSet().members(featuresKey(userId));
+        if (userHash) {
+            String mask = getFeaturesMask(userId);
+            // members not migrated yet still have their features in a bitmap or a legacy set
+            if (mask == null && migrateToUserHash(userId)) {
+                mask = getFeaturesMask(userId);
+            }
+            return UserHash.features(mask);
+        }
+        byte[] bitmap = getFeaturesBitmap(userId);
+        // members not migrated yet still have their features in a legacy set
+        if (bitmap == null && migrateLegacyFeatures(userId)) {
+            bitmap = getFeaturesBitmap(userId);
+        }
+        return features(bitmap);
+    }
+
+    @Override
+    public Map<Long, Set<Feature>> getEnabledFeatures(final Collection<Long> userIds) {
+        final Map<Long, Set<Feature>> result = new HashMap<>();
+        if (userIds.isEmpty()) {
+            return result;
+        }
+
+        final List<Long> ids = new ArrayList<>(userIds);
+        if (userHash) {
+            final List<Object> masks = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (final Long userId : ids) {
+                    ((StringRedisConnection) connection).hGet(UserHash.key(userId), UserHash.FEATURES_FIELD);
+                }
+                return null;
+            });
+            for (int i = 0; i < ids.size(); i++) {
+                final Long userId = ids.get(i);
+                final String mask = (String) masks.get(i);
+                result.put(userId, mask == null && migrateToUserHash(userId) ? getEnabledFeatures(userId)
+                        : UserHash.features(mask));
+            }
+            return result;
+        }
+
+        final byte[][] rawKeys = new byte[ids.size()][];
+        for (int i = 0; i < ids.size(); i++) {
+            rawKeys[i] = STRING_SERIALIZER.serialize(featuresKey(ids.get(i)));
+        }
+        final List<byte[]> bitmaps = featureRedisTemplate
+                .execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+
+        final Iterator<Long> idIterator = ids.iterator();
+        for (final byte[] bitmap : bitmaps) {
+            final Long userId = idIterator.next();
+            result.put(userId, bitmap == null && migrateLegacyFeatures(userId) ? getEnabledFeatures(userId)
+                    : features(bitmap));
+        }
+        return result;
     }
 
     @Override
@@ -92,13 +296,110 @@ public class UserServiceImpl implements UserService {
     }
 
     @Override
-    public List<Event> getRecentEvents(Long userId, int count, int start) {
-        return eventRedisTemplate.opsForList().range(eventsKey(userId), start, start + count);
+    public List<Event> getRecentEvents(final Long userId, final int count, final int start) {
+        final List<Event> live = eventRedisTemplate.opsForList().range(eventsKey(userId), start, start + count);
+        final int wanted = count + 1;
+        if (maxLiveEvents <= 0 || maxArchiveChunks <= 0 || live == null || live.size() >= wanted) {
+            return live;
+        }
+
+        // the live list never gets shorter than maxLiveEvents once events are archived
+        if (live.isEmpty() && start < maxLiveEvents) {
+            return live;
+        }
+        final long liveSize = live.isEmpty() ? eventRedisTemplate.opsForList().size(eventsKey(userId))
+                : start + live.size();
+        if (liveSize < maxLiveEvents) {
+            return live;
+        }
+
+        return getEventsWithArchive(userId, start, wanted);
+    }
+
+    @Override
+    public boolean migrateLegacyFeatures(final Long userId) {
+        final List<String> args = new ArrayList<>();
+        for (final Feature feature : Feature.values()) {
+            args.add(feature.name());
+            args.add(String.valueOf(feature.getBitOffset()));
+        }
+        final Long migrated = featureRedisTemplate.execute(MIGRATE_FEATURES_SCRIPT, STRING_SERIALIZER, null,
+                Arrays.asList(legacyFeaturesKey(userId), featuresKey(userId)), args.toArray());
+        return migrated != null && migrated == 1;
     }
 
     @Override
     public void resetLimit(final Long userId, final UserLimitType type) {
-        longRedisTemplate.delete(limitKey(userId, type));
+        if (userHash) {
+            stringRedisTemplate.opsForHash().delete(UserHash.key(userId), UserHash.limitField(type));
+        } else {
+            longRedisTemplate.delete(limitKey(userId, type));
+        }
+    }
+
+    @Override
+    public void resetLimit(final Collection<Long> userIds, final UserLimitType type) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        if (userHash) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (final Long userId : userIds) {
+                    ((StringRedisConnection) connection).hDel(UserHash.key(userId), UserHash.limitField(type));
+                }
+                return null;
+            });
+        } else {
+            longRedisTemplate
+                    .delete(userIds.stream().map(userId -> limitKey(userId, type)).collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Archive the events to move out of the live lists, one blob per chunk,
+     * most recent chunk first. They are removed from the live lists in the
+     * same script call, so they are never lost: if this call fails, the next
+     * push returns them again.
+     *
+     * @param moved
+     *            the events to move out by user id, as returned by the push
+     *            script
+     */
+    private void archive(final Map<Long, List<byte[]>> moved) {
+        final RedisSerializer<Event> serializer = eventSerializer();
+        final List<byte[]> keys = new ArrayList<>();
+        final List<byte[]> args = new ArrayList<>();
+        args.add(STRING_SERIALIZER.serialize(Integer.toString(maxArchiveChunks)));
+        for (final Map.Entry<Long, List<byte[]>> userEvents : moved.entrySet()) {
+            keys.add(STRING_SERIALIZER.serialize(eventsKey(userEvents.getKey())));
+            keys.add(STRING_SERIALIZER.serialize(eventsArchiveKey(userEvents.getKey())));
+            final List<byte[]> events = userEvents.getValue();
+            final List<byte[]> blobs = new ArrayList<>();
+            for (int i = 0; i < events.size(); i += archiveChunkSize) {
+                final List<Event> chunk = events.subList(i, Math.min(i + archiveChunkSize, events.size())).stream()
+                        .map(serializer::deserialize).collect(Collectors.toList());
+                blobs.add(EventArchive.encode(chunk, serializer));
+            }
+            args.add(STRING_SERIALIZER.serialize(Integer.toString(events.size())));
+            // the oldest event ends the oldest chunk, the most recent one starts the most recent chunk
+            args.add(events.get(Math.min(archiveChunkSize, events.size()) - 1));
+            args.add(events.get((events.size() - 1) / archiveChunkSize * archiveChunkSize));
+            args.add(STRING_SERIALIZER.serialize(Integer.toString(blobs.size())));
+            args.addAll(blobs);
+        }
+        keys.addAll(args);
+        // a list whose events were archived meanwhile by another push is left alone
+        eventRedisTemplate.execute((RedisCallback<Long>) connection -> RedisScripts.evalSha(connection,
+                ARCHIVE_EVENTS_SCRIPT, ReturnType.INTEGER, moved.size() * 2, keys.toArray(new byte[keys.size()][])));
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisSerializer<Event> eventSerializer() {
+        return (RedisSerializer<Event>) eventRedisTemplate.getValueSerializer();
+    }
+
+    private String eventsArchiveKey(final Long userId) {
+        return new StringBuilder(EVENTS_ARCHIVE_KEY_PREFIX).append(userId.toString()).toString();
     }
 
     private String eventsKey(final Long userId) {
@@ -109,6 +410,159 @@ public class UserServiceImpl implements UserService {
         return new StringBuilder(FEATURES_KEY_PREFIX).append(userId.toString()).toString();
     }
 
+    private Set<Feature> features(final byte[] bitmap) {
+        final Set<Feature> result = EnumSet.noneOf(Feature.class);
+        if (bitmap == null) {
+            return result;
+        }
+        for (final Feature f : Feature.values()) {
+            final int offset = (int) f.getBitOffset();
+            // redis bitmaps are big-endian: offset 0 is the most significant bit of the first byte
+            if (offset / 8 < bitmap.length && (bitmap[offset / 8] & (0x80 >> (offset % 8))) != 0) {
+                result.add(f);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read events past the live list, in a single script call so that events
+     * archived meanwhile do not shift them. Only the archived chunks holding
+     * them are decoded.
+     */
+    private List<Event> getEventsWithArchive(final Long userId, final int start, final int count) {
+        final List<?> read = eventRedisTemplate.execute((RedisCallback<List<?>>) connection -> RedisScripts.evalSha(
+                connection, RANGE_EVENTS_SCRIPT, ReturnType.MULTI, 2,
+                STRING_SERIALIZER.serialize(eventsKey(userId)), STRING_SERIALIZER.serialize(eventsArchiveKey(userId)),
+                STRING_SERIALIZER.serialize(Integer.toString(start)),
+                STRING_SERIALIZER.serialize(Integer.toString(count)),
+                STRING_SERIALIZER.serialize(Integer.toString(archiveChunkSize))));
+        if (read == null) {
+            return Collections.emptyList();
+        }
+
+        final RedisSerializer<Event> serializer = eventSerializer();
+        final List<Event> result = new ArrayList<>();
+        for (final Object event : (List<?>) read.get(0)) {
+            result.add(serializer.deserialize((byte[]) event));
+        }
+        final List<Event> archived = new ArrayList<>();
+        for (final Object blob : (List<?>) read.get(1)) {
+            archived.addAll(EventArchive.decode((byte[]) blob, serializer));
+        }
+        final int from = (int) Math.min((Long) read.get(2), archived.size());
+        result.addAll(archived.subList(from, Math.min(from + count - result.size(), archived.size())));
+        return result;
+    }
+
+    /**
+     * Read the most recent event of each list, as stored.
+     */
+    private List<Object> getHeads(final List<Long> ids) {
+        return eventRedisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+            connection.openPipeline();
+            for (final Long userId : ids) {
+                connection.lIndex(STRING_SERIALIZER.serialize(eventsKey(userId)), 0);
+            }
+            return connection.closePipeline();
+        });
+    }
+
+    private String getFeaturesMask(final Long userId) {
+        return stringRedisTemplate.<String, String> opsForHash().get(UserHash.key(userId), UserHash.FEATURES_FIELD);
+    }
+
+    private byte[] getFeaturesBitmap(final Long userId) {
+        final byte[] rawKey = STRING_SERIALIZER.serialize(featuresKey(userId));
+        return featureRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    private boolean migrateToUserHash(final Long userId) {
+        // a legacy set is converted first so the hash migration picks up its features
+        final boolean features = migrateLegacyFeatures(userId);
+        return principalService.migrateToUserHash(userId) || features;
+    }
+
+    private String legacyFeaturesKey(final Long userId) {
+        return new StringBuilder(LEGACY_FEATURES_KEY_PREFIX).append(userId.toString()).toString();
+    }
+
+    private void limitReached(final Long userId) {
+        for (final Feature f : Feature.values()) {
+            featureService.disableFeature(userId, f);
+        }
+        addEvent(userId, new Event(EventType.CREDENTIALS_INVALID_LIMIT_REACHED, ""));
+    }
+
+    /**
+     * Push events to the live lists, merging them in the most recent events
+     * and trimming the lists in the same script call: scripts cannot be
+     * pipelined, so all the lists go through a single call. When the archive
+     * is enabled, the events to move out are only removed from the live lists
+     * once archived.
+     */
+    private void push(final Map<Long, ? extends Collection<Event>> events) {
+        final List<Long> ids = events.entrySet().stream().filter(e -> !e.getValue().isEmpty()).map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return;
+        }
+        final RedisSerializer<Event> serializer = eventSerializer();
+        final List<Object> heads = compactEvents ? getHeads(ids) : null;
+        final byte[] none = STRING_SERIALIZER.serialize("");
+
+        final List<byte[]> keysAndArgs = new ArrayList<>();
+        for (final Long userId : ids) {
+            keysAndArgs.add(STRING_SERIALIZER.serialize(eventsKey(userId)));
+        }
+        keysAndArgs.add(STRING_SERIALIZER.serialize(Integer.toString(maxLiveEvents)));
+        keysAndArgs.add(STRING_SERIALIZER.serialize(Integer.toString(archiveChunkSize)));
+        keysAndArgs.add(STRING_SERIALIZER.serialize(maxArchiveChunks > 0 ? "1" : "0"));
+        for (int i = 0; i < ids.size(); i++) {
+            final List<Event> userEvents = compactEvents ? EventCompaction.compact(events.get(ids.get(i)))
+                    : new ArrayList<>(events.get(ids.get(i)));
+            final byte[] head = heads == null || i >= heads.size() ? null : (byte[]) heads.get(i);
+            final Event headEvent = head == null ? null : serializer.deserialize(head);
+            if (headEvent != null && EventCompaction.isRepeat(headEvent, userEvents.get(0))) {
+                keysAndArgs.add(head);
+                keysAndArgs.add(serializer.serialize(EventCompaction.merge(headEvent, userEvents.get(0))));
+            } else {
+                keysAndArgs.add(none);
+                keysAndArgs.add(none);
+            }
+            keysAndArgs.add(STRING_SERIALIZER.serialize(Integer.toString(userEvents.size())));
+            for (final Event event : userEvents) {
+                keysAndArgs.add(serializer.serialize(event));
+            }
+        }
+        final List<?> results = eventRedisTemplate.execute((RedisCallback<List<?>>) connection -> RedisScripts
+                .evalSha(connection, PUSH_EVENTS_SCRIPT, ReturnType.MULTI, ids.size(),
+                        keysAndArgs.toArray(new byte[keysAndArgs.size()][])));
+        if (maxArchiveChunks <= 0 || results == null) {
+            return;
+        }
+
+        final Map<Long, List<byte[]>> moved = new HashMap<>();
+        for (int i = 0; i < ids.size() && i < results.size(); i++) {
+            final List<?> userMoved = (List<?>) results.get(i);
+            if (userMoved != null && !userMoved.isEmpty()) {
+                moved.put(ids.get(i), userMoved.stream().map(e -> (byte[]) e).collect(Collectors.toList()));
+            }
+        }
+        if (!moved.isEmpty()) {
+            archive(moved);
+        }
+    }
+
+    /**
+     * Events buffered before being written keep the time they were added at.
+     */
+    private void stamp(final Event event) {
+        if (event.getCreationDateTime() == null) {
+            event.setCreationDateTime(LocalDateTime.now(clock));
+        }
+    }
+
     private String limitKey(final Long userId, final UserLimitType type) {
         return new StringBuilder(type.name()).append("_").append(userId.toString()).toString();
     }
@@ -17,10 +17,11 @@
  */
 package com.jeanchampemont.wtfdyum.utils;
 
-import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
+import com.jeanchampemont.wtfdyum.security.AuthenticationContext;
 import com.jeanchampemont.wtfdyum.service.AuthenticationService;
-import com.jeanchampemont.wtfdyum.service.PrincipalService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
@@ -31,37 +32,39 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * The Class AuthenticationInterceptor. This class:
  *
- * - adds authentication information in each model, for the templates to use. -
- * add the principal to the SessionManager
+ * - resolves the authentication context once per request and adds it to the
+ * SessionManager. - adds authentication information in each model, for the
+ * templates to use.
  */
 @Component
+@Profile("!" + DeploymentRole.WORKER)
 public class AuthenticationInterceptor extends HandlerInterceptorAdapter {
 
     @Autowired
     private AuthenticationService authenticationService;
 
-    @Autowired
-    private PrincipalService principalService;
+    @Override
+    public void afterCompletion(final HttpServletRequest request, final HttpServletResponse response,
+            final Object handler, final Exception ex) throws Exception {
+        SessionManager.setContext(null);
+        super.afterCompletion(request, response, handler, ex);
+    }
 
     @Override
     public void postHandle(final HttpServletRequest request, final HttpServletResponse response, final Object handler,
             final ModelAndView modelAndView) throws Exception {
         if (modelAndView != null) {
-            modelAndView.getModel().put("authenticated", authenticationService.isAuthenticated());
-            modelAndView.getModel().put("admin", authenticationService.isAdmin());
+            final AuthenticationContext context = SessionManager.getContext();
+            modelAndView.getModel().put("authenticated", context.isAuthenticated());
+            modelAndView.getModel().put("admin", context.isAdmin());
         }
-        SessionManager.setPrincipal(null);
         super.postHandle(request, response, handler, modelAndView);
     }
 
     @Override
     public boolean preHandle(final HttpServletRequest request, final HttpServletResponse response, final Object handler)
             throws Exception {
-        final Long currentUserId = authenticationService.getCurrentUserId();
-        if (currentUserId != null) {
-            final Principal principal = principalService.get(currentUserId);
-            SessionManager.setPrincipal(principal);
-        }
+        SessionManager.setContext(authenticationService.resolveContext());
         return super.preHandle(request, response, handler);
     }
 }
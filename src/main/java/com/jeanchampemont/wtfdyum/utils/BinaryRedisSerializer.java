@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Base class of the compact binary serializers.
+ *
+ * A value starts with the version of its encoding. Values stored as JSON by
+ * earlier versions are still read, by the legacy serializer.
+ */
+public abstract class BinaryRedisSerializer<T> implements RedisSerializer<T> {
+
+    /**
+     * Reads the fields of a binary value.
+     */
+    protected static final class Reader {
+
+        private Reader(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private final byte[] bytes;
+
+        private int position = 1;
+
+        public LocalDateTime readDateTime() {
+            return LocalDateTime.ofEpochSecond(readSignedVarLong(), 0, ZoneOffset.UTC);
+        }
+
+        public String readString() {
+            final int length = (int) readVarLong();
+            if (length < 0 || position + length > bytes.length) {
+                throw new SerializationException("Truncated binary value");
+            }
+            final String result = new String(bytes, position, length, CHARSET);
+            position += length;
+            return result;
+        }
+
+        public int readUnsignedByte() {
+            if (position >= bytes.length) {
+                throw new SerializationException("Truncated binary value");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        public long readSignedVarLong() {
+            final long zigZag = readVarLong();
+            return (zigZag >>> 1) ^ -(zigZag & 1);
+        }
+
+        public long readVarLong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readUnsignedByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new SerializationException("Malformed binary value");
+        }
+    }
+
+    /**
+     * Writes the fields of a binary value.
+     */
+    protected static final class Writer {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+        public void writeByte(final int value) {
+            out.write(value);
+        }
+
+        public void writeDateTime(final LocalDateTime value) {
+            writeSignedVarLong(value.toEpochSecond(ZoneOffset.UTC));
+        }
+
+        public void writeSignedVarLong(final long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        public void writeString(final String value) {
+            final byte[] encoded = value.getBytes(CHARSET);
+            writeVarLong(encoded.length);
+            out.write(encoded, 0, encoded.length);
+        }
+
+        public void writeVarLong(final long value) {
+            long remaining = value;
+            while ((remaining & ~0x7FL) != 0) {
+                out.write((int) (remaining & 0x7F) | 0x80);
+                remaining >>>= 7;
+            }
+            out.write((int) remaining);
+        }
+    }
+
+    private static final Charset CHARSET = Charset.forName("UTF8");
+
+    private static final int VERSION = 1;
+
+    private static final byte JSON_START = '{';
+
+    public BinaryRedisSerializer(final RedisSerializer<T> legacySerializer) {
+        this.legacySerializer = legacySerializer;
+    }
+
+    private final RedisSerializer<T> legacySerializer;
+
+    @Override
+    public T deserialize(final byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (bytes[0] == JSON_START) {
+            return legacySerializer.deserialize(bytes);
+        }
+        if (bytes[0] != VERSION) {
+            throw new SerializationException("Unknown binary value version " + bytes[0]);
+        }
+        return read(new Reader(bytes));
+    }
+
+    @Override
+    public byte[] serialize(final T value) throws SerializationException {
+        if (value == null) {
+            return new byte[0];
+        }
+        final Writer writer = new Writer();
+        writer.writeByte(VERSION);
+        write(value, writer);
+        return writer.out.toByteArray();
+    }
+
+    /**
+     * Read a value, after its version.
+     */
+    protected abstract T read(Reader reader);
+
+    /**
+     * Write a value, after its version.
+     */
+    protected abstract void write(T value, Writer writer);
+}
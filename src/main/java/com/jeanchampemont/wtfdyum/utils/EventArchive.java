@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.jeanchampemont.wtfdyum.dto.Event;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Utility class to pack a chunk of events in a compressed archive blob.
+ *
+ * Each event is stored as serialized by the events template, so archived
+ * events are read back like live ones.
+ */
+public final class EventArchive {
+
+    private EventArchive() {
+        // left deliberately empty
+    }
+
+    /**
+     * Decode an archive blob.
+     *
+     * @param blob
+     *            the blob
+     * @param serializer
+     *            the events serializer
+     * @return the events, in the order they were encoded
+     */
+    public static List<Event> decode(final byte[] blob, final RedisSerializer<Event> serializer) {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(blob)))) {
+            final int count = in.readInt();
+            final List<Event> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final byte[] event = new byte[in.readInt()];
+                in.readFully(event);
+                result.add(serializer.deserialize(event));
+            }
+            return result;
+        } catch (final IOException e) {
+            throw new SerializationException("Could not decode events archive", e);
+        }
+    }
+
+    /**
+     * Encode events in an archive blob.
+     *
+     * @param events
+     *            the events
+     * @param serializer
+     *            the events serializer
+     * @return the blob
+     */
+    public static byte[] encode(final List<Event> events, final RedisSerializer<Event> serializer) {
+        final ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(blob))) {
+            out.writeInt(events.size());
+            for (final Event event : events) {
+                final byte[] serialized = serializer.serialize(event);
+                out.writeInt(serialized.length);
+                out.write(serialized);
+            }
+        } catch (final IOException e) {
+            throw new SerializationException("Could not encode events archive", e);
+        }
+        return blob.toByteArray();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.jeanchampemont.wtfdyum.dto.Event;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Utility class to merge consecutive occurrences of the same event in a
+ * single event with an occurrence count.
+ */
+public final class EventCompaction {
+
+    private EventCompaction() {
+        // left deliberately empty
+    }
+
+    /**
+     * Merge consecutive repeated events.
+     *
+     * @param events
+     *            the events, oldest first
+     * @return the merged events, oldest first
+     */
+    public static List<Event> compact(final Collection<Event> events) {
+        final List<Event> result = new ArrayList<>(events.size());
+        for (final Event event : events) {
+            final int last = result.size() - 1;
+            if (last >= 0 && isRepeat(result.get(last), event)) {
+                result.set(last, merge(result.get(last), event));
+            } else {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if event is another occurrence of previous
+     */
+    public static boolean isRepeat(final Event previous, final Event event) {
+        return previous.getType() == event.getType()
+                && Objects.equals(previous.getAdditionalData(), event.getAdditionalData());
+    }
+
+    /**
+     * Merge an event in the previous occurrences of the same event.
+     *
+     * @param previous
+     *            the previous occurrences
+     * @param event
+     *            the new occurrences
+     * @return a new event, created when event was
+     */
+    public static Event merge(final Event previous, final Event event) {
+        final Event result = new Event(event.getType(), event.getAdditionalData());
+        result.setCreationDateTime(event.getCreationDateTime());
+        result.setCount(previous.getCount() + event.getCount());
+        result.setFirstCreationDateTime(previous.getFirstCreationDateTime() != null
+                ? previous.getFirstCreationDateTime() : previous.getCreationDateTime());
+        return result;
+    }
+}
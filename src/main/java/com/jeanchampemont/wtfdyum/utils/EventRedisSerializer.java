@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.jeanchampemont.wtfdyum.dto.Event;
+import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * Binary serializer of the events: the type ordinal, a flags byte telling
+ * which optional fields follow, then those fields. Dates are stored to the
+ * second.
+ *
+ * Event types are stored by ordinal, new ones must be added at the end of
+ * EventType.
+ */
+public class EventRedisSerializer extends BinaryRedisSerializer<Event> {
+
+    private static final int ADDITIONAL_DATA = 1;
+
+    private static final int CREATION_DATE_TIME = 1 << 1;
+
+    private static final int REPEATED = 1 << 2;
+
+    private static final int FIRST_CREATION_DATE_TIME = 1 << 3;
+
+    private static final EventType[] TYPES = EventType.values();
+
+    public EventRedisSerializer(final RedisSerializer<Event> legacySerializer) {
+        super(legacySerializer);
+    }
+
+    @Override
+    protected Event read(final Reader reader) {
+        final int ordinal = (int) reader.readVarLong();
+        if (ordinal >= TYPES.length) {
+            throw new SerializationException("Unknown event type " + ordinal);
+        }
+        final Event result = new Event(TYPES[ordinal], null);
+        final int flags = reader.readUnsignedByte();
+        if ((flags & ADDITIONAL_DATA) != 0) {
+            result.setAdditionalData(reader.readString());
+        }
+        if ((flags & CREATION_DATE_TIME) != 0) {
+            result.setCreationDateTime(reader.readDateTime());
+        }
+        if ((flags & REPEATED) != 0) {
+            result.setCount((int) reader.readVarLong());
+        }
+        if ((flags & FIRST_CREATION_DATE_TIME) != 0) {
+            result.setFirstCreationDateTime(reader.readDateTime());
+        }
+        return result;
+    }
+
+    @Override
+    protected void write(final Event value, final Writer writer) {
+        writer.writeVarLong(value.getType().ordinal());
+        writer.writeByte((value.getAdditionalData() != null ? ADDITIONAL_DATA : 0)
+                | (value.getCreationDateTime() != null ? CREATION_DATE_TIME : 0)
+                | (value.getCount() != 1 ? REPEATED : 0)
+                | (value.getFirstCreationDateTime() != null ? FIRST_CREATION_DATE_TIME : 0));
+        if (value.getAdditionalData() != null) {
+            writer.writeString(value.getAdditionalData());
+        }
+        if (value.getCreationDateTime() != null) {
+            writer.writeDateTime(value.getCreationDateTime());
+        }
+        if (value.getCount() != 1) {
+            writer.writeVarLong(value.getCount());
+        }
+        if (value.getFirstCreationDateTime() != null) {
+            writer.writeDateTime(value.getFirstCreationDateTime());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * Bounded in-JVM cache of principals.
+ *
+ * Invalidations are published on a Redis channel so that every node drops
+ * its copy when a principal is updated. The subscription is only made on
+ * first use, entries also expire after a while in case a message is missed.
+ *
+ * An invalidation racing a load wins: the principal loaded before the update
+ * is not kept, see putIfUnchanged.
+ */
+@Component
+public class PrincipalCache implements MessageListener {
+
+    public static final String INVALIDATION_CHANNEL = "PRINCIPAL_INVALIDATION";
+
+    private static final LongRedisSerializer LONG_SERIALIZER = new LongRedisSerializer();
+
+    private static final int VERSION_STRIPES = 1024;
+
+    @Autowired
+    public PrincipalCache(final RedisMessageListenerContainer redisMessageListenerContainer,
+            final RedisTemplate<String, Long> longRedisTemplate,
+            @Value("${wtfdyum.principal-cache.size}") final long size,
+            @Value("${wtfdyum.principal-cache.ttl}") final long ttl) {
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.longRedisTemplate = longRedisTemplate;
+        this.cache = CacheBuilder.newBuilder().maximumSize(size).expireAfterWrite(ttl, TimeUnit.MILLISECONDS).build();
+    }
+
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final RedisTemplate<String, Long> longRedisTemplate;
+
+    private final Cache<Long, Principal> cache;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    /**
+     * Invalidation counters, by stripe of user ids.
+     */
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    /**
+     * Get a principal, loading it on a cache miss.
+     *
+     * @param id
+     *            the user id
+     * @param loader
+     *            loads the principal from the store, may return null
+     * @return the principal, or null if there is none
+     */
+    public Principal get(final Long id, final Function<Long, Principal> loader) {
+        subscribe();
+        Principal result = cache.getIfPresent(id);
+        if (result == null) {
+            final long version = versions.get(stripe(id));
+            result = loader.apply(id);
+            if (result != null) {
+                putIfUnchanged(id, result, version);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get several principals, loading only the missing ones.
+     *
+     * @param ids
+     *            the users ids
+     * @param loader
+     *            loads the missing principals from the store
+     * @return the principals found, by user id
+     */
+    public Map<Long, Principal> getAll(final Collection<Long> ids,
+            final Function<Collection<Long>, Map<Long, Principal>> loader) {
+        subscribe();
+        final Map<Long, Principal> result = new HashMap<>(cache.getAllPresent(ids));
+        if (result.size() < ids.size()) {
+            final Map<Long, Long> missing = new LinkedHashMap<>();
+            for (final Long id : ids) {
+                if (!result.containsKey(id)) {
+                    missing.put(id, versions.get(stripe(id)));
+                }
+            }
+            final Map<Long, Principal> loaded = loader.apply(new ArrayList<>(missing.keySet()));
+            for (final Map.Entry<Long, Principal> principal : loaded.entrySet()) {
+                putIfUnchanged(principal.getKey(), principal.getValue(), missing.get(principal.getKey()));
+            }
+            result.putAll(loaded);
+        }
+        return result;
+    }
+
+    /**
+     * Drop a principal from this cache and from the other nodes' ones.
+     *
+     * @param id
+     *            the user id
+     */
+    public void invalidate(final Long id) {
+        invalidateLocally(id);
+        longRedisTemplate.convertAndSend(INVALIDATION_CHANNEL, id);
+    }
+
+    @Override
+    public void onMessage(final Message message, final byte[] pattern) {
+        invalidateLocally(LONG_SERIALIZER.deserialize(message.getBody()));
+    }
+
+    private void invalidateLocally(final Long id) {
+        versions.incrementAndGet(stripe(id));
+        cache.invalidate(id);
+    }
+
+    /**
+     * Cache a loaded principal, unless it was invalidated since the load
+     * started: the store may have been read before the update. It is
+     * checked once cached, so that an invalidation coming in between is not
+     * missed either.
+     */
+    private void putIfUnchanged(final Long id, final Principal principal, final long version) {
+        cache.put(id, principal);
+        if (versions.get(stripe(id)) != version) {
+            cache.invalidate(id);
+        }
+    }
+
+    private int stripe(final Long id) {
+        return (int) ((id ^ (id >>> 32)) & (VERSION_STRIPES - 1));
+    }
+
+    private void subscribe() {
+        if (subscribed.compareAndSet(false, true)) {
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(INVALIDATION_CHANNEL));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+/**
+ * Binary serializer of the principals: a flags byte telling which fields
+ * follow, then the user id and the tokens.
+ */
+public class PrincipalRedisSerializer extends BinaryRedisSerializer<Principal> {
+
+    private static final int USER_ID = 1;
+
+    private static final int TOKEN = 1 << 1;
+
+    private static final int TOKEN_SECRET = 1 << 2;
+
+    public PrincipalRedisSerializer(final RedisSerializer<Principal> legacySerializer) {
+        super(legacySerializer);
+    }
+
+    @Override
+    protected Principal read(final Reader reader) {
+        final Principal result = new Principal();
+        final int flags = reader.readUnsignedByte();
+        if ((flags & USER_ID) != 0) {
+            result.setUserId(reader.readSignedVarLong());
+        }
+        if ((flags & TOKEN) != 0) {
+            result.setToken(reader.readString());
+        }
+        if ((flags & TOKEN_SECRET) != 0) {
+            result.setTokenSecret(reader.readString());
+        }
+        return result;
+    }
+
+    @Override
+    protected void write(final Principal value, final Writer writer) {
+        writer.writeByte((value.getUserId() != null ? USER_ID : 0) | (value.getToken() != null ? TOKEN : 0)
+                | (value.getTokenSecret() != null ? TOKEN_SECRET : 0));
+        if (value.getUserId() != null) {
+            writer.writeSignedVarLong(value.getUserId());
+        }
+        if (value.getToken() != null) {
+            writer.writeString(value.getToken());
+        }
+        if (value.getTokenSecret() != null) {
+            writer.writeString(value.getTokenSecret());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Utility class to load Lua scripts from the classpath, and to run them on a
+ * connection when their keys and arguments are raw values.
+ */
+public final class RedisScripts {
+
+    private static final String SCRIPTS_LOCATION = "scripts/";
+
+    private RedisScripts() {
+        // left deliberately empty
+    }
+
+    /**
+     * Load a script located in the scripts folder of the classpath.
+     *
+     * @param name
+     *            the script file name
+     * @param resultType
+     *            the type returned by the script
+     * @return the script
+     */
+    public static <T> RedisScript<T> load(final String name, final Class<T> resultType) {
+        final DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(SCRIPTS_LOCATION + name)));
+        script.setResultType(resultType);
+        return script;
+    }
+
+    /**
+     * Run a script on a connection by its SHA1, sending the whole script only
+     * when Redis does not know it yet, as RedisTemplate.execute does.
+     *
+     * @param connection
+     *            the connection
+     * @param script
+     *            the script
+     * @param returnType
+     *            the type returned by the script
+     * @param numKeys
+     *            the number of keys among keysAndArgs
+     * @param keysAndArgs
+     *            the keys then the arguments
+     * @return the script result
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T evalSha(final RedisConnection connection, final RedisScript<?> script,
+            final ReturnType returnType, final int numKeys, final byte[]... keysAndArgs) {
+        try {
+            return (T) connection.evalSha(script.getSha1(), returnType, numKeys, keysAndArgs);
+        } catch (final DataAccessException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            return (T) connection.eval(script.getScriptAsString().getBytes(StandardCharsets.UTF_8), returnType,
+                    numKeys, keysAndArgs);
+        }
+    }
+
+    private static boolean isNoScript(final Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -15,22 +15,33 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package com.jeanchampemont.wtfdyum.utils;
 
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 
-import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 /**
- * Utility class to provide session.
+ * Utility class to provide the current request and response.
  */
 @Component
-public class SessionProvider {
+@Profile("!" + DeploymentRole.WORKER)
+public class RequestProvider {
+
+    public HttpServletRequest getRequest() {
+        return attributes().getRequest();
+    }
+
+    public HttpServletResponse getResponse() {
+        return attributes().getResponse();
+    }
 
-    public HttpSession getSession() {
-        return ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getRequest().getSession();
+    private ServletRequestAttributes attributes() {
+        return (ServletRequestAttributes) RequestContextHolder.currentRequestAttributes();
     }
 }
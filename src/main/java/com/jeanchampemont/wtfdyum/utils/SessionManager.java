@@ -18,20 +18,30 @@
 package com.jeanchampemont.wtfdyum.utils;
 
 import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.security.AuthenticationContext;
 
 public class SessionManager {
 
-    private static ThreadLocal<Principal> principal = new ThreadLocal<>();
+    private static ThreadLocal<AuthenticationContext> context = new ThreadLocal<>();
+
+    /**
+     * @return the current request's authentication context, or null if it
+     *         has not been resolved
+     */
+    public static AuthenticationContext getContext() {
+        return context.get();
+    }
 
     public static Principal getPrincipal() {
-        return principal.get();
+        final AuthenticationContext current = context.get();
+        return current == null ? null : current.getPrincipal();
     }
 
-    public static void setPrincipal(final Principal principal) {
-        if (principal == null) {
-            SessionManager.principal.remove();
+    public static void setContext(final AuthenticationContext context) {
+        if (context == null) {
+            SessionManager.context.remove();
         } else {
-            SessionManager.principal.set(principal);
+            SessionManager.context.set(context);
         }
     }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.jeanchampemont.wtfdyum.dto.type.TwitterEndpoint;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Separate bulkheads for twitter read and write calls: slow writes (direct
+ * messages, tweets) cannot hold every thread making calls, and the other
+ * way around.
+ */
+@Component
+public class TwitterBulkheads {
+
+    @Autowired
+    public TwitterBulkheads(@Value("${wtfdyum.twitter.bulkhead.read}") final int readCalls,
+            @Value("${wtfdyum.twitter.bulkhead.write}") final int writeCalls,
+            @Value("${wtfdyum.twitter.bulkhead.timeout}") final long timeout) {
+        this.read = new Semaphore(readCalls, true);
+        this.write = new Semaphore(writeCalls, true);
+        this.timeout = timeout;
+    }
+
+    private final Semaphore read;
+
+    private final Semaphore write;
+
+    private final long timeout;
+
+    /**
+     * Enter the bulkhead of an endpoint, waiting up to the configured timeout
+     * for a place.
+     *
+     * @param endpoint
+     *            the called endpoint
+     * @throws WTFDYUMException
+     *             if the bulkhead stayed full
+     */
+    public void acquire(final TwitterEndpoint endpoint) throws WTFDYUMException {
+        try {
+            if (!bulkhead(endpoint).tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new WTFDYUMException(WTFDYUMExceptionType.TWITTER_UNAVAILABLE);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WTFDYUMException(e, WTFDYUMExceptionType.TWITTER_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Leave the bulkhead of an endpoint.
+     *
+     * @param endpoint
+     *            the called endpoint
+     */
+    public void release(final TwitterEndpoint endpoint) {
+        bulkhead(endpoint).release();
+    }
+
+    private Semaphore bulkhead(final TwitterEndpoint endpoint) {
+        return endpoint.isWrite() ? write : read;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.jeanchampemont.wtfdyum.dto.type.TwitterEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A circuit breaker per twitter endpoint, so that calls to an endpoint in
+ * trouble fail fast instead of waiting for their timeout.
+ *
+ * A closed circuit lets every call through. It opens when the failure rate
+ * of its last calls reaches the threshold, and then rejects every call for
+ * the open time. It is then half open: a single trial call goes through,
+ * closing the circuit if it succeeds, opening it again otherwise.
+ *
+ * Each call carries the generation of the circuit it was allowed in, so that
+ * calls started before the circuit opened, or before the current trial, are
+ * not counted once they end.
+ */
+@Component
+public class TwitterCircuitBreaker {
+
+    @Autowired
+    public TwitterCircuitBreaker(final Clock clock,
+            @Value("${wtfdyum.twitter.circuit-breaker.window}") final int window,
+            @Value("${wtfdyum.twitter.circuit-breaker.failure-rate}") final int failureRate,
+            @Value("${wtfdyum.twitter.circuit-breaker.open-time}") final long openTime) {
+        this.clock = clock;
+        this.failureThreshold = Math.max(1, (int) Math.ceil(window * failureRate / 100.0));
+        this.openTime = openTime;
+        for (final TwitterEndpoint endpoint : TwitterEndpoint.values()) {
+            circuits.put(endpoint, new Circuit(window));
+        }
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Map<TwitterEndpoint, Circuit> circuits = new EnumMap<>(TwitterEndpoint.class);
+
+    private final Clock clock;
+
+    private final int failureThreshold;
+
+    private final long openTime;
+
+    /**
+     * Get the permission to call an endpoint. It must be followed by a call
+     * to release, whether the call was made or not.
+     *
+     * @param endpoint
+     *            the endpoint
+     * @return the generation of the circuit, to give back to release
+     * @throws WTFDYUMException
+     *             if the circuit of this endpoint is open
+     */
+    public long acquire(final TwitterEndpoint endpoint) throws WTFDYUMException {
+        final Circuit circuit = circuits.get(endpoint);
+        synchronized (circuit) {
+            if (circuit.state == State.OPEN && clock.millis() - circuit.openedAt >= openTime) {
+                circuit.state = State.HALF_OPEN;
+                circuit.trialInFlight = false;
+            }
+            if (circuit.state == State.OPEN || (circuit.state == State.HALF_OPEN && circuit.trialInFlight)) {
+                throw new WTFDYUMException(WTFDYUMExceptionType.TWITTER_UNAVAILABLE);
+            }
+            if (circuit.state == State.HALF_OPEN) {
+                circuit.trialInFlight = true;
+                circuit.generation++;
+            }
+            return circuit.generation;
+        }
+    }
+
+    public State getState(final TwitterEndpoint endpoint) {
+        final Circuit circuit = circuits.get(endpoint);
+        synchronized (circuit) {
+            return circuit.state;
+        }
+    }
+
+    /**
+     * Report how a call allowed by acquire went.
+     *
+     * @param endpoint
+     *            the endpoint
+     * @param generation
+     *            the generation returned by acquire
+     * @param result
+     *            the call result
+     */
+    public void release(final TwitterEndpoint endpoint, final long generation, final Result result) {
+        final Circuit circuit = circuits.get(endpoint);
+        synchronized (circuit) {
+            if (generation != circuit.generation) {
+                // the call started before the circuit opened or before the current trial
+                return;
+            }
+            if (circuit.state == State.HALF_OPEN) {
+                if (circuit.trialInFlight && result != Result.NOT_CALLED) {
+                    if (result == Result.FAILURE) {
+                        open(endpoint, circuit);
+                    } else {
+                        circuit.state = State.CLOSED;
+                        circuit.reset();
+                        log.info("Circuit of twitter endpoint {} closed", endpoint);
+                    }
+                }
+                circuit.trialInFlight = false;
+            } else if (circuit.state == State.CLOSED && result != Result.NOT_CALLED) {
+                if (circuit.record(result == Result.FAILURE) >= failureThreshold) {
+                    open(endpoint, circuit);
+                }
+            }
+        }
+    }
+
+    private void open(final TwitterEndpoint endpoint, final Circuit circuit) {
+        circuit.state = State.OPEN;
+        circuit.openedAt = clock.millis();
+        circuit.generation++;
+        circuit.reset();
+        log.warn("Circuit of twitter endpoint {} opened, calls are rejected for {} ms", endpoint, openTime);
+    }
+
+    /**
+     * How a call went.
+     */
+    public enum Result {
+        SUCCESS,
+        /** twitter could not be reached or answered with a server error */
+        FAILURE,
+        /** the call was finally not made */
+        NOT_CALLED
+    }
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * State of the circuit of an endpoint, with the results of its last calls.
+     */
+    private static final class Circuit {
+
+        Circuit(final int window) {
+            this.results = new boolean[window];
+        }
+
+        private final boolean[] results;
+
+        private int next;
+
+        private int failures;
+
+        private State state = State.CLOSED;
+
+        private long openedAt;
+
+        private boolean trialInFlight;
+
+        private long generation;
+
+        /**
+         * @return the number of failures among the last calls
+         */
+        private int record(final boolean failure) {
+            if (results[next]) {
+                failures--;
+            }
+            results[next] = failure;
+            if (failure) {
+                failures++;
+            }
+            next = (next + 1) % results.length;
+            return failures;
+        }
+
+        private void reset() {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = false;
+            }
+            next = 0;
+            failures = 0;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.jeanchampemont.wtfdyum.dto.type.StatisticType;
+import com.jeanchampemont.wtfdyum.service.StatisticsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of twitter calls in flight on this node, adjusting the
+ * limit to twitter's current behaviour (additive increase, multiplicative
+ * decrease).
+ *
+ * Once a round of calls (as many calls as the limit) completed with few
+ * errors and a low average latency while the limit was reached, the limit is
+ * raised by one. A throttled or timed out call halves it, only once for the
+ * calls started before the cut.
+ *
+ * Adjustments are counted in the statistics and the latest ones are kept in
+ * the TWITTER_CONCURRENCY_HISTORY list.
+ */
+@Component
+public class TwitterConcurrencyLimiter {
+
+    private static final String HISTORY_KEY = "TWITTER_CONCURRENCY_HISTORY";
+
+    private static final int HISTORY_SIZE = 100;
+
+    private static final double MAX_ERROR_RATE = 0.1;
+
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private static final String INCREASE_REASON = "HEALTHY";
+
+    @Autowired
+    public TwitterConcurrencyLimiter(final StringRedisTemplate stringRedisTemplate,
+            final StatisticsService statisticsService,
+            final Clock clock,
+            @Value("${wtfdyum.twitter.concurrency.initial}") final int initialLimit,
+            @Value("${wtfdyum.twitter.concurrency.max}") final int maxLimit,
+            @Value("${wtfdyum.twitter.concurrency.latency-threshold}") final long latencyThreshold) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.statisticsService = statisticsService;
+        this.clock = clock;
+        this.maxLimit = maxLimit;
+        this.latencyThreshold = latencyThreshold;
+        this.limit = Math.max(1, Math.min(initialLimit, maxLimit));
+    }
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final String node = ManagementFactory.getRuntimeMXBean().getName();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition slotReleased = lock.newCondition();
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final StatisticsService statisticsService;
+
+    private final Clock clock;
+
+    private final int maxLimit;
+
+    private final long latencyThreshold;
+
+    private int limit;
+
+    private int inFlight;
+
+    private long generation;
+
+    private int roundCalls;
+
+    private int roundErrors;
+
+    private long roundLatency;
+
+    private boolean roundSaturated;
+
+    /**
+     * Wait until a call can be made.
+     *
+     * @return the permit to release once the call is over
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public Permit acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= limit) {
+                slotReleased.await();
+            }
+            inFlight++;
+            if (inFlight == limit) {
+                roundSaturated = true;
+            }
+            return new Permit(generation, clock.millis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the latest adjustments of the limit, on every node.
+     *
+     * @return the adjustments, latest first
+     */
+    public List<Adjustment> getHistory() {
+        final List<Adjustment> result = new ArrayList<>();
+        for (final String value : stringRedisTemplate.opsForList().range(HISTORY_KEY, 0, HISTORY_SIZE - 1)) {
+            final String[] fields = value.split("\\|");
+            result.add(new Adjustment(Long.parseLong(fields[0]), fields[1], Integer.parseInt(fields[2]),
+                    Integer.parseInt(fields[3]), fields[4]));
+        }
+        return result;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release a permit.
+     *
+     * @param permit
+     *            the permit returned by acquire
+     * @param outcome
+     *            how the call went
+     */
+    public void release(final Permit permit, final Outcome outcome) {
+        final long latency = clock.millis() - permit.startedAt;
+        Adjustment adjustment = null;
+        lock.lock();
+        try {
+            inFlight--;
+            if (outcome == Outcome.NOT_CALLED) {
+                // nothing to learn from
+            } else if (outcome == Outcome.THROTTLED || outcome == Outcome.TIMEOUT) {
+                // the calls in flight at the time of the cut are not counted twice
+                if (permit.generation == generation) {
+                    adjustment = adjust(Math.max(1, (int) (limit * DECREASE_FACTOR)), outcome.name());
+                }
+            } else {
+                roundCalls++;
+                roundLatency += latency;
+                if (outcome == Outcome.ERROR) {
+                    roundErrors++;
+                }
+                if (roundCalls >= limit) {
+                    final boolean healthy = roundErrors <= roundCalls * MAX_ERROR_RATE
+                            && roundLatency <= latencyThreshold * roundCalls;
+                    adjustment = healthy && roundSaturated ? adjust(Math.min(maxLimit, limit + 1), INCREASE_REASON)
+                            : null;
+                    newRound();
+                }
+            }
+            slotReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (adjustment != null) {
+            record(adjustment);
+        }
+    }
+
+    private Adjustment adjust(final int newLimit, final String reason) {
+        if (newLimit == limit) {
+            return null;
+        }
+        final Adjustment result = new Adjustment(clock.millis(), node, limit, newLimit, reason);
+        limit = newLimit;
+        generation++;
+        newRound();
+        return result;
+    }
+
+    private void newRound() {
+        roundCalls = 0;
+        roundErrors = 0;
+        roundLatency = 0;
+        roundSaturated = inFlight >= limit;
+    }
+
+    private void record(final Adjustment adjustment) {
+        if (adjustment.to > adjustment.from) {
+            log.debug("Twitter concurrency limit raised to {}", adjustment.to);
+        } else {
+            log.info("Twitter concurrency limit cut to {} ({})", adjustment.to, adjustment.reason);
+        }
+        try {
+            statisticsService.increment(adjustment.to > adjustment.from
+                    ? StatisticType.TWITTER_CONCURRENCY_INCREASES : StatisticType.TWITTER_CONCURRENCY_DECREASES, 1);
+            stringRedisTemplate.opsForList().leftPush(HISTORY_KEY,
+                    new StringBuilder().append(adjustment.time).append('|').append(adjustment.node).append('|')
+                    .append(adjustment.from).append('|').append(adjustment.to).append('|')
+                    .append(adjustment.reason).toString());
+            stringRedisTemplate.opsForList().trim(HISTORY_KEY, 0, HISTORY_SIZE - 1);
+        } catch (final RuntimeException e) {
+            // the limit is adjusted anyway
+            log.warn("Could not record twitter concurrency adjustment", e);
+        }
+    }
+
+    /**
+     * An adjustment of the limit.
+     */
+    public static final class Adjustment {
+
+        Adjustment(final long time, final String node, final int from, final int to, final String reason) {
+            this.time = time;
+            this.node = node;
+            this.from = from;
+            this.to = to;
+            this.reason = reason;
+        }
+
+        private final long time;
+
+        private final String node;
+
+        private final int from;
+
+        private final int to;
+
+        private final String reason;
+
+        public LocalDateTime getDateTime() {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        }
+
+        public int getFrom() {
+            return from;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public int getTo() {
+            return to;
+        }
+    }
+
+    /**
+     * How a call went.
+     */
+    public enum Outcome {
+        SUCCESS,
+        ERROR,
+        THROTTLED,
+        TIMEOUT,
+        /** the call was finally not made */
+        NOT_CALLED
+    }
+
+    /**
+     * The right to make a call.
+     */
+    public static final class Permit {
+
+        Permit(final long generation, final long startedAt) {
+            this.generation = generation;
+            this.startedAt = startedAt;
+        }
+
+        private final long generation;
+
+        private final long startedAt;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.jeanchampemont.wtfdyum.dto.Feature;
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.dto.type.UserLimitType;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Layout of the consolidated per-user hash, used when
+ * wtfdyum.redis.user-hash is enabled.
+ *
+ * The hash holds the principal's tokens, the enabled features as an integer
+ * mask (bit n is the feature of bit offset n) and one counter per limit.
+ */
+public final class UserHash {
+
+    public static final String TOKEN_FIELD = "token";
+
+    public static final String TOKEN_SECRET_FIELD = "tokenSecret";
+
+    public static final String FEATURES_FIELD = "features";
+
+    private static final String KEY_PREFIX = "USER_";
+
+    private UserHash() {
+        // left deliberately empty
+    }
+
+    /**
+     * Decode the features mask stored in the hash.
+     *
+     * @param mask
+     *            the features field value, may be null
+     * @return the enabled features
+     */
+    public static Set<Feature> features(final String mask) {
+        final Set<Feature> result = EnumSet.noneOf(Feature.class);
+        if (mask == null) {
+            return result;
+        }
+        final long value = Long.parseLong(mask);
+        for (final Feature f : Feature.values()) {
+            if ((value & (1L << f.getBitOffset())) != 0) {
+                result.add(f);
+            }
+        }
+        return result;
+    }
+
+    public static Map<String, String> fields(final Principal principal) {
+        final Map<String, String> result = new HashMap<>();
+        result.put(TOKEN_FIELD, principal.getToken());
+        result.put(TOKEN_SECRET_FIELD, principal.getTokenSecret());
+        return result;
+    }
+
+    public static String key(final Long userId) {
+        return new StringBuilder(KEY_PREFIX).append(userId.toString()).toString();
+    }
+
+    public static String limitField(final UserLimitType type) {
+        return type.name();
+    }
+
+    /**
+     * Build the principal stored in the hash.
+     *
+     * @param userId
+     *            the user id
+     * @param fields
+     *            the hash content
+     * @return the principal, or null if the hash holds no tokens
+     */
+    public static Principal principal(final Long userId, final Map<String, String> fields) {
+        if (fields == null || !fields.containsKey(TOKEN_FIELD)) {
+            return null;
+        }
+        return new Principal(userId, fields.get(TOKEN_FIELD), fields.get(TOKEN_SECRET_FIELD));
+    }
+}
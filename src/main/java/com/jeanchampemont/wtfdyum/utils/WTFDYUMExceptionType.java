@@ -23,6 +23,12 @@ public enum WTFDYUMExceptionType {
 
     MEMBER_LIMIT_EXCEEDED("This application cannot accept more members"),
 
+    TWITTER_RATE_LIMITED("Twitter is very busy right now, please try again in a few minutes"),
+
+    TWITTER_UNAVAILABLE("Twitter is not responding right now, please try again in a few minutes"),
+
+    SIGNIN_EXPIRED("Your sign in attempt has expired, please try again"),
+
     GET_FOLLOWERS_RATE_LIMIT_EXCEEDED(
             "You have too many followers for this application to work properly. (More than 75.000...)");
 
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Utility class to create the executors running blocking work (twitter and
+ * Redis calls), on virtual threads when the JVM supports them (java 21 and
+ * later) or on a pool of platform threads otherwise.
+ *
+ * The application targets java 8, virtual threads are looked up by
+ * reflection.
+ */
+public final class WorkerThreads {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerThreads.class);
+
+    private static final Method OF_VIRTUAL;
+
+    private static final Method NAME;
+
+    private static final Method FACTORY;
+
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (final ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private WorkerThreads() {
+        // left deliberately empty
+    }
+
+    /**
+     * @return whether this JVM supports virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Create an executor running up to a number of tasks at the same time,
+     * the others waiting in an unbounded queue.
+     *
+     * @param name
+     *            the prefix of the threads name
+     * @param threads
+     *            the number of tasks running at the same time
+     * @param virtual
+     *            whether to run each task on its own virtual thread, if
+     *            supported by the JVM
+     * @return the executor
+     * @see #useVirtual(String, boolean)
+     */
+    public static ExecutorService newFixedExecutor(final String name, final int threads, final boolean virtual) {
+        if (virtual && isVirtualSupported()) {
+            return newVirtualExecutor(name, threads, Integer.MAX_VALUE);
+        }
+        return Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat(name + "%d").setDaemon(true).build());
+    }
+
+    /**
+     * Create an executor running each task on its own virtual thread, up to a
+     * number of tasks at the same time. Once capacity tasks are waiting or
+     * running, submitting one more waits for one to finish.
+     *
+     * @param name
+     *            the prefix of the threads name
+     * @param concurrency
+     *            the number of tasks running at the same time
+     * @param capacity
+     *            the number of tasks waiting or running
+     * @return the executor
+     * @throws UnsupportedOperationException
+     *             if the JVM does not support virtual threads
+     */
+    public static ExecutorService newVirtualExecutor(final String name, final int concurrency, final int capacity) {
+        if (!isVirtualSupported()) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+        }
+        try {
+            final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name, 0L);
+            final ExecutorService executor = (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null,
+                    FACTORY.invoke(builder));
+            return new BoundedExecutor(executor, concurrency, capacity);
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create virtual threads", e);
+        }
+    }
+
+    /**
+     * Whether virtual threads should be used, warning when they were asked
+     * for but are not supported.
+     *
+     * @param name
+     *            the prefix of the threads name
+     * @param virtual
+     *            whether virtual threads are asked for
+     * @return whether virtual threads should be used for these threads
+     */
+    public static boolean useVirtual(final String name, final boolean virtual) {
+        if (virtual && !isVirtualSupported()) {
+            LOG.warn("Virtual threads are not supported by this JVM, {} threads are platform threads", name);
+        }
+        return virtual && isVirtualSupported();
+    }
+
+    /**
+     * Bounds the tasks of a thread per task executor: virtual threads are
+     * cheap, but the work they run is not.
+     */
+    private static class BoundedExecutor extends AbstractExecutorService {
+
+        BoundedExecutor(final ExecutorService executor, final int concurrency, final int capacity) {
+            this.executor = executor;
+            this.running = new Semaphore(concurrency);
+            this.submitted = new Semaphore(capacity);
+        }
+
+        private final ExecutorService executor;
+
+        private final Semaphore running;
+
+        private final Semaphore submitted;
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+            try {
+                submitted.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting to submit a task", e);
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        // a waiting virtual thread is a cheap queue entry
+                        running.acquire();
+                        try {
+                            task.run();
+                        } finally {
+                            running.release();
+                        }
+                    } catch (final InterruptedException e) {
+                        // shut down before the task could start
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        submitted.release();
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                submitted.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow();
+        }
+    }
+}
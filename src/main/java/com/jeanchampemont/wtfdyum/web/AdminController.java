@@ -17,15 +17,19 @@
  */
 package com.jeanchampemont.wtfdyum.web;
 
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
 import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.security.Secured;
 import com.jeanchampemont.wtfdyum.service.AdminService;
 import com.jeanchampemont.wtfdyum.service.AuthenticationService;
 import com.jeanchampemont.wtfdyum.service.PrincipalService;
+import com.jeanchampemont.wtfdyum.service.StatisticsService;
 import com.jeanchampemont.wtfdyum.service.TwitterService;
 import com.jeanchampemont.wtfdyum.utils.SessionManager;
+import com.jeanchampemont.wtfdyum.utils.TwitterConcurrencyLimiter;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -37,6 +41,7 @@ import java.util.stream.Collectors;
 import static java.util.stream.Collectors.toMap;
 
 @Controller
+@Profile("!" + DeploymentRole.WORKER)
 @RequestMapping(value = "/admin")
 public class AdminController {
 
@@ -52,6 +57,12 @@ public class AdminController {
     @Autowired
     private AdminService adminService;
 
+    @Autowired
+    private StatisticsService statisticsService;
+
+    @Autowired
+    private TwitterConcurrencyLimiter twitterConcurrencyLimiter;
+
     @RequestMapping(method = RequestMethod.GET)
     @Secured
     public ModelAndView index() {
@@ -72,10 +83,12 @@ public class AdminController {
 
         result.getModel().put("membersCount", principalService.countMembers());
 
-        Map<String, Integer> featureEnabledCount = adminService.countEnabledFeature(principalService.getMembers()).entrySet().stream().collect(toMap(e -> e.getKey().name(), Map.Entry::getValue));
+        Map<String, Integer> featureEnabledCount = adminService.countEnabledFeature().entrySet().stream().collect(toMap(e -> e.getKey().name(), Map.Entry::getValue));
 
         result.getModel().put("availableFeatures", Feature.values());
         result.getModel().put("featureEnabledCount", featureEnabledCount);
+        result.getModel().put("statistics", statisticsService.getStatistics());
+        result.getModel().put("concurrencyHistory", twitterConcurrencyLimiter.getHistory());
 
         return result;
     }
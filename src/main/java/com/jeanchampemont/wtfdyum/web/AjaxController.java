@@ -18,9 +18,11 @@
 
 package com.jeanchampemont.wtfdyum.web;
 
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
 import com.jeanchampemont.wtfdyum.service.AuthenticationService;
 import com.jeanchampemont.wtfdyum.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -28,6 +30,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.servlet.ModelAndView;
 
 @Controller
+@Profile("!" + DeploymentRole.WORKER)
 @RequestMapping(path = "/ajax")
 public class AjaxController {
 
@@ -17,17 +17,20 @@
  */
 package com.jeanchampemont.wtfdyum.web;
 
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
 import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Principal;
 import com.jeanchampemont.wtfdyum.dto.type.EventType;
 import com.jeanchampemont.wtfdyum.service.AuthenticationService;
 import com.jeanchampemont.wtfdyum.service.PrincipalService;
+import com.jeanchampemont.wtfdyum.service.RequestTokenService;
 import com.jeanchampemont.wtfdyum.service.TwitterService;
 import com.jeanchampemont.wtfdyum.service.UserService;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMExceptionType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -36,16 +39,13 @@ import org.springframework.web.servlet.view.RedirectView;
 import twitter4j.auth.AccessToken;
 import twitter4j.auth.RequestToken;
 
-import javax.servlet.http.HttpServletRequest;
-
 /**
  * WTFDYUM Main controller.
  */
 @Controller
+@Profile("!" + DeploymentRole.WORKER)
 public class MainController {
 
-    static final String SESSION_REQUEST_TOKEN = "requestToken";
-
     @Autowired
     private TwitterService twitterService;
 
@@ -58,6 +58,9 @@ public class MainController {
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private RequestTokenService requestTokenService;
+
     @Value("${wtfdyum.max-members}")
     private int maxMembers;
 
@@ -67,7 +70,7 @@ public class MainController {
     }
 
     @RequestMapping(value = "/signin", method = RequestMethod.GET)
-    public RedirectView signin(final HttpServletRequest request) throws WTFDYUMException {
+    public RedirectView signin() throws WTFDYUMException {
         if (authenticationService.isAuthenticated()) {
             return new RedirectView("/user", true);
         }
@@ -78,16 +81,24 @@ public class MainController {
 
         final RequestToken requestToken = twitterService.signin("/signin/callback");
 
-        request.getSession().setAttribute(SESSION_REQUEST_TOKEN, requestToken);
+        requestTokenService.save(requestToken);
+        authenticationService.beginSignin(requestToken.getToken());
 
         return new RedirectView(requestToken.getAuthenticationURL());
     }
 
     @RequestMapping(value = "/signin/callback", method = RequestMethod.GET)
-    public RedirectView signinCallback(@RequestParam("oauth_verifier") final String verifier,
-            final HttpServletRequest request) throws WTFDYUMException {
-        final RequestToken requestToken = (RequestToken) request.getSession().getAttribute(SESSION_REQUEST_TOKEN);
-        request.getSession().removeAttribute(SESSION_REQUEST_TOKEN);
+    public RedirectView signinCallback(@RequestParam("oauth_token") final String token,
+            @RequestParam("oauth_verifier") final String verifier) throws WTFDYUMException {
+        // a callback not started by this browser could sign it in to someone else's account
+        if (!authenticationService.completeSignin(token)) {
+            throw new WTFDYUMException(WTFDYUMExceptionType.SIGNIN_EXPIRED);
+        }
+
+        final RequestToken requestToken = requestTokenService.consume(token);
+        if (requestToken == null) {
+            throw new WTFDYUMException(WTFDYUMExceptionType.SIGNIN_EXPIRED);
+        }
 
         final AccessToken accessToken = twitterService.completeSignin(requestToken, verifier);
 
@@ -17,6 +17,7 @@
  */
 package com.jeanchampemont.wtfdyum.web;
 
+import com.jeanchampemont.wtfdyum.config.DeploymentRole;
 import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.type.EventType;
@@ -28,6 +29,7 @@ import com.jeanchampemont.wtfdyum.service.UserService;
 import com.jeanchampemont.wtfdyum.utils.SessionManager;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -37,8 +39,10 @@ import org.springframework.web.servlet.view.RedirectView;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 @Controller
+@Profile("!" + DeploymentRole.WORKER)
 @RequestMapping(value = "/user")
 public class UserController {
 
@@ -94,9 +98,10 @@ public class UserController {
         result.getModel().put("events", userService.getRecentEvents(userId, 10));
         result.getModel().put("availableFeatures", Feature.values());
 
+        final Set<Feature> enabledFeatures = userService.getEnabledFeatures(userId);
         final Map<String, Boolean> featuresStatus = new HashMap<>();
         for (final Feature f : Feature.values()) {
-            featuresStatus.put(f.name(), featureService.isEnabled(userId, f));
+            featuresStatus.put(f.name(), enabledFeatures.contains(f));
         }
 
         result.getModel().put("featuresStatus", featuresStatus);
@@ -0,0 +1,31 @@
+-- Move the oldest events of users' lists to their archives, as returned by
+-- events-push.lua. A list whose oldest events changed since, archived by
+-- another call, is left alone.
+--
+-- KEYS[1..n]: for each user, the events list then the archive list
+-- ARGV[1]: the maximum number of chunks kept in an archive
+-- ARGV[2..]: for each user:
+--            - the number of events moved out of the list
+--            - the oldest and the most recent of them, as read from the list
+--            - the number of archived chunks then the chunks, oldest first
+--
+-- Returns the number of lists whose events were archived.
+local max_chunks = tonumber(ARGV[1])
+
+local archived = 0
+local arg = 2
+for k = 1, #KEYS, 2 do
+    local count = tonumber(ARGV[arg])
+    local chunks = tonumber(ARGV[arg + 3])
+    if redis.call('LINDEX', KEYS[k], -1) == ARGV[arg + 1]
+            and redis.call('LINDEX', KEYS[k], -count) == ARGV[arg + 2] then
+        for i = arg + 4, arg + 3 + chunks do
+            redis.call('LPUSH', KEYS[k + 1], ARGV[i])
+        end
+        redis.call('LTRIM', KEYS[k], 0, -count - 1)
+        redis.call('LTRIM', KEYS[k + 1], 0, max_chunks - 1)
+        archived = archived + 1
+    end
+    arg = arg + 4 + chunks
+end
+return archived
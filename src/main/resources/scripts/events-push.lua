@@ -0,0 +1,54 @@
+-- Push events to users' lists. Once a list holds max-size + chunk-size events,
+-- its oldest ones are moved out by chunks: dropped, or left in place for the
+-- caller to archive them with events-archive.lua, so that they are never lost
+-- in between.
+--
+-- KEYS[1..n]: the events lists, most recent first
+-- ARGV[1]: the maximum number of events kept in a list, 0 for no limit
+-- ARGV[2]: the number of events moved out at once
+-- ARGV[3]: 1 to leave the events to move out in the lists, 0 to drop them
+-- ARGV[4..]: for each list:
+--            - the expected head of the list, or an empty string
+--            - the event replacing that head, which then takes the place of
+--              the first event pushed
+--            - the number of events pushed then the events, the last one
+--              being the most recent
+--
+-- Returns, for each list, the events to move out by chunks from the oldest one,
+-- each chunk most recent first.
+local max_size = tonumber(ARGV[1])
+local chunk_size = tonumber(ARGV[2])
+local keep = ARGV[3] == '1'
+
+local result = {}
+local arg = 4
+for k = 1, #KEYS do
+    local expected = ARGV[arg]
+    local count = tonumber(ARGV[arg + 2])
+    local first = arg + 3
+    if expected ~= '' and redis.call('LINDEX', KEYS[k], 0) == expected then
+        redis.call('LSET', KEYS[k], 0, ARGV[arg + 1])
+        first = first + 1
+    end
+    for i = first, arg + 2 + count do
+        redis.call('LPUSH', KEYS[k], ARGV[i])
+    end
+    arg = arg + 3 + count
+
+    local moved = {}
+    if max_size > 0 then
+        local size = redis.call('LLEN', KEYS[k])
+        while size >= max_size + chunk_size do
+            local chunk = redis.call('LRANGE', KEYS[k], size - chunk_size, size - 1)
+            if not keep then
+                redis.call('LTRIM', KEYS[k], 0, size - chunk_size - 1)
+            end
+            size = size - chunk_size
+            for i = 1, #chunk do
+                moved[#moved + 1] = chunk[i]
+            end
+        end
+    end
+    result[k] = moved
+end
+return result
@@ -0,0 +1,23 @@
+-- Read a range of a user's events, past the events list into its archive, in
+-- one atomic read: an archive in between would shift the archived events.
+--
+-- KEYS[1]: the events list, most recent first
+-- KEYS[2]: the archive list, most recent chunk first
+-- ARGV[1]: the position of the first event
+-- ARGV[2]: the number of events
+-- ARGV[3]: the number of events of an archived chunk
+--
+-- Returns the events read from the list, the archived chunks holding the
+-- following ones, and the position of the first of them in these chunks.
+local start = tonumber(ARGV[1])
+local count = tonumber(ARGV[2])
+local chunk_size = tonumber(ARGV[3])
+
+local live = redis.call('LRANGE', KEYS[1], start, start + count - 1)
+if #live == count then
+    return {live, {}, 0}
+end
+local offset = start + #live - redis.call('LLEN', KEYS[1])
+local first = math.floor(offset / chunk_size)
+local last = math.floor((offset + count - #live - 1) / chunk_size)
+return {live, redis.call('LRANGE', KEYS[2], first, last), offset - first * chunk_size}
@@ -0,0 +1,22 @@
+-- Disable a feature for a member and remove the member from this feature's index.
+--
+-- KEYS[1]: the member's features bitmap
+-- KEYS[2]: the feature's members index
+-- KEYS[3]: the member's legacy features set, converted into the bitmap first if it still exists
+-- ARGV[1]: the feature bit offset
+-- ARGV[2]: the member id
+-- ARGV[3..]: pairs of feature name and feature bit offset
+--
+-- Returns 1 if the feature was enabled and has been disabled, 0 otherwise.
+if redis.call('TYPE', KEYS[3]).ok == 'set' then
+    for i = 3, #ARGV, 2 do
+        if redis.call('SISMEMBER', KEYS[3], ARGV[i]) == 1 then
+            redis.call('SETBIT', KEYS[1], ARGV[i + 1], 1)
+        end
+    end
+    redis.call('DEL', KEYS[3])
+end
+
+local previous = redis.call('SETBIT', KEYS[1], ARGV[1], 0)
+redis.call('SREM', KEYS[2], ARGV[2])
+return previous
@@ -0,0 +1,17 @@
+-- Convert a member's legacy features set into a features bitmap.
+--
+-- KEYS[1]: the member's legacy features set
+-- KEYS[2]: the member's features bitmap
+-- ARGV: pairs of feature name and feature bit offset
+--
+-- Returns 1 if the legacy set has been converted, 0 if there was nothing to convert.
+if redis.call('TYPE', KEYS[1]).ok ~= 'set' then
+    return 0
+end
+for i = 1, #ARGV, 2 do
+    if redis.call('SISMEMBER', KEYS[1], ARGV[i]) == 1 then
+        redis.call('SETBIT', KEYS[2], ARGV[i + 1], 1)
+    end
+end
+redis.call('DEL', KEYS[1])
+return 1
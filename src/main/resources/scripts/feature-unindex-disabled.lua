@@ -0,0 +1,12 @@
+-- Remove a member from a feature's index if the feature is not enabled in its bitmap.
+--
+-- KEYS[1]: the member's features bitmap
+-- KEYS[2]: the feature's members index
+-- ARGV[1]: the feature bit offset
+-- ARGV[2]: the member id
+--
+-- Returns 1 if the member has been removed from the index, 0 otherwise.
+if redis.call('GETBIT', KEYS[1], ARGV[1]) == 1 then
+    return 0
+end
+return redis.call('SREM', KEYS[2], ARGV[2])
@@ -0,0 +1,17 @@
+-- Acknowledge processed jobs.
+--
+-- KEYS[1]: the processing set
+-- KEYS[2]: the pending jobs set
+-- ARGV: the member ids
+--
+-- Returns the member ids of the jobs acknowledged too late: they were no longer being processed, as
+-- their deadline was reached and they were requeued. They are left pending.
+local late = {}
+for i = 1, #ARGV do
+    if redis.call('ZREM', KEYS[1], ARGV[i]) == 1 then
+        redis.call('SREM', KEYS[2], ARGV[i])
+    else
+        late[#late + 1] = ARGV[i]
+    end
+end
+return late
@@ -0,0 +1,16 @@
+-- Push back the deadline of jobs still being processed, so they are not requeued while their worker
+-- is alive. Jobs already acknowledged or requeued are left alone.
+--
+-- KEYS[1]: the processing set, scored by deadline
+-- ARGV[1]: the new deadline, in ms
+-- ARGV[2..]: the member ids
+--
+-- Returns the number of jobs whose deadline was pushed back.
+local extended = 0
+for i = 2, #ARGV do
+    if redis.call('ZSCORE', KEYS[1], ARGV[i]) then
+        redis.call('ZADD', KEYS[1], ARGV[1], ARGV[i])
+        extended = extended + 1
+    end
+end
+return extended
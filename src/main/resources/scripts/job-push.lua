@@ -0,0 +1,15 @@
+-- Enqueue jobs for members that have no pending job yet.
+--
+-- KEYS[1]: the jobs queue
+-- KEYS[2]: the pending jobs set, queued or being processed
+-- ARGV: the member ids
+--
+-- Returns the number of jobs enqueued.
+local pushed = 0
+for i = 1, #ARGV do
+    if redis.call('SADD', KEYS[2], ARGV[i]) == 1 then
+        redis.call('LPUSH', KEYS[1], ARGV[i])
+        pushed = pushed + 1
+    end
+end
+return pushed
@@ -0,0 +1,20 @@
+-- Requeue the jobs whose deadline is reached, their worker is considered dead.
+-- They are pushed at the taking end of the queue to be processed first.
+--
+-- KEYS[1]: the jobs queue
+-- KEYS[2]: the processing set, scored by deadline
+-- KEYS[3]: the pending jobs set
+-- ARGV[1]: the current time, in ms
+--
+-- Returns the number of jobs requeued. Expired jobs that are no longer pending are only dropped
+-- from the processing set.
+local jobs = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', ARGV[1])
+local requeued = 0
+for i = 1, #jobs do
+    redis.call('ZREM', KEYS[2], jobs[i])
+    if redis.call('SISMEMBER', KEYS[3], jobs[i]) == 1 then
+        redis.call('RPUSH', KEYS[1], jobs[i])
+        requeued = requeued + 1
+    end
+end
+return requeued
@@ -0,0 +1,19 @@
+-- Take jobs from the queue. They are kept in the processing set until
+-- acknowledged, or until their deadline is reached and they are requeued.
+--
+-- KEYS[1]: the jobs queue
+-- KEYS[2]: the processing set, scored by deadline
+-- ARGV[1]: the maximum number of jobs to take
+-- ARGV[2]: the deadline of the jobs taken, in ms
+--
+-- Returns the member ids of the jobs taken.
+local jobs = {}
+for i = 1, tonumber(ARGV[1]) do
+    local job = redis.call('RPOP', KEYS[1])
+    if not job then
+        break
+    end
+    redis.call('ZADD', KEYS[2], ARGV[2], job)
+    jobs[#jobs + 1] = job
+end
+return jobs
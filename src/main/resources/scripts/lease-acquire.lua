@@ -0,0 +1,16 @@
+-- Acquire a lease if nobody holds it, with a new fencing token.
+--
+-- KEYS[1]: the lease
+-- KEYS[2]: the lease fencing token counter
+-- ARGV[1]: the node id
+-- ARGV[2]: the lease time, in ms
+--
+-- Returns the fencing token if the lease was acquired, 0 otherwise.
+if redis.call('EXISTS', KEYS[1]) == 1 then
+    return 0
+end
+local token = redis.call('INCR', KEYS[2])
+if redis.call('SET', KEYS[1], ARGV[1] .. ':' .. token, 'NX', 'PX', ARGV[2]) then
+    return token
+end
+return 0
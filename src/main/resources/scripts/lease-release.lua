@@ -0,0 +1,10 @@
+-- Release a lease, only if it is still held by the caller.
+--
+-- KEYS[1]: the lease
+-- ARGV[1]: the lease value, node id and fencing token
+--
+-- Returns 1 if the lease was released, 0 if it was already lost.
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
@@ -0,0 +1,11 @@
+-- Extend a lease, only if it is still held by the caller.
+--
+-- KEYS[1]: the lease
+-- ARGV[1]: the lease value, node id and fencing token
+-- ARGV[2]: the lease time, in ms
+--
+-- Returns 1 if the lease was extended, 0 if it is lost.
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+end
+return 0
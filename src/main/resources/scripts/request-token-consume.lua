@@ -0,0 +1,10 @@
+-- Get and delete a request token secret, so a token can only be consumed once.
+--
+-- KEYS[1]: the request token key
+--
+-- Returns the token secret, or nil if unknown or expired.
+local secret = redis.call('GET', KEYS[1])
+if secret then
+    redis.call('DEL', KEYS[1])
+end
+return secret
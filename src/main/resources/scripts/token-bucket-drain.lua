@@ -0,0 +1,15 @@
+-- Empty a bucket until a given time, from which it starts refilling.
+--
+-- KEYS[1]: the bucket
+-- ARGV[1]: the window, in ms
+-- ARGV[2]: the current time of the Redis server, in ms
+-- ARGV[3]: the time until which the bucket stays empty, in ms
+--
+-- Returns 1.
+local window = tonumber(ARGV[1])
+local now = tonumber(ARGV[2])
+local until_time = tonumber(ARGV[3])
+
+redis.call('HMSET', KEYS[1], 'tokens', '0', 'updated', ARGV[3])
+redis.call('PEXPIRE', KEYS[1], math.ceil(window + math.max(0, until_time - now)))
+return 1
@@ -0,0 +1,31 @@
+-- Take a token from a bucket refilled continuously, capacity tokens per window.
+--
+-- KEYS[1]: the bucket
+-- ARGV[1]: the capacity
+-- ARGV[2]: the window, in ms
+-- ARGV[3]: the current time of the Redis server, in ms
+--
+-- Returns 0 if a token was taken, otherwise the time to wait for the next one, in ms.
+local capacity = tonumber(ARGV[1])
+local window = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+
+local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'updated')
+local tokens = tonumber(bucket[1]) or capacity
+local updated = tonumber(bucket[2]) or now
+
+if now > updated then
+    tokens = math.min(capacity, tokens + (now - updated) * capacity / window)
+    updated = now
+end
+
+local result = 0
+if tokens >= 1 then
+    tokens = tokens - 1
+else
+    result = math.max(1, math.ceil((1 - tokens) * window / capacity + updated - now))
+end
+
+redis.call('HMSET', KEYS[1], 'tokens', tostring(tokens), 'updated', tostring(updated))
+redis.call('PEXPIRE', KEYS[1], math.ceil(window + updated - now))
+return result
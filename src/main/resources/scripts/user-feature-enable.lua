@@ -0,0 +1,38 @@
+-- Enable a feature in a member's consolidated hash and index the member under this feature.
+--
+-- KEYS[1]: the member's hash
+-- KEYS[2]: the feature's members index
+-- KEYS[3]: the member's features bitmap, merged into the hash first if it still exists
+-- KEYS[4]: the member's legacy features set, merged into the hash first if it still exists
+-- ARGV[1]: the feature bit offset
+-- ARGV[2]: the member id
+-- ARGV[3..]: pairs of feature name and feature bit offset
+--
+-- Returns 1 if the feature was disabled and has been enabled, 0 otherwise.
+local mask = tonumber(redis.call('HGET', KEYS[1], 'features') or '0')
+
+local bitmap = redis.call('GET', KEYS[3])
+if bitmap then
+    for offset = 0, #bitmap * 8 - 1 do
+        if redis.call('GETBIT', KEYS[3], offset) == 1 then
+            mask = bit.bor(mask, bit.lshift(1, offset))
+        end
+    end
+    redis.call('DEL', KEYS[3])
+end
+if redis.call('TYPE', KEYS[4]).ok == 'set' then
+    for i = 3, #ARGV, 2 do
+        if redis.call('SISMEMBER', KEYS[4], ARGV[i]) == 1 then
+            mask = bit.bor(mask, bit.lshift(1, tonumber(ARGV[i + 1])))
+        end
+    end
+    redis.call('DEL', KEYS[4])
+end
+
+local flag = bit.lshift(1, tonumber(ARGV[1]))
+redis.call('HSET', KEYS[1], 'features', bit.bor(mask, flag))
+redis.call('SADD', KEYS[2], ARGV[2])
+if bit.band(mask, flag) == 0 then
+    return 1
+end
+return 0
@@ -0,0 +1,13 @@
+-- Remove a member from a feature's index if the feature is not enabled in its consolidated hash.
+--
+-- KEYS[1]: the member's hash
+-- KEYS[2]: the feature's members index
+-- ARGV[1]: the feature bit offset
+-- ARGV[2]: the member id
+--
+-- Returns 1 if the member has been removed from the index, 0 otherwise.
+local mask = tonumber(redis.call('HGET', KEYS[1], 'features') or '0')
+if bit.band(mask, bit.lshift(1, tonumber(ARGV[1]))) ~= 0 then
+    return 0
+end
+return redis.call('SREM', KEYS[2], ARGV[2])
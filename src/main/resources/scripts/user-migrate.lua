@@ -0,0 +1,51 @@
+-- Move a member's state from its separate keys into its consolidated hash.
+-- Values already present in the hash win over the legacy ones, feature bits are merged.
+--
+-- KEYS[1]: the member's hash
+-- KEYS[2]: the member's principal
+-- KEYS[3]: the member's features bitmap
+-- KEYS[4..n]: the member's limit counters
+-- ARGV[1]: the principal as read by the caller, or an empty string if there was none
+-- ARGV[2]: the principal's token, or an empty string
+-- ARGV[3]: the principal's token secret, or an empty string
+-- ARGV[4..n]: the hash fields of the limit counters, in the same order
+--
+-- Returns 1 if something has been moved, 0 if there was nothing to move.
+local migrated = 0
+
+-- the principal is decoded by the caller, whatever its encoding. It is left for a later migration if it
+-- changed since it was read
+if ARGV[1] ~= '' and redis.call('GET', KEYS[2]) == ARGV[1] then
+    if ARGV[2] ~= '' then
+        redis.call('HSETNX', KEYS[1], 'token', ARGV[2])
+    end
+    if ARGV[3] ~= '' then
+        redis.call('HSETNX', KEYS[1], 'tokenSecret', ARGV[3])
+    end
+    redis.call('DEL', KEYS[2])
+    migrated = 1
+end
+
+local bitmap = redis.call('GET', KEYS[3])
+if bitmap then
+    local mask = tonumber(redis.call('HGET', KEYS[1], 'features') or '0')
+    for offset = 0, #bitmap * 8 - 1 do
+        if redis.call('GETBIT', KEYS[3], offset) == 1 then
+            mask = bit.bor(mask, bit.lshift(1, offset))
+        end
+    end
+    redis.call('HSET', KEYS[1], 'features', mask)
+    redis.call('DEL', KEYS[3])
+    migrated = 1
+end
+
+for i = 4, #KEYS do
+    local count = redis.call('GET', KEYS[i])
+    if count then
+        redis.call('HINCRBY', KEYS[1], ARGV[i], count)
+        redis.call('DEL', KEYS[i])
+        migrated = 1
+    end
+end
+
+return migrated
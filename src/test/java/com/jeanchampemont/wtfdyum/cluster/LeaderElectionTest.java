@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.cluster;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LeaderElectionTest {
+
+    @Mock
+    private StringRedisTemplate stringRedisTemplate;
+
+    private Clock clock = Clock.fixed(Instant.ofEpochMilli(1000000L), ZoneId.of("Z"));
+
+    private LeaderElection sut;
+
+    @Before
+    public void _init() {
+        sut = new LeaderElection(stringRedisTemplate, clock, 30000L);
+    }
+
+    @After
+    public void _destroy() {
+        sut.shutdown();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void isLeaderTest() {
+        acquireReturns(7L);
+
+        assertThat(sut.isLeader("JOB")).isTrue();
+        assertThat(sut.isLeader("JOB")).isTrue();
+
+        // the lease is held, acquired once
+        verify(stringRedisTemplate, times(1)).execute(any(RedisScript.class),
+                eq(Arrays.asList("LEADER_JOB", "LEADER_FENCING_JOB")), anyString(), eq("30000"));
+        assertThat(sut.getLease("JOB").getFencingToken()).isEqualTo(7L);
+    }
+
+    @Test
+    public void isLeaderTestExpiredLease() {
+        acquireReturns(7L, 0L);
+        sut.isLeader("JOB");
+
+        // no renewal happened, 31s later
+        ReflectionTestUtils.setField(sut, "clock", Clock.offset(clock, Duration.ofSeconds(31)));
+
+        assertThat(sut.isLeader("JOB")).isFalse();
+        assertThat(sut.getLease("JOB")).isNull();
+    }
+
+    @Test
+    public void isLeaderTestHeldElsewhere() {
+        acquireReturns(0L);
+
+        assertThat(sut.isLeader("JOB")).isFalse();
+        assertThat(sut.getLease("JOB")).isNull();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void renewAllTest() {
+        acquireReturns(7L);
+        renewReturns(1L);
+        sut.isLeader("JOB");
+
+        renewAllAfter(Duration.ofSeconds(20));
+        // past the initial lease time, still held thanks to the renewal
+        ReflectionTestUtils.setField(sut, "clock", Clock.offset(clock, Duration.ofSeconds(40)));
+
+        assertThat(sut.isLeader("JOB")).isTrue();
+        assertThat(sut.getLease("JOB").getFencingToken()).isEqualTo(7L);
+        verify(stringRedisTemplate, times(1)).execute(any(RedisScript.class),
+                eq(Arrays.asList("LEADER_JOB", "LEADER_FENCING_JOB")), anyString(), eq("30000"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void renewAllTestError() {
+        acquireReturns(7L);
+        sut.isLeader("JOB");
+        when(stringRedisTemplate.execute(any(RedisScript.class), eq(Collections.singletonList("LEADER_JOB")),
+                endsWith(":7"), eq("30000"))).thenThrow(new RedisConnectionFailureException("down"));
+
+        renewAllAfter(Duration.ofSeconds(10));
+
+        // kept locally until it expires
+        assertThat(sut.getLease("JOB")).isNotNull();
+    }
+
+    @Test
+    public void renewAllTestLostLeadership() {
+        acquireReturns(7L, 0L);
+        renewReturns(0L);
+        sut.isLeader("JOB");
+
+        renewAllAfter(Duration.ofSeconds(10));
+
+        // held by another node now, lost right away rather than at expiry
+        assertThat(sut.getLease("JOB")).isNull();
+        assertThat(sut.isLeader("JOB")).isFalse();
+    }
+
+    @Test
+    public void holdsLeaseTestLostLeadership() {
+        acquireReturns(7L, 8L);
+        renewReturns(0L);
+        final LeaderElection.Lease previous = LeaderElection.enter(sut.lead("JOB"));
+        try {
+            assertThat(LeaderElection.holdsLease()).isTrue();
+
+            renewAllAfter(Duration.ofSeconds(10));
+            // leader again, but another node may have run the job meanwhile
+            sut.lead("JOB");
+
+            assertThat(LeaderElection.holdsLease()).isFalse();
+        } finally {
+            LeaderElection.leave(previous);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shutdownTest() {
+        acquireReturns(7L);
+        sut.isLeader("JOB");
+
+        sut.shutdown();
+
+        verify(stringRedisTemplate, times(1)).execute(any(RedisScript.class),
+                eq(Collections.singletonList("LEADER_JOB")), endsWith(":7"));
+        assertThat(sut.getLease("JOB")).isNull();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void acquireReturns(final Long token, final Long... tokens) {
+        when(stringRedisTemplate.execute(any(RedisScript.class),
+                eq(Arrays.asList("LEADER_JOB", "LEADER_FENCING_JOB")), anyString(), eq("30000")))
+        .thenReturn(token, (Object[]) tokens);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void renewReturns(final Long renewed) {
+        when(stringRedisTemplate.execute(any(RedisScript.class), eq(Collections.singletonList("LEADER_JOB")),
+                endsWith(":7"), eq("30000"))).thenReturn(renewed);
+    }
+
+    private void renewAllAfter(final Duration elapsed) {
+        ReflectionTestUtils.setField(sut, "clock", Clock.offset(clock, elapsed));
+        ReflectionTestUtils.invokeMethod(sut, "renewAll");
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.cluster;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.lang.annotation.Annotation;
+
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LeaderOnlyAspectTest {
+
+    @Mock
+    private LeaderElection leaderElection;
+
+    @Mock
+    private ProceedingJoinPoint pjp;
+
+    @InjectMocks
+    private LeaderOnlyAspect sut;
+
+    @Test
+    public void aroundLeaderOnlyMethodTestLeader() throws Throwable {
+        final Object expectedResult = new Object();
+
+        final LeaderElection.Lease lease = lease();
+        when(leaderElection.lead("JOB")).thenReturn(lease);
+        when(leaderElection.getLease("JOB")).thenReturn(lease);
+        when(pjp.proceed()).thenAnswer(invocation -> {
+            Assertions.assertThat(LeaderElection.holdsLease()).isTrue();
+            return expectedResult;
+        });
+
+        final Object result = sut.aroundLeaderOnlyMethod(pjp, leaderOnly("JOB"));
+
+        Assertions.assertThat(result).isSameAs(expectedResult);
+        verify(pjp, times(1)).proceed();
+    }
+
+    @Test
+    public void aroundLeaderOnlyMethodTestLeaseLost() throws Throwable {
+        when(leaderElection.lead("JOB")).thenReturn(lease());
+        when(pjp.proceed()).thenAnswer(invocation -> {
+            // expired or taken over meanwhile
+            Assertions.assertThat(LeaderElection.holdsLease()).isFalse();
+            return null;
+        });
+
+        sut.aroundLeaderOnlyMethod(pjp, leaderOnly("JOB"));
+
+        verify(pjp, times(1)).proceed();
+        // outside of the guarded method
+        Assertions.assertThat(LeaderElection.holdsLease()).isTrue();
+    }
+
+    @Test
+    public void aroundLeaderOnlyMethodTestNotLeader() throws Throwable {
+        when(leaderElection.lead("JOB")).thenReturn(null);
+
+        final Object result = sut.aroundLeaderOnlyMethod(pjp, leaderOnly("JOB"));
+
+        Assertions.assertThat(result).isNull();
+        verify(pjp, never()).proceed();
+    }
+
+    private LeaderElection.Lease lease() {
+        return new LeaderElection.Lease(leaderElection, "JOB", 7L, "node:7", Long.MAX_VALUE);
+    }
+
+    private LeaderOnly leaderOnly(final String name) {
+        return new LeaderOnly() {
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return LeaderOnly.class;
+            }
+
+            @Override
+            public String value() {
+                return name;
+            }
+        };
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.config;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent;
+import org.springframework.core.env.StandardEnvironment;
+
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeploymentRoleTest {
+
+    @Mock
+    private SpringApplication application;
+
+    private StandardEnvironment environment;
+
+    private DeploymentRole sut;
+
+    @Before
+    public void _init() {
+        environment = new StandardEnvironment();
+        sut = new DeploymentRole();
+    }
+
+    @Test
+    public void combinedTest() {
+        sut.onApplicationEvent(event());
+
+        verify(application, never()).setWebEnvironment(anyBoolean());
+    }
+
+    @Test
+    public void webTest() {
+        environment.setActiveProfiles(DeploymentRole.WEB);
+
+        sut.onApplicationEvent(event());
+
+        verify(application, never()).setWebEnvironment(anyBoolean());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void webAndWorkerTest() {
+        environment.setActiveProfiles(DeploymentRole.WEB, DeploymentRole.WORKER);
+
+        sut.onApplicationEvent(event());
+    }
+
+    @Test
+    public void workerTest() {
+        environment.setActiveProfiles(DeploymentRole.WORKER);
+
+        sut.onApplicationEvent(event());
+
+        verify(application, times(1)).setWebEnvironment(false);
+    }
+
+    private ApplicationEnvironmentPreparedEvent event() {
+        return new ApplicationEnvironmentPreparedEvent(application, new String[0], environment);
+    }
+}
@@ -27,10 +27,7 @@ import org.mockito.Mock;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
-import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.when;
@@ -40,25 +37,22 @@ import static org.mockito.MockitoAnnotations.initMocks;
 @SpringApplicationConfiguration(classes = WTFDYUMApplication.class)
 public class AdminServiceTest {
     @Mock
-    private FeatureService featureService;
+    private PrincipalService principalService;
 
     private AdminService sut;
 
     @Before
     public void init() {
         initMocks(this);
-        sut = new AdminServiceImpl(featureService);
+        sut = new AdminServiceImpl(principalService);
     }
 
     @Test
     public void countEnabledFeatureNominalTest() {
-        Set<Long> ids = new HashSet<>(Arrays.asList(42L, 45L));
-        when(featureService.isEnabled(42L, Feature.NOTIFY_UNFOLLOW)).thenReturn(true);
-        when(featureService.isEnabled(45L, Feature.NOTIFY_UNFOLLOW)).thenReturn(true);
-        when(featureService.isEnabled(42L, Feature.TWEET_UNFOLLOW)).thenReturn(true);
-        when(featureService.isEnabled(45L, Feature.TWEET_UNFOLLOW)).thenReturn(false);
+        when(principalService.countMembers(Feature.NOTIFY_UNFOLLOW)).thenReturn(2);
+        when(principalService.countMembers(Feature.TWEET_UNFOLLOW)).thenReturn(1);
 
-        Map<Feature, Integer> result = sut.countEnabledFeature(ids);
+        Map<Feature, Integer> result = sut.countEnabledFeature();
 
         assertThat(result).isNotNull();
         assertThat(result).hasSize(2);
@@ -19,20 +19,28 @@ package com.jeanchampemont.wtfdyum.service;
 
 import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
 import com.jeanchampemont.wtfdyum.dto.Principal;
-import com.jeanchampemont.wtfdyum.service.impl.SessionAuthenticationServiceImpl;
-import com.jeanchampemont.wtfdyum.utils.SessionProvider;
+import com.jeanchampemont.wtfdyum.security.AuthenticationContext;
+import com.jeanchampemont.wtfdyum.service.impl.CookieAuthenticationServiceImpl;
+import com.jeanchampemont.wtfdyum.utils.RequestProvider;
+import com.jeanchampemont.wtfdyum.utils.SessionManager;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
-import javax.servlet.http.HttpSession;
+import javax.servlet.http.Cookie;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.Matchers.anyString;
-import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -40,19 +48,45 @@ import static org.mockito.MockitoAnnotations.initMocks;
 @SpringApplicationConfiguration(classes = WTFDYUMApplication.class)
 public class AuthenticationServiceTest {
 
+    private static final String COOKIE_NAME = "WTFDYUM_AUTH";
+
+    private static final String SIGNIN_COOKIE_NAME = "WTFDYUM_SIGNIN";
+
+    @Mock
+    private RequestProvider requestProvider;
+
+    @Mock
+    private PrincipalService principalService;
+
     @Mock
-    private HttpSession session;
+    private StringRedisTemplate stringRedisTemplate;
 
     @Mock
-    private SessionProvider sessionProvider;
+    private ValueOperations<String, String> valueOperations;
+
+    private MockHttpServletRequest request;
+
+    private MockHttpServletResponse response;
+
+    private Clock clock = Clock.fixed(Instant.parse("2007-12-03T10:15:30.00Z"), ZoneId.of("Z"));
 
     private AuthenticationService sut;
 
     @Before
     public void ainit() {
         initMocks(this);
-        when(sessionProvider.getSession()).thenReturn(session);
-        sut = new SessionAuthenticationServiceImpl(sessionProvider, 42L);
+        SessionManager.setContext(null);
+        request = new MockHttpServletRequest();
+        response = new MockHttpServletResponse();
+        when(requestProvider.getRequest()).thenReturn(request);
+        when(requestProvider.getResponse()).thenReturn(response);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        sut = service(clock);
+    }
+
+    @After
+    public void _destroy() {
+        SessionManager.setContext(null);
     }
 
     @Test(expected = NullPointerException.class)
@@ -69,21 +103,77 @@ public class AuthenticationServiceTest {
     public void authenticateTest() {
         sut.authenticate(new Principal(120L, "tok", "secret"));
 
-        verify(session, times(1)).setAttribute(anyString(), eq(120L));
+        final Cookie cookie = response.getCookie(COOKIE_NAME);
+        assertThat(cookie).isNotNull();
+        assertThat(cookie.getValue()).startsWith("120.0.");
+        assertThat(cookie.isHttpOnly()).isTrue();
+        assertThat(cookie.getMaxAge()).isEqualTo(3600);
+    }
+
+    @Test
+    public void authenticateTestUpdatesContext() {
+        SessionManager.setContext(AuthenticationContext.anonymous());
+        final Principal principal = new Principal(42L, "tok", "secret");
+
+        sut.authenticate(principal);
+
+        assertThat(SessionManager.getContext().getUserId()).isEqualTo(42L);
+        assertThat(SessionManager.getContext().isAdmin()).isTrue();
+        assertThat(SessionManager.getPrincipal()).isEqualTo(principal);
     }
 
     @Test
     public void getCurrentUserIdAuthenticatedTest() {
-        when(session.getAttribute(anyString())).thenReturn(144L);
+        signedIn(144L);
+
         final Long currentUserId = sut.getCurrentUserId();
 
         assertThat(currentUserId).isNotNull();
         assertThat(currentUserId).isEqualTo(144L);
     }
 
+    @Test
+    public void getCurrentUserIdExpiredTest() {
+        signedIn(144L);
+        sut = service(Clock.offset(clock, java.time.Duration.ofHours(2)));
+
+        final Long currentUserId = sut.getCurrentUserId();
+
+        assertThat(currentUserId).isNull();
+    }
+
+    @Test
+    public void getCurrentUserIdFromContextTest() {
+        SessionManager.setContext(new AuthenticationContext(144L, null, false));
+
+        final Long currentUserId = sut.getCurrentUserId();
+
+        assertThat(currentUserId).isEqualTo(144L);
+        verifyZeroInteractions(requestProvider);
+    }
+
     @Test
     public void getCurrentUserIdNotAuthenticatedTest() {
-        when(session.getAttribute(anyString())).thenReturn(null);
+        final Long currentUserId = sut.getCurrentUserId();
+
+        assertThat(currentUserId).isNull();
+    }
+
+    @Test
+    public void getCurrentUserIdRevokedTest() {
+        signedIn(144L);
+        when(valueOperations.get("SESSION_GENERATION_144")).thenReturn("1");
+
+        final Long currentUserId = sut.getCurrentUserId();
+
+        assertThat(currentUserId).isNull();
+    }
+
+    @Test
+    public void getCurrentUserIdTamperedTest() {
+        final String value = signedIn(144L).getValue();
+        request.setCookies(new Cookie(COOKIE_NAME, value.replaceFirst("^144\\.", "42.")));
+
         final Long currentUserId = sut.getCurrentUserId();
 
         assertThat(currentUserId).isNull();
@@ -91,7 +181,7 @@ public class AuthenticationServiceTest {
 
     @Test
     public void isAdminNominalTest() {
-        when(session.getAttribute(anyString())).thenReturn(42L);
+        signedIn(42L);
         Boolean isAdmin = sut.isAdmin();
 
         assertThat(isAdmin).isNotNull();
@@ -100,7 +190,7 @@ public class AuthenticationServiceTest {
 
     @Test
     public void isAdminNotAdminTest() {
-        when(session.getAttribute(anyString())).thenReturn(43L);
+        signedIn(43L);
         Boolean isAdmin = sut.isAdmin();
 
         assertThat(isAdmin).isNotNull();
@@ -109,7 +199,7 @@ public class AuthenticationServiceTest {
 
     @Test
     public void isAuthenticatedAuthenticatedTest() {
-        when(session.getAttribute(anyString())).thenReturn(144L);
+        signedIn(144L);
         final Boolean isAuthenticated = sut.isAuthenticated();
 
         assertThat(isAuthenticated).isNotNull();
@@ -118,7 +208,6 @@ public class AuthenticationServiceTest {
 
     @Test
     public void isAuthenticatedNotAuthenticatedTest() {
-        when(session.getAttribute(anyString())).thenReturn(null);
         final Boolean isAuthenticated = sut.isAuthenticated();
 
         assertThat(isAuthenticated).isNotNull();
@@ -128,6 +217,101 @@ public class AuthenticationServiceTest {
     @Test
     public void logOutTest() {
         sut.logOut();
-        verify(session, times(1)).removeAttribute(anyString());
+
+        final Cookie cookie = response.getCookie(COOKIE_NAME);
+        assertThat(cookie).isNotNull();
+        assertThat(cookie.getMaxAge()).isEqualTo(0);
+        verify(valueOperations, never()).increment(anyString(), anyLong());
+    }
+
+    @Test
+    public void logOutTestRevokesCookies() {
+        signedIn(144L);
+
+        sut.logOut();
+
+        verify(valueOperations, times(1)).increment("SESSION_GENERATION_144", 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void missingCookieSecretTest() {
+        new CookieAuthenticationServiceImpl(requestProvider, principalService, stringRedisTemplate, clock, 42L, "",
+                3600, 600000L, "http://localhost");
+    }
+
+    @Test
+    public void logOutTestUpdatesContext() {
+        SessionManager.setContext(new AuthenticationContext(144L, null, false));
+
+        sut.logOut();
+
+        assertThat(sut.isAuthenticated()).isFalse();
+    }
+
+    @Test
+    public void signinTest() {
+        sut.beginSignin("tok");
+        final Cookie cookie = response.getCookie(SIGNIN_COOKIE_NAME);
+        assertThat(cookie.getMaxAge()).isEqualTo(600);
+        assertThat(cookie.getPath()).isEqualTo("/signin");
+        request.setCookies(cookie);
+
+        assertThat(sut.completeSignin("tok")).isTrue();
+    }
+
+    @Test
+    public void signinTestOtherBrowser() {
+        assertThat(sut.completeSignin("tok")).isFalse();
+    }
+
+    @Test
+    public void signinTestOtherToken() {
+        sut.beginSignin("tok");
+        request.setCookies(response.getCookie(SIGNIN_COOKIE_NAME));
+
+        assertThat(sut.completeSignin("other")).isFalse();
+    }
+
+    @Test
+    public void resolveContextTest() {
+        final Principal principal = new Principal(42L, "tok", "secret");
+        signedIn(42L);
+        when(principalService.get(42L)).thenReturn(principal);
+
+        final AuthenticationContext context = sut.resolveContext();
+
+        assertThat(context.getUserId()).isEqualTo(42L);
+        assertThat(context.getPrincipal()).isEqualTo(principal);
+        assertThat(context.isAuthenticated()).isTrue();
+        assertThat(context.isAdmin()).isTrue();
+    }
+
+    @Test
+    public void resolveContextTestNotAuthenticated() {
+        final AuthenticationContext context = sut.resolveContext();
+
+        assertThat(context.isAuthenticated()).isFalse();
+        assertThat(context.getPrincipal()).isNull();
+        verifyZeroInteractions(principalService);
+    }
+
+    private AuthenticationService service(final Clock clock) {
+        return new CookieAuthenticationServiceImpl(requestProvider, principalService, stringRedisTemplate, clock, 42L,
+                "cookie secret", 3600, 600000L, "http://localhost");
+    }
+
+    /**
+     * Sign in with another service instance and send back the resulting cookie.
+     */
+    private Cookie signedIn(final Long userId) {
+        final MockHttpServletResponse signinResponse = new MockHttpServletResponse();
+        final RequestProvider signinRequestProvider = mock(RequestProvider.class);
+        when(signinRequestProvider.getResponse()).thenReturn(signinResponse);
+        new CookieAuthenticationServiceImpl(signinRequestProvider, principalService, stringRedisTemplate, clock, 42L,
+                "cookie secret", 3600, 600000L, "http://localhost").authenticate(new Principal(userId, "tok", "sec"));
+
+        final Cookie cookie = signinResponse.getCookie(COOKIE_NAME);
+        request.setCookies(cookie);
+        return cookie;
     }
 }
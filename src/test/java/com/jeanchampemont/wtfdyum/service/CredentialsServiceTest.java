@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
+import com.jeanchampemont.wtfdyum.service.impl.CredentialsServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WTFDYUMApplication.class)
+public class CredentialsServiceTest {
+
+    @Mock
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Mock
+    private HashOperations<String, Object, Object> hashOperations;
+
+    private final Clock clock = Clock.fixed(Instant.ofEpochMilli(123456L), ZoneId.of("Z"));
+
+    private CredentialsService sut;
+
+    @Before
+    public void _init() {
+        initMocks(this);
+        sut = new CredentialsServiceImpl(stringRedisTemplate, clock);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+    }
+
+    @Test
+    public void getLastVerifiedTest() {
+        when(hashOperations.multiGet("CREDENTIALS_VERIFIED", Arrays.asList("1", "2")))
+        .thenReturn(Arrays.asList("1000", null));
+
+        final Map<Long, Long> result = sut.getLastVerified(Arrays.asList(1L, 2L));
+
+        assertThat(result).hasSize(1);
+        assertThat(result.get(1L)).isEqualTo(1000L);
+    }
+
+    @Test
+    public void getLastVerifiedTestEmpty() {
+        final Map<Long, Long> result = sut.getLastVerified(Collections.emptyList());
+
+        assertThat(result).isEmpty();
+        verifyZeroInteractions(hashOperations);
+    }
+
+    @Test
+    public void markVerifiedTest() {
+        sut.markVerified(12L);
+
+        verify(hashOperations, times(1)).put("CREDENTIALS_VERIFIED", "12", "123456");
+    }
+}
@@ -17,15 +17,22 @@
  */
 package com.jeanchampemont.wtfdyum.service;
 
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
 import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.Principal;
 import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import com.jeanchampemont.wtfdyum.dto.type.JobType;
+import com.jeanchampemont.wtfdyum.dto.type.StatisticType;
 import com.jeanchampemont.wtfdyum.dto.type.UserLimitType;
 import com.jeanchampemont.wtfdyum.service.impl.CronServiceImpl;
+import com.jeanchampemont.wtfdyum.service.impl.EventWriteBuffer;
+import com.jeanchampemont.wtfdyum.service.impl.UnfollowPipeline;
+import com.jeanchampemont.wtfdyum.utils.CursorMockForTest;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMExceptionType;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -33,8 +40,18 @@ import org.mockito.Mock;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -55,32 +72,179 @@ public class CronServiceTest {
     @Mock
     private FeatureService featureService;
 
-    private CronService sut;
+    @Mock
+    private FollowersService followersService;
+
+    @Mock
+    private StatisticsService statisticsService;
+
+    @Mock
+    private JobQueueService jobQueueService;
+
+    @Mock
+    private CredentialsService credentialsService;
+
+    @Mock
+    private UnfollowPipeline unfollowPipeline;
+
+    @Mock
+    private EventWriteBuffer eventWriteBuffer;
+
+    private final Clock clock = Clock.fixed(Instant.ofEpochMilli(200000000L), ZoneId.of("Z"));
+
+    private CronServiceImpl sut;
 
     @Before
     public void _init() {
         initMocks(this);
-        sut = new CronServiceImpl(principalService, userService, twitterService, featureService);
+        sut = new CronServiceImpl(principalService, userService, twitterService, featureService, followersService,
+                statisticsService, jobQueueService, credentialsService, unfollowPipeline, eventWriteBuffer, clock, 2,
+                false, 86400000L, 4, 60000L, false, false, 1000);
+        when(featureService.hasCron(any(Feature.class))).thenReturn(true);
+        when(jobQueueService.getVisibilityTimeout()).thenReturn(600000L);
+    }
+
+    @After
+    public void _destroy() {
+        sut.shutdown();
     }
 
     @Test
     public void checkCredentialsTest() throws Exception {
         final Principal principal = principal(1L);
-        when(twitterService.verifyCredentials(principal)).thenReturn(true);
+        when(twitterService.verifyCredentialsAsync(principal)).thenReturn(CompletableFuture.completedFuture(true));
 
         sut.checkCredentials();
-        verify(userService, times(1)).resetLimit(1L, UserLimitType.CREDENTIALS_INVALID);
+        verify(userService, times(1)).resetLimit(Arrays.asList(1L), UserLimitType.CREDENTIALS_INVALID);
+        verify(userService, times(1)).applyLimit(Collections.emptyList(), UserLimitType.CREDENTIALS_INVALID);
     }
 
     @Test
     public void checkCredentialsTestInvalid() throws Exception {
         final Principal principal = principal(1L);
-        when(twitterService.verifyCredentials(principal)).thenReturn(false);
+        when(twitterService.verifyCredentialsAsync(principal)).thenReturn(CompletableFuture.completedFuture(false));
+
+        sut.checkCredentials();
+
+        verify(eventWriteBuffer, times(1)).add(1L, new Event(EventType.INVALID_TWITTER_CREDENTIALS, ""));
+        verify(userService, times(1)).applyLimit(Arrays.asList(1L), UserLimitType.CREDENTIALS_INVALID);
+    }
+
+    @Test
+    public void checkCredentialsTestThrottled() throws Exception {
+        final Principal principal = principal(1L);
+        final CompletableFuture<Boolean> throttled = new CompletableFuture<>();
+        throttled.completeExceptionally(new WTFDYUMException(WTFDYUMExceptionType.TWITTER_RATE_LIMITED));
+        when(twitterService.verifyCredentialsAsync(principal)).thenReturn(throttled);
+
+        sut.checkCredentials();
+
+        verify(userService, times(1)).resetLimit(Collections.emptyList(), UserLimitType.CREDENTIALS_INVALID);
+        verify(userService, times(1)).applyLimit(Collections.emptyList(), UserLimitType.CREDENTIALS_INVALID);
+        verify(eventWriteBuffer, never()).add(eq(1L), any(Event.class));
+    }
+
+    @Test
+    public void checkCredentialsTestRecentlyUsed() throws Exception {
+        final Map<Long, Principal> principals = new HashMap<>();
+        for (long id = 1L; id < 3L; id++) {
+            principals.put(id, new Principal(id, "Token " + id, "Secret " + id));
+        }
+        when(principalService.scanMembers()).thenReturn(new CursorMockForTest<>(1L, 2L));
+        when(principalService.getAll(Arrays.asList(1L, 2L))).thenReturn(principals);
+        final Map<Long, Long> lastVerified = new HashMap<>();
+        // used an hour ago, verified two days ago
+        lastVerified.put(1L, clock.millis() - 3600000L);
+        lastVerified.put(2L, clock.millis() - 2 * 86400000L);
+        when(credentialsService.getLastVerified(Arrays.asList(1L, 2L))).thenReturn(lastVerified);
+        when(twitterService.verifyCredentialsAsync(principals.get(2L)))
+        .thenReturn(CompletableFuture.completedFuture(false));
+
+        sut.checkCredentials();
+
+        verify(twitterService, never()).verifyCredentialsAsync(principals.get(1L));
+        verify(twitterService, times(1)).verifyCredentialsAsync(principals.get(2L));
+        verify(userService, times(1)).resetLimit(Arrays.asList(1L), UserLimitType.CREDENTIALS_INVALID);
+        verify(userService, times(1)).applyLimit(Arrays.asList(2L), UserLimitType.CREDENTIALS_INVALID);
+        verify(eventWriteBuffer, times(1)).add(2L, new Event(EventType.INVALID_TWITTER_CREDENTIALS, ""));
+        verify(eventWriteBuffer, never()).add(eq(1L), any(Event.class));
+    }
+
+    @Test
+    public void checkCredentialsTestQueue() throws Exception {
+        useQueue();
+        when(principalService.scanMembers()).thenReturn(new CursorMockForTest<>(1L, 2L, 3L));
 
         sut.checkCredentials();
 
-        verify(userService, times(1)).addEvent(1L, new Event(EventType.INVALID_TWITTER_CREDENTIALS, ""));
-        verify(userService, times(1)).applyLimit(1L, UserLimitType.CREDENTIALS_INVALID);
+        verify(jobQueueService, times(1)).enqueue(JobType.CREDENTIALS_CHECK, Arrays.asList(1L, 2L));
+        verify(jobQueueService, times(1)).enqueue(JobType.CREDENTIALS_CHECK, Arrays.asList(3L));
+        verify(twitterService, never()).verifyCredentialsAsync(any(Principal.class));
+    }
+
+    @Test
+    public void consumeJobsTest() throws Exception {
+        useQueue();
+        final Principal principal = principal(12L);
+        featureEnabled(12L, true, Feature.NOTIFY_UNFOLLOW);
+        when(featureService.cron(principal, Feature.NOTIFY_UNFOLLOW)).thenReturn(Collections.emptySet());
+        when(twitterService.verifyCredentialsAsync(principal)).thenReturn(CompletableFuture.completedFuture(true));
+        when(jobQueueService.take(JobType.CREDENTIALS_CHECK, 2)).thenReturn(Arrays.asList(12L))
+        .thenReturn(Collections.emptyList());
+        when(jobQueueService.take(JobType.CRON, 2)).thenReturn(Arrays.asList(12L))
+        .thenReturn(Collections.emptyList());
+
+        sut.consumeJobs();
+
+        verify(jobQueueService, times(1)).requeueExpired(JobType.CREDENTIALS_CHECK);
+        verify(jobQueueService, times(1)).requeueExpired(JobType.CRON);
+        verify(userService, times(1)).resetLimit(Arrays.asList(12L), UserLimitType.CREDENTIALS_INVALID);
+        verify(featureService, times(1)).cron(principal, Feature.NOTIFY_UNFOLLOW);
+        verify(featureService, times(1)).completeCron(principal, Feature.NOTIFY_UNFOLLOW, 0L);
+        verify(jobQueueService, times(1)).acknowledge(JobType.CREDENTIALS_CHECK, Arrays.asList(12L));
+        verify(jobQueueService, times(1)).acknowledge(JobType.CRON, Arrays.asList(12L));
+    }
+
+    @Test
+    public void consumeJobsTestExtendsDeadline() throws Exception {
+        useQueue();
+        when(jobQueueService.getVisibilityTimeout()).thenReturn(30L);
+        final Principal principal = principal(12L);
+        featureEnabled(12L, true, Feature.NOTIFY_UNFOLLOW);
+        when(featureService.cron(principal, Feature.NOTIFY_UNFOLLOW)).thenAnswer(invocation -> {
+            Thread.sleep(200L);
+            return Collections.emptySet();
+        });
+        when(jobQueueService.take(JobType.CREDENTIALS_CHECK, 2)).thenReturn(Collections.emptyList());
+        when(jobQueueService.take(JobType.CRON, 2)).thenReturn(Arrays.asList(12L))
+        .thenReturn(Collections.emptyList());
+
+        sut.consumeJobs();
+
+        verify(jobQueueService, atLeast(2)).extend(JobType.CRON, Arrays.asList(12L));
+        verify(jobQueueService, times(1)).acknowledge(JobType.CRON, Arrays.asList(12L));
+    }
+
+    @Test
+    public void consumeJobsTestDisabled() throws Exception {
+        sut.consumeJobs();
+
+        verifyZeroInteractions(jobQueueService);
+    }
+
+    @Test
+    public void consumeJobsTestMissingPrincipal() throws Exception {
+        useQueue();
+        when(principalService.getAll(Arrays.asList(7L))).thenReturn(Collections.emptyMap());
+        featureEnabled(7L, true, Feature.NOTIFY_UNFOLLOW);
+        when(jobQueueService.take(JobType.CREDENTIALS_CHECK, 2)).thenReturn(Collections.emptyList());
+        when(jobQueueService.take(JobType.CRON, 2)).thenReturn(Arrays.asList(7L))
+        .thenReturn(Collections.emptyList());
+
+        sut.consumeJobs();
+
+        verify(featureService, never()).cron(any(Principal.class), any(Feature.class));
+        verify(jobQueueService, times(1)).acknowledge(JobType.CRON, Arrays.asList(7L));
     }
 
     @Test
@@ -91,85 +255,356 @@ public class CronServiceTest {
         sut.cron();
     }
 
+    @Test
+    public void cronTestNoCronFeature() throws Exception {
+        principal(6L);
+        when(featureService.hasCron(any(Feature.class))).thenReturn(false);
+
+        sut.cron();
+
+        verify(principalService, never()).scanMembers(anySetOf(Feature.class));
+        verify(userService, never()).getEnabledFeatures(anyCollectionOf(Long.class));
+    }
+
     @Test
     public void cronTestEvents() throws Exception {
-        principal(12L);
+        final Principal principal = principal(12L);
         featureEnabled(12L, true, Feature.NOTIFY_UNFOLLOW, Feature.TWEET_UNFOLLOW);
 
-        when(featureService.cron(12L, Feature.NOTIFY_UNFOLLOW))
+        when(featureService.cron(principal, Feature.NOTIFY_UNFOLLOW))
         .thenReturn(new HashSet<>(Arrays.asList(new Event(EventType.UNFOLLOW, "toto"))));
-        when(featureService.cron(12L, Feature.TWEET_UNFOLLOW))
+        when(featureService.cron(principal, Feature.TWEET_UNFOLLOW))
         .thenReturn(new HashSet<>(Arrays.asList(new Event(EventType.UNFOLLOW, "toto"))));
 
         sut.cron();
 
-        verify(featureService, times(1)).cron(12L, Feature.NOTIFY_UNFOLLOW);
-        verify(featureService, times(1)).cron(12L, Feature.TWEET_UNFOLLOW);
-        verify(featureService, times(1)).completeCron(12L, Feature.NOTIFY_UNFOLLOW);
-        verify(featureService, times(1)).completeCron(12L, Feature.TWEET_UNFOLLOW);
+        verify(featureService, times(1)).cron(principal, Feature.NOTIFY_UNFOLLOW);
+        verify(featureService, times(1)).cron(principal, Feature.TWEET_UNFOLLOW);
+        verify(featureService, times(1)).completeCron(principal, Feature.NOTIFY_UNFOLLOW, 0L);
+        verify(featureService, times(1)).completeCron(principal, Feature.TWEET_UNFOLLOW, 0L);
 
-        verify(userService, times(1)).addEvent(12L, new Event(EventType.UNFOLLOW, "toto"));
+        verify(eventWriteBuffer, times(1)).addAll(12L,
+                new HashSet<>(Arrays.asList(new Event(EventType.UNFOLLOW, "toto"))));
+        verify(statisticsService, times(1)).increment(StatisticType.UNFOLLOWS_DETECTED, 1L);
     }
 
     @Test
     public void cronTestNominal() throws Exception {
-        principal(1L);
+        final Principal principal = principal(1L);
         featureEnabled(1L, true, Feature.NOTIFY_UNFOLLOW);
 
         sut.cron();
 
-        verify(featureService, times(1)).cron(1L, Feature.NOTIFY_UNFOLLOW);
-        verify(featureService, times(1)).completeCron(1L, Feature.NOTIFY_UNFOLLOW);
+        verify(featureService, times(1)).cron(principal, Feature.NOTIFY_UNFOLLOW);
+        verify(featureService, times(1)).completeCron(principal, Feature.NOTIFY_UNFOLLOW, 0L);
     }
 
     @Test
     public void cronTestNPEError() throws Exception {
-        principal(4L);
+        final Principal principal = principal(4L);
         featureEnabled(4L, true, Feature.NOTIFY_UNFOLLOW);
 
-        when(featureService.cron(4L, Feature.NOTIFY_UNFOLLOW)).thenThrow(new NullPointerException());
+        when(featureService.cron(principal, Feature.NOTIFY_UNFOLLOW)).thenThrow(new NullPointerException());
 
         sut.cron();
 
         // should have an event UNKNOWN_ERROR
-        verify(userService, times(1)).addEvent(4L, new Event(EventType.UNKNOWN_ERROR, null));
+        verify(eventWriteBuffer, times(1)).add(4L, new Event(EventType.UNKNOWN_ERROR, null));
     }
 
     @Test
     public void cronTestRateLimitError() throws Exception {
 
-        principal(3L);
+        final Principal principal = principal(3L);
         featureEnabled(3L, true, Feature.NOTIFY_UNFOLLOW);
 
-        when(featureService.cron(3L, Feature.NOTIFY_UNFOLLOW)).thenThrow(new WTFDYUMException(WTFDYUMExceptionType.GET_FOLLOWERS_RATE_LIMIT_EXCEEDED));
+        when(featureService.cron(principal, Feature.NOTIFY_UNFOLLOW)).thenThrow(new WTFDYUMException(WTFDYUMExceptionType.GET_FOLLOWERS_RATE_LIMIT_EXCEEDED));
 
         sut.cron();
 
         // should have an event RATE_LIMIT_EXCEEDED
-        verify(userService, times(1)).addEvent(3L, new Event(EventType.RATE_LIMIT_EXCEEDED, null));
+        verify(eventWriteBuffer, times(1)).add(3L, new Event(EventType.RATE_LIMIT_EXCEEDED, null));
+    }
+
+    @Test(timeout = 5000L)
+    public void cronTestTimeout() throws Exception {
+        useShortTimeout(false);
+        final Principal principal = principal(9L);
+        featureEnabled(9L, true, Feature.NOTIFY_UNFOLLOW);
+        hangs(principal, Feature.NOTIFY_UNFOLLOW);
+
+        sut.cron();
+
+        // interrupted, then tried again at the end of the sweep unless the first cron is still stopping
+        verify(featureService, atLeast(1)).cron(principal, Feature.NOTIFY_UNFOLLOW);
+        verify(featureService, atMost(2)).cron(principal, Feature.NOTIFY_UNFOLLOW);
+        verify(eventWriteBuffer, atLeast(1)).add(9L, new Event(EventType.CRON_TIMEOUT, null));
+        verify(eventWriteBuffer, never()).add(9L, new Event(EventType.UNKNOWN_ERROR, null));
+        verify(featureService, never()).completeCron(principal, Feature.NOTIFY_UNFOLLOW, 0L);
+    }
+
+    @Test(timeout = 5000L)
+    public void cronTestTimeoutStillRunning() throws Exception {
+        useShortTimeout(false);
+        final Principal principal = principal(9L);
+        featureEnabled(9L, true, Feature.NOTIFY_UNFOLLOW);
+        final CountDownLatch latch = new CountDownLatch(1);
+        when(featureService.cron(principal, Feature.NOTIFY_UNFOLLOW)).thenAnswer(invocation -> {
+            // not interruptible
+            Uninterruptibles.awaitUninterruptibly(latch);
+            return Collections.emptySet();
+        });
+
+        try {
+            sut.cron();
+        } finally {
+            latch.countDown();
+        }
+
+        // not tried again while the first cron is running
+        verify(featureService, times(1)).cron(principal, Feature.NOTIFY_UNFOLLOW);
+        verify(eventWriteBuffer, times(1)).add(9L, new Event(EventType.CRON_TIMEOUT, null));
+    }
+
+    @Test(timeout = 5000L)
+    public void cronTestTimeoutWaitingForWorker() throws Exception {
+        sut.shutdown();
+        sut = new CronServiceImpl(principalService, userService, twitterService, featureService, followersService,
+                statisticsService, jobQueueService, credentialsService, unfollowPipeline, eventWriteBuffer, clock, 2,
+                false, 86400000L, 1, 100L, false, false, 1000);
+        final Map<Long, Principal> principals = new HashMap<>();
+        final Map<Long, Set<Feature>> features = new HashMap<>();
+        for (long id = 9L; id <= 10L; id++) {
+            principals.put(id, new Principal(id, "Token " + id, "Secret " + id));
+            features.put(id, EnumSet.of(Feature.NOTIFY_UNFOLLOW));
+        }
+        when(principalService.scanMembers(EnumSet.allOf(Feature.class)))
+        .thenReturn(new CursorMockForTest<>(9L, 10L));
+        when(principalService.getAll(anyCollectionOf(Long.class))).thenReturn(principals);
+        when(userService.getEnabledFeatures(anyCollectionOf(Long.class))).thenReturn(features);
+        final CountDownLatch latch = new CountDownLatch(1);
+        when(featureService.cron(principals.get(9L), Feature.NOTIFY_UNFOLLOW)).thenAnswer(invocation -> {
+            Uninterruptibles.awaitUninterruptibly(latch);
+            return Collections.emptySet();
+        });
+
+        try {
+            sut.cron();
+        } finally {
+            latch.countDown();
+        }
+
+        // the deadline of a member starts at its submission, the only worker was held by the first one
+        verify(eventWriteBuffer, atLeast(1)).add(10L, new Event(EventType.CRON_TIMEOUT, null));
+        verify(featureService, never()).cron(principals.get(10L), Feature.NOTIFY_UNFOLLOW);
+    }
+
+    @Test(timeout = 5000L)
+    public void consumeJobsTestTimeout() throws Exception {
+        useShortTimeout(true);
+        final Principal principal = principal(9L);
+        featureEnabled(9L, true, Feature.NOTIFY_UNFOLLOW);
+        hangs(principal, Feature.NOTIFY_UNFOLLOW);
+        when(jobQueueService.take(JobType.CREDENTIALS_CHECK, 2)).thenReturn(Collections.emptyList());
+        when(jobQueueService.take(JobType.CRON, 2)).thenReturn(Arrays.asList(9L))
+        .thenReturn(Collections.emptyList());
+
+        sut.consumeJobs();
+
+        // left to be requeued
+        verify(jobQueueService, times(1)).acknowledge(JobType.CRON, Collections.emptyList());
+        verify(eventWriteBuffer, times(1)).add(9L, new Event(EventType.CRON_TIMEOUT, null));
+    }
+
+    @Test
+    public void cronTestTwitterUnavailable() throws Exception {
+        final Principal principal = principal(2L);
+        featureEnabled(2L, true, Feature.NOTIFY_UNFOLLOW);
+
+        when(featureService.cron(principal, Feature.NOTIFY_UNFOLLOW))
+        .thenThrow(new WTFDYUMException(WTFDYUMExceptionType.TWITTER_UNAVAILABLE));
+
+        sut.cron();
+
+        // skipped until twitter is back, without noise in the events
+        verify(eventWriteBuffer, never()).add(eq(2L), any(Event.class));
+        verify(featureService, never()).completeCron(principal, Feature.NOTIFY_UNFOLLOW, 0L);
     }
 
     @Test
     public void cronTestTwitterError() throws Exception {
-        principal(2L);
+        final Principal principal = principal(2L);
         featureEnabled(2L, true, Feature.NOTIFY_UNFOLLOW);
 
-        when(featureService.cron(2L, Feature.NOTIFY_UNFOLLOW)).thenThrow(new WTFDYUMException(WTFDYUMExceptionType.TWITTER_ERROR));
+        when(featureService.cron(principal, Feature.NOTIFY_UNFOLLOW)).thenThrow(new WTFDYUMException(WTFDYUMExceptionType.TWITTER_ERROR));
 
         sut.cron();
 
         // should have an event TWITTER_ERROR
-        verify(userService, times(1)).addEvent(2L, new Event(EventType.TWITTER_ERROR, null));
+        verify(eventWriteBuffer, times(1)).add(2L, new Event(EventType.TWITTER_ERROR, null));
+    }
+
+    @Test
+    public void cronTestPipeline() throws Exception {
+        usePipeline();
+        final Principal principal = principal(1L);
+        featureEnabled(1L, true, Feature.NOTIFY_UNFOLLOW, Feature.TWEET_UNFOLLOW);
+        when(unfollowPipeline.submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW, Feature.TWEET_UNFOLLOW)))
+        .thenReturn(CompletableFuture.completedFuture(true));
+
+        sut.cron();
+
+        verify(unfollowPipeline, times(1)).submit(principal,
+                EnumSet.of(Feature.NOTIFY_UNFOLLOW, Feature.TWEET_UNFOLLOW));
+        verify(unfollowPipeline, times(1)).logMetrics();
+        verify(featureService, never()).cron(any(Principal.class), any(Feature.class));
+        verify(eventWriteBuffer, never()).add(eq(1L), any(Event.class));
+    }
+
+    @Test
+    public void cronTestPipelineError() throws Exception {
+        usePipeline();
+        final Principal principal = principal(2L);
+        featureEnabled(2L, true, Feature.NOTIFY_UNFOLLOW);
+        final CompletableFuture<Boolean> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new WTFDYUMException(WTFDYUMExceptionType.TWITTER_ERROR));
+        when(unfollowPipeline.submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW))).thenReturn(failed);
+
+        sut.cron();
+
+        verify(eventWriteBuffer, times(1)).add(2L, new Event(EventType.TWITTER_ERROR, null));
+    }
+
+    @Test
+    public void cronTestPipelineTimeout() throws Exception {
+        usePipeline();
+        final Principal principal = principal(9L);
+        featureEnabled(9L, true, Feature.NOTIFY_UNFOLLOW);
+        when(unfollowPipeline.submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW)))
+        .thenReturn(CompletableFuture.completedFuture(false));
+
+        sut.cron();
+
+        // tried again at the end of the sweep
+        verify(unfollowPipeline, times(2)).submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW));
+        verify(eventWriteBuffer, times(2)).add(9L, new Event(EventType.CRON_TIMEOUT, null));
+    }
+
+    @Test
+    public void cronTestPipelineTimeoutStillRunning() throws Exception {
+        usePipeline();
+        final Principal principal = principal(9L);
+        featureEnabled(9L, true, Feature.NOTIFY_UNFOLLOW);
+        when(unfollowPipeline.submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW)))
+        .thenReturn(CompletableFuture.completedFuture(false));
+        when(unfollowPipeline.isRunning(9L)).thenReturn(false, true);
+
+        sut.cron();
+
+        verify(unfollowPipeline, times(1)).submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW));
+        verify(eventWriteBuffer, times(1)).add(9L, new Event(EventType.CRON_TIMEOUT, null));
+    }
+
+    @Test
+    public void cronTestQueue() throws Exception {
+        useQueue();
+        principal(12L);
+
+        sut.cron();
+
+        verify(jobQueueService, times(1)).enqueue(JobType.CRON, Arrays.asList(12L));
+        verify(featureService, never()).cron(any(Principal.class), any(Feature.class));
+    }
+
+    @Test
+    public void cronTestSeveralBatches() throws Exception {
+        final Map<Long, Principal> principals = new HashMap<>();
+        final Map<Long, Set<Feature>> features = new HashMap<>();
+        for (long id = 20L; id < 25L; id++) {
+            principals.put(id, new Principal(id, "Token " + id, "Secret " + id));
+            features.put(id, EnumSet.of(Feature.NOTIFY_UNFOLLOW));
+        }
+        when(principalService.scanMembers(EnumSet.allOf(Feature.class)))
+        .thenReturn(new CursorMockForTest<>(20L, 21L, 22L, 23L, 24L));
+        when(principalService.getAll(anyCollectionOf(Long.class))).thenReturn(principals);
+        when(userService.getEnabledFeatures(anyCollectionOf(Long.class))).thenReturn(features);
+
+        sut.cron();
+
+        // 5 members with a prefetch size of 2 : 3 round trips
+        verify(principalService, times(3)).getAll(anyCollectionOf(Long.class));
+        verify(userService, times(3)).getEnabledFeatures(anyCollectionOf(Long.class));
+        for (final Principal principal : principals.values()) {
+            verify(featureService, times(1)).cron(principal, Feature.NOTIFY_UNFOLLOW);
+            verify(featureService, times(1)).completeCron(principal, Feature.NOTIFY_UNFOLLOW, 0L);
+        }
+    }
+
+    @Test
+    public void cronTestBatchLoadError() throws Exception {
+        final Principal principal = new Principal(22L, "Token 22", "Secret 22");
+        when(principalService.scanMembers(EnumSet.allOf(Feature.class)))
+        .thenReturn(new CursorMockForTest<>(20L, 21L, 22L));
+        when(principalService.getAll(Arrays.asList(20L, 21L))).thenThrow(new RuntimeException("redis down"));
+        when(principalService.getAll(Arrays.asList(22L))).thenReturn(Collections.singletonMap(22L, principal));
+        featureEnabled(22L, true, Feature.NOTIFY_UNFOLLOW);
+
+        sut.cron();
+
+        // the failed batch is skipped, the sweep goes on with the next one
+        verify(featureService, times(1)).cron(principal, Feature.NOTIFY_UNFOLLOW);
+    }
+
+    @Test
+    public void cronTestMissingPrincipal() throws Exception {
+        when(principalService.scanMembers(EnumSet.allOf(Feature.class))).thenReturn(new CursorMockForTest<>(7L));
+        when(principalService.getAll(Arrays.asList(7L))).thenReturn(Collections.emptyMap());
+        featureEnabled(7L, true, Feature.NOTIFY_UNFOLLOW);
+
+        sut.cron();
+
+        verify(featureService, never()).cron(any(Principal.class), any(Feature.class));
+    }
+
+    private void useQueue() {
+        sut.shutdown();
+        sut = new CronServiceImpl(principalService, userService, twitterService, featureService, followersService,
+                statisticsService, jobQueueService, credentialsService, unfollowPipeline, eventWriteBuffer, clock, 2,
+                true, 86400000L, 4, 60000L, false, false, 1000);
+    }
+
+    private void usePipeline() {
+        sut.shutdown();
+        sut = new CronServiceImpl(principalService, userService, twitterService, featureService, followersService,
+                statisticsService, jobQueueService, credentialsService, unfollowPipeline, eventWriteBuffer, clock, 2,
+                false, 86400000L, 4, 60000L, true, false, 1000);
+    }
+
+    private void useShortTimeout(final boolean queueEnabled) {
+        sut.shutdown();
+        sut = new CronServiceImpl(principalService, userService, twitterService, featureService, followersService,
+                statisticsService, jobQueueService, credentialsService, unfollowPipeline, eventWriteBuffer, clock, 2,
+                queueEnabled, 86400000L, 4, 100L, false, false, 1000);
+    }
+
+    private void hangs(final Principal principal, final Feature feature) throws WTFDYUMException {
+        when(featureService.cron(principal, feature)).thenAnswer(invocation -> {
+            Thread.sleep(10000L);
+            return Collections.emptySet();
+        });
     }
 
     private void featureEnabled(final long userId, final boolean value, final Feature... feature) {
-        when(userService.getEnabledFeatures(userId)).thenReturn(new HashSet<>(Arrays.asList(feature)));
+        final Map<Long, Set<Feature>> features = new HashMap<>();
+        features.put(userId, new HashSet<>(Arrays.asList(feature)));
+        when(userService.getEnabledFeatures(Arrays.asList(userId))).thenReturn(features);
     }
 
     private Principal principal(final long id) {
-        when(principalService.getMembers()).thenReturn(new HashSet<>(Arrays.asList(id)));
+        when(principalService.scanMembers()).thenReturn(new CursorMockForTest<>(id));
+        when(principalService.scanMembers(EnumSet.allOf(Feature.class))).thenReturn(new CursorMockForTest<>(id));
         final Principal principal = new Principal(id, "Principal 1 Token", "Principal 1 Token Secret");
-        when(principalService.get(id)).thenReturn(principal);
+        when(principalService.getAll(Arrays.asList(id))).thenReturn(Collections.singletonMap(id, principal));
         return principal;
     }
 }
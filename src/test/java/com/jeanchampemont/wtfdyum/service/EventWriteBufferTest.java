@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
+import com.jeanchampemont.wtfdyum.dto.Event;
+import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import com.jeanchampemont.wtfdyum.service.impl.EventWriteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WTFDYUMApplication.class)
+public class EventWriteBufferTest {
+
+    @Mock
+    private UserService userService;
+
+    @Captor
+    private ArgumentCaptor<Map<Long, Collection<Event>>> events;
+
+    private final Clock clock = Clock.fixed(Instant.ofEpochMilli(200000000L), ZoneId.of("Z"));
+
+    private EventWriteBuffer sut;
+
+    @Before
+    public void _init() {
+        initMocks(this);
+        sut = new EventWriteBuffer(userService, clock, 3);
+    }
+
+    @Test
+    public void flushTest() {
+        final Event unfollow = new Event(EventType.UNFOLLOW, "a");
+        final Event error = new Event(EventType.TWITTER_ERROR, null);
+        sut.add(1L, unfollow);
+        sut.add(2L, error);
+
+        verify(userService, never()).addEvents(anyEvents());
+
+        sut.flush();
+
+        verify(userService, times(1)).addEvents(events.capture());
+        assertThat(events.getValue()).hasSize(2).containsEntry(1L, Arrays.asList(unfollow));
+        // stamped when added, not when written
+        assertThat(error.getCreationDateTime()).isEqualTo(LocalDateTime.now(clock));
+
+        sut.flush();
+
+        verify(userService, times(1)).addEvents(anyEvents());
+    }
+
+    @Test
+    public void addAllTestFull() {
+        sut.add(1L, new Event(EventType.UNFOLLOW, "a"));
+        sut.addAll(1L, Arrays.asList(new Event(EventType.UNFOLLOW, "b"), new Event(EventType.UNFOLLOW, "c")));
+
+        verify(userService, times(1)).addEvents(anyEvents());
+    }
+
+    @Test
+    public void shutdownTest() {
+        sut.add(1L, new Event(EventType.UNFOLLOW, "a"));
+
+        sut.shutdown();
+
+        verify(userService, times(1)).addEvents(anyEvents());
+    }
+
+    @Test
+    public void flushTestError() {
+        doThrow(new IllegalStateException()).when(userService).addEvents(anyEvents());
+        sut.add(1L, new Event(EventType.UNFOLLOW, "a"));
+
+        sut.flush();
+        sut.flush();
+
+        // dropped rather than piling up
+        verify(userService, times(1)).addEvents(anyEvents());
+    }
+
+    private static Map<Long, Collection<Event>> anyEvents() {
+        return any();
+    }
+}
@@ -20,6 +20,8 @@ package com.jeanchampemont.wtfdyum.service;
 import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
 import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Feature;
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.dto.User;
 import com.jeanchampemont.wtfdyum.service.feature.FeatureStrategy;
 import com.jeanchampemont.wtfdyum.service.feature.impl.NotifyUnfollowFeatureStrategy;
 import com.jeanchampemont.wtfdyum.service.impl.FeatureServiceImpl;
@@ -31,8 +33,10 @@ import org.mockito.Mock;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -59,19 +63,21 @@ public class FeatureServiceTest {
 
 	@Test
 	public void completeCronTest() throws WTFDYUMException {
-		sut.completeCron(123L, Feature.NOTIFY_UNFOLLOW);
+		final Principal principal = new Principal(123L, "token", "secret");
+		sut.completeCron(principal, Feature.NOTIFY_UNFOLLOW, 4L);
 
-		verify(notifyUnfollowFeatureService, times(1)).completeCron(123L);
+		verify(notifyUnfollowFeatureService, times(1)).completeCron(principal, 4L);
 	}
 
 	@Test
 	public void cronTest() throws WTFDYUMException {
+		final Principal principal = new Principal(123L, "token", "secret");
 		final Set<Event> expectedResult = new HashSet<>();
-		when(notifyUnfollowFeatureService.cron(123L)).thenReturn(expectedResult);
+		when(notifyUnfollowFeatureService.cron(principal)).thenReturn(expectedResult);
 
-		final Set<Event> result = sut.cron(123L, Feature.NOTIFY_UNFOLLOW);
+		final Set<Event> result = sut.cron(principal, Feature.NOTIFY_UNFOLLOW);
 
-		verify(notifyUnfollowFeatureService, times(1)).cron(123L);
+		verify(notifyUnfollowFeatureService, times(1)).cron(principal);
 
 		assertThat(result).isSameAs(expectedResult);
 	}
@@ -108,4 +114,18 @@ public class FeatureServiceTest {
 
 		assertThat(result).isTrue();
 	}
+
+	@Test
+	public void notifyUnfollowersTest() throws WTFDYUMException {
+		final Principal principal = new Principal(123L, "token", "secret");
+		final List<User> unfollowers = new ArrayList<>();
+		final Set<Event> expectedResult = new HashSet<>();
+		when(notifyUnfollowFeatureService.notifyUnfollowers(principal, unfollowers)).thenReturn(expectedResult);
+
+		final Set<Event> result = sut.notifyUnfollowers(principal, Feature.NOTIFY_UNFOLLOW, unfollowers);
+
+		verify(notifyUnfollowFeatureService, times(1)).notifyUnfollowers(principal, unfollowers);
+
+		assertThat(result).isSameAs(expectedResult);
+	}
 }
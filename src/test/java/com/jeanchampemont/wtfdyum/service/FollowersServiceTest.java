@@ -22,17 +22,24 @@ import com.jeanchampemont.wtfdyum.service.impl.FollowersServiceImpl;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.ValueOperations;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -48,37 +55,114 @@ public class FollowersServiceTest {
     @Mock
     private SetOperations<String, Long> longSetOperations;
 
+    @Mock
+    private ValueOperations<String, Long> longValueOperations;
+
+    @Mock
+    private RedisOperations<String, Long> operations;
+
+    @Mock
+    private SetOperations<String, Long> operationsSetOperations;
+
+    @Mock
+    private ValueOperations<String, Long> operationsValueOperations;
+
     @Before
+    @SuppressWarnings("unchecked")
     public void _init() {
         initMocks(this);
         sut = new FollowersServiceImpl(longRedisTemplate);
+        when(longRedisTemplate.opsForSet()).thenReturn(longSetOperations);
+        when(longRedisTemplate.opsForValue()).thenReturn(longValueOperations);
+        when(operations.opsForSet()).thenReturn(operationsSetOperations);
+        when(operations.opsForValue()).thenReturn(operationsValueOperations);
+        when(longRedisTemplate.execute(any(SessionCallback.class)))
+        .thenAnswer(invocation -> ((SessionCallback<?>) invocation.getArguments()[0]).execute(operations));
     }
 
     @Test
     public void getUnfollowersTest() {
         final Set<Long> result = new HashSet<>(Arrays.asList(124L, 901L, 44L));
 
-        when(longRedisTemplate.opsForSet()).thenReturn(longSetOperations);
-        when(longSetOperations.difference("FOLLOWERS_12", "TEMP_FOLLOWERS_12")).thenReturn(result);
+        when(longSetOperations.difference(eq("FOLLOWERS_12"), startsWith("TEMP_FOLLOWERS_12_"))).thenReturn(result);
+
+        when(longValueOperations.get("FOLLOWERS_GENERATION_12")).thenReturn(7L);
 
         final Set<Long> currentFollowersId = new HashSet<>(Arrays.asList(999L, 998L, 997L, 978L));
 
-        final Set<Long> returnedResult = sut.getUnfollowers(12L, currentFollowersId);
+        final FollowersService.Diff returnedResult = sut.getUnfollowers(12L, currentFollowersId);
 
-        verify(longSetOperations).add("TEMP_FOLLOWERS_12", 978L, 997L, 998L, 999L);
-        verify(longRedisTemplate).delete("TEMP_FOLLOWERS_12");
+        final ArgumentCaptor<String> tempKey = ArgumentCaptor.forClass(String.class);
+        verify(longSetOperations).add(tempKey.capture(), eq(978L), eq(997L), eq(998L), eq(999L));
+        assertThat(tempKey.getValue()).startsWith("TEMP_FOLLOWERS_12_");
+        verify(longRedisTemplate).delete(tempKey.getValue());
 
-        assertThat(returnedResult).isNotNull();
-        assertThat(returnedResult).isEqualTo(result);
+        assertThat(returnedResult.getUnfollowers()).isEqualTo(result);
+        assertThat(returnedResult.getGeneration()).isEqualTo(7L);
     }
 
     @Test
     public void saveFollowersTest() {
-        when(longRedisTemplate.opsForSet()).thenReturn(longSetOperations);
+        when(operationsValueOperations.get("FOLLOWERS_GENERATION_1788")).thenReturn(4L);
+        when(operations.exec()).thenReturn(Arrays.asList(1L, 3L, 5L));
+
+        final boolean result = sut.saveFollowers(1788L, new HashSet<Long>(Arrays.asList(888L, 89L, 19L)), 4L);
+
+        assertThat(result).isTrue();
+        verify(operations, times(1)).watch(Arrays.asList("FOLLOWERS_1788", "FOLLOWERS_GENERATION_1788"));
+        verify(operations, times(1)).multi();
+        verify(operations, times(1)).delete("FOLLOWERS_1788");
+        verify(operationsSetOperations, times(1)).add("FOLLOWERS_1788", 19L, 888L, 89L);
+        verify(operationsValueOperations, times(1)).increment("FOLLOWERS_GENERATION_1788", 1L);
+    }
+
+    @Test
+    public void saveFollowersTestAborted() {
+        when(operations.exec()).thenReturn((List<Object>) null).thenReturn(Collections.emptyList())
+        .thenReturn((List<Object>) null);
+
+        final boolean result = sut.saveFollowers(1788L, new HashSet<Long>(Arrays.asList(888L)), 0L);
+
+        // bounded retries
+        assertThat(result).isFalse();
+        verify(operations, times(3)).exec();
+    }
+
+    @Test
+    public void saveFollowersTestAbortedThenSaved() {
+        when(operations.exec()).thenReturn((List<Object>) null).thenReturn(Arrays.asList(1L, 1L, 1L));
+
+        final boolean result = sut.saveFollowers(1788L, new HashSet<Long>(Arrays.asList(888L)), 0L);
+
+        assertThat(result).isTrue();
+        verify(operations, times(2)).exec();
+    }
+
+    @Test
+    public void saveFollowersTestConcurrentSave() {
+        // the diff was computed against generation 4...
+        when(longValueOperations.get("FOLLOWERS_GENERATION_1788")).thenReturn(4L);
+        final long generation = sut.getUnfollowers(1788L, new HashSet<>(Arrays.asList(888L))).getGeneration();
+
+        // ...but another worker saved a newer snapshot since
+        when(operationsValueOperations.get("FOLLOWERS_GENERATION_1788")).thenReturn(5L);
+
+        final boolean result = sut.saveFollowers(1788L, new HashSet<Long>(Arrays.asList(888L, 89L)), generation);
+
+        assertThat(result).isFalse();
+        verify(operations, times(1)).unwatch();
+        verify(operations, never()).multi();
+        verify(operationsSetOperations, never()).add(anyString(), anyVararg());
+    }
+
+    @Test
+    public void saveFollowersTestEmpty() {
+        when(operations.exec()).thenReturn(Arrays.asList(1L, 1L));
 
-        sut.saveFollowers(1788L, new HashSet<Long>(Arrays.asList(888L, 89L, 19L)));
+        final boolean result = sut.saveFollowers(1788L, Collections.emptySet(), 0L);
 
-        verify(longRedisTemplate, times(1)).delete("FOLLOWERS_1788");
-        verify(longSetOperations, times(1)).add("FOLLOWERS_1788", 19L, 888L, 89L);
+        assertThat(result).isTrue();
+        verify(operations, times(1)).delete("FOLLOWERS_1788");
+        verify(operationsSetOperations, never()).add(anyString(), anyVararg());
     }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
+import com.jeanchampemont.wtfdyum.dto.type.JobType;
+import com.jeanchampemont.wtfdyum.service.impl.JobQueueServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WTFDYUMApplication.class)
+public class JobQueueServiceTest {
+
+    @Mock
+    private StringRedisTemplate stringRedisTemplate;
+
+    private Clock clock = Clock.fixed(Instant.ofEpochMilli(1000000L), ZoneId.of("Z"));
+
+    private JobQueueService sut;
+
+    @Before
+    public void _init() {
+        initMocks(this);
+        sut = new JobQueueServiceImpl(stringRedisTemplate, clock, 60000L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void acknowledgeTest() {
+        when(stringRedisTemplate.execute(any(RedisScript.class),
+                eq(Arrays.asList("JOB_PROCESSING_CRON", "JOB_PENDING_CRON")), eq("12"), eq("13")))
+        .thenReturn(Collections.emptyList());
+
+        final List<Long> late = sut.acknowledge(JobType.CRON, Arrays.asList(12L, 13L));
+
+        assertThat(late).isEmpty();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void acknowledgeTestLate() {
+        when(stringRedisTemplate.execute(any(RedisScript.class),
+                eq(Arrays.asList("JOB_PROCESSING_CRON", "JOB_PENDING_CRON")), eq("12"), eq("13")))
+        .thenReturn(Arrays.asList("13"));
+
+        final List<Long> late = sut.acknowledge(JobType.CRON, Arrays.asList(12L, 13L));
+
+        assertThat(late).containsExactly(13L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void enqueueTest() {
+        when(stringRedisTemplate.execute(any(RedisScript.class),
+                eq(Arrays.asList("JOB_QUEUE_CRON", "JOB_PENDING_CRON")), eq("1"), eq("2"))).thenReturn(1L);
+
+        final int result = sut.enqueue(JobType.CRON, Arrays.asList(1L, 2L));
+
+        assertThat(result).isEqualTo(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void extendTest() {
+        when(stringRedisTemplate.execute(any(RedisScript.class), eq(Collections.singletonList("JOB_PROCESSING_CRON")),
+                eq("1060000"), eq("4"), eq("5"))).thenReturn(1L);
+
+        final int result = sut.extend(JobType.CRON, Arrays.asList(4L, 5L));
+
+        assertThat(result).isEqualTo(1);
+    }
+
+    @Test
+    public void enqueueTestEmpty() {
+        final int result = sut.enqueue(JobType.CRON, Collections.emptyList());
+
+        assertThat(result).isEqualTo(0);
+        verifyZeroInteractions(stringRedisTemplate);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void requeueExpiredTest() {
+        when(stringRedisTemplate.execute(any(RedisScript.class),
+                eq(Arrays.asList("JOB_QUEUE_CREDENTIALS_CHECK", "JOB_PROCESSING_CREDENTIALS_CHECK",
+                        "JOB_PENDING_CREDENTIALS_CHECK")), eq("1000000")))
+        .thenReturn(3L);
+
+        final int result = sut.requeueExpired(JobType.CREDENTIALS_CHECK);
+
+        assertThat(result).isEqualTo(3);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void takeTest() {
+        when(stringRedisTemplate.execute(any(RedisScript.class),
+                eq(Arrays.asList("JOB_QUEUE_CRON", "JOB_PROCESSING_CRON")), eq("10"), eq("1060000")))
+        .thenReturn(Arrays.asList("4", "5"));
+
+        final List<Long> result = sut.take(JobType.CRON, 10);
+
+        assertThat(result).containsExactly(4L, 5L);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
+import com.jeanchampemont.wtfdyum.dto.Feature;
+import com.jeanchampemont.wtfdyum.service.impl.MaintenanceServiceImpl;
+import com.jeanchampemont.wtfdyum.utils.CursorMockForTest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WTFDYUMApplication.class)
+public class MaintenanceServiceTest {
+
+    @Mock
+    private PrincipalService principalService;
+
+    @Mock
+    private UserService userService;
+
+    @Mock
+    private FeatureService featureService;
+
+    @Mock
+    private RedisTemplate<String, Feature> featureRedisTemplate;
+
+    private MaintenanceService sut;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void _init() {
+        initMocks(this);
+        sut = new MaintenanceServiceImpl(principalService, userService, featureService, featureRedisTemplate, false);
+        when(principalService.scanMembers(anySetOf(Feature.class))).thenAnswer(i -> new CursorMockForTest<>());
+        when(featureRedisTemplate.execute(any(RedisScript.class), any(RedisSerializer.class), any(), anyListOf(String.class),
+                anyVararg())).thenReturn(0L);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void rebuildFeatureIndexTestStaleEntries() {
+        when(principalService.scanMembers()).thenReturn(new CursorMockForTest<>());
+        when(principalService.scanMembers(EnumSet.of(Feature.NOTIFY_UNFOLLOW))).thenReturn(new CursorMockForTest<>(3L));
+        when(principalService.scanMembers(EnumSet.of(Feature.TWEET_UNFOLLOW))).thenReturn(new CursorMockForTest<>());
+
+        sut.rebuildFeatureIndex();
+
+        verify(featureRedisTemplate, times(1)).execute(any(RedisScript.class), any(RedisSerializer.class), any(),
+                eq(Arrays.asList("FEATURE_BITS_3", "FEATURE_MEMBERS_NOTIFY_UNFOLLOW")), eq("0"), eq("3"));
+    }
+
+    @Test
+    public void rebuildFeatureIndexTest() {
+        when(principalService.scanMembers()).thenReturn(new CursorMockForTest<>(1L, 2L));
+        when(userService.getEnabledFeatures(1L)).thenReturn(EnumSet.of(Feature.NOTIFY_UNFOLLOW));
+        when(userService.getEnabledFeatures(2L)).thenReturn(EnumSet.noneOf(Feature.class));
+
+        sut.rebuildFeatureIndex();
+
+        verify(featureService, times(1)).enableFeature(1L, Feature.NOTIFY_UNFOLLOW);
+        verify(featureService, never()).enableFeature(1L, Feature.TWEET_UNFOLLOW);
+        verify(featureService, never()).enableFeature(eq(2L), any(Feature.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void rebuildFeatureIndexTestMigration() {
+        when(principalService.scanMembers()).thenReturn(new CursorMockForTest<>(1L));
+        when(userService.getEnabledFeatures(1L)).thenReturn(EnumSet.noneOf(Feature.class));
+
+        sut.rebuildFeatureIndex();
+
+        verify(userService, times(1)).migrateLegacyFeatures(1L);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void rebuildFeatureIndexTestUserHash() {
+        sut = new MaintenanceServiceImpl(principalService, userService, featureService, featureRedisTemplate, true);
+        when(principalService.scanMembers()).thenReturn(new CursorMockForTest<>(1L));
+        when(userService.getEnabledFeatures(1L)).thenReturn(EnumSet.noneOf(Feature.class));
+        when(principalService.scanMembers(EnumSet.of(Feature.NOTIFY_UNFOLLOW))).thenReturn(new CursorMockForTest<>(1L));
+
+        sut.rebuildFeatureIndex();
+
+        verify(principalService, times(1)).migrateToUserHash(1L);
+        verify(featureRedisTemplate, times(1)).execute(any(RedisScript.class), any(RedisSerializer.class), any(),
+                eq(Arrays.asList("USER_1", "FEATURE_MEMBERS_NOTIFY_UNFOLLOW")), eq("0"), eq("1"));
+    }
+}
@@ -18,21 +18,44 @@
 package com.jeanchampemont.wtfdyum.service;
 
 import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
+import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.Principal;
 import com.jeanchampemont.wtfdyum.service.impl.PrincipalServiceImpl;
+import com.jeanchampemont.wtfdyum.utils.CursorMockForTest;
+import com.jeanchampemont.wtfdyum.utils.PrincipalCache;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.*;
@@ -56,10 +79,23 @@ public class PrincipalServiceTest {
     @Mock
     private SetOperations<String, Long> setOperations;
 
+    @Mock
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Mock
+    private HashOperations<String, Object, Object> hashOperations;
+
+    @Mock
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private PrincipalCache principalCache;
+
     @Before
     public void ainit() {
         initMocks(this);
-        sut = new PrincipalServiceImpl(principalRedisTemplate, longRedisTemplate);
+        principalCache = new PrincipalCache(redisMessageListenerContainer, longRedisTemplate, 10, 60000);
+        sut = new PrincipalServiceImpl(principalRedisTemplate, longRedisTemplate, stringRedisTemplate, principalCache,
+                100, false);
     }
 
     @Test
@@ -72,6 +108,40 @@ public class PrincipalServiceTest {
         assertThat(result).isEqualTo(133);
     }
 
+    @Test
+    public void countMembersWithFeatureTest() {
+        when(longRedisTemplate.opsForSet()).thenReturn(setOperations);
+        when(setOperations.size("FEATURE_MEMBERS_TWEET_UNFOLLOW")).thenReturn(42L);
+
+        final int result = sut.countMembers(Feature.TWEET_UNFOLLOW);
+
+        assertThat(result).isEqualTo(42);
+    }
+
+    @Test
+    public void getAllTest() {
+        final Principal principal12 = new Principal(12L, "tok12", "sec12");
+        final Principal principal190 = new Principal(190L, "tok190", "sec190");
+        when(principalRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.multiGet(Arrays.asList("12", "13", "190")))
+                .thenReturn(Arrays.asList(principal12, null, principal190));
+
+        final Map<Long, Principal> result = sut.getAll(Arrays.asList(12L, 13L, 190L));
+
+        assertThat(result).hasSize(2);
+        assertThat(result.get(12L)).isEqualTo(principal12);
+        assertThat(result.get(190L)).isEqualTo(principal190);
+        assertThat(result.containsKey(13L)).isFalse();
+    }
+
+    @Test
+    public void getAllTestEmpty() {
+        final Map<Long, Principal> result = sut.getAll(Collections.emptyList());
+
+        assertThat(result).isEmpty();
+        verify(principalRedisTemplate, never()).opsForValue();
+    }
+
     @Test
     public void getMembersTest() {
         when(longRedisTemplate.opsForSet()).thenReturn(setOperations);
@@ -86,6 +156,61 @@ public class PrincipalServiceTest {
         assertThat(members.contains(190L)).isTrue();
     }
 
+    @Test
+    public void scanMembersTest() {
+        final Cursor<Long> cursor = new CursorMockForTest<>(12L, 13L);
+        when(longRedisTemplate.opsForSet()).thenReturn(setOperations);
+        when(setOperations.scan(eq("MEMBERS"), any(ScanOptions.class))).thenReturn(cursor);
+
+        final Cursor<Long> result = sut.scanMembers();
+
+        assertThat(result == cursor).isTrue();
+        final ArgumentCaptor<ScanOptions> options = ArgumentCaptor.forClass(ScanOptions.class);
+        verify(setOperations, times(1)).scan(eq("MEMBERS"), options.capture());
+        assertThat(options.getValue().getCount()).isEqualTo(100L);
+    }
+
+    @Test
+    public void scanMembersWithFeatureTest() {
+        final Cursor<Long> cursor = new CursorMockForTest<>(12L);
+        when(longRedisTemplate.opsForSet()).thenReturn(setOperations);
+        when(setOperations.scan(eq("FEATURE_MEMBERS_NOTIFY_UNFOLLOW"), any(ScanOptions.class))).thenReturn(cursor);
+
+        final Cursor<Long> result = sut.scanMembers(EnumSet.of(Feature.NOTIFY_UNFOLLOW));
+
+        assertThat(result == cursor).isTrue();
+        verify(setOperations, never()).unionAndStore(anyString(), anyCollectionOf(String.class), anyString());
+    }
+
+    @Test
+    public void scanMembersWithFeaturesTest() throws Exception {
+        final CursorMockForTest<Long> notifyMembers = new CursorMockForTest<>(12L, 13L);
+        final CursorMockForTest<Long> tweetMembers = new CursorMockForTest<>(13L, 14L);
+        when(longRedisTemplate.opsForSet()).thenReturn(setOperations);
+        when(setOperations.scan(eq("FEATURE_MEMBERS_NOTIFY_UNFOLLOW"), any(ScanOptions.class)))
+        .thenReturn(notifyMembers);
+        when(setOperations.scan(eq("FEATURE_MEMBERS_TWEET_UNFOLLOW"), any(ScanOptions.class)))
+        .thenReturn(tweetMembers);
+        when(longRedisTemplate.executePipelined(any(SessionCallback.class))).thenReturn(Arrays.asList(true, false));
+
+        final List<Long> members = new ArrayList<>();
+        try (Cursor<Long> result = sut.scanMembers(EnumSet.of(Feature.NOTIFY_UNFOLLOW, Feature.TWEET_UNFOLLOW))) {
+            result.forEachRemaining(members::add);
+        }
+
+        // 13 already visited with the first feature
+        assertThat(members).containsExactly(12L, 13L, 14L);
+        assertThat(notifyMembers.isClosed()).isTrue();
+        assertThat(tweetMembers.isClosed()).isTrue();
+        verify(longRedisTemplate, times(1)).executePipelined(any(SessionCallback.class));
+        verify(setOperations, never()).unionAndStore(anyString(), anyCollectionOf(String.class), anyString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scanMembersWithoutFeatureTest() {
+        sut.scanMembers(EnumSet.noneOf(Feature.class));
+    }
+
     @Test
     public void getTest() {
         final Principal u = new Principal(12L, "tokdf", "secrrr");
@@ -99,6 +224,158 @@ public class PrincipalServiceTest {
         assertThat(principal).isEqualTo(u);
     }
 
+    @Test
+    public void getTestUserHash() {
+        sut = new PrincipalServiceImpl(principalRedisTemplate, longRedisTemplate, stringRedisTemplate, principalCache,
+                100, true);
+        final Map<Object, Object> fields = new HashMap<>();
+        fields.put("token", "tokdf");
+        fields.put("tokenSecret", "secrrr");
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        when(hashOperations.entries("USER_190")).thenReturn(fields);
+
+        final Principal principal = sut.get(190L);
+
+        assertThat(principal).isEqualTo(new Principal(190L, "tokdf", "secrrr"));
+        verify(principalRedisTemplate, never()).opsForValue();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void getTestUserHashMigration() {
+        sut = new PrincipalServiceImpl(principalRedisTemplate, longRedisTemplate, stringRedisTemplate, principalCache,
+                100, true);
+        final Map<Object, Object> fields = new HashMap<>();
+        fields.put("token", "tokdf");
+        fields.put("tokenSecret", "secrrr");
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        when(hashOperations.entries("USER_190")).thenReturn(new HashMap<>(), fields);
+        final Jackson2JsonRedisSerializer<Principal> serializer = new Jackson2JsonRedisSerializer<>(Principal.class);
+        final byte[] raw = serializer.serialize(new Principal(190L, "tokdf", "secrrr"));
+        when(principalRedisTemplate.getValueSerializer()).thenReturn((Jackson2JsonRedisSerializer) serializer);
+        when(principalRedisTemplate.execute(any(RedisCallback.class))).thenReturn(raw);
+        when(stringRedisTemplate.execute(any(RedisCallback.class))).thenReturn(1L);
+
+        final Principal principal = sut.get(190L);
+
+        assertThat(principal).isEqualTo(new Principal(190L, "tokdf", "secrrr"));
+        final ArgumentCaptor<RedisCallback> callback = ArgumentCaptor.forClass(RedisCallback.class);
+        verify(stringRedisTemplate, times(1)).execute(callback.capture());
+        final RedisConnection connection = mock(RedisConnection.class);
+        callback.getValue().doInRedis(connection);
+        final ArgumentCaptor<byte[]> args = ArgumentCaptor.forClass(byte[].class);
+        verify(connection, times(1)).evalSha(anyString(), eq(ReturnType.INTEGER), eq(4), args.capture());
+
+        // the legacy principal is decoded here, whatever its encoding, the script only moves its tokens if it
+        // still holds the value read
+        assertThat(args.getAllValues().stream().map(String::new).collect(Collectors.toList())).containsExactly(
+                "USER_190", "190", "FEATURE_BITS_190", "CREDENTIALS_INVALID_190", new String(raw), "tokdf", "secrrr",
+                "CREDENTIALS_INVALID");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void getTestUserHashUnknown() {
+        sut = new PrincipalServiceImpl(principalRedisTemplate, longRedisTemplate, stringRedisTemplate, principalCache,
+                100, true);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        when(hashOperations.entries("USER_190")).thenReturn(new HashMap<>());
+        when(stringRedisTemplate.execute(any(RedisCallback.class))).thenReturn(0L);
+
+        final Principal principal = sut.get(190L);
+
+        assertThat(principal).isNull();
+        verify(hashOperations, times(1)).entries("USER_190");
+    }
+
+    @Test
+    public void migrateToUserHashTestDisabled() {
+        assertThat(sut.migrateToUserHash(190L)).isFalse();
+        verifyZeroInteractions(stringRedisTemplate);
+    }
+
+    @Test
+    public void getTestCached() {
+        final Principal u = new Principal(190L, "tokdf", "secrrr");
+
+        when(principalRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.get("190")).thenReturn(u);
+
+        sut.get(190L);
+        final Principal principal = sut.get(190L);
+
+        assertThat(principal).isEqualTo(u);
+        verify(valueOperations, times(1)).get("190");
+        verify(redisMessageListenerContainer, times(1)).addMessageListener(eq(principalCache),
+                eq(new ChannelTopic(PrincipalCache.INVALIDATION_CHANNEL)));
+    }
+
+    @Test
+    public void getTestInvalidatedByMessage() {
+        final Principal u = new Principal(190L, "tokdf", "secrrr");
+
+        when(principalRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.get("190")).thenReturn(u);
+
+        sut.get(190L);
+        principalCache.onMessage(new DefaultMessage(PrincipalCache.INVALIDATION_CHANNEL.getBytes(), "190".getBytes()),
+                null);
+        sut.get(190L);
+
+        verify(valueOperations, times(2)).get("190");
+    }
+
+    @Test
+    public void getTestInvalidatedWhileLoading() {
+        final Principal u = new Principal(190L, "tokdf", "secrrr");
+
+        when(principalRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.get("190")).thenAnswer(invocation -> {
+            // saved by another node right after this read
+            principalCache.onMessage(
+                    new DefaultMessage(PrincipalCache.INVALIDATION_CHANNEL.getBytes(), "190".getBytes()), null);
+            return u;
+        });
+
+        sut.get(190L);
+        sut.get(190L);
+
+        // the principal read before the save was not kept
+        verify(valueOperations, times(2)).get("190");
+    }
+
+    @Test
+    public void getAllTestInvalidatedWhileLoading() {
+        final Principal principal13 = new Principal(13L, "tok13", "sec13");
+        when(principalRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.multiGet(Arrays.asList("13"))).thenAnswer(invocation -> {
+            principalCache.onMessage(
+                    new DefaultMessage(PrincipalCache.INVALIDATION_CHANNEL.getBytes(), "13".getBytes()), null);
+            return Arrays.asList(principal13);
+        });
+
+        assertThat(sut.getAll(Arrays.asList(13L))).containsEntry(13L, principal13);
+        sut.getAll(Arrays.asList(13L));
+
+        verify(valueOperations, times(2)).multiGet(Arrays.asList("13"));
+    }
+
+    @Test
+    public void getAllTestCached() {
+        final Principal principal12 = new Principal(12L, "tok12", "sec12");
+        final Principal principal13 = new Principal(13L, "tok13", "sec13");
+        when(principalRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.get("12")).thenReturn(principal12);
+        when(valueOperations.multiGet(Arrays.asList("13"))).thenReturn(Arrays.asList(principal13));
+
+        sut.get(12L);
+        final Map<Long, Principal> result = sut.getAll(Arrays.asList(12L, 13L));
+
+        assertThat(result).hasSize(2);
+        assertThat(result.get(12L)).isEqualTo(principal12);
+        assertThat(result.get(13L)).isEqualTo(principal13);
+    }
+
     @Test(expected = NullPointerException.class)
     public void getTestNullId() {
         sut.get(null);
@@ -125,5 +402,25 @@ public class PrincipalServiceTest {
 
         verify(valueOperations, times(1)).set("12", u);
         verify(setOperations, times(1)).add("MEMBERS", 12L);
+        verify(longRedisTemplate, times(1)).convertAndSend(PrincipalCache.INVALIDATION_CHANNEL, 12L);
+    }
+
+    @Test
+    public void saveUpdateTestUserHash() {
+        sut = new PrincipalServiceImpl(principalRedisTemplate, longRedisTemplate, stringRedisTemplate, principalCache,
+                100, true);
+        final Principal u = new Principal(12L, "tokdf", "secrrr");
+
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        when(longRedisTemplate.opsForSet()).thenReturn(setOperations);
+
+        sut.saveUpdate(u);
+
+        final Map<String, String> fields = new HashMap<>();
+        fields.put("token", "tokdf");
+        fields.put("tokenSecret", "secrrr");
+        verify(hashOperations, times(1)).putAll("USER_12", fields);
+        verify(setOperations, times(1)).add("MEMBERS", 12L);
+        verify(principalRedisTemplate, never()).opsForValue();
     }
 }
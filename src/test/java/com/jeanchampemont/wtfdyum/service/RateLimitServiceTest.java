@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
+import com.jeanchampemont.wtfdyum.dto.type.TwitterEndpoint;
+import com.jeanchampemont.wtfdyum.service.impl.RateLimitServiceImpl;
+import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
+import com.jeanchampemont.wtfdyum.utils.WTFDYUMExceptionType;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WTFDYUMApplication.class)
+public class RateLimitServiceTest {
+
+    @Mock
+    private StringRedisTemplate stringRedisTemplate;
+
+    private Clock clock = Clock.fixed(Instant.ofEpochMilli(1000000L), ZoneId.of("Z"));
+
+    private RateLimitService sut;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void _init() {
+        initMocks(this);
+        sut = new RateLimitServiceImpl(stringRedisTemplate, clock, true, 1000L);
+        // the buckets follow the time of the Redis server, not the one of this instance
+        when(stringRedisTemplate.execute(any(RedisCallback.class))).thenReturn(5000000L);
+    }
+
+    @Test
+    public void acquireTest() throws Exception {
+        when(stringRedisTemplate.execute(anyScript(),
+                eq(Collections.singletonList("RATE_LIMIT_FOLLOWERS_IDS_12")), eq("15"), eq("900000"), eq("5000000")))
+        .thenReturn(0L);
+
+        sut.acquire(TwitterEndpoint.FOLLOWERS_IDS, 12L);
+
+        verify(stringRedisTemplate, times(1)).execute(anyScript(), anyListOf(String.class), anyVararg());
+    }
+
+    @Test
+    public void acquireTestApplicationToken() throws Exception {
+        when(stringRedisTemplate.execute(anyScript(), anyListOf(String.class), anyVararg())).thenReturn(0L);
+
+        sut.acquire(TwitterEndpoint.FOLLOWERS_IDS, null);
+
+        verify(stringRedisTemplate, times(1)).execute(anyScript(),
+                eq(Collections.singletonList("RATE_LIMIT_FOLLOWERS_IDS_APP")), eq("15"), eq("900000"), eq("5000000"));
+    }
+
+    @Test
+    public void acquireTestWait() throws Exception {
+        when(stringRedisTemplate.execute(anyScript(), anyListOf(String.class), anyVararg())).thenReturn(10L, 0L);
+
+        sut.acquire(TwitterEndpoint.USERS_SHOW, 12L);
+
+        verify(stringRedisTemplate, times(2)).execute(anyScript(),
+                eq(Collections.singletonList("RATE_LIMIT_USERS_SHOW_12")), eq("900"), eq("900000"), eq("5000000"));
+    }
+
+    @Test
+    public void acquireTestTimeout() throws Exception {
+        when(stringRedisTemplate.execute(anyScript(), anyListOf(String.class), anyVararg())).thenReturn(60000L);
+
+        try {
+            sut.acquire(TwitterEndpoint.STATUSES_UPDATE, 12L);
+            Assertions.fail("Exception not throwned");
+        } catch (final WTFDYUMException e) {
+            assertThat(e.getType()).isEqualTo(WTFDYUMExceptionType.TWITTER_RATE_LIMITED);
+        }
+        verify(stringRedisTemplate, times(1)).execute(anyScript(), anyListOf(String.class), anyVararg());
+    }
+
+    @Test
+    public void acquireTestDisabled() throws Exception {
+        sut = new RateLimitServiceImpl(stringRedisTemplate, clock, false, 1000L);
+
+        sut.acquire(TwitterEndpoint.STATUSES_UPDATE, 12L);
+
+        verify(stringRedisTemplate, never()).execute(anyScript(), anyListOf(String.class), anyVararg());
+    }
+
+    @Test
+    public void exhaustTest() {
+        sut.exhaust(TwitterEndpoint.VERIFY_CREDENTIALS, 12L, 5000L);
+
+        verify(stringRedisTemplate, times(1)).execute(anyScript(),
+                eq(Collections.singletonList("RATE_LIMIT_VERIFY_CREDENTIALS_12")), eq("900000"), eq("5000000"),
+                eq("5005000"));
+    }
+
+    private static RedisScript<Long> anyScript() {
+        return any();
+    }
+}
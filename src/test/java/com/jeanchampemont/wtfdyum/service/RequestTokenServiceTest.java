@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
+import com.jeanchampemont.wtfdyum.service.impl.RequestTokenServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import twitter4j.auth.RequestToken;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WTFDYUMApplication.class)
+public class RequestTokenServiceTest {
+
+    @Mock
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Mock
+    private ValueOperations<String, String> valueOperations;
+
+    private RequestTokenService sut;
+
+    @Before
+    public void _init() {
+        initMocks(this);
+        sut = new RequestTokenServiceImpl(stringRedisTemplate, 600000L);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+    }
+
+    @Test
+    public void consumeTest() {
+        when(stringRedisTemplate.execute(anyScript(), eq(Collections.singletonList("REQUEST_TOKEN_tok"))))
+                .thenReturn("secret");
+
+        final RequestToken result = sut.consume("tok");
+
+        assertThat(result).isEqualTo(new RequestToken("tok", "secret"));
+    }
+
+    @Test
+    public void consumeTestUnknown() {
+        when(stringRedisTemplate.execute(anyScript(), eq(Collections.singletonList("REQUEST_TOKEN_tok"))))
+                .thenReturn(null);
+
+        final RequestToken result = sut.consume("tok");
+
+        assertThat(result).isNull();
+    }
+
+    @Test
+    public void saveTest() {
+        sut.save(new RequestToken("tok", "secret"));
+
+        verify(valueOperations, times(1)).set("REQUEST_TOKEN_tok", "secret", 600000L, TimeUnit.MILLISECONDS);
+    }
+
+    private static RedisScript<String> anyScript() {
+        return any();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
+import com.jeanchampemont.wtfdyum.dto.type.StatisticType;
+import com.jeanchampemont.wtfdyum.service.impl.StatisticsServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WTFDYUMApplication.class)
+public class StatisticsServiceTest {
+
+    @Mock
+    private RedisTemplate<String, Long> longRedisTemplate;
+
+    @Mock
+    private ValueOperations<String, Long> valueOperations;
+
+    private StatisticsService sut;
+
+    @Before
+    public void _init() {
+        initMocks(this);
+        sut = new StatisticsServiceImpl(longRedisTemplate);
+        when(longRedisTemplate.opsForValue()).thenReturn(valueOperations);
+    }
+
+    @Test
+    public void getStatisticsTest() {
+        when(valueOperations.multiGet(Arrays.asList("STATISTICS_UNFOLLOWS_DETECTED", "STATISTICS_NOTIFICATIONS_SENT",
+                "STATISTICS_TWITTER_CONCURRENCY_INCREASES", "STATISTICS_TWITTER_CONCURRENCY_DECREASES")))
+                .thenReturn(Arrays.asList(12L, null, 3L, 1L));
+
+        final Map<StatisticType, Long> result = sut.getStatistics();
+
+        assertThat(result).hasSize(4);
+        assertThat(result.get(StatisticType.UNFOLLOWS_DETECTED)).isEqualTo(12L);
+        assertThat(result.get(StatisticType.NOTIFICATIONS_SENT)).isEqualTo(0L);
+        assertThat(result.get(StatisticType.TWITTER_CONCURRENCY_DECREASES)).isEqualTo(1L);
+    }
+
+    @Test
+    public void incrementTest() {
+        sut.increment(StatisticType.NOTIFICATIONS_SENT, 3L);
+
+        verify(valueOperations, times(1)).increment("STATISTICS_NOTIFICATIONS_SENT", 3L);
+    }
+
+    @Test
+    public void incrementTestZero() {
+        sut.increment(StatisticType.NOTIFICATIONS_SENT, 0L);
+
+        verify(valueOperations, never()).increment(anyString(), anyLong());
+    }
+}
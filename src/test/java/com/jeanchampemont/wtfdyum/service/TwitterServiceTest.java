@@ -19,29 +19,45 @@ package com.jeanchampemont.wtfdyum.service;
 
 import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
 import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.dto.type.TwitterEndpoint;
 import com.jeanchampemont.wtfdyum.service.impl.TwitterServiceImpl;
 import com.jeanchampemont.wtfdyum.utils.ResponseListMockForTest;
+import com.jeanchampemont.wtfdyum.utils.TwitterBulkheads;
+import com.jeanchampemont.wtfdyum.utils.TwitterCircuitBreaker;
+import com.jeanchampemont.wtfdyum.utils.TwitterCircuitBreaker.Result;
+import com.jeanchampemont.wtfdyum.utils.TwitterConcurrencyLimiter;
+import com.jeanchampemont.wtfdyum.utils.TwitterConcurrencyLimiter.Outcome;
 import com.jeanchampemont.wtfdyum.utils.TwitterFactoryHolder;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMExceptionType;
 import org.assertj.core.api.Assertions;
 import org.dozer.Mapper;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 import twitter4j.*;
 import twitter4j.api.UsersResources;
 import twitter4j.auth.AccessToken;
 import twitter4j.auth.RequestToken;
 
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.*;
@@ -58,7 +74,7 @@ public class TwitterServiceTest {
     @Autowired
     private Mapper mapper;
 
-    private TwitterService sut;
+    private TwitterServiceImpl sut;
 
     @Mock
     private Twitter twitter;
@@ -69,11 +85,32 @@ public class TwitterServiceTest {
     @Mock
     private TwitterFactoryHolder twitterFactory;
 
+    @Mock
+    private CredentialsService credentialsService;
+
+    @Mock
+    private RateLimitService rateLimitService;
+
+    @Mock
+    private TwitterConcurrencyLimiter concurrencyLimiter;
+
+    @Mock
+    private TwitterCircuitBreaker circuitBreaker;
+
+    @Mock
+    private TwitterBulkheads bulkheads;
+
     @Before
     public void ainit() {
         initMocks(this);
         when(twitterFactory.getInstance()).thenReturn(twitter);
-        sut = new TwitterServiceImpl(twitterFactory, mapper, DEFAULT_BASE_URL, "appId", "appSecret");
+        sut = new TwitterServiceImpl(twitterFactory, mapper, credentialsService, rateLimitService,
+                concurrencyLimiter, circuitBreaker, bulkheads, DEFAULT_BASE_URL, "appId", "appSecret", 2, false);
+    }
+
+    @After
+    public void _destroy() {
+        sut.shutdown();
     }
 
     @Test
@@ -130,6 +167,18 @@ public class TwitterServiceTest {
         verify(twitter, times(1)).setOAuthAccessToken(new AccessToken("toktok", "secsecret"));
     }
 
+    @Test
+    public void getFollowersAsyncTest() throws Exception {
+        final IDs idsMock = mock(IDs.class);
+        when(twitter.getFollowersIDs(444L, -1)).thenReturn(idsMock);
+        when(idsMock.getIDs()).thenReturn(new long[]{12L, 34L});
+
+        final CompletableFuture<Set<Long>> followers = sut.getFollowersAsync(444L, Optional.empty());
+
+        assertThat(followers.get()).containsOnly(12L, 34L);
+        verify(rateLimitService, times(1)).acquire(TwitterEndpoint.FOLLOWERS_IDS, null);
+    }
+
     @Test
     public void getFollowersMultiplePageTest() throws Exception {
         final Optional<Principal> principal = Optional.of(new Principal(123L, "toktok", "secsecret"));
@@ -158,6 +207,7 @@ public class TwitterServiceTest {
         assertThat(followers).containsOnly(12L, 34L, 44L, 42L, 999L, 1001L, 1002L, 1003L);
 
         verify(twitter, times(1)).setOAuthAccessToken(new AccessToken("toktok", "secsecret"));
+        verify(rateLimitService, times(2)).acquire(TwitterEndpoint.FOLLOWERS_IDS, 123L);
     }
 
     @Test
@@ -382,6 +432,48 @@ public class TwitterServiceTest {
         sut.getUser(new Principal(1L, "", ""), 123L);
     }
 
+    @Test
+    public void getUserTestWebRequest() throws Exception {
+        final User userMock = mock(User.class);
+        when(twitter.users()).thenReturn(usersResources);
+        final List<Thread> threads = new ArrayList<>();
+        when(usersResources.showUser(123L)).thenAnswer(invocation -> {
+            threads.add(Thread.currentThread());
+            return userMock;
+        });
+        when(userMock.getId()).thenReturn(123L);
+
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        try {
+            sut.getUser(new Principal(1L, "", ""), 123L);
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+
+        // not queued behind the scheduled jobs
+        assertThat(threads).containsExactly(Thread.currentThread());
+    }
+
+    @Test(timeout = 5000L)
+    public void tweetAsyncTestCancelledWhileWaiting() throws Exception {
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final CountDownLatch rateLimited = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            waiting.countDown();
+            rateLimited.await();
+            return null;
+        }).when(rateLimitService).acquire(TwitterEndpoint.STATUSES_UPDATE, 144L);
+
+        final CompletableFuture<Void> result = sut.tweetAsync(new Principal(144L, "tok", "toksec"), "cancelled");
+        waiting.await();
+        result.cancel(true);
+        rateLimited.countDown();
+
+        verify(circuitBreaker, timeout(1000L)).release(TwitterEndpoint.STATUSES_UPDATE, 0L, Result.NOT_CALLED);
+        verify(bulkheads, never()).acquire(any(TwitterEndpoint.class));
+        verify(twitter, never()).updateStatus(anyString());
+    }
+
     @Test
     public void sendDirectMessageTest() throws Exception {
         final Principal principal = new Principal(123L, "toktok", "secsecret");
@@ -429,6 +521,42 @@ public class TwitterServiceTest {
     public void tweetTest() throws Exception {
         sut.tweet(new Principal(144L, "tok", "toksec"), "my brand new tweet");
         verify(twitter, times(1)).updateStatus("my brand new tweet");
+        final InOrder inOrder = inOrder(rateLimitService, bulkheads, concurrencyLimiter);
+        inOrder.verify(rateLimitService, times(1)).acquire(TwitterEndpoint.STATUSES_UPDATE, 144L);
+        inOrder.verify(bulkheads, times(1)).acquire(TwitterEndpoint.STATUSES_UPDATE);
+        inOrder.verify(concurrencyLimiter, times(1)).acquire();
+        verify(concurrencyLimiter, times(1)).release(any(), eq(Outcome.SUCCESS));
+        verify(bulkheads, times(1)).release(TwitterEndpoint.STATUSES_UPDATE);
+        verify(circuitBreaker, times(1)).release(TwitterEndpoint.STATUSES_UPDATE, 0L, Result.SUCCESS);
+    }
+
+    @Test
+    public void tweetTestCircuitOpen() throws Exception {
+        doThrow(new WTFDYUMException(WTFDYUMExceptionType.TWITTER_UNAVAILABLE)).when(circuitBreaker)
+        .acquire(TwitterEndpoint.STATUSES_UPDATE);
+        try {
+            sut.tweet(new Principal(144L, "tok", "toksec"), "my brand new tweet");
+            Assertions.fail("Exception not throwned");
+        } catch (final WTFDYUMException e) {
+            assertThat(e.getType()).isEqualTo(WTFDYUMExceptionType.TWITTER_UNAVAILABLE);
+        }
+        verify(twitter, never()).updateStatus(anyString());
+        verify(bulkheads, never()).acquire(any(TwitterEndpoint.class));
+    }
+
+    @Test
+    public void tweetTestBulkheadFull() throws Exception {
+        doThrow(new WTFDYUMException(WTFDYUMExceptionType.TWITTER_UNAVAILABLE)).when(bulkheads)
+        .acquire(TwitterEndpoint.STATUSES_UPDATE);
+        try {
+            sut.tweet(new Principal(144L, "tok", "toksec"), "my brand new tweet");
+            Assertions.fail("Exception not throwned");
+        } catch (final WTFDYUMException e) {
+            assertThat(e.getType()).isEqualTo(WTFDYUMExceptionType.TWITTER_UNAVAILABLE);
+        }
+        verify(twitter, never()).updateStatus(anyString());
+        verify(bulkheads, never()).release(any(TwitterEndpoint.class));
+        verify(circuitBreaker, times(1)).release(TwitterEndpoint.STATUSES_UPDATE, 0L, Result.NOT_CALLED);
     }
 
     @Test(expected = WTFDYUMException.class)
@@ -438,16 +566,100 @@ public class TwitterServiceTest {
     }
 
     @Test
-    public void verifyCredentialsTestFalse() throws TwitterException {
+    public void tweetTestRateLimitExceeded() throws Exception {
+        when(twitter.updateStatus("my brand new tweet")).thenThrow(new TwitterException("", null, 429));
+        try {
+            sut.tweet(new Principal(144L, "tok", "toksec"), "my brand new tweet");
+            Assertions.fail("Exception not throwned");
+        } catch (final WTFDYUMException e) {
+            assertThat(e.getType()).isEqualTo(WTFDYUMExceptionType.TWITTER_ERROR);
+        }
+        verify(rateLimitService, times(1)).exhaust(TwitterEndpoint.STATUSES_UPDATE, 144L,
+                TwitterEndpoint.STATUSES_UPDATE.getWindow());
+        verify(concurrencyLimiter, times(1)).release(any(), eq(Outcome.THROTTLED));
+    }
+
+    @Test(expected = WTFDYUMException.class)
+    public void tweetTestTimeout() throws Exception {
+        when(twitter.updateStatus("my brand new tweet"))
+        .thenThrow(new TwitterException("", new SocketTimeoutException(), 0));
+        try {
+            sut.tweet(new Principal(144L, "tok", "toksec"), "my brand new tweet");
+        } finally {
+            verify(concurrencyLimiter, times(1)).release(any(), eq(Outcome.TIMEOUT));
+            verify(circuitBreaker, times(1)).release(TwitterEndpoint.STATUSES_UPDATE, 0L, Result.FAILURE);
+        }
+    }
+
+    @Test
+    public void tweetTestThrottled() throws Exception {
+        doThrow(new WTFDYUMException(WTFDYUMExceptionType.TWITTER_RATE_LIMITED)).when(rateLimitService)
+        .acquire(TwitterEndpoint.STATUSES_UPDATE, 144L);
+        try {
+            sut.tweet(new Principal(144L, "tok", "toksec"), "my brand new tweet");
+            Assertions.fail("Exception not throwned");
+        } catch (final WTFDYUMException e) {
+            assertThat(e.getType()).isEqualTo(WTFDYUMExceptionType.TWITTER_RATE_LIMITED);
+        }
+        verify(twitter, never()).updateStatus(anyString());
+        verify(concurrencyLimiter, never()).acquire();
+    }
+
+    @Test
+    public void verifyCredentialsTestFalse() throws Exception {
         when(twitter.verifyCredentials()).thenThrow(new TwitterException(""));
         final boolean result = sut.verifyCredentials(new Principal(12L, "tre", "tr"));
         assertThat(result).isFalse();
+        verify(credentialsService, never()).markVerified(12L);
     }
 
     @Test
-    public void verifyCredentialsTestTrue() throws TwitterException {
+    public void verifyCredentialsTestTrue() throws Exception {
         when(twitter.verifyCredentials()).thenReturn(null);
         final boolean result = sut.verifyCredentials(new Principal(12L, "tre", "tr"));
         assertThat(result).isTrue();
+        verify(credentialsService, times(1)).markVerified(12L);
+        verify(rateLimitService, times(1)).acquire(TwitterEndpoint.VERIFY_CREDENTIALS, 12L);
+    }
+
+    @Test
+    public void verifyCredentialsAsyncTestRateLimitExceeded() throws Exception {
+        when(twitter.verifyCredentials()).thenThrow(new TwitterException("", null, 429));
+
+        final CompletableFuture<Boolean> result = sut.verifyCredentialsAsync(new Principal(12L, "tre", "tr"));
+
+        try {
+            result.get();
+            Assertions.fail("Exception not throwned");
+        } catch (final ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(WTFDYUMException.class);
+            assertThat(((WTFDYUMException) e.getCause()).getType())
+            .isEqualTo(WTFDYUMExceptionType.TWITTER_RATE_LIMITED);
+        }
+    }
+
+    @Test
+    public void verifyCredentialsTestServerError() throws Exception {
+        when(twitter.verifyCredentials()).thenThrow(new TwitterException("", null, 503));
+        try {
+            sut.verifyCredentials(new Principal(12L, "tre", "tr"));
+            Assertions.fail("Exception not throwned");
+        } catch (final WTFDYUMException e) {
+            assertThat(e.getType()).isEqualTo(WTFDYUMExceptionType.TWITTER_ERROR);
+        }
+        verify(circuitBreaker, times(1)).release(TwitterEndpoint.VERIFY_CREDENTIALS, 0L, Result.FAILURE);
+    }
+
+    @Test
+    public void verifyCredentialsTestRateLimitExceeded() throws Exception {
+        when(twitter.verifyCredentials()).thenThrow(new TwitterException("", null, 429));
+        try {
+            sut.verifyCredentials(new Principal(12L, "tre", "tr"));
+            Assertions.fail("Exception not throwned");
+        } catch (final WTFDYUMException e) {
+            assertThat(e.getType()).isEqualTo(WTFDYUMExceptionType.TWITTER_RATE_LIMITED);
+        }
+        verify(rateLimitService, times(1)).exhaust(TwitterEndpoint.VERIFY_CREDENTIALS, 12L,
+                TwitterEndpoint.VERIFY_CREDENTIALS.getWindow());
     }
 }
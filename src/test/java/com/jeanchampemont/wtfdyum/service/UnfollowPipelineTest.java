@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.service;
+
+import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
+import com.jeanchampemont.wtfdyum.dto.Event;
+import com.jeanchampemont.wtfdyum.dto.Feature;
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.dto.User;
+import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import com.jeanchampemont.wtfdyum.dto.type.StatisticType;
+import com.jeanchampemont.wtfdyum.service.impl.EventWriteBuffer;
+import com.jeanchampemont.wtfdyum.service.impl.UnfollowPipeline;
+import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
+import com.jeanchampemont.wtfdyum.utils.WTFDYUMExceptionType;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WTFDYUMApplication.class)
+public class UnfollowPipelineTest {
+
+    @Mock
+    private TwitterService twitterService;
+
+    @Mock
+    private FollowersService followersService;
+
+    @Mock
+    private FeatureService featureService;
+
+    @Mock
+    private EventWriteBuffer eventWriteBuffer;
+
+    @Mock
+    private StatisticsService statisticsService;
+
+    @Captor
+    private ArgumentCaptor<List<User>> notified;
+
+    private UnfollowPipeline sut;
+
+    @Before
+    public void _init() throws Exception {
+        initMocks(this);
+        sut = new UnfollowPipeline(twitterService, followersService, featureService, eventWriteBuffer,
+                statisticsService, 2, 1, 1, 2, 1, 10, 50L, 60000L, false);
+        when(twitterService.getUsers(any(Principal.class), (long[]) anyVararg())).thenAnswer(invocation -> {
+            final List<User> users = new ArrayList<>();
+            for (int i = 1; i < invocation.getArguments().length; i++) {
+                users.add(user((Long) invocation.getArguments()[i]));
+            }
+            return users;
+        });
+        when(followersService.saveFollowers(anyLong(), anySetOf(Long.class), anyLong())).thenReturn(true);
+    }
+
+    @After
+    public void _destroy() {
+        sut.shutdown();
+    }
+
+    @Test(timeout = 5000L)
+    public void submitTest() throws Exception {
+        final Principal principal = new Principal(1L, "token", "secret");
+        final Set<Long> followers = followers(principal, 10L, 11L);
+        when(followersService.getUnfollowers(1L, followers))
+        .thenReturn(new FollowersService.Diff(new HashSet<>(Arrays.asList(12L)), 3L));
+        final Set<Event> events = Collections.singleton(new Event(EventType.UNFOLLOW, "user12"));
+        when(featureService.notifyUnfollowers(eq(principal), any(Feature.class), anyListOf(User.class)))
+        .thenReturn(events);
+
+        final boolean done = sut.submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW, Feature.TWEET_UNFOLLOW))
+                .get();
+
+        assertThat(done).isTrue();
+        // fetched, diffed and looked up once for both features
+        verify(twitterService, times(1)).getFollowersAsync(1L, Optional.of(principal));
+        verify(followersService, times(1)).getUnfollowers(1L, followers);
+        verify(twitterService, times(1)).getUsers(principal, 12L);
+        verify(featureService, times(1)).notifyUnfollowers(eq(principal), eq(Feature.NOTIFY_UNFOLLOW),
+                anyListOf(User.class));
+        verify(featureService, times(1)).notifyUnfollowers(eq(principal), eq(Feature.TWEET_UNFOLLOW),
+                anyListOf(User.class));
+        verify(eventWriteBuffer, times(1)).addAll(1L,
+                new HashSet<>(Arrays.asList(new Event(EventType.UNFOLLOW, "user12"))));
+        verify(statisticsService, times(1)).increment(StatisticType.UNFOLLOWS_DETECTED, 1L);
+        // against the snapshot of the diff
+        verify(followersService, times(1)).saveFollowers(1L, followers, 3L);
+    }
+
+    @Test(timeout = 5000L)
+    public void submitTestNoUnfollowers() throws Exception {
+        final Principal principal = new Principal(1L, "token", "secret");
+        final Set<Long> followers = followers(principal, 10L);
+        when(followersService.getUnfollowers(1L, followers))
+        .thenReturn(new FollowersService.Diff(Collections.emptySet(), 0L));
+
+        assertThat(sut.submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW)).get()).isTrue();
+
+        verify(twitterService, never()).getUsers(any(Principal.class), (long[]) anyVararg());
+        verify(featureService, never()).notifyUnfollowers(any(Principal.class), any(Feature.class),
+                anyListOf(User.class));
+        verify(followersService, times(1)).saveFollowers(1L, followers, 0L);
+    }
+
+    @Test(timeout = 5000L)
+    public void submitTestSnapshotNotSaved() throws Exception {
+        final Principal principal = new Principal(1L, "token", "secret");
+        final Set<Long> followers = followers(principal, 10L);
+        when(followersService.getUnfollowers(1L, followers))
+        .thenReturn(new FollowersService.Diff(new HashSet<>(Arrays.asList(12L)), 3L));
+        when(featureService.notifyUnfollowers(eq(principal), any(Feature.class), anyListOf(User.class)))
+        .thenReturn(Collections.singleton(new Event(EventType.UNFOLLOW, "user12")));
+        when(followersService.saveFollowers(1L, followers, 3L)).thenReturn(false);
+
+        // the unfollowers are notified, the cron is over anyway
+        assertThat(sut.submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW)).get()).isTrue();
+
+        verify(eventWriteBuffer, times(1)).addAll(1L,
+                new HashSet<>(Arrays.asList(new Event(EventType.UNFOLLOW, "user12"))));
+        verify(followersService, times(1)).saveFollowers(1L, followers, 3L);
+    }
+
+    @Test(timeout = 5000L)
+    public void submitTestLookupBatching() throws Exception {
+        final List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (long userId = 1L; userId <= 3L; userId++) {
+            final Principal principal = new Principal(userId, "token", "secret");
+            final Set<Long> followers = followers(principal, 1L);
+            // 50 unfollowers each
+            final Set<Long> unfollowers = LongStream.range(userId * 1000L, userId * 1000L + 50L).boxed()
+                    .collect(Collectors.toSet());
+            when(followersService.getUnfollowers(userId, followers))
+            .thenReturn(new FollowersService.Diff(unfollowers, 0L));
+            results.add(sut.submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW)));
+        }
+        for (final CompletableFuture<Boolean> result : results) {
+            assertThat(result.get()).isTrue();
+        }
+
+        // a full request of 100 ids, then the remaining 50 ids after the linger
+        verify(twitterService, times(2)).getUsers(any(Principal.class), (long[]) anyVararg());
+        verify(featureService, times(3)).notifyUnfollowers(any(Principal.class), eq(Feature.NOTIFY_UNFOLLOW),
+                notified.capture());
+        for (final List<User> u : notified.getAllValues()) {
+            assertThat(u).hasSize(50);
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void submitTestLookupOtherCredentials() throws Exception {
+        final List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (long userId = 1L; userId <= 2L; userId++) {
+            final Principal principal = new Principal(userId, "token", "secret");
+            final Set<Long> followers = followers(principal, 1L);
+            when(followersService.getUnfollowers(userId, followers))
+            .thenReturn(new FollowersService.Diff(Collections.singleton(userId * 1000L), 0L));
+        }
+        final AtomicInteger lookups = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (lookups.incrementAndGet() == 1) {
+                throw new WTFDYUMException(WTFDYUMExceptionType.TWITTER_ERROR);
+            }
+            final List<User> users = new ArrayList<>();
+            for (int i = 1; i < invocation.getArguments().length; i++) {
+                users.add(user((Long) invocation.getArguments()[i]));
+            }
+            return users;
+        }).when(twitterService).getUsers(any(Principal.class), (long[]) anyVararg());
+        for (long userId = 1L; userId <= 2L; userId++) {
+            results.add(sut.submit(new Principal(userId, "token", "secret"), EnumSet.of(Feature.NOTIFY_UNFOLLOW)));
+        }
+
+        for (final CompletableFuture<Boolean> result : results) {
+            assertThat(result.get()).isTrue();
+        }
+        // packed together, then tried again with the credentials of the other member
+        final ArgumentCaptor<Principal> principals = ArgumentCaptor.forClass(Principal.class);
+        verify(twitterService, times(2)).getUsers(principals.capture(), (long[]) anyVararg());
+        assertThat(principals.getAllValues().get(0)).isNotEqualTo(principals.getAllValues().get(1));
+    }
+
+    @Test(timeout = 5000L)
+    public void submitTestError() throws Exception {
+        final Principal principal = new Principal(1L, "token", "secret");
+        final CompletableFuture<Set<Long>> followers = new CompletableFuture<>();
+        followers.completeExceptionally(new WTFDYUMException(WTFDYUMExceptionType.TWITTER_ERROR));
+        when(twitterService.getFollowersAsync(1L, Optional.of(principal))).thenReturn(followers);
+
+        try {
+            sut.submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW)).get();
+            fail("The error should be reported");
+        } catch (final ExecutionException e) {
+            assertThat(((WTFDYUMException) e.getCause()).getType()).isEqualTo(WTFDYUMExceptionType.TWITTER_ERROR);
+        }
+
+        verify(followersService, never()).saveFollowers(anyLong(), anySetOf(Long.class), anyLong());
+    }
+
+    @Test(timeout = 5000L)
+    public void submitTestTimeout() throws Exception {
+        sut.shutdown();
+        sut = new UnfollowPipeline(twitterService, followersService, featureService, eventWriteBuffer,
+                statisticsService, 2, 1, 1, 2, 1, 10, 50L, 100L, false);
+        final Principal principal = new Principal(1L, "token", "secret");
+        final CompletableFuture<Set<Long>> followers = new CompletableFuture<>();
+        when(twitterService.getFollowersAsync(1L, Optional.of(principal))).thenReturn(followers);
+
+        assertThat(sut.submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW)).get()).isFalse();
+
+        // the request is cancelled, no thread waited for it
+        assertThat(followers.isCancelled()).isTrue();
+        verify(followersService, never()).getUnfollowers(anyLong(), anySetOf(Long.class));
+        verify(followersService, never()).saveFollowers(anyLong(), anySetOf(Long.class), anyLong());
+    }
+
+    @Test(timeout = 5000L)
+    public void submitTestTimeoutStillRunning() throws Exception {
+        sut.shutdown();
+        sut = new UnfollowPipeline(twitterService, followersService, featureService, eventWriteBuffer,
+                statisticsService, 2, 1, 1, 2, 1, 10, 50L, 100L, false);
+        final Principal principal = new Principal(1L, "token", "secret");
+        final Set<Long> followers = followers(principal, 10L);
+        final CountDownLatch latch = new CountDownLatch(1);
+        when(followersService.getUnfollowers(1L, followers)).thenAnswer(invocation -> {
+            // not interruptible
+            Uninterruptibles.awaitUninterruptibly(latch);
+            return new FollowersService.Diff(Collections.emptySet(), 0L);
+        });
+
+        assertThat(sut.submit(principal, EnumSet.of(Feature.NOTIFY_UNFOLLOW)).get()).isFalse();
+        assertThat(sut.isRunning(1L)).isTrue();
+
+        latch.countDown();
+        while (sut.isRunning(1L)) {
+            Thread.sleep(10L);
+        }
+        verify(followersService, never()).saveFollowers(anyLong(), anySetOf(Long.class), anyLong());
+    }
+
+    private Set<Long> followers(final Principal principal, final Long... ids) {
+        final Set<Long> followers = new HashSet<>(Arrays.asList(ids));
+        when(twitterService.getFollowersAsync(principal.getUserId(), Optional.of(principal)))
+        .thenReturn(CompletableFuture.completedFuture(followers));
+        return followers;
+    }
+
+    private User user(final long id) {
+        final User user = new User();
+        user.setId(id);
+        user.setScreenName("user" + id);
+        return user;
+    }
+}
@@ -17,22 +17,33 @@
  */
 package com.jeanchampemont.wtfdyum.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.jeanchampemont.wtfdyum.WTFDYUMApplication;
 import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.type.EventType;
 import com.jeanchampemont.wtfdyum.dto.type.UserLimitType;
 import com.jeanchampemont.wtfdyum.service.impl.UserServiceImpl;
+import com.jeanchampemont.wtfdyum.utils.EventArchive;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.HashOperations;
 import org.springframework.data.redis.core.ListOperations;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.time.Clock;
@@ -40,9 +51,13 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.eq;
@@ -76,15 +91,25 @@ public class UserServiceTest {
     @Mock
     private ListOperations<String, Event> eventListOperations;
 
+    @Mock
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Mock
+    private HashOperations<String, Object, Object> hashOperations;
+
     @Mock
     private FeatureService featureService;
 
+    @Mock
+    private PrincipalService principalService;
+
     private final Clock clock = Clock.fixed(Instant.parse("2007-12-03T10:15:30.00Z"), ZoneId.of("Z"));
 
     @Before
     public void _init() {
         initMocks(this);
-        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, featureService, clock);
+        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, stringRedisTemplate,
+                featureService, principalService, clock, false, 0, 100, 20, false);
     }
 
     @Test
@@ -99,6 +124,135 @@ public class UserServiceTest {
         assertThat(event.getCreationDateTime()).isEqualTo(LocalDateTime.now(clock));
     }
 
+    @Test
+    public void addEventsTest() {
+        when(eventRedisTemplate.opsForList()).thenReturn(eventListOperations);
+
+        final List<Event> events = Arrays.asList(new Event(EventType.UNFOLLOW, "a"),
+                new Event(EventType.UNFOLLOW, "b"));
+
+        sut.addEvents(31L, events);
+
+        verify(eventListOperations, times(1)).leftPushAll("EVENTS_31", events);
+        assertThat(events.get(1).getCreationDateTime()).isEqualTo(LocalDateTime.now(clock));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void addEventTestCapped() {
+        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, stringRedisTemplate,
+                featureService, principalService, clock, false, 2, 2, 3, false);
+        when(eventRedisTemplate.getValueSerializer()).thenReturn((Jackson2JsonRedisSerializer) eventSerializer());
+        when(eventRedisTemplate.execute(any(RedisCallback.class))).thenReturn(Arrays.asList(Collections.emptyList()));
+
+        sut.addEvent(31L, new Event(EventType.REGISTRATION, "data"));
+
+        // pushed and trimmed in one call, nothing to archive
+        verify(eventRedisTemplate, times(1)).execute(any(RedisCallback.class));
+        verify(eventRedisTemplate, never()).executePipelined(any(RedisCallback.class));
+        verify(eventRedisTemplate, never()).opsForList();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void addEventTestCappedArchive() {
+        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, stringRedisTemplate,
+                featureService, principalService, clock, false, 2, 2, 3, false);
+        when(eventRedisTemplate.getValueSerializer()).thenReturn((Jackson2JsonRedisSerializer) eventSerializer());
+        when(eventRedisTemplate.execute(any(RedisCallback.class))).thenReturn(Arrays.asList(Arrays.asList(
+                eventSerializer().serialize(new Event(EventType.UNFOLLOW, "b")),
+                eventSerializer().serialize(new Event(EventType.UNFOLLOW, "a")))));
+
+        sut.addEvent(31L, new Event(EventType.REGISTRATION, "data"));
+
+        // the events moved out are archived, and only then trimmed, in a second script call
+        final ArgumentCaptor<RedisCallback> callbacks = ArgumentCaptor.forClass(RedisCallback.class);
+        verify(eventRedisTemplate, times(2)).execute(callbacks.capture());
+        final RedisConnection connection = mock(RedisConnection.class);
+        callbacks.getAllValues().get(1).doInRedis(connection);
+        final ArgumentCaptor<byte[]> args = ArgumentCaptor.forClass(byte[].class);
+        verify(connection, times(1)).evalSha(anyString(), eq(ReturnType.INTEGER), eq(2), args.capture());
+
+        // keys, max chunks, events moved, oldest and most recent of them, then the chunk
+        assertThat(args.getAllValues()).hasSize(8);
+        assertThat(new String(args.getAllValues().get(0))).isEqualTo("EVENTS_31");
+        assertThat(new String(args.getAllValues().get(1))).isEqualTo("EVENTS_ARCHIVE_31");
+        assertThat(eventSerializer().deserialize(args.getAllValues().get(4)).getAdditionalData()).isEqualTo("a");
+        assertThat(eventSerializer().deserialize(args.getAllValues().get(5)).getAdditionalData()).isEqualTo("b");
+        assertThat(EventArchive.decode(args.getAllValues().get(7), eventSerializer())).extracting("additionalData")
+                .containsExactly("b", "a");
+        verify(eventRedisTemplate, never()).executePipelined(any(RedisCallback.class));
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void addEventTestCompacted() {
+        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, stringRedisTemplate,
+                featureService, principalService, clock, false, 0, 100, 20, true);
+        final Event head = new Event(EventType.TWITTER_ERROR, null);
+        head.setCreationDateTime(LocalDateTime.now(clock).minusHours(1));
+        when(eventRedisTemplate.getValueSerializer()).thenReturn((Jackson2JsonRedisSerializer) eventSerializer());
+        when(eventRedisTemplate.execute(any(RedisCallback.class)))
+                .thenReturn(Arrays.asList(eventSerializer().serialize(head)))
+                .thenReturn(Arrays.asList(Collections.emptyList()));
+
+        sut.addEvent(31L, new Event(EventType.TWITTER_ERROR, null));
+
+        final ArgumentCaptor<RedisCallback> callbacks = ArgumentCaptor.forClass(RedisCallback.class);
+        verify(eventRedisTemplate, times(2)).execute(callbacks.capture());
+        final RedisConnection connection = mock(RedisConnection.class);
+        callbacks.getAllValues().get(1).doInRedis(connection);
+        final ArgumentCaptor<byte[]> args = ArgumentCaptor.forClass(byte[].class);
+        verify(connection, times(1)).evalSha(anyString(), eq(ReturnType.MULTI), eq(1), args.capture());
+
+        // key, max size, chunk size, archive flag, expected head, merged head, then the event pushed if the head
+        // changed
+        final Event merged = eventSerializer().deserialize(args.getAllValues().get(5));
+        assertThat(merged.getCount()).isEqualTo(2);
+        assertThat(merged.getCreationDateTime()).isEqualTo(LocalDateTime.now(clock));
+        assertThat(merged.getFirstCreationDateTime()).isEqualTo(head.getCreationDateTime());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void addEventsTestSeveralUsers() {
+        final Map<Long, List<Event>> events = new HashMap<>();
+        events.put(31L, Arrays.asList(new Event(EventType.UNFOLLOW, "a")));
+        events.put(32L, Arrays.asList(new Event(EventType.TWITTER_ERROR, null)));
+
+        sut.addEvents(events);
+
+        // a single pipelined round trip
+        verify(eventRedisTemplate, times(1)).executePipelined(any(SessionCallback.class));
+        verify(eventRedisTemplate, never()).opsForList();
+        assertThat(events.get(32L).get(0).getCreationDateTime()).isEqualTo(LocalDateTime.now(clock));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void applyLimitBatchTest() {
+        when(eventRedisTemplate.opsForList()).thenReturn(eventListOperations);
+        when(stringRedisTemplate.executePipelined(any(RedisCallback.class))).thenReturn(Arrays.asList(4L, 5L));
+
+        final Set<Long> result = sut.applyLimit(Arrays.asList(441L, 442L), UserLimitType.CREDENTIALS_INVALID);
+
+        assertThat(result).containsOnly(442L);
+        for (final Feature f : Feature.values()) {
+            verify(featureService, never()).disableFeature(441L, f);
+            verify(featureService, times(1)).disableFeature(442L, f);
+        }
+        verify(eventListOperations, times(1)).leftPush(eq("EVENTS_442"), any(Event.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void applyLimitBatchTestEmpty() {
+        final Set<Long> result = sut.applyLimit(Collections.emptyList(), UserLimitType.CREDENTIALS_INVALID);
+
+        assertThat(result).isEmpty();
+        verify(stringRedisTemplate, never()).executePipelined(any(RedisCallback.class));
+    }
+
     @Test
     public void applyLimitTestNotReached() {
         when(longRedisTemplate.opsForValue()).thenReturn(longValueOperations);
@@ -109,6 +263,19 @@ public class UserServiceTest {
         assertThat(result).isFalse();
     }
 
+    @Test
+    public void applyLimitTestUserHash() {
+        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, stringRedisTemplate,
+                featureService, principalService, clock, true, 0, 100, 20, false);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        when(hashOperations.increment("USER_442", UserLimitType.CREDENTIALS_INVALID.name(), 1)).thenReturn(2L);
+
+        final boolean result = sut.applyLimit(442L, UserLimitType.CREDENTIALS_INVALID);
+
+        assertThat(result).isFalse();
+        verify(longRedisTemplate, never()).opsForValue();
+    }
+
     @Test
     public void applyLimitTestReached() {
         when(longRedisTemplate.opsForValue()).thenReturn(longValueOperations);
@@ -128,16 +295,93 @@ public class UserServiceTest {
         assertThat(eventCaptor.getValue().getCreationDateTime()).isEqualTo(LocalDateTime.now(clock));
     }
 
+    @SuppressWarnings("unchecked")
     @Test
     public void getEnabledFeaturesTest() {
-    	when(featureRedisTemplate.opsForSet()).thenReturn(featureSetOperations);
-    	when(featureSetOperations.members("FEATURES_1234")).thenReturn(new HashSet<>(Arrays.asList(Feature.NOTIFY_UNFOLLOW, Feature.TWEET_UNFOLLOW)));
+    	// bits 0 and 1 set
+    	when(featureRedisTemplate.execute(any(RedisCallback.class))).thenReturn(new byte[] { (byte) 0xC0 });
 
     	final Set<Feature> result = sut.getEnabledFeatures(1234L);
 
     	assertThat(result).isEqualTo(new HashSet<>(Arrays.asList(Feature.NOTIFY_UNFOLLOW, Feature.TWEET_UNFOLLOW)));
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void getEnabledFeaturesTestPartial() {
+        // bit 1 set
+        when(featureRedisTemplate.execute(any(RedisCallback.class))).thenReturn(new byte[] { (byte) 0x40 });
+
+        final Set<Feature> result = sut.getEnabledFeatures(1234L);
+
+        assertThat(result).containsOnly(Feature.TWEET_UNFOLLOW);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void getEnabledFeaturesTestNone() {
+        when(featureRedisTemplate.execute(any(RedisCallback.class))).thenReturn(null);
+
+        final Set<Feature> result = sut.getEnabledFeatures(1234L);
+
+        assertThat(result).isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void getEnabledFeaturesTestLegacy() {
+        // the legacy set is converted on first read
+        when(featureRedisTemplate.execute(any(RedisCallback.class))).thenReturn(null, new byte[] { (byte) 0x80 });
+        when(featureRedisTemplate.execute(any(RedisScript.class), any(RedisSerializer.class), any(),
+                eq(Arrays.asList("FEATURES_1234", "FEATURE_BITS_1234")), anyVararg())).thenReturn(1L);
+
+        final Set<Feature> result = sut.getEnabledFeatures(1234L);
+
+        assertThat(result).containsOnly(Feature.NOTIFY_UNFOLLOW);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void getEnabledFeaturesBatchTest() {
+        when(featureRedisTemplate.execute(any(RedisCallback.class)))
+                .thenReturn(Arrays.asList(new byte[] { (byte) 0x80 }, null, new byte[] { (byte) 0x40 }));
+
+        final Map<Long, Set<Feature>> result = sut.getEnabledFeatures(Arrays.asList(1L, 2L, 3L));
+
+        assertThat(result).hasSize(3);
+        assertThat(result.get(1L)).containsOnly(Feature.NOTIFY_UNFOLLOW);
+        assertThat(result.get(2L)).isEmpty();
+        assertThat(result.get(3L)).containsOnly(Feature.TWEET_UNFOLLOW);
+    }
+
+    @Test
+    public void getEnabledFeaturesTestUserHash() {
+        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, stringRedisTemplate,
+                featureService, principalService, clock, true, 0, 100, 20, false);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        // bit 1 set
+        when(hashOperations.get("USER_1234", "features")).thenReturn("2");
+
+        final Set<Feature> result = sut.getEnabledFeatures(1234L);
+
+        assertThat(result).containsOnly(Feature.TWEET_UNFOLLOW);
+    }
+
+    @Test
+    public void getEnabledFeaturesTestUserHashNotMigrated() {
+        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, stringRedisTemplate,
+                featureService, principalService, clock, true, 0, 100, 20, false);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        // the member is moved to its hash on first read
+        when(hashOperations.get("USER_1234", "features")).thenReturn(null, "1");
+        when(principalService.migrateToUserHash(1234L)).thenReturn(true);
+
+        final Set<Feature> result = sut.getEnabledFeatures(1234L);
+
+        assertThat(result).containsOnly(Feature.NOTIFY_UNFOLLOW);
+        verify(principalService, times(1)).migrateToUserHash(1234L);
+    }
+
     @Test
     public void getRecentEventsTest() {
         final List<Event> result = Arrays.asList(new Event(EventType.REGISTRATION, "reg"),
@@ -168,6 +412,45 @@ public class UserServiceTest {
         assertThat(returnedResult).isEqualTo(result);
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void getRecentEventsTestArchive() {
+        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, stringRedisTemplate,
+                featureService, principalService, clock, false, 4, 2, 3, false);
+        final List<Event> live = Arrays.asList(new Event(EventType.UNFOLLOW, "e"),
+                new Event(EventType.UNFOLLOW, "d"));
+        final List<Event> archived = Arrays.asList(new Event(EventType.UNFOLLOW, "c"),
+                new Event(EventType.UNFOLLOW, "b"));
+
+        when(eventRedisTemplate.getValueSerializer()).thenReturn((Jackson2JsonRedisSerializer) eventSerializer());
+        when(eventRedisTemplate.opsForList()).thenReturn(eventListOperations);
+        when(eventListOperations.range("EVENTS_1249", 2, 5)).thenReturn(live);
+        when(eventRedisTemplate.execute(any(RedisCallback.class))).thenReturn(Arrays.asList(
+                live.stream().map(eventSerializer()::serialize).collect(Collectors.toList()),
+                Arrays.asList(EventArchive.encode(archived, eventSerializer())), 0L));
+
+        final List<Event> returnedResult = sut.getRecentEvents(1249L, 3, 2);
+
+        assertThat(returnedResult).extracting("additionalData").containsExactly("e", "d", "c", "b");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void getRecentEventsTestNoArchive() {
+        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, stringRedisTemplate,
+                featureService, principalService, clock, false, 4, 2, 3, false);
+        final List<Event> live = Arrays.asList(new Event(EventType.REGISTRATION, "reg"));
+
+        when(eventRedisTemplate.opsForList()).thenReturn(eventListOperations);
+        when(eventListOperations.range("EVENTS_1249", 0, 10)).thenReturn(live);
+
+        final List<Event> returnedResult = sut.getRecentEvents(1249L, 10);
+
+        // shorter than the live window: nothing was ever archived
+        assertThat(returnedResult).isEqualTo(live);
+        verify(eventRedisTemplate, never()).execute(any(RedisCallback.class));
+    }
+
     @Test
     public void resetLimitTest() {
 
@@ -175,4 +458,44 @@ public class UserServiceTest {
 
         verify(longRedisTemplate, times(1)).delete(UserLimitType.CREDENTIALS_INVALID.name() + "_199");
     }
+
+    @Test
+    public void resetLimitBatchTest() {
+        sut.resetLimit(Arrays.asList(199L, 200L), UserLimitType.CREDENTIALS_INVALID);
+
+        verify(longRedisTemplate, times(1)).delete(Arrays.asList(UserLimitType.CREDENTIALS_INVALID.name() + "_199",
+                UserLimitType.CREDENTIALS_INVALID.name() + "_200"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void resetLimitBatchTestUserHash() {
+        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, stringRedisTemplate,
+                featureService, principalService, clock, true, 0, 100, 20, false);
+
+        sut.resetLimit(Arrays.asList(199L, 200L), UserLimitType.CREDENTIALS_INVALID);
+
+        verify(stringRedisTemplate, times(1)).executePipelined(any(RedisCallback.class));
+        verify(longRedisTemplate, never()).delete(anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void resetLimitTestUserHash() {
+        sut = new UserServiceImpl(eventRedisTemplate, featureRedisTemplate, longRedisTemplate, stringRedisTemplate,
+                featureService, principalService, clock, true, 0, 100, 20, false);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+
+        sut.resetLimit(199L, UserLimitType.CREDENTIALS_INVALID);
+
+        verify(hashOperations, times(1)).delete("USER_199", UserLimitType.CREDENTIALS_INVALID.name());
+        verify(longRedisTemplate, never()).delete(anyString());
+    }
+
+    private Jackson2JsonRedisSerializer<Event> eventSerializer() {
+        final ObjectMapper mapper = new ObjectMapper();
+        mapper.findAndRegisterModules();
+        final Jackson2JsonRedisSerializer<Event> result = new Jackson2JsonRedisSerializer<>(Event.class);
+        result.setObjectMapper(mapper);
+        return result;
+    }
 }
@@ -22,7 +22,7 @@ import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.Principal;
 import com.jeanchampemont.wtfdyum.dto.User;
 import com.jeanchampemont.wtfdyum.service.FollowersService;
-import com.jeanchampemont.wtfdyum.service.PrincipalService;
+import com.jeanchampemont.wtfdyum.service.StatisticsService;
 import com.jeanchampemont.wtfdyum.service.TwitterService;
 import com.jeanchampemont.wtfdyum.service.feature.impl.AbstractFeatureStrategy;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
@@ -30,9 +30,15 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.stubbing.OngoingStubbing;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.redis.core.HashOperations;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.*;
 import java.util.function.BiConsumer;
@@ -48,68 +54,81 @@ public abstract class AbstractFeatureStrategyTest {
 
     protected static final String DM_TEXT = "@%s DM";
 
-    protected PrincipalService principalService;
-
     protected FollowersService followersService;
 
     protected TwitterService twitterService;
 
+    protected StatisticsService statisticsService;
+
     protected AbstractFeatureStrategy sut;
 
     protected RedisTemplate<String, Feature> featureRedisTemplate;
 
+    protected ValueOperations<String, Feature> featureValueOperations;
+
     protected SetOperations<String, Feature> featureSetOperations;
 
+    protected StringRedisTemplate stringRedisTemplate;
+
+    protected HashOperations<String, Object, Object> hashOperations;
+
     @Test
     public void disableFeatureTestDisabledFeature() {
-        when(featureRedisTemplate.opsForSet()).thenReturn(featureSetOperations);
-        when(featureSetOperations.remove("FEATURES_1334", sut.getFeature())).thenReturn(0L);
+        when(executeScript(featureRedisTemplate, 1334L)).thenReturn(0L);
 
         final boolean result = sut.disableFeature(1334L);
 
-        verify(featureSetOperations, times(1)).remove("FEATURES_1334", sut.getFeature());
+        executeScript(verify(featureRedisTemplate, times(1)), 1334L);
 
         assertThat(result).isFalse();
     }
 
     @Test
     public void disableFeatureTestEnabledFeature() {
-        when(featureRedisTemplate.opsForSet()).thenReturn(featureSetOperations);
-        when(featureSetOperations.remove("FEATURES_1334", sut.getFeature())).thenReturn(1L);
+        when(executeScript(featureRedisTemplate, 1334L)).thenReturn(1L);
 
         final boolean result = sut.disableFeature(1334L);
 
-        verify(featureSetOperations, times(1)).remove("FEATURES_1334", sut.getFeature());
+        executeScript(verify(featureRedisTemplate, times(1)), 1334L);
 
         assertThat(result).isTrue();
     }
 
     @Test
     public void enableFeatureTestDisabledFeature() {
-        when(featureRedisTemplate.opsForSet()).thenReturn(featureSetOperations);
-        when(featureSetOperations.add("FEATURES_1334", sut.getFeature())).thenReturn(1L);
+        when(executeScript(featureRedisTemplate, 1334L)).thenReturn(1L);
 
         final boolean result = sut.enableFeature(1334L);
 
-        verify(featureSetOperations, times(1)).add("FEATURES_1334", sut.getFeature());
+        executeScript(verify(featureRedisTemplate, times(1)), 1334L);
 
         assertThat(result).isTrue();
     }
 
     @Test
     public void enableFeatureTestEnabledFeature() {
-        when(featureRedisTemplate.opsForSet()).thenReturn(featureSetOperations);
-        when(featureSetOperations.add("FEATURES_1334", sut.getFeature())).thenReturn(0L);
+        when(executeScript(featureRedisTemplate, 1334L)).thenReturn(0L);
 
         final boolean result = sut.enableFeature(1334L);
 
-        verify(featureSetOperations, times(1)).add("FEATURES_1334", sut.getFeature());
+        executeScript(verify(featureRedisTemplate, times(1)), 1334L);
 
         assertThat(result).isFalse();
     }
 
     @Test
     public void isFeatureEnabledTest() {
+        when(featureRedisTemplate.opsForValue()).thenReturn(featureValueOperations);
+        when(featureValueOperations.getBit("FEATURE_BITS_1899", sut.getFeature().getBitOffset())).thenReturn(true);
+
+        final boolean featureEnabled = sut.isEnabled(1899L);
+
+        assertThat(featureEnabled).isTrue();
+    }
+
+    @Test
+    public void isFeatureEnabledTestLegacy() {
+        when(featureRedisTemplate.opsForValue()).thenReturn(featureValueOperations);
         when(featureRedisTemplate.opsForSet()).thenReturn(featureSetOperations);
         when(featureSetOperations.isMember("FEATURES_1899", sut.getFeature())).thenReturn(true);
 
@@ -118,13 +137,58 @@ public abstract class AbstractFeatureStrategyTest {
         assertThat(featureEnabled).isTrue();
     }
 
+    @Test
+    public void isFeatureEnabledTestUserHash() {
+        useUserHash();
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        when(hashOperations.get("USER_1899", "features"))
+                .thenReturn(String.valueOf(1L << sut.getFeature().getBitOffset()));
+
+        final boolean featureEnabled = sut.isEnabled(1899L);
+
+        assertThat(featureEnabled).isTrue();
+        verify(featureRedisTemplate, never()).opsForValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void enableFeatureTestUserHash() {
+        useUserHash();
+        when(featureRedisTemplate.execute(any(RedisScript.class), any(RedisSerializer.class), any(),
+                eq(Arrays.asList("USER_1334", "FEATURE_MEMBERS_" + sut.getFeature().name(), "FEATURE_BITS_1334",
+                        "FEATURES_1334")),
+                eq(String.valueOf(sut.getFeature().getBitOffset())), eq("1334"), eq("NOTIFY_UNFOLLOW"), eq("0"),
+                eq("TWEET_UNFOLLOW"), eq("1"))).thenReturn(1L);
+
+        final boolean result = sut.enableFeature(1334L);
+
+        assertThat(result).isTrue();
+    }
+
     @SuppressWarnings("unchecked")
     protected void _init() {
-        principalService = mock(PrincipalService.class);
         followersService = mock(FollowersService.class);
         twitterService = mock(TwitterService.class);
+        statisticsService = mock(StatisticsService.class);
         featureRedisTemplate = mock(RedisTemplate.class);
+        featureValueOperations = mock(ValueOperations.class);
         featureSetOperations = mock(SetOperations.class);
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        hashOperations = mock(HashOperations.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Long executeScript(final RedisTemplate<String, Feature> template, final Long userId) {
+        return template.execute(any(RedisScript.class), any(RedisSerializer.class), any(),
+                eq(Arrays.asList("FEATURE_BITS_" + userId, "FEATURE_MEMBERS_" + sut.getFeature().name(),
+                        "FEATURES_" + userId)),
+                eq(String.valueOf(sut.getFeature().getBitOffset())), eq(userId.toString()), eq("NOTIFY_UNFOLLOW"),
+                eq("0"), eq("TWEET_UNFOLLOW"), eq("1"));
+    }
+
+    protected void useUserHash() {
+        ReflectionTestUtils.setField(sut, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(sut, "userHash", true);
     }
 
     protected Set<Long> followers(final Principal principal, final BiConsumer<OngoingStubbing<Set<Long>>, Set<Long>> l)
@@ -135,16 +199,14 @@ public abstract class AbstractFeatureStrategyTest {
     }
 
     protected Principal principal(final long id) {
-        when(principalService.getMembers()).thenReturn(new HashSet<>(Arrays.asList(id)));
-        final Principal principal = new Principal(id, "Principal 1 Token", "Principal 1 Token Secret");
-        when(principalService.get(id)).thenReturn(principal);
-        return principal;
+        return new Principal(id, "Principal 1 Token", "Principal 1 Token Secret");
     }
 
     protected List<User> unfollowers(final Principal principal, final Set<Long> followersIds,
-            final BiConsumer<OngoingStubbing<Set<Long>>, Set<Long>> l) throws WTFDYUMException {
+            final BiConsumer<OngoingStubbing<FollowersService.Diff>, FollowersService.Diff> l) throws WTFDYUMException {
         final Set<Long> unfollowers = new HashSet<>(Arrays.asList(10L, 11L));
-        l.accept(when(followersService.getUnfollowers(principal.getUserId(), followersIds)), unfollowers);
+        l.accept(when(followersService.getUnfollowers(principal.getUserId(), followersIds)),
+                new FollowersService.Diff(unfollowers, 0L));
 
         // unfollowers 10 and 11 details :
         final User user10 = new User();
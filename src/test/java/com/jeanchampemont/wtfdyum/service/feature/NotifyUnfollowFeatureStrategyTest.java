@@ -22,6 +22,7 @@ import com.jeanchampemont.wtfdyum.dto.Event;
 import com.jeanchampemont.wtfdyum.dto.Principal;
 import com.jeanchampemont.wtfdyum.dto.User;
 import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import com.jeanchampemont.wtfdyum.dto.type.StatisticType;
 import com.jeanchampemont.wtfdyum.service.feature.impl.NotifyUnfollowFeatureStrategy;
 import org.junit.Before;
 import org.junit.Test;
@@ -45,7 +46,7 @@ public class NotifyUnfollowFeatureStrategyTest extends AbstractFeatureStrategyTe
     @Before
     public void _init() {
         super._init();
-        sut = new NotifyUnfollowFeatureStrategy(principalService, followersService, twitterService, DM_TEXT);
+        sut = new NotifyUnfollowFeatureStrategy(followersService, twitterService, statisticsService, DM_TEXT);
         ReflectionTestUtils.setField(sut, "featureRedisTemplate", featureRedisTemplate);
     }
 
@@ -55,10 +56,10 @@ public class NotifyUnfollowFeatureStrategyTest extends AbstractFeatureStrategyTe
 
         final Set<Long> followers = followers(principal, (s, f) -> s.thenReturn(f));
 
-        sut.completeCron(1L);
+        sut.completeCron(principal, 4L);
 
-        // New followers list should be saved
-        verify(followersService, times(1)).saveFollowers(1L, followers);
+        // New followers list should be saved, if still of the same generation
+        verify(followersService, times(1)).saveFollowers(1L, followers, 4L);
     }
 
     @Test
@@ -69,10 +70,11 @@ public class NotifyUnfollowFeatureStrategyTest extends AbstractFeatureStrategyTe
 
         final List<User> unfollowers = unfollowers(principal, followers, (s, u) -> s.thenReturn(u));
 
-        final Set<Event> events = sut.cron(1L);
+        final Set<Event> events = sut.cron(principal);
 
         verifyUnfollowDM(principal, unfollowers.get(0));
         verifyUnfollowDM(principal, unfollowers.get(1));
+        verify(statisticsService, times(1)).increment(StatisticType.NOTIFICATIONS_SENT, 2);
 
         assertThat(events.contains(new Event(EventType.UNFOLLOW, unfollowers.get(0).getScreenName())));
         assertThat(events.contains(new Event(EventType.UNFOLLOW, unfollowers.get(1).getScreenName())));
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jeanchampemont.wtfdyum.dto.Event;
+import com.jeanchampemont.wtfdyum.dto.Principal;
+import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.time.LocalDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BinaryRedisSerializerTest {
+
+    private final Jackson2JsonRedisSerializer<Event> jsonEventSerializer = jsonSerializer(Event.class);
+
+    private final Jackson2JsonRedisSerializer<Principal> jsonPrincipalSerializer = jsonSerializer(Principal.class);
+
+    private final EventRedisSerializer eventSerializer = new EventRedisSerializer(jsonEventSerializer);
+
+    private final PrincipalRedisSerializer principalSerializer = new PrincipalRedisSerializer(jsonPrincipalSerializer);
+
+    @Test
+    public void eventTest() {
+        final Event event = new Event(EventType.UNFOLLOW, "@jeanchampemont é");
+        event.setCreationDateTime(LocalDateTime.of(2016, 1, 18, 21, 3, 12));
+
+        final byte[] serialized = eventSerializer.serialize(event);
+
+        assertThat(eventSerializer.deserialize(serialized)).isEqualTo(event);
+        assertThat(serialized.length).isLessThan(jsonEventSerializer.serialize(event).length / 3);
+    }
+
+    @Test
+    public void eventTestRepeated() {
+        final Event event = new Event(EventType.TWITTER_ERROR, null);
+        event.setCreationDateTime(LocalDateTime.of(2016, 1, 18, 21, 3, 12));
+        event.setCount(300);
+        event.setFirstCreationDateTime(LocalDateTime.of(1969, 12, 31, 23, 0));
+
+        assertThat(eventSerializer.deserialize(eventSerializer.serialize(event))).isEqualTo(event);
+    }
+
+    @Test
+    public void eventTestLegacyJson() {
+        final Event event = new Event(EventType.REGISTRATION, "");
+        event.setCreationDateTime(LocalDateTime.of(2016, 1, 18, 21, 3, 12, 5000));
+
+        assertThat(eventSerializer.deserialize(jsonEventSerializer.serialize(event))).isEqualTo(event);
+    }
+
+    @Test(expected = SerializationException.class)
+    public void eventTestTruncated() {
+        final Event event = new Event(EventType.UNFOLLOW, "@jeanchampemont");
+        final byte[] serialized = eventSerializer.serialize(event);
+        final byte[] truncated = new byte[serialized.length - 2];
+        System.arraycopy(serialized, 0, truncated, 0, truncated.length);
+
+        eventSerializer.deserialize(truncated);
+    }
+
+    @Test
+    public void principalTest() {
+        final Principal principal = new Principal(4407412453L, "4407412453-tok", "secret");
+
+        final byte[] serialized = principalSerializer.serialize(principal);
+
+        assertThat(principalSerializer.deserialize(serialized)).isEqualTo(principal);
+        assertThat(principalSerializer.deserialize(jsonPrincipalSerializer.serialize(principal))).isEqualTo(principal);
+        assertThat(principalSerializer.deserialize(principalSerializer.serialize(new Principal())))
+                .isEqualTo(new Principal());
+    }
+
+    @Test
+    public void nullTest() {
+        assertThat(eventSerializer.deserialize(eventSerializer.serialize(null))).isNull();
+        assertThat(principalSerializer.deserialize(null)).isNull();
+    }
+
+    private <T> Jackson2JsonRedisSerializer<T> jsonSerializer(final Class<T> clazz) {
+        final ObjectMapper mapper = new ObjectMapper();
+        mapper.findAndRegisterModules();
+        final Jackson2JsonRedisSerializer<T> result = new Jackson2JsonRedisSerializer<>(clazz);
+        result.setObjectMapper(mapper);
+        return result;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import org.springframework.data.redis.core.Cursor;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class CursorMockForTest<T> implements Cursor<T> {
+
+    @SafeVarargs
+    public CursorMockForTest(final T... values) {
+        this.iterator = Arrays.asList(values).iterator();
+    }
+
+    private final Iterator<T> iterator;
+
+    private boolean closed = false;
+
+    private long position = 0;
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public long getCursorId() {
+        return 0;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public T next() {
+        position++;
+        return iterator.next();
+    }
+
+    @Override
+    public Cursor<T> open() {
+        return this;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jeanchampemont.wtfdyum.dto.Event;
+import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EventArchiveTest {
+
+    @Test
+    public void encodeDecodeTest() {
+        final Jackson2JsonRedisSerializer<Event> serializer = serializer();
+        final Event first = new Event(EventType.UNFOLLOW, "b");
+        first.setCreationDateTime(LocalDateTime.of(2016, 1, 2, 3, 4));
+        final Event second = new Event(EventType.TWITTER_ERROR, null);
+        second.setCreationDateTime(LocalDateTime.of(2016, 1, 1, 3, 4));
+        final List<Event> events = Arrays.asList(first, second);
+
+        final List<Event> result = EventArchive.decode(EventArchive.encode(events, serializer), serializer);
+
+        assertThat(result).isEqualTo(events);
+    }
+
+    @Test(expected = SerializationException.class)
+    public void decodeTestCorrupted() {
+        EventArchive.decode(new byte[] { 1, 2, 3 }, serializer());
+    }
+
+    private Jackson2JsonRedisSerializer<Event> serializer() {
+        final ObjectMapper mapper = new ObjectMapper();
+        mapper.findAndRegisterModules();
+        final Jackson2JsonRedisSerializer<Event> result = new Jackson2JsonRedisSerializer<>(Event.class);
+        result.setObjectMapper(mapper);
+        return result;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.jeanchampemont.wtfdyum.dto.Event;
+import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EventCompactionTest {
+
+    @Test
+    public void compactTest() {
+        final List<Event> result = EventCompaction.compact(Arrays.asList(event(EventType.TWITTER_ERROR, null, 1),
+                event(EventType.TWITTER_ERROR, null, 2), event(EventType.UNFOLLOW, "a", 3),
+                event(EventType.UNFOLLOW, "b", 4), event(EventType.UNFOLLOW, "b", 5),
+                event(EventType.UNFOLLOW, "b", 6)));
+
+        assertThat(result).extracting("count").containsExactly(2, 1, 3);
+        assertThat(result.get(0).getFirstCreationDateTime()).isEqualTo(time(1));
+        assertThat(result.get(0).getCreationDateTime()).isEqualTo(time(2));
+        assertThat(result.get(1).getFirstCreationDateTime()).isNull();
+        assertThat(result.get(2).getFirstCreationDateTime()).isEqualTo(time(4));
+        assertThat(result.get(2).getCreationDateTime()).isEqualTo(time(6));
+    }
+
+    @Test
+    public void isRepeatTest() {
+        assertThat(EventCompaction.isRepeat(event(EventType.UNFOLLOW, "a", 1), event(EventType.UNFOLLOW, "a", 2)))
+                .isTrue();
+        assertThat(EventCompaction.isRepeat(event(EventType.UNFOLLOW, "a", 1), event(EventType.UNFOLLOW, "b", 2)))
+                .isFalse();
+        assertThat(EventCompaction.isRepeat(event(EventType.UNFOLLOW, "a", 1), event(EventType.REGISTRATION, "a", 2)))
+                .isFalse();
+    }
+
+    private Event event(final EventType type, final String additionalData, final int minute) {
+        final Event result = new Event(type, additionalData);
+        result.setCreationDateTime(time(minute));
+        return result;
+    }
+
+    private LocalDateTime time(final int minute) {
+        return LocalDateTime.of(2016, 1, 1, 10, minute);
+    }
+}
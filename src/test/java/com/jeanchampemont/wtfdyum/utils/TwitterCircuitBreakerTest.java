@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.jeanchampemont.wtfdyum.dto.type.TwitterEndpoint;
+import com.jeanchampemont.wtfdyum.utils.TwitterCircuitBreaker.Result;
+import com.jeanchampemont.wtfdyum.utils.TwitterCircuitBreaker.State;
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.time.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TwitterCircuitBreakerTest {
+
+    @Mock
+    private Clock clock;
+
+    private TwitterCircuitBreaker sut;
+
+    @Before
+    public void _init() {
+        when(clock.millis()).thenReturn(1000000L);
+        sut = new TwitterCircuitBreaker(clock, 4, 50, 60000L);
+    }
+
+    @Test
+    public void acquireTestClosed() throws Exception {
+        call(TwitterEndpoint.FOLLOWERS_IDS, Result.FAILURE);
+        call(TwitterEndpoint.FOLLOWERS_IDS, Result.SUCCESS);
+        call(TwitterEndpoint.FOLLOWERS_IDS, Result.SUCCESS);
+        call(TwitterEndpoint.FOLLOWERS_IDS, Result.SUCCESS);
+        // the first failure left the window
+        call(TwitterEndpoint.FOLLOWERS_IDS, Result.FAILURE);
+
+        assertThat(sut.getState(TwitterEndpoint.FOLLOWERS_IDS)).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    public void acquireTestOpen() throws Exception {
+        call(TwitterEndpoint.FOLLOWERS_IDS, Result.FAILURE);
+        call(TwitterEndpoint.FOLLOWERS_IDS, Result.SUCCESS);
+        call(TwitterEndpoint.FOLLOWERS_IDS, Result.FAILURE);
+
+        assertThat(sut.getState(TwitterEndpoint.FOLLOWERS_IDS)).isEqualTo(State.OPEN);
+        assertRejected(TwitterEndpoint.FOLLOWERS_IDS);
+        // other endpoints are not affected
+        call(TwitterEndpoint.USERS_LOOKUP, Result.SUCCESS);
+    }
+
+    @Test
+    public void acquireTestHalfOpenFailure() throws Exception {
+        open(TwitterEndpoint.STATUSES_UPDATE);
+        when(clock.millis()).thenReturn(1060000L);
+
+        final long generation = sut.acquire(TwitterEndpoint.STATUSES_UPDATE);
+        // a single trial call
+        assertRejected(TwitterEndpoint.STATUSES_UPDATE);
+        sut.release(TwitterEndpoint.STATUSES_UPDATE, generation, Result.FAILURE);
+
+        assertThat(sut.getState(TwitterEndpoint.STATUSES_UPDATE)).isEqualTo(State.OPEN);
+        assertRejected(TwitterEndpoint.STATUSES_UPDATE);
+    }
+
+    @Test
+    public void acquireTestHalfOpenNotCalled() throws Exception {
+        open(TwitterEndpoint.STATUSES_UPDATE);
+        when(clock.millis()).thenReturn(1060000L);
+
+        final long generation = sut.acquire(TwitterEndpoint.STATUSES_UPDATE);
+        sut.release(TwitterEndpoint.STATUSES_UPDATE, generation, Result.NOT_CALLED);
+
+        assertThat(sut.getState(TwitterEndpoint.STATUSES_UPDATE)).isEqualTo(State.HALF_OPEN);
+        call(TwitterEndpoint.STATUSES_UPDATE, Result.SUCCESS);
+    }
+
+    @Test
+    public void acquireTestHalfOpenSuccess() throws Exception {
+        open(TwitterEndpoint.STATUSES_UPDATE);
+        when(clock.millis()).thenReturn(1060000L);
+
+        call(TwitterEndpoint.STATUSES_UPDATE, Result.SUCCESS);
+
+        assertThat(sut.getState(TwitterEndpoint.STATUSES_UPDATE)).isEqualTo(State.CLOSED);
+        call(TwitterEndpoint.STATUSES_UPDATE, Result.FAILURE);
+        assertThat(sut.getState(TwitterEndpoint.STATUSES_UPDATE)).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    public void releaseTestStartedBeforeOpen() throws Exception {
+        final long before = sut.acquire(TwitterEndpoint.STATUSES_UPDATE);
+        open(TwitterEndpoint.STATUSES_UPDATE);
+        when(clock.millis()).thenReturn(1060000L);
+
+        final long trial = sut.acquire(TwitterEndpoint.STATUSES_UPDATE);
+        // ends during the trial, it must not decide it
+        sut.release(TwitterEndpoint.STATUSES_UPDATE, before, Result.SUCCESS);
+        assertThat(sut.getState(TwitterEndpoint.STATUSES_UPDATE)).isEqualTo(State.HALF_OPEN);
+        assertRejected(TwitterEndpoint.STATUSES_UPDATE);
+
+        sut.release(TwitterEndpoint.STATUSES_UPDATE, trial, Result.FAILURE);
+        assertThat(sut.getState(TwitterEndpoint.STATUSES_UPDATE)).isEqualTo(State.OPEN);
+    }
+
+    @Test
+    public void releaseTestStartedBeforeClose() throws Exception {
+        final long before = sut.acquire(TwitterEndpoint.STATUSES_UPDATE);
+        final long other = sut.acquire(TwitterEndpoint.STATUSES_UPDATE);
+        open(TwitterEndpoint.STATUSES_UPDATE);
+        when(clock.millis()).thenReturn(1060000L);
+        call(TwitterEndpoint.STATUSES_UPDATE, Result.SUCCESS);
+
+        // failures of calls started before the circuit opened are not counted any more
+        sut.release(TwitterEndpoint.STATUSES_UPDATE, before, Result.FAILURE);
+        sut.release(TwitterEndpoint.STATUSES_UPDATE, other, Result.FAILURE);
+        assertThat(sut.getState(TwitterEndpoint.STATUSES_UPDATE)).isEqualTo(State.CLOSED);
+    }
+
+    private void assertRejected(final TwitterEndpoint endpoint) {
+        try {
+            sut.acquire(endpoint);
+            Assertions.fail("Exception not throwned");
+        } catch (final WTFDYUMException e) {
+            assertThat(e.getType()).isEqualTo(WTFDYUMExceptionType.TWITTER_UNAVAILABLE);
+        }
+    }
+
+    private void call(final TwitterEndpoint endpoint, final Result result) throws WTFDYUMException {
+        final long generation = sut.acquire(endpoint);
+        sut.release(endpoint, generation, result);
+    }
+
+    private void open(final TwitterEndpoint endpoint) throws WTFDYUMException {
+        call(endpoint, Result.FAILURE);
+        call(endpoint, Result.FAILURE);
+        assertThat(sut.getState(endpoint)).isEqualTo(State.OPEN);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import com.jeanchampemont.wtfdyum.dto.type.StatisticType;
+import com.jeanchampemont.wtfdyum.service.StatisticsService;
+import com.jeanchampemont.wtfdyum.utils.TwitterConcurrencyLimiter.Adjustment;
+import com.jeanchampemont.wtfdyum.utils.TwitterConcurrencyLimiter.Outcome;
+import com.jeanchampemont.wtfdyum.utils.TwitterConcurrencyLimiter.Permit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.redis.core.ListOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TwitterConcurrencyLimiterTest {
+
+    @Mock
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Mock
+    private ListOperations<String, String> listOperations;
+
+    @Mock
+    private StatisticsService statisticsService;
+
+    private Clock clock = Clock.fixed(Instant.ofEpochMilli(1000000L), ZoneId.of("Z"));
+
+    private TwitterConcurrencyLimiter sut;
+
+    @Before
+    public void _init() {
+        when(stringRedisTemplate.opsForList()).thenReturn(listOperations);
+        sut = new TwitterConcurrencyLimiter(stringRedisTemplate, statisticsService, clock, 2, 3, 1000L);
+    }
+
+    @Test(timeout = 5000L)
+    public void acquireTestWaitsForRelease() throws Exception {
+        final Permit first = sut.acquire();
+        sut.acquire();
+
+        final CompletableFuture<Permit> third = CompletableFuture.supplyAsync(() -> {
+            try {
+                return sut.acquire();
+            } catch (final InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100L);
+        assertThat(third.isDone()).isFalse();
+
+        sut.release(first, Outcome.SUCCESS);
+        assertThat(third.get(1, TimeUnit.SECONDS)).isNotNull();
+    }
+
+    @Test
+    public void getHistoryTest() {
+        when(listOperations.range("TWITTER_CONCURRENCY_HISTORY", 0, 99))
+        .thenReturn(Arrays.asList("1000000|12@host|4|2|THROTTLED"));
+
+        final List<Adjustment> result = sut.getHistory();
+
+        assertThat(result).hasSize(1);
+        assertThat(result.get(0).getNode()).isEqualTo("12@host");
+        assertThat(result.get(0).getFrom()).isEqualTo(4);
+        assertThat(result.get(0).getTo()).isEqualTo(2);
+        assertThat(result.get(0).getReason()).isEqualTo("THROTTLED");
+    }
+
+    @Test
+    public void releaseTestDecrease() throws Exception {
+        final Permit first = sut.acquire();
+        final Permit second = sut.acquire();
+
+        sut.release(first, Outcome.THROTTLED);
+        assertThat(sut.getLimit()).isEqualTo(1);
+
+        // already in flight when the limit was cut
+        sut.release(second, Outcome.TIMEOUT);
+        assertThat(sut.getLimit()).isEqualTo(1);
+
+        verify(statisticsService, times(1)).increment(StatisticType.TWITTER_CONCURRENCY_DECREASES, 1);
+        verify(listOperations, times(1)).leftPush(eq("TWITTER_CONCURRENCY_HISTORY"), endsWith("|2|1|THROTTLED"));
+        verify(listOperations, times(1)).trim("TWITTER_CONCURRENCY_HISTORY", 0, 99);
+    }
+
+    @Test
+    public void releaseTestIncrease() throws Exception {
+        for (int round = 0; round < 3; round++) {
+            final Permit first = sut.acquire();
+            final Permit second = sut.acquire();
+            final Permit third = round > 0 ? sut.acquire() : null;
+            sut.release(first, Outcome.SUCCESS);
+            sut.release(second, Outcome.SUCCESS);
+            if (third != null) {
+                sut.release(third, Outcome.SUCCESS);
+            }
+        }
+
+        // capped to the max limit
+        assertThat(sut.getLimit()).isEqualTo(3);
+        verify(statisticsService, times(1)).increment(StatisticType.TWITTER_CONCURRENCY_INCREASES, 1);
+        verify(listOperations, times(1)).leftPush(eq("TWITTER_CONCURRENCY_HISTORY"), endsWith("|2|3|HEALTHY"));
+    }
+
+    @Test
+    public void releaseTestErrors() throws Exception {
+        final Permit first = sut.acquire();
+        final Permit second = sut.acquire();
+        sut.release(first, Outcome.SUCCESS);
+        sut.release(second, Outcome.ERROR);
+
+        assertThat(sut.getLimit()).isEqualTo(2);
+        verify(listOperations, never()).leftPush(anyString(), anyString());
+    }
+
+    @Test
+    public void releaseTestNotSaturated() throws Exception {
+        sut.release(sut.acquire(), Outcome.SUCCESS);
+        sut.release(sut.acquire(), Outcome.SUCCESS);
+
+        // the limit was never reached, raising it is pointless
+        assertThat(sut.getLimit()).isEqualTo(2);
+        verify(listOperations, never()).leftPush(anyString(), anyString());
+    }
+}
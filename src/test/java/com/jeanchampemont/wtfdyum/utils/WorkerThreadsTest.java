@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015, 2016 WTFDYUM
+ *
+ * This file is part of the WTFDYUM project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeanchampemont.wtfdyum.utils;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class WorkerThreadsTest {
+
+    @Test
+    public void newFixedExecutorTest() throws Exception {
+        final ExecutorService sut = WorkerThreads.newFixedExecutor("test-", 2, false);
+        try {
+            final Future<String> name = sut.submit(() -> Thread.currentThread().getName());
+
+            assertThat(name.get()).isEqualTo("test-0");
+        } finally {
+            sut.shutdownNow();
+        }
+    }
+
+    @Test
+    public void newFixedExecutorTestFallback() throws Exception {
+        Assume.assumeFalse(WorkerThreads.isVirtualSupported());
+        final ExecutorService sut = WorkerThreads.newFixedExecutor("test-", 2,
+                WorkerThreads.useVirtual("test-", true));
+        try {
+            final Future<Boolean> daemon = sut.submit(() -> Thread.currentThread().isDaemon());
+
+            assertThat(daemon.get()).isTrue();
+        } finally {
+            sut.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void newVirtualExecutorTest() throws Exception {
+        Assume.assumeTrue(WorkerThreads.isVirtualSupported());
+        final ExecutorService sut = WorkerThreads.newVirtualExecutor("test-", 2, 1000);
+        try {
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(100);
+            for (int i = 0; i < 100; i++) {
+                sut.execute(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(1L);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+
+            assertThat(done.await(4L, TimeUnit.SECONDS)).isTrue();
+            assertThat(maxRunning.get()).isLessThanOrEqualTo(2);
+        } finally {
+            sut.shutdownNow();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void newVirtualExecutorTestUnsupported() {
+        Assume.assumeFalse(WorkerThreads.isVirtualSupported());
+        WorkerThreads.newVirtualExecutor("test-", 2, 1000);
+    }
+}
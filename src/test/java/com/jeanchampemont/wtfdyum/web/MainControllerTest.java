@@ -22,6 +22,7 @@ import com.jeanchampemont.wtfdyum.dto.Principal;
 import com.jeanchampemont.wtfdyum.dto.type.EventType;
 import com.jeanchampemont.wtfdyum.service.AuthenticationService;
 import com.jeanchampemont.wtfdyum.service.PrincipalService;
+import com.jeanchampemont.wtfdyum.service.RequestTokenService;
 import com.jeanchampemont.wtfdyum.service.TwitterService;
 import com.jeanchampemont.wtfdyum.service.UserService;
 import org.junit.Test;
@@ -29,14 +30,11 @@ import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
-import org.springframework.mock.web.MockHttpSession;
 import org.springframework.test.util.ReflectionTestUtils;
 import twitter4j.auth.AccessToken;
 import twitter4j.auth.RequestToken;
 
-import javax.servlet.http.HttpSession;
-
-import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
@@ -57,6 +55,9 @@ public class MainControllerTest extends AbstractControllerTest {
     @Mock
     private UserService userService;
 
+    @Mock
+    private RequestTokenService requestTokenService;
+
     @InjectMocks
     private MainController mainController;
 
@@ -85,25 +86,23 @@ public class MainControllerTest extends AbstractControllerTest {
         when(twitterService.signin(anyString())).thenReturn(returnedRequestToken);
         when(principalService.get(1203L)).thenReturn(null);
 
-        final HttpSession session = mockMvc
-                .perform(get("/signin"))
-                .andExpect(status().is3xxRedirection())
-                .andExpect(redirectedUrlPattern("http*://**/**my_super_token"))
-                .andReturn()
-                .getRequest()
-                .getSession();
+        mockMvc
+        .perform(get("/signin"))
+        .andExpect(status().is3xxRedirection())
+        .andExpect(redirectedUrlPattern("http*://**/**my_super_token"));
 
-        assertThat(session).isNotNull();
-        assertThat(session.getAttribute(MainController.SESSION_REQUEST_TOKEN)).isNotNull();
-        assertThat(session.getAttribute(MainController.SESSION_REQUEST_TOKEN)).isEqualTo(returnedRequestToken);
+        verify(requestTokenService, times(1)).save(returnedRequestToken);
+        verify(authenticationService, times(1)).beginSignin("my_super_token");
 
         final AccessToken returnedAccessToken = new AccessToken("TOken", "secret");
         ReflectionTestUtils.setField(returnedAccessToken, "userId", 1203L);
 
+        when(authenticationService.completeSignin("my_super_token")).thenReturn(true);
+        when(requestTokenService.consume("my_super_token")).thenReturn(returnedRequestToken);
         when(twitterService.completeSignin(returnedRequestToken, "42")).thenReturn(returnedAccessToken);
 
         mockMvc
-        .perform(get("/signin/callback?oauth_verifier=42").session((MockHttpSession) session))
+        .perform(get("/signin/callback?oauth_token=my_super_token&oauth_verifier=42"))
         .andExpect(status().is3xxRedirection())
         .andExpect(redirectedUrl("/user"));
 
@@ -114,6 +113,31 @@ public class MainControllerTest extends AbstractControllerTest {
         verify(authenticationService, times(1)).authenticate(builtUser);
     }
 
+    @Test
+    public void signinCallbackTestExpiredToken() throws Exception {
+        when(authenticationService.completeSignin("my_super_token")).thenReturn(true);
+        when(requestTokenService.consume("my_super_token")).thenReturn(null);
+
+        mockMvc
+        .perform(get("/signin/callback?oauth_token=my_super_token&oauth_verifier=42"))
+        .andExpect(status().is5xxServerError());
+
+        verify(twitterService, never()).completeSignin(any(), anyString());
+        verify(authenticationService, never()).authenticate(any());
+    }
+
+    @Test
+    public void signinCallbackTestOtherBrowser() throws Exception {
+        when(authenticationService.completeSignin("my_super_token")).thenReturn(false);
+
+        mockMvc
+        .perform(get("/signin/callback?oauth_token=my_super_token&oauth_verifier=42"))
+        .andExpect(status().is5xxServerError());
+
+        verify(requestTokenService, never()).consume(anyString());
+        verify(authenticationService, never()).authenticate(any());
+    }
+
     @Test
     public void signinTest() throws Exception {
         final RequestToken returnedRequestToken = new RequestToken("my_super_token", "");
@@ -22,10 +22,12 @@ import com.jeanchampemont.wtfdyum.dto.Feature;
 import com.jeanchampemont.wtfdyum.dto.Principal;
 import com.jeanchampemont.wtfdyum.dto.User;
 import com.jeanchampemont.wtfdyum.dto.type.EventType;
+import com.jeanchampemont.wtfdyum.security.AuthenticationContext;
 import com.jeanchampemont.wtfdyum.service.*;
 import com.jeanchampemont.wtfdyum.utils.SessionManager;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMException;
 import com.jeanchampemont.wtfdyum.utils.WTFDYUMExceptionType;
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
@@ -33,6 +35,7 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
 
 import static org.hamcrest.Matchers.hasEntry;
@@ -61,6 +64,11 @@ public class UserControllerTest extends AbstractControllerTest {
     @InjectMocks
     private UserController userController;
 
+    @After
+    public void _destroy() {
+        SessionManager.setContext(null);
+    }
+
     @Test
     public void disableFeatureTest() throws Exception {
         when(authenticationService.getCurrentUserId()).thenReturn(12340L);
@@ -94,7 +102,7 @@ public class UserControllerTest extends AbstractControllerTest {
     @Test
     public void indexTest() throws Exception {
         final Principal principal = new Principal(1L, "tok", "toksec");
-        SessionManager.setPrincipal(principal);
+        SessionManager.setContext(new AuthenticationContext(12340L, principal, false));
         final User u = new User();
 
         final List<Event> events = Arrays.asList(new Event(), new Event(EventType.REGISTRATION, ""));
@@ -102,7 +110,7 @@ public class UserControllerTest extends AbstractControllerTest {
         when(authenticationService.getCurrentUserId()).thenReturn(12340L);
         when(twitterService.getUser(principal, 12340L)).thenReturn(u);
         when(userService.getRecentEvents(12340L, 10)).thenReturn(events);
-        when(featureService.isEnabled(12340L, Feature.NOTIFY_UNFOLLOW)).thenReturn(true);
+        when(userService.getEnabledFeatures(12340L)).thenReturn(EnumSet.of(Feature.NOTIFY_UNFOLLOW));
 
         mockMvc
         .perform(get("/user"))
@@ -112,13 +120,15 @@ public class UserControllerTest extends AbstractControllerTest {
         .andExpect(model().attribute("events", events))
         .andExpect(model().attribute("availableFeatures", Feature.values()))
         .andExpect(
-                model().attribute("featuresStatus", hasEntry(Feature.NOTIFY_UNFOLLOW.name(), true)));
+                model().attribute("featuresStatus", hasEntry(Feature.NOTIFY_UNFOLLOW.name(), true)))
+        .andExpect(
+                model().attribute("featuresStatus", hasEntry(Feature.TWEET_UNFOLLOW.name(), false)));
     }
 
     @Test
     public void indexTestTwitterErrorException() throws Exception {
         final Principal principal = new Principal(1L, "tok", "toksec");
-        SessionManager.setPrincipal(principal);
+        SessionManager.setContext(new AuthenticationContext(12340L, principal, false));
 
         when(authenticationService.getCurrentUserId()).thenReturn(12340L);
         when(twitterService.getUser(principal, 12340L))